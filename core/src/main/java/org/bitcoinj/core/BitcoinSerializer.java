@@ -20,6 +20,7 @@ package org.bitcoinj.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.BufferUnderflowException;
@@ -100,6 +101,13 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
+        byte[] header = makeHeader(name, message, null);
+        out.write(header);
+        out.write(message);
+    }
+
+    // Builds the magic bytes and header for the given payload, using the checksum if one is known already.
+    private byte[] makeHeader(String name, byte[] message, @Nullable byte[] checksum) {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
@@ -111,13 +119,13 @@ public class BitcoinSerializer {
 
         Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
 
-        byte[] hash = Sha256Hash.hashTwice(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
+        if (checksum == null)
+            checksum = Sha256Hash.hashTwice(message);
+        System.arraycopy(checksum, 0, header, 4 + COMMAND_LEN + 4, 4);
 
         if (log.isDebugEnabled())
             log.debug("Sending {} message: {}", name, HEX.encode(header) + HEX.encode(message));
+        return header;
     }
 
     /**
@@ -131,6 +139,22 @@ public class BitcoinSerializer {
         serialize(name, message.bitcoinSerialize(), out);
     }
 
+    /**
+     * Returns the magic bytes and header of the given message followed by its payload, as two buffers for a gathering
+     * write. Unlike {@link #serialize(Message, OutputStream)} this doesn't copy the payload when the message still has
+     * the bytes it was parsed from, and then reuses their checksum too, so the buffers must be treated as read only.
+     */
+    public ByteBuffer[] serializeToBuffers(Message message) {
+        String name = names.get(message.getClass());
+        if (name == null) {
+            throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
+        }
+        // The checksum is only kept alongside unmodified cached bytes.
+        byte[] checksum = message.isCached() ? message.getChecksum() : null;
+        byte[] payload = message.unsafeBitcoinSerialize();
+        return new ByteBuffer[] { ByteBuffer.wrap(makeHeader(name, payload, checksum)), ByteBuffer.wrap(payload) };
+    }
+
     /**
      * Reads a message from the given ByteBuffer and returns it.
      */
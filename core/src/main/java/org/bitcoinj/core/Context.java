@@ -28,6 +28,7 @@ public class Context {
     private static final Logger log = LoggerFactory.getLogger(Context.class);
 
     private TxConfidenceTable confidenceTable;
+    private SignatureCache signatureCache;
     private NetworkParameters params;
     private int eventHorizon = 100;
 
@@ -39,6 +40,7 @@ public class Context {
      */
     public Context(NetworkParameters params) {
         this.confidenceTable = new TxConfidenceTable();
+        this.signatureCache = new SignatureCache();
         this.params = params;
         lastConstructed = this;
         // We may already have a context in our TLS slot. This can happen a lot during unit tests, so just ignore it.
@@ -123,6 +125,15 @@ public class Context {
         return confidenceTable;
     }
 
+    /**
+     * Returns the {@link SignatureCache} created by this context. It remembers signatures that were already verified,
+     * so that transactions seen first when relayed don't have their signatures checked again once they appear in a
+     * block.
+     */
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
     /**
      * Returns the {@link org.bitcoinj.core.NetworkParameters} specified when this context was (auto) created. The
      * network parameters defines various hard coded constants for a specific instance of a Bitcoin network, such as
@@ -17,11 +17,11 @@
 
 package org.bitcoinj.core;
 
+import com.google.common.annotations.VisibleForTesting;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.Script.VerifyFlag;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
-import org.bitcoinj.utils.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,9 +30,7 @@ import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Set;
-import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -94,6 +92,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     public FullPrunedBlockChain(Context context, List<BlockChainListener> listeners, FullPrunedBlockStore blockStore) throws BlockStoreException {
         super(context, listeners, blockStore);
         this.blockStore = blockStore;
+        this.signatureCache = context.getSignatureCache();
+        this.scriptVerificationEngine = new ScriptVerificationEngine(signatureCache);
         // Ignore upgrading for now
         this.chainHead = blockStore.getVerifiedChainHead();
     }
@@ -143,41 +143,81 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         this.runScripts = value;
     }
 
-    // TODO: Remove lots of duplicated code in the two connectTransactions
-
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
-
     /**
-     * A job submitted to the executor which verifies signatures.
+     * Returns the engine used to verify scripts of connected blocks.
      */
-    private static class Verifier implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final Set<VerifyFlag> verifyFlags;
-
-        public Verifier(final Transaction tx, final List<Script> prevOutScripts, final Set<VerifyFlag> verifyFlags) {
-            this.tx = tx;
-            this.prevOutScripts = prevOutScripts;
-            this.verifyFlags = verifyFlags;
-        }
+    public ScriptVerificationEngine getScriptVerificationEngine() {
+        return scriptVerificationEngine;
+    }
 
-        @Nullable
-        @Override
-        public VerificationException call() throws Exception {
-            try {
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), verifyFlags);
+    /**
+     * Checks the scripts of a transaction relayed by a peer against the unspent outputs it spends, in the background
+     * on the threads of the {@link ScriptVerificationEngine}. This puts their signatures in the signature cache of the
+     * context, so they are not checked again when the transaction is included in a block. Returns straight away, and
+     * nothing is checked if the engine is busy or a block is being connected. Failures are only logged: the
+     * transaction is checked again in full when it is included in a block.
+     */
+    public void verifyRelayedTransaction(final Transaction tx) {
+        if (!runScripts || tx.isCoinBase())
+            return;
+        scriptVerificationEngine.executeInBackground(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkRelayedTransaction(tx);
+                } catch (VerificationException e) {
+                    log.info("Relayed tx {} failed script verification: {}", tx.getHash(), e.getMessage());
+                } catch (BlockStoreException e) {
+                    log.warn("Could not look up the outputs spent by relayed tx {}: {}", tx.getHash(), e.toString());
                 }
-            } catch (VerificationException e) {
-                return e;
             }
-            return null;
+        });
+    }
+
+    /**
+     * Does the work of {@link #verifyRelayedTransaction(Transaction)} on the calling thread. Inputs that spend outputs
+     * that are not in the block store, for instance outputs of other unconfirmed transactions, are skipped, and so is
+     * the whole transaction if a block is being connected, as that waits for the verification threads with the lock
+     * held.
+     *
+     * @throws VerificationException if an input doesn't correctly spend its output.
+     */
+    @VisibleForTesting
+    void checkRelayedTransaction(Transaction tx) throws VerificationException, BlockStoreException {
+        List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
+        if (!lock.tryLock())
+            return;
+        try {
+            for (TransactionInput in : tx.getInputs()) {
+                UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(), in.getOutpoint().getIndex());
+                prevOutScripts.add(prevOut != null ? prevOut.getScript() : null);
+            }
+        } finally {
+            lock.unlock();
+        }
+        // The scripts are run without the lock held, so relayed transactions don't hold up block connection. They are
+        // checked with the flags of a block made now, which is what they would be connected with.
+        Set<VerifyFlag> verifyFlags = getVerifyFlags(Utils.currentTimeSeconds());
+        for (int index = 0; index < prevOutScripts.size(); index++) {
+            Script prevOutScript = prevOutScripts.get(index);
+            if (prevOutScript != null)
+                tx.getInput(index).getScriptSig().correctlySpends(tx, index, prevOutScript, verifyFlags, signatureCache);
         }
     }
 
+    /** Returns the script verification flags for a block with the given time. */
+    private static Set<VerifyFlag> getVerifyFlags(long blockTimeSeconds) {
+        Set<VerifyFlag> verifyFlags = EnumSet.noneOf(VerifyFlag.class);
+        if (blockTimeSeconds >= NetworkParameters.BIP16_ENFORCE_TIME)
+            verifyFlags.add(VerifyFlag.P2SH);
+        return verifyFlags;
+    }
+
+    // TODO: Remove lots of duplicated code in the two connectTransactions
+
+    final ScriptVerificationEngine scriptVerificationEngine;
+    private final SignatureCache signatureCache;
+
     /**
      * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
@@ -220,14 +260,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         LinkedList<UTXO> txOutsSpent = new LinkedList<UTXO>();
         LinkedList<UTXO> txOutsCreated = new LinkedList<UTXO>();
         long sigOps = 0;
-        final Set<VerifyFlag> verifyFlags = EnumSet.noneOf(VerifyFlag.class);
-        if (block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME)
-            verifyFlags.add(VerifyFlag.P2SH);
-
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        final Set<VerifyFlag> verifyFlags = getVerifyFlags(block.getTimeSeconds());
 
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        ScriptVerificationEngine.BlockVerification scriptVerification = scriptVerificationEngine.begin(height);
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -307,34 +342,18 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     totalFees = totalFees.add(valueIn.subtract(valueOut));
                 }
 
-                if (!isCoinBase && runScripts) {
-                    // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
-                }
+                if (!isCoinBase && runScripts)
+                    scriptVerification.add(tx, prevOutScripts, verifyFlags);
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            scriptVerification.finish();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.abort();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.abort();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -359,15 +378,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationEngine.BlockVerification scriptVerification = scriptVerificationEngine.begin(newBlock.getHeight());
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
                 LinkedList<UTXO> txOutsSpent = new LinkedList<UTXO>();
                 LinkedList<UTXO> txOutsCreated = new LinkedList<UTXO>();
                 long sigOps = 0;
-                final Set<VerifyFlag> verifyFlags = EnumSet.noneOf(VerifyFlag.class);
-                if (newBlock.getHeader().getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME)
-                    verifyFlags.add(VerifyFlag.P2SH);
+                final Set<VerifyFlag> verifyFlags = getVerifyFlags(newBlock.getHeader().getTimeSeconds());
                 if (!params.isCheckpoint(newBlock.getHeight())) {
                     for (Transaction tx : transactions) {
                         Sha256Hash hash = tx.getHash();
@@ -378,9 +396,6 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin totalFees = Coin.ZERO;
                 Coin coinbaseValue = null;
 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
                 for (final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     Coin valueIn = Coin.ZERO;
@@ -435,30 +450,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         totalFees = totalFees.add(valueIn.subtract(valueOut));
                     }
 
-                    if (!isCoinBase) {
-                        // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifier(tx, prevOutScripts, verifyFlags));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
-                    }
+                    if (!isCoinBase)
+                        scriptVerification.add(tx, prevOutScripts, verifyFlags);
                 }
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptVerification.finish();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -473,11 +472,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.abort();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptVerification.abort();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -0,0 +1,424 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Downloads the block chain for a {@link PeerGroup} headers first: the header chain is fetched from the download
+ * peer with getheaders, and the filtered blocks for it are then requested from all connected peers that support Bloom
+ * filtering at once. Blocks are put back in order before they are handed to the chain, so the chain sees the same
+ * sequence of blocks as with a regular download from a single peer.</p>
+ *
+ * <p>Headers are checked to connect to each other and to have valid proof of work before any blocks are requested for
+ * them. Everything else, including difficulty transitions, is checked by the chain when the blocks are added. Headers
+ * that pre-date the fast catchup time are added to the chain directly, as the regular download does.</p>
+ *
+ * <p>If anything unexpected happens the download gives up and falls back to {@link Peer#startBlockChainDownload()},
+ * which continues from wherever the chain got to. It does the same once it has caught up, so that newly solved blocks
+ * are picked up as usual.</p>
+ *
+ * <p>All state is only accessed from the given executor, which must be single threaded.</p>
+ */
+class HeadersFirstDownload {
+    private static final Logger log = LoggerFactory.getLogger(HeadersFirstDownload.class);
+
+    /** How many blocks are asked for in a single getdata. */
+    static final int BLOCKS_PER_REQUEST = 50;
+    /** How many requests may be outstanding against a single peer. */
+    static final int REQUESTS_PER_PEER = 2;
+    /** How far ahead of the chain blocks are requested. This bounds the number of blocks waiting to be reordered. */
+    static final int MAX_BLOCKS_AHEAD = 1000;
+    /** How long a peer has to answer a request before it's given to another peer. */
+    static final int REQUEST_TIMEOUT_SECS = 60;
+
+    private final PeerGroup peerGroup;
+    private final AbstractBlockChain chain;
+    private final Peer headersPeer;
+    private final long fastCatchupTimeSecs;
+    private final List<Wallet> wallets;
+    private final ScheduledExecutorService executor;
+
+    private volatile boolean stopped;
+
+    // The newest header received so far, the next getheaders continues from it.
+    private Block lastHeader;
+    private int lastHeaderHeight;
+    private boolean requestingHeaders, headersDone;
+    // Blocks that still have to be added to the chain, by height.
+    private final TreeMap<Integer, Sha256Hash> pending = new TreeMap<Integer, Sha256Hash>();
+    private final TreeSet<Integer> unrequested = new TreeSet<Integer>();
+    private final Map<Integer, FilteredBlock> received = new HashMap<Integer, FilteredBlock>();
+    private final Map<Peer, Integer> requestsInFlight = new HashMap<Peer, Integer>();
+    // Incremented whenever the Bloom filter is replaced. Blocks requested with an older filter are requested again.
+    private int filterGeneration;
+    private boolean awaitingFilter;
+    private long startTime, blocksAdded;
+
+    private class Request {
+        final Peer peer;
+        final List<Integer> heights;
+        final int generation = filterGeneration;
+        long sentAt;
+        boolean finished;
+
+        Request(Peer peer, List<Integer> heights) {
+            this.peer = peer;
+            this.heights = heights;
+        }
+    }
+
+    HeadersFirstDownload(PeerGroup peerGroup, AbstractBlockChain chain, Peer headersPeer, long fastCatchupTimeSecs,
+                         List<Wallet> wallets, ScheduledExecutorService executor) {
+        this.peerGroup = peerGroup;
+        this.chain = chain;
+        this.headersPeer = headersPeer;
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.wallets = wallets;
+        this.executor = executor;
+    }
+
+    /** Starts the download. */
+    void start() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (stopped)
+                    return;
+                StoredBlock head = chain.getChainHead();
+                lastHeader = head.getHeader();
+                lastHeaderHeight = head.getHeight();
+                startTime = Utils.currentTimeMillis();
+                // Blocks announced to the headers peer would otherwise start a second download in parallel to this.
+                headersPeer.setDownloadData(false);
+                headersPeer.invokeOnChainDownloadStarted(Math.max(0, headersPeer.getPeerBlockHeightDifference()));
+                log.info("{}: Starting headers first download from height {}", headersPeer, lastHeaderHeight);
+                requestHeaders();
+            }
+        });
+    }
+
+    /** Stops the download without falling back to a regular one. Blocks already added to the chain stay there. */
+    void cancel() {
+        stopped = true;
+    }
+
+    /** Returns true until the download has finished, fallen back to a regular download or been cancelled. */
+    boolean isRunning() {
+        return !stopped;
+    }
+
+    /** Called when peers connect, so requests can be spread over them too. */
+    void onPeersChanged() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                schedule();
+            }
+        });
+    }
+
+    private void requestHeaders() {
+        if (stopped || requestingHeaders || headersDone || pending.size() > HeadersMessage.MAX_HEADERS)
+            return;
+        requestingHeaders = true;
+        List<Sha256Hash> locator;
+        try {
+            locator = buildLocator();
+        } catch (BlockStoreException e) {
+            fallBack("Failed to build a block locator", e);
+            return;
+        }
+        Futures.addCallback(headersPeer.getBlockHeaders(locator, Sha256Hash.ZERO_HASH), new FutureCallback<HeadersMessage>() {
+            @Override
+            public void onSuccess(HeadersMessage result) {
+                requestingHeaders = false;
+                if (!stopped)
+                    onHeaders(result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // The headers peer is gone, the PeerGroup picks a new download peer and starts over.
+                log.info("{}: Headers request failed: {}", headersPeer, t.toString());
+                stopped = true;
+            }
+        }, executor);
+    }
+
+    private List<Sha256Hash> buildLocator() throws BlockStoreException {
+        // The newest header comes first so the peer continues from there. After that, the top of the chain and the
+        // genesis block let the peer find where we diverged if the header chain was re-orged away in the meantime.
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(102);
+        BlockStore store = chain.getBlockStore();
+        StoredBlock cursor = chain.getChainHead();
+        if (!lastHeader.getHash().equals(cursor.getHeader().getHash()))
+            locator.add(lastHeader.getHash());
+        for (int i = 100; cursor != null && i > 0; i--) {
+            locator.add(cursor.getHeader().getHash());
+            cursor = cursor.getPrev(store);
+        }
+        if (cursor != null)
+            locator.add(chain.params.getGenesisBlock().getHash());
+        return locator;
+    }
+
+    private void onHeaders(HeadersMessage m) {
+        List<Block> headers = m.getBlockHeaders();
+        try {
+            for (Block header : headers) {
+                if (!header.getPrevBlockHash().equals(lastHeader.getHash())) {
+                    fallBack("Header " + header.getHashAsString() + " does not connect", null);
+                    return;
+                }
+                header.verifyHeader();
+                lastHeader = header;
+                lastHeaderHeight++;
+                if (pending.isEmpty() && header.getTimeSeconds() < fastCatchupTimeSecs) {
+                    // Before the fast catchup time there's nothing for the wallets, so the header is all we need.
+                    if (!chain.add(header)) {
+                        fallBack("Header " + header.getHashAsString() + " did not connect to the chain", null);
+                        return;
+                    }
+                    headersPeer.invokeOnBlocksDownloaded(header, null);
+                } else {
+                    pending.put(lastHeaderHeight, header.getHash());
+                    unrequested.add(lastHeaderHeight);
+                }
+            }
+        } catch (VerificationException e) {
+            fallBack("Header verification failed", e);
+            return;
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+        if (headers.size() < HeadersMessage.MAX_HEADERS) {
+            headersDone = true;
+            log.info("{}: Received all headers up to height {}", headersPeer, lastHeaderHeight);
+        }
+        requestHeaders();
+        schedule();
+        maybeFinish();
+    }
+
+    private void schedule() {
+        if (stopped || awaitingFilter || unrequested.isEmpty())
+            return;
+        List<Peer> peers = new ArrayList<Peer>();
+        for (Peer peer : peerGroup.getConnectedPeers()) {
+            VersionMessage ver = peer.getPeerVersionMessage();
+            if (ver != null && ver.isBloomFilteringSupported() && peer.getBloomFilter() != null)
+                peers.add(peer);
+        }
+        if (peers.isEmpty())
+            return;
+        // Hand out requests round robin, so every peer gets a share even if there are only a few blocks to fetch.
+        int perRequest = Math.min(BLOCKS_PER_REQUEST, (unrequested.size() + peers.size() - 1) / peers.size());
+        boolean assigned = true;
+        while (assigned && !unrequested.isEmpty()) {
+            assigned = false;
+            for (Peer peer : peers) {
+                if (unrequested.isEmpty())
+                    break;
+                if (getRequestsInFlight(peer) >= REQUESTS_PER_PEER)
+                    continue;
+                int limit = pending.firstKey() + MAX_BLOCKS_AHEAD;
+                List<Integer> heights = new ArrayList<Integer>(perRequest);
+                for (Integer height : unrequested) {
+                    if (height >= limit || heights.size() == perRequest)
+                        break;
+                    heights.add(height);
+                }
+                if (heights.isEmpty())
+                    return;
+                unrequested.removeAll(heights);
+                send(new Request(peer, heights));
+                assigned = true;
+            }
+        }
+    }
+
+    private int getRequestsInFlight(Peer peer) {
+        Integer count = requestsInFlight.get(peer);
+        return count == null ? 0 : count;
+    }
+
+    private void send(final Request request) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(request.heights.size());
+        for (Integer height : request.heights)
+            hashes.add(pending.get(height));
+        ListenableFuture<List<FilteredBlock>> future;
+        try {
+            future = request.peer.getFilteredBlocks(hashes);
+        } catch (ProtocolException e) {
+            unrequested.addAll(request.heights);
+            return;
+        }
+        requestsInFlight.put(request.peer, getRequestsInFlight(request.peer) + 1);
+        request.sentAt = Utils.currentTimeMillis();
+        Futures.addCallback(future, new FutureCallback<List<FilteredBlock>>() {
+            @Override
+            public void onSuccess(List<FilteredBlock> result) {
+                onBlocks(request, result);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.info("{}: Block request failed: {}", request.peer, t.toString());
+                onRequestFailed(request);
+            }
+        }, executor);
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!request.finished) {
+                    log.info("{}: Block request timed out", request.peer);
+                    onRequestFailed(request);
+                }
+            }
+        }, REQUEST_TIMEOUT_SECS, TimeUnit.SECONDS);
+    }
+
+    private boolean finish(Request request) {
+        if (request.finished)
+            return false;
+        request.finished = true;
+        int count = getRequestsInFlight(request.peer) - 1;
+        if (count > 0)
+            requestsInFlight.put(request.peer, count);
+        else
+            requestsInFlight.remove(request.peer);
+        return true;
+    }
+
+    private void onRequestFailed(Request request) {
+        if (!finish(request) || stopped)
+            return;
+        unrequested.addAll(request.heights);
+        schedule();
+    }
+
+    private void onBlocks(Request request, List<FilteredBlock> blocks) {
+        if (!finish(request) || stopped)
+            return;
+        // The chain download speed is measured for the headers peer, so the peer that sent the blocks is credited here.
+        long bytes = 0;
+        for (FilteredBlock block : blocks) {
+            bytes += Block.HEADER_SIZE;
+            for (Transaction tx : block.getAssociatedTransactions().values())
+                bytes += tx.getMessageSize();
+        }
+        long elapsed = Math.max(1, Utils.currentTimeMillis() - request.sentAt);
+        request.peer.getScore().recordThroughput(bytes * 1000 / elapsed);
+        if (request.generation != filterGeneration) {
+            // Filtered with a Bloom filter that has since been replaced, so they may be missing transactions.
+            unrequested.addAll(request.heights);
+        } else {
+            for (int i = 0; i < blocks.size(); i++)
+                received.put(request.heights.get(i), blocks.get(i));
+            addReceivedBlocks();
+        }
+        schedule();
+        requestHeaders();
+        maybeFinish();
+    }
+
+    private void addReceivedBlocks() {
+        try {
+            while (!stopped && !pending.isEmpty() && received.containsKey(pending.firstKey())) {
+                int height = pending.firstKey();
+                FilteredBlock block = received.remove(height);
+                if (checkForFilterExhaustion(block)) {
+                    awaitForFreshFilter(height);
+                    return;
+                }
+                if (!chain.add(block)) {
+                    fallBack("Block " + block.getHash() + " did not connect to the chain", null);
+                    return;
+                }
+                pending.remove(height);
+                blocksAdded++;
+                headersPeer.invokeOnBlocksDownloaded(block.getBlockHeader(), block);
+            }
+        } catch (VerificationException e) {
+            fallBack("Block verification failed", e);
+        } catch (PrunedException e) {
+            // Unreachable when in SPV mode.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private boolean checkForFilterExhaustion(FilteredBlock block) {
+        boolean exhausted = false;
+        for (Wallet wallet : wallets)
+            exhausted |= wallet.checkForFilterExhaustion(block);
+        return exhausted;
+    }
+
+    private void awaitForFreshFilter(int height) {
+        // Like Peer does, throw away this block and everything after it, and fetch them again once every peer has the
+        // new filter. Getdatas sent after the filter are answered with it, as a connection handles messages in order.
+        log.info("Bloom filter exhausted whilst processing block at height {}, waiting for a new filter", height);
+        awaitingFilter = true;
+        filterGeneration++;
+        unrequested.add(height);
+        unrequested.addAll(received.keySet());
+        received.clear();
+        ListenableFuture<BloomFilter> future =
+                peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                awaitingFilter = false;
+                schedule();
+            }
+        }, executor);
+    }
+
+    private void maybeFinish() {
+        if (stopped || !headersDone || !pending.isEmpty())
+            return;
+        stopped = true;
+        long elapsed = Math.max(1, Utils.currentTimeMillis() - startTime);
+        log.info("{}: Headers first download done, added {} filtered blocks in {} seconds ({} blocks/s)", headersPeer,
+                blocksAdded, elapsed / 1000, blocksAdded * 1000 / elapsed);
+        // Switch to a regular download, which catches up with anything solved in the meantime and then follows the
+        // chain as new blocks are announced.
+        headersPeer.startBlockChainDownload();
+    }
+
+    private void fallBack(String reason, @Nullable Exception e) {
+        if (e != null)
+            log.warn("{}: {}, falling back to a regular chain download", headersPeer, reason, e);
+        else
+            log.warn("{}: {}, falling back to a regular chain download", headersPeer, reason);
+        stopped = true;
+        headersPeer.startBlockChainDownload();
+    }
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.channels.NotYetConnectedException;
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Decides which peer to download announced transactions from, on behalf of all the peers of a {@link PeerGroup}.
+ * Enable it with {@link PeerGroup#setInventoryScheduling(boolean)}.</p>
+ *
+ * <p>A transaction is requested from the first peer that announces it. Peers announcing it afterwards are remembered,
+ * and if the first peer doesn't deliver within the request timeout, says it doesn't have the transaction or
+ * disconnects, it is requested from the next one. Rather than sending a "getdata" for every "inv", requests for a peer
+ * are collected for a short delay and then sent together.</p>
+ */
+public class InventoryScheduler {
+    private static final Logger log = LoggerFactory.getLogger(InventoryScheduler.class);
+
+    /** How long requests are collected before being sent, by default. */
+    public static final long DEFAULT_BATCH_DELAY_MSEC = 100;
+    /** How long a peer has to deliver a requested transaction before it is asked of another peer, by default. */
+    public static final long DEFAULT_REQUEST_TIMEOUT_MSEC = 10000;
+    // A transaction that nobody could deliver is forgotten after this many request timeouts, unless announced again.
+    private static final int GIVE_UP_TIMEOUTS = 10;
+    // How many times per request timeout the requests are checked, so a request is moved on at most a quarter of the
+    // timeout late.
+    private static final int TIMEOUT_CHECKS = 4;
+    // The most transactions a getdata may ask for, as the remote peer rejects bigger ones.
+    private static final int MAX_GETDATA_ITEMS = (int) GetDataMessage.MAX_INVENTORY_ITEMS;
+
+    private final NetworkParameters params;
+    private final ScheduledExecutorService executor;
+    private final ReentrantLock lock = Threading.lock("inventoryscheduler");
+
+    // Every transaction that has been announced but not yet received.
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> requests = new HashMap<Sha256Hash, Request>();
+    // Requests waiting to be sent to each peer at the next flush.
+    @GuardedBy("lock") private Map<Peer, List<Request>> batches = new LinkedHashMap<Peer, List<Request>>();
+    @GuardedBy("lock") private boolean flushScheduled;
+    @GuardedBy("lock") @Nullable private ScheduledFuture<?> timeoutTimer;
+
+    private volatile long vBatchDelayMillis = DEFAULT_BATCH_DELAY_MSEC;
+    private volatile long vRequestTimeoutMillis = DEFAULT_REQUEST_TIMEOUT_MSEC;
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong getDataMessages = new AtomicLong();
+
+    private static class Request {
+        final Sha256Hash hash;
+        // Held so that the confidence data isn't garbage collected whilst we wait for the transaction.
+        final TransactionConfidence confidence;
+        // Peers that announced the transaction and haven't been asked for it yet, in the order they announced it.
+        final LinkedList<Peer> sources = new LinkedList<Peer>();
+        // The peer the transaction is queued for or has been requested from, if any.
+        @Nullable Peer peer;
+        // When the transaction was requested from peer, or 0 if it is still queued.
+        long requestedAt;
+        // When the last peer failed to deliver and there was nobody left to ask.
+        long stalledAt;
+
+        Request(TransactionConfidence confidence) {
+            this.hash = confidence.getTransactionHash();
+            this.confidence = confidence;
+        }
+    }
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            checkTimeouts();
+        }
+    };
+
+    /** Creates a scheduler that runs its timers on the given executor. */
+    public InventoryScheduler(NetworkParameters params, ScheduledExecutorService executor) {
+        this.params = checkNotNull(params);
+        this.executor = checkNotNull(executor);
+        lock.lock();
+        try {
+            startTimeoutTimer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // (Re)starts checking for timed out requests at a fixed rate, independent of whether anything is being sent.
+    @GuardedBy("lock")
+    private void startTimeoutTimer() {
+        if (timeoutTimer != null)
+            timeoutTimer.cancel(false);
+        long period = Math.max(1, vRequestTimeoutMillis / TIMEOUT_CHECKS);
+        try {
+            timeoutTimer = executor.scheduleWithFixedDelay(timeoutTask, period, period, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The peer group is shutting down.
+            timeoutTimer = null;
+        }
+    }
+
+    /** Stops the timer that checks for timed out requests. Called when the scheduler is no longer used. */
+    void stop() {
+        lock.lock();
+        try {
+            if (timeoutTimer != null)
+                timeoutTimer.cancel(false);
+            timeoutTimer = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets how long requests are collected before being sent. Defaults to {@link #DEFAULT_BATCH_DELAY_MSEC}. */
+    public void setBatchDelayMillis(long batchDelayMillis) {
+        checkArgument(batchDelayMillis >= 0);
+        this.vBatchDelayMillis = batchDelayMillis;
+    }
+
+    /**
+     * Sets how long a peer has to deliver a requested transaction before it is requested from another peer that
+     * announced it. Defaults to {@link #DEFAULT_REQUEST_TIMEOUT_MSEC}.
+     */
+    public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+        checkArgument(requestTimeoutMillis > 0);
+        lock.lock();
+        try {
+            this.vRequestTimeoutMillis = requestTimeoutMillis;
+            if (timeoutTimer != null)
+                startTimeoutTimer();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a peer with the confidence objects of the transactions it announced, which it doesn't want to skip for
+     * reasons of its own.
+     */
+    void announced(Peer peer, List<TransactionConfidence> confidences) {
+        lock.lock();
+        try {
+            for (TransactionConfidence confidence : confidences) {
+                Request request = requests.get(confidence.getTransactionHash());
+                if (request != null) {
+                    duplicates.incrementAndGet();
+                    if (request.peer == null)
+                        queue(peer, request);  // Everyone else failed us, try this one.
+                    else if (request.peer != peer && !request.sources.contains(peer))
+                        request.sources.add(peer);
+                } else if (confidence.numBroadcastPeers() > 1) {
+                    // Announced before and since received (or given up on), so don't download it again.
+                    duplicates.incrementAndGet();
+                } else {
+                    log.debug("{}: queueing getdata on tx {}", peer, confidence.getTransactionHash());
+                    request = new Request(confidence);
+                    requests.put(request.hash, request);
+                    queue(peer, request);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by a peer when it receives a transaction, which no longer needs to be requested from anyone. */
+    void received(Sha256Hash hash) {
+        lock.lock();
+        try {
+            Request request = requests.remove(hash);
+            if (request != null && request.peer != null && request.requestedAt == 0) {
+                List<Request> batch = batches.get(request.peer);
+                if (batch != null)
+                    batch.remove(request);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by a peer that said it doesn't have some of the items it was asked for. */
+    void notFound(Peer peer, List<InventoryItem> items) {
+        lock.lock();
+        try {
+            for (InventoryItem item : items) {
+                Request request = requests.get(item.hash);
+                if (request != null && request.peer == peer && request.requestedAt != 0)
+                    retry(request, Utils.currentTimeMillis());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called by a peer once it has disconnected, to move anything waiting on it to other peers. */
+    void peerDisconnected(Peer peer) {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            List<Request> batch = batches.remove(peer);
+            for (Request request : requests.values()) {
+                request.sources.remove(peer);
+                if (request.peer == peer)
+                    retry(request, now);
+            }
+            if (batch != null && !batch.isEmpty())
+                log.info("{}: disconnected with {} tx requests not yet sent", peer, batch.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void queue(Peer peer, Request request) {
+        request.peer = peer;
+        request.requestedAt = 0;
+        List<Request> batch = batches.get(peer);
+        if (batch == null) {
+            batch = new ArrayList<Request>();
+            batches.put(peer, batch);
+        }
+        batch.add(request);
+        if (batch.size() == MAX_GETDATA_ITEMS) {
+            // A full getdata's worth is sent straight away rather than after the delay. Anything queued before the
+            // flush runs goes with it, split up by flush() so no getdata is bigger than the remote peer will accept.
+            flushScheduled = true;
+            schedule(flushTask, 0);
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            schedule(flushTask, vBatchDelayMillis);
+        }
+    }
+
+    // Moves the request on to the next peer that announced it, if there is one.
+    @GuardedBy("lock")
+    private void retry(Request request, long now) {
+        Peer next = request.sources.poll();
+        if (next != null) {
+            log.info("{}: tx {} not delivered by {}, asking again", next, request.hash, request.peer);
+            retries.incrementAndGet();
+            queue(next, request);
+        } else {
+            request.peer = null;
+            request.requestedAt = 0;
+            request.stalledAt = now;
+        }
+    }
+
+    @GuardedBy("lock")
+    private void schedule(Runnable task, long delayMillis) {
+        try {
+            executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The peer group is shutting down.
+        }
+    }
+
+    /** Sends a getdata to every peer that has requests waiting. */
+    void flush() {
+        Map<Peer, List<Request>> toSend;
+        lock.lock();
+        try {
+            toSend = batches;
+            batches = new LinkedHashMap<Peer, List<Request>>();
+            flushScheduled = false;
+            long now = Utils.currentTimeMillis();
+            for (List<Request> batch : toSend.values())
+                for (Request request : batch)
+                    request.requestedAt = now;
+        } finally {
+            lock.unlock();
+        }
+        for (Map.Entry<Peer, List<Request>> entry : toSend.entrySet()) {
+            List<Request> batch = entry.getValue();
+            for (int start = 0; start < batch.size(); start += MAX_GETDATA_ITEMS) {
+                List<Request> chunk = batch.subList(start, Math.min(batch.size(), start + MAX_GETDATA_ITEMS));
+                GetDataMessage getdata = new GetDataMessage(params);
+                for (Request request : chunk)
+                    getdata.addTransaction(request.hash);
+                // Counted before sending, so the counters are up to date by the time the getdata can be answered.
+                requested.addAndGet(chunk.size());
+                getDataMessages.incrementAndGet();
+                try {
+                    entry.getKey().sendMessage(getdata);
+                } catch (NotYetConnectedException e) {
+                    peerDisconnected(entry.getKey());
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Moves requests that peers have taken too long to deliver on to other peers. */
+    void checkTimeouts() {
+        lock.lock();
+        try {
+            long now = Utils.currentTimeMillis();
+            long timeout = vRequestTimeoutMillis;
+            Iterator<Request> it = requests.values().iterator();
+            while (it.hasNext()) {
+                Request request = it.next();
+                if (request.peer != null && request.requestedAt != 0 && now - request.requestedAt >= timeout)
+                    retry(request, now);
+                else if (request.peer == null && now - request.stalledAt >= timeout * GIVE_UP_TIMEOUTS)
+                    it.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of announced transactions that haven't been received yet. */
+    public int getPendingRequests() {
+        lock.lock();
+        try {
+            return requests.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of transactions requested from peers, including requests made again after a failure. */
+    public long getRequestedTransactions() {
+        return requested.get();
+    }
+
+    /** Returns the number of getdata messages sent for transactions. */
+    public long getGetDataMessages() {
+        return getDataMessages.get();
+    }
+
+    /** Returns the number of announcements of transactions which were already requested from another peer. */
+    public long getDuplicateAnnouncements() {
+        return duplicates.get();
+    }
+
+    /** Returns the number of times a transaction was requested from another peer after the first one failed. */
+    public long getRetries() {
+        return retries.get();
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Moves the processing of messages received from peers off the network threads and onto a pool of worker threads,
+ * so that a peer whose messages are slow to process (a large block, a wallet doing a lot of work in an event listener)
+ * doesn't hold up reading from every other connection serviced by the same thread.</p>
+ *
+ * <p>Each peer gets a bounded queue of its own. Messages from one peer are processed one at a time and in the order
+ * they arrived, whilst messages from different peers are processed in parallel. When a peer's queue fills up the
+ * dispatcher applies its {@link Backpressure} policy to that peer alone.</p>
+ *
+ * <p>Set a dispatcher with {@link PeerGroup#setMessageDispatcher(MessageDispatcher)} or
+ * {@link PeerSocketHandler#setMessageDispatcher(MessageDispatcher)}. One dispatcher can be shared by any number of
+ * peers, and should be shut down once they have all disconnected.</p>
+ */
+public class MessageDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(MessageDispatcher.class);
+
+    // How many messages a worker processes for one peer before letting other peers' queues have a turn.
+    private static final int BATCH_SIZE = 16;
+
+    /** What to do with a peer that sends messages faster than they can be processed. */
+    public enum Backpressure {
+        /**
+         * Stop reading from the peer's connection until its queue has drained to half its capacity. Nothing is lost,
+         * the peer just sees its sends slow down as the TCP window closes.
+         */
+        PAUSE_READS,
+        /** Disconnect the peer. Messages already queued are still processed. */
+        DISCONNECT
+    }
+
+    private final ExecutorService executor;
+    private final int queueCapacity;
+    private final Backpressure backpressure;
+
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong dispatchedMessages = new AtomicLong();
+    private final AtomicLong backpressureEvents = new AtomicLong();
+
+    /**
+     * Creates a dispatcher with the given number of worker threads, which applies the given policy to a peer once it
+     * has queueCapacity messages waiting to be processed.
+     */
+    public MessageDispatcher(int threads, int queueCapacity, Backpressure backpressure) {
+        checkArgument(threads > 0);
+        checkArgument(queueCapacity > 1);
+        this.queueCapacity = queueCapacity;
+        this.backpressure = checkNotNull(backpressure);
+        executor = Executors.newFixedThreadPool(threads, new ContextPropagatingThreadFactory("Message dispatcher"));
+    }
+
+    /** Creates a dispatcher with a worker thread per processor, which pauses reading from peers with 500 queued messages. */
+    public MessageDispatcher() {
+        this(Runtime.getRuntime().availableProcessors(), 500, Backpressure.PAUSE_READS);
+    }
+
+    /** Creates the queue that the given peer's messages are processed from. */
+    PeerQueue newQueue(PeerSocketHandler handler) {
+        return new PeerQueue(checkNotNull(handler));
+    }
+
+    /**
+     * Stops the worker threads once the messages already queued have been processed, waiting for up to the given
+     * time. Messages received afterwards are dropped.
+     *
+     * @return true if everything queued was processed in time.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /** Returns the number of messages waiting to be processed, summed over all peers. */
+    public int getQueuedMessages() {
+        return queuedMessages.get();
+    }
+
+    /** Returns the most messages that have been waiting in any one peer's queue at the same time. */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    /** Returns the number of messages that have been handed to the dispatcher. */
+    public long getDispatchedMessages() {
+        return dispatchedMessages.get();
+    }
+
+    /** Returns how many times a peer's queue has filled up, causing its reads to be paused or it to be disconnected. */
+    public long getBackpressureEvents() {
+        return backpressureEvents.get();
+    }
+
+    /**
+     * The tasks of one peer. At most one worker runs them at any time, which keeps them in order without tying the peer
+     * to a particular thread.
+     */
+    class PeerQueue implements Runnable {
+        private final PeerSocketHandler handler;
+        @GuardedBy("this") private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+        // True whilst the queue has been submitted to the executor or is being run by a worker.
+        @GuardedBy("this") private boolean scheduled;
+        @GuardedBy("this") private boolean readingPaused;
+        @GuardedBy("this") private boolean overflowed;
+
+        private PeerQueue(PeerSocketHandler handler) {
+            this.handler = handler;
+        }
+
+        /** Queues a task to run after all tasks queued before it. Called from the network thread. */
+        void dispatch(Runnable task) {
+            boolean submit, disconnect = false;
+            int depth;
+            queuedMessages.incrementAndGet();
+            dispatchedMessages.incrementAndGet();
+            synchronized (this) {
+                tasks.offer(task);
+                depth = tasks.size();
+                submit = !scheduled;
+                scheduled = true;
+                if (depth >= queueCapacity) {
+                    if (backpressure == Backpressure.PAUSE_READS && !readingPaused) {
+                        // Paused under the lock, so that a worker draining the queue can't resume reads first.
+                        log.info("{}: {} messages waiting to be processed, pausing reads", handler.getAddress(), depth);
+                        readingPaused = true;
+                        handler.setReadingPaused(true);
+                        backpressureEvents.incrementAndGet();
+                    } else if (backpressure == Backpressure.DISCONNECT && !overflowed) {
+                        disconnect = overflowed = true;
+                        backpressureEvents.incrementAndGet();
+                    }
+                }
+            }
+            int max = maxQueueDepth.get();
+            while (depth > max && !maxQueueDepth.compareAndSet(max, depth))
+                max = maxQueueDepth.get();
+            if (disconnect) {
+                log.warn("{}: {} messages waiting to be processed, disconnecting", handler.getAddress(), depth);
+                handler.close();
+            }
+            if (submit)
+                submit();
+        }
+
+        /** Returns the number of tasks waiting to run. */
+        synchronized int size() {
+            return tasks.size();
+        }
+
+        private void submit() {
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // The dispatcher has been shut down, so nothing will run these any more.
+                int dropped;
+                synchronized (this) {
+                    dropped = tasks.size();
+                    tasks.clear();
+                    scheduled = false;
+                }
+                queuedMessages.addAndGet(-dropped);
+                log.warn("{}: Message dispatcher is shut down, dropping {} messages", handler.getAddress(), dropped);
+            }
+        }
+
+        @Override
+        public void run() {
+            int processed = 0;
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        scheduled = false;
+                        return;
+                    }
+                    if (readingPaused && tasks.size() <= queueCapacity / 2) {
+                        log.info("{}: Caught up with queued messages, resuming reads", handler.getAddress());
+                        readingPaused = false;
+                        handler.setReadingPaused(false);
+                    }
+                }
+                queuedMessages.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("{}: Error processing message", handler.getAddress(), e);
+                }
+                // Give other peers a turn before carrying on with this one, unless the executor is shutting down and
+                // won't take this queue back.
+                if (++processed == BATCH_SIZE && !executor.isShutdown()) {
+                    synchronized (this) {
+                        if (tasks.isEmpty()) {
+                            scheduled = false;
+                            return;
+                        }
+                    }
+                    submit();
+                    return;
+                }
+            }
+        }
+    }
+}
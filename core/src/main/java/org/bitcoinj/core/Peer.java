@@ -84,6 +84,10 @@ public class Peer extends PeerSocketHandler {
     private final VersionMessage versionMessage;
     // Switch for enabling download of pending transaction dependencies.
     private volatile boolean vDownloadTxDependencies;
+    // If set, decides which peer announced transactions are downloaded from instead of us requesting them right away.
+    @Nullable private volatile InventoryScheduler vInventoryScheduler;
+    // How well the remote node has served us. Replaced by PeerGroup with one that outlives this connection.
+    private volatile PeerScore vScore = new PeerScore();
     // How many block messages the peer has announced to us. Peers only announce blocks that attach to their best chain
     // so we can use this to calculate the height of the peers chain, by adding it to the initial height in the version
     // message. This method can go wrong if the peer re-orgs onto a shorter (but harder) chain, however, this is rare.
@@ -140,6 +144,16 @@ public class Peer extends PeerSocketHandler {
     private final CopyOnWriteArrayList<GetDataRequest> getDataFutures;
     @GuardedBy("getAddrFutures") private final LinkedList<SettableFuture<AddressMessage>> getAddrFutures;
     @Nullable @GuardedBy("lock") private LinkedList<SettableFuture<UTXOsMessage>> getutxoFutures;
+    // Requests made through getBlockHeaders and getFilteredBlocks. Their answers go to these futures rather than to the
+    // block chain.
+    private static class GetHeadersRequest {
+        GetHeadersMessage message;
+        SettableFuture<HeadersMessage> future;
+    }
+    @GuardedBy("lock") private final LinkedList<GetHeadersRequest> getHeadersRequests =
+            new LinkedList<GetHeadersRequest>();
+    @GuardedBy("lock") private final Map<Sha256Hash, SettableFuture<FilteredBlock>> getFilteredBlockFutures =
+            new HashMap<Sha256Hash, SettableFuture<FilteredBlock>>();
 
     // Outstanding pings against this peer and how long the last one took to complete.
     private final ReentrantLock lastPingTimesLock = new ReentrantLock();
@@ -287,15 +301,26 @@ public class Peer extends PeerSocketHandler {
 
     @Override
     public void connectionClosed() {
-        for (final PeerListenerRegistration registration : eventListeners) {
-            if (registration.callOnDisconnect)
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onPeerDisconnected(Peer.this, 0);
-                    }
-                });
-        }
+        // Messages received before the connection closed may still be waiting for a dispatcher thread, so let them be
+        // processed before anyone is told the peer has gone.
+        runAfterQueuedMessages(new Runnable() {
+            @Override
+            public void run() {
+                failPendingRequests();
+                InventoryScheduler scheduler = vInventoryScheduler;
+                if (scheduler != null)
+                    scheduler.peerDisconnected(Peer.this);
+                for (final PeerListenerRegistration registration : eventListeners) {
+                    if (registration.callOnDisconnect)
+                        registration.executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                registration.listener.onPeerDisconnected(Peer.this, 0);
+                            }
+                        });
+                }
+            }
+        });
     }
 
     @Override
@@ -480,6 +505,19 @@ public class Peer extends PeerSocketHandler {
         // in the chain).
         //
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
+        InventoryScheduler scheduler = vInventoryScheduler;
+        if (scheduler != null)
+            scheduler.notFound(this, m.getItems());
+        lock.lock();
+        try {
+            for (InventoryItem item : m.getItems()) {
+                SettableFuture<FilteredBlock> future = getFilteredBlockFutures.remove(item.hash);
+                if (future != null)
+                    future.setException(new PeerException("Block not found: " + item.hash));
+            }
+        } finally {
+            lock.unlock();
+        }
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
                 if (item.hash.equals(req.hash)) {
@@ -510,6 +548,27 @@ public class Peer extends PeerSocketHandler {
     private void processHeaders(HeadersMessage m) throws ProtocolException {
         // Runs in network loop thread for this peer.
         //
+        // Headers asked for through getBlockHeaders() are handed back to the caller. Replies to the getheaders sent
+        // for chain download can arrive in between, so the reply is given to the oldest request it answers.
+        GetHeadersRequest request = null;
+        lock.lock();
+        try {
+            for (Iterator<GetHeadersRequest> it = getHeadersRequests.iterator(); it.hasNext(); ) {
+                GetHeadersRequest r = it.next();
+                if (isAnswer(m, r.message)) {
+                    it.remove();
+                    request = r;
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (request != null) {
+            request.future.set(m);
+            return;
+        }
+        //
         // This method can run if a peer just randomly sends us a "headers" message (should never happen), or more
         // likely when we've requested them as part of chain download using fast catchup. We need to add each block to
         // the chain if it pre-dates the fast catchup time. If we go past it, we can stop processing the headers and
@@ -608,6 +667,14 @@ public class Peer extends PeerSocketHandler {
     private void processTransaction(final Transaction tx) throws VerificationException {
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
+        if (blockChain instanceof FullPrunedBlockChain) {
+            // Check the signatures in the background, so that connecting the block the tx ends up in finds them in the
+            // cache.
+            ((FullPrunedBlockChain) blockChain).verifyRelayedTransaction(tx);
+        }
+        InventoryScheduler scheduler = vInventoryScheduler;
+        if (scheduler != null)
+            scheduler.received(tx.getHash());
         lock.lock();
         try {
             log.debug("{}: Received tx {}", getAddress(), tx.getHashAsString());
@@ -883,6 +950,18 @@ public class Peer extends PeerSocketHandler {
     private void endFilteredBlock(FilteredBlock m) {
         if (log.isDebugEnabled())
             log.debug("{}: Received broadcast filtered block {}", getAddress(), m.getHash().toString());
+        SettableFuture<FilteredBlock> requested;
+        lock.lock();
+        try {
+            requested = getFilteredBlockFutures.remove(m.getHash());
+        } finally {
+            lock.unlock();
+        }
+        if (requested != null) {
+            // Asked for through getFilteredBlocks(), so whoever asked adds it to the chain.
+            requested.set(m);
+            return;
+        }
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", getAddress(), m.getHash().toString());
             return;
@@ -1000,7 +1079,7 @@ public class Peer extends PeerSocketHandler {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
+    void invokeOnBlocksDownloaded(final Block block, @Nullable final FilteredBlock fb) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1053,30 +1132,37 @@ public class Peer extends PeerSocketHandler {
 
         GetDataMessage getdata = new GetDataMessage(params);
 
-        Iterator<InventoryItem> it = transactions.iterator();
-        while (it.hasNext()) {
-            InventoryItem item = it.next();
-            // Only download the transaction if we are the first peer that saw it be advertised. Other peers will also
-            // see it be advertised in inv packets asynchronously, they co-ordinate via the memory pool. We could
-            // potentially download transactions faster by always asking every peer for a tx when advertised, as remote
-            // peers run at different speeds. However to conserve bandwidth on mobile devices we try to only download a
-            // transaction once. This means we can miss broadcasts if the peer disconnects between sending us an inv and
-            // sending us the transaction: currently we'll never try to re-fetch after a timeout.
-            //
+        if (!transactions.isEmpty()) {
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(transactions.size());
+            for (InventoryItem item : transactions)
+                hashes.add(item.hash);
             // The line below can trigger confidence listeners.
-            TransactionConfidence conf = context.getConfidenceTable().seen(item.hash, this.getAddress());
-            if (conf.numBroadcastPeers() > 1) {
-                // Some other peer already announced this so don't download.
-                it.remove();
-            } else if (conf.getSource().equals(TransactionConfidence.Source.SELF)) {
-                // We created this transaction ourselves, so don't download.
-                it.remove();
-            } else {
-                log.debug("{}: getdata on tx {}", getAddress(), item.hash);
-                getdata.addItem(item);
+            List<TransactionConfidence> confidences = context.getConfidenceTable().seen(hashes, this.getAddress());
+            InventoryScheduler scheduler = vInventoryScheduler;
+            List<TransactionConfidence> toSchedule = new ArrayList<TransactionConfidence>(confidences.size());
+            for (TransactionConfidence conf : confidences) {
+                // Only download the transaction if we are the first peer that saw it be advertised. Other peers will
+                // also see it be advertised in inv packets asynchronously, they co-ordinate via the memory pool. We
+                // could potentially download transactions faster by always asking every peer for a tx when
+                // advertised, as remote peers run at different speeds. However to conserve bandwidth on mobile devices
+                // we try to only download a transaction once. Without a scheduler this means we can miss broadcasts
+                // if the peer disconnects between sending us an inv and sending us the transaction, as we'll never
+                // try to re-fetch after a timeout. The scheduler does re-fetch from the other peers that announced it.
+                if (conf.getSource().equals(TransactionConfidence.Source.SELF))
+                    continue;  // We created this transaction ourselves, so don't download.
+                if (scheduler != null) {
+                    toSchedule.add(conf);
+                    continue;
+                }
+                if (conf.numBroadcastPeers() > 1)
+                    continue;  // Some other peer already announced this so don't download.
+                log.debug("{}: getdata on tx {}", getAddress(), conf.getTransactionHash());
+                getdata.addTransaction(conf.getTransactionHash());
                 // Register with the garbage collector that we care about the confidence data for a while.
                 pendingTxDownloads.add(conf);
             }
+            if (scheduler != null && !toSchedule.isEmpty())
+                scheduler.announced(this, toSchedule);
         }
 
         // If we are requesting filteredblocks we have to send a ping after the getdata so that we have a clear
@@ -1340,14 +1426,7 @@ public class Peer extends PeerSocketHandler {
         // chain even if the chain block count is lower.
         final int blocksLeft = getPeerBlockHeightDifference();
         if (blocksLeft >= 0) {
-            for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
-                registration.executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
-                    }
-                });
-            }
+            invokeOnChainDownloadStarted(blocksLeft);
             // When we just want as many blocks as possible, we can set the target hash to zero.
             lock.lock();
             try {
@@ -1358,6 +1437,101 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    // Returns true if the headers can be the answer to the request: they must follow on from one of the locator hashes
+    // and not go past the stop hash. An empty reply answers any request.
+    private static boolean isAnswer(HeadersMessage m, GetHeadersMessage request) {
+        List<Block> headers = m.getBlockHeaders();
+        if (headers.isEmpty())
+            return true;
+        if (!request.getLocator().contains(headers.get(0).getPrevBlockHash()))
+            return false;
+        Sha256Hash stopHash = request.getStopHash();
+        if (!stopHash.equals(Sha256Hash.ZERO_HASH)) {
+            for (int i = 0; i < headers.size() - 1; i++)
+                if (headers.get(i).getHash().equals(stopHash))
+                    return false;
+        }
+        return true;
+    }
+
+    void invokeOnChainDownloadStarted(final int blocksLeft) {
+        for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onChainDownloadStarted(Peer.this, blocksLeft);
+                }
+            });
+        }
+    }
+
+    /**
+     * Asks the remote peer for the headers of the blocks that follow the first hash of the locator it has on its best
+     * chain, up to and including stopHash or until {@link HeadersMessage#MAX_HEADERS} are sent. The headers are
+     * handed to the returned future and not added to the block chain, it's up to the caller to check them.
+     */
+    public ListenableFuture<HeadersMessage> getBlockHeaders(List<Sha256Hash> blockLocator, Sha256Hash stopHash) {
+        GetHeadersRequest request = new GetHeadersRequest();
+        request.message = new GetHeadersMessage(params, blockLocator, stopHash);
+        request.future = SettableFuture.create();
+        lock.lock();
+        try {
+            // Peers answer getheaders in order, so a reply goes to the oldest request it matches, see processHeaders.
+            getHeadersRequests.add(request);
+            sendMessage(request.message);
+        } finally {
+            lock.unlock();
+        }
+        return request.future;
+    }
+
+    /**
+     * Asks the remote peer for the given blocks, filtered with the Bloom filter set on the connection. The returned
+     * future completes with the filtered blocks, in the order of the hashes, once they and their matching transactions
+     * have all been received. The blocks are not added to the block chain, that's up to the caller. The future fails
+     * if the peer doesn't have one of the blocks or the connection is closed.
+     *
+     * @throws ProtocolException if the peer doesn't support Bloom filtering.
+     */
+    public ListenableFuture<List<FilteredBlock>> getFilteredBlocks(List<Sha256Hash> blockHashes) {
+        final VersionMessage ver = vPeerVersionMessage;
+        if (ver == null || !ver.isBloomFilteringSupported())
+            throw new ProtocolException("Peer does not support Bloom filtering: " + this);
+        List<ListenableFuture<FilteredBlock>> futures = new ArrayList<ListenableFuture<FilteredBlock>>(blockHashes.size());
+        GetDataMessage getdata = new GetDataMessage(params);
+        lock.lock();
+        try {
+            for (Sha256Hash hash : blockHashes) {
+                SettableFuture<FilteredBlock> future = SettableFuture.create();
+                getFilteredBlockFutures.put(hash, future);
+                futures.add(future);
+                getdata.addFilteredBlock(hash);
+            }
+        } finally {
+            lock.unlock();
+        }
+        sendMessage(getdata);
+        // The pong marks the end of the transactions that follow the last filtered block.
+        sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+        return Futures.allAsList(futures);
+    }
+
+    private void failPendingRequests() {
+        List<SettableFuture<?>> futures = new ArrayList<SettableFuture<?>>();
+        lock.lock();
+        try {
+            for (GetHeadersRequest request : getHeadersRequests)
+                futures.add(request.future);
+            getHeadersRequests.clear();
+            futures.addAll(getFilteredBlockFutures.values());
+            getFilteredBlockFutures.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (SettableFuture<?> future : futures)
+            future.setException(new PeerException("Connection closed: " + this));
+    }
+
     private class PendingPing {
         // The future that will be invoked when the pong is heard back.
         public SettableFuture<Long> future;
@@ -1376,6 +1550,7 @@ public class Peer extends PeerSocketHandler {
             if (!future.isDone()) {
                 Long elapsed = Utils.currentTimeMillis() - startTimeMsec;
                 Peer.this.addPingTimeData(elapsed);
+                vScore.recordPingTime(elapsed);
                 log.debug("{}: ping time is {} msec", Peer.this.toString(), elapsed);
                 future.set(elapsed);
             }
@@ -1672,4 +1847,33 @@ public class Peer extends PeerSocketHandler {
     public void setDownloadTxDependencies(boolean value) {
         vDownloadTxDependencies = value;
     }
+
+    /**
+     * Hands the transactions this peer announces to the given scheduler, which is shared with other peers, instead of
+     * requesting them right away. Set by {@link PeerGroup#setInventoryScheduling(boolean)}.
+     */
+    void setInventoryScheduler(@Nullable InventoryScheduler scheduler) {
+        vInventoryScheduler = scheduler;
+    }
+
+    /**
+     * Returns the record of how well the remote node has served us, which a {@link PeerGroup} carries over from earlier
+     * connections to the same address.
+     */
+    public PeerScore getScore() {
+        return vScore;
+    }
+
+    /** Sets the record that ping times and misbehaviour of this peer are added to. */
+    void setScore(PeerScore score) {
+        vScore = checkNotNull(score);
+    }
+
+    @Override
+    protected void exceptionCaught(Exception e) {
+        // Network errors aren't the node's fault, but failing to parse or verify what it sent us is.
+        if (e instanceof VerificationException)
+            vScore.recordMisbehaviour();
+        super.exceptionCaught(e);
+    }
 }
@@ -100,6 +100,10 @@ public class PeerGroup implements TransactionBroadcaster {
     // Addresses to try to connect to, excluding active peers.
     @GuardedBy("lock") private final PriorityQueue<PeerAddress> inactives;
     @GuardedBy("lock") private final Map<PeerAddress, ExponentialBackoff> backoffMap;
+    // How well each address we connected to has served us, kept across reconnects. Only the most recently used
+    // MAX_SCORED_ADDRESSES are remembered.
+    @GuardedBy("lock") private final Map<PeerAddress, PeerScore> scores;
+    private static final int MAX_SCORED_ADDRESSES = 1000;
 
     // Currently active peers. This is an ordered list rather than a set to make unit tests predictable.
     private final CopyOnWriteArrayList<Peer> peers;
@@ -112,6 +116,9 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private Peer downloadPeer;
     // Callback for events related to chain download.
     @Nullable @GuardedBy("lock") private PeerEventListener downloadListener;
+    // Whether to download the chain headers first, fetching filtered blocks from all peers at once.
+    @GuardedBy("lock") private boolean headersFirstDownload;
+    @Nullable @GuardedBy("lock") private HeadersFirstDownload headersFirst;
     // Callbacks for events related to peer connection/disconnection
     private final CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>> peerEventListeners;
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
@@ -125,6 +132,10 @@ public class PeerGroup implements TransactionBroadcaster {
     @GuardedBy("lock") private int maxConnections;
     // Minimum protocol version we will allow ourselves to connect to: require Bloom filtering.
     private volatile int vMinRequiredProtocolVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
+    // Processes the messages of new peers off the network thread, if set.
+    @Nullable private volatile MessageDispatcher vMessageDispatcher;
+    // Shared by all peers to decide which of them announced transactions are downloaded from, if set.
+    @GuardedBy("lock") @Nullable private InventoryScheduler inventoryScheduler;
 
     /** How many milliseconds to wait after receiving a pong before sending another ping. */
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
@@ -396,6 +407,12 @@ public class PeerGroup implements TransactionBroadcaster {
             }
         });
         backoffMap = new HashMap<PeerAddress, ExponentialBackoff>();
+        scores = new LinkedHashMap<PeerAddress, PeerScore>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PeerAddress, PeerScore> eldest) {
+                return size() > MAX_SCORED_ADDRESSES;
+            }
+        };
         peers = new CopyOnWriteArrayList<Peer>();
         pendingPeers = new CopyOnWriteArrayList<Peer>();
         channels = connectionManager;
@@ -1235,6 +1252,14 @@ public class PeerGroup implements TransactionBroadcaster {
         Peer peer = new Peer(params, ver, address, chain, downloadTxDependencies);
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setMessageDispatcher(vMessageDispatcher);
+        peer.setInventoryScheduler(inventoryScheduler);
+        PeerScore score = scores.get(address);
+        if (score == null) {
+            score = new PeerScore();
+            scores.put(address, score);
+        }
+        peer.setScore(score);
         pendingPeers.add(peer);
 
         try {
@@ -1338,6 +1363,8 @@ public class PeerGroup implements TransactionBroadcaster {
                 if (shouldDownloadChain) {
                     startBlockChainDownloadFromPeer(downloadPeer);
                 }
+            } else if (headersFirst != null) {
+                headersFirst.onPeersChanged();
             }
             // Make sure the peer knows how to upload transactions that are requested from us.
             peer.addEventListener(peerListener, Threading.SAME_THREAD);
@@ -1523,6 +1550,8 @@ public class PeerGroup implements TransactionBroadcaster {
 
     @GuardedBy("lock") private int stallPeriodSeconds = 10;
     @GuardedBy("lock") private int stallMinSpeedBytesSec = Block.HEADER_SIZE * 20;
+    // How much better another peer has to score before the chain download is moved to it, to avoid flip-flopping.
+    private static final double DOWNLOAD_PEER_ROTATION_MARGIN = 3;
 
     /**
      * Configures the stall speed: the speed at which a peer is considered to be serving us the block chain
@@ -1593,11 +1622,14 @@ public class PeerGroup implements TransactionBroadcaster {
         private void calculate() {
             int minSpeedBytesPerSec;
             int period;
+            boolean multiPeerDownload;
+            boolean checkRotation = false;
 
             lock.lock();
             try {
                 minSpeedBytesPerSec = stallMinSpeedBytesSec;
                 period = stallPeriodSeconds;
+                multiPeerDownload = headersFirst != null && headersFirst.isRunning();
             } finally {
                 lock.unlock();
             }
@@ -1617,7 +1649,15 @@ public class PeerGroup implements TransactionBroadcaster {
                     if (warmupSeconds < 0) {
                         // Calculate the moving average.
                         samples[cursor++] = bytesInLastSecond;
-                        if (cursor == samples.length) cursor = 0;
+                        if (cursor == samples.length) {
+                            cursor = 0;
+                            // Once a period, see if a better peer has turned up.
+                            checkRotation = true;
+                        }
+                        // A headers first download fetches blocks from all peers and credits each of them itself.
+                        Peer downloadPeer = getDownloadPeer();
+                        if (downloadPeer != null && !multiPeerDownload)
+                            downloadPeer.getScore().recordThroughput(bytesInLastSecond);
                         long average = 0;
                         for (long sample : samples) average += sample;
                         average /= samples.length;
@@ -1640,10 +1680,15 @@ public class PeerGroup implements TransactionBroadcaster {
                             } else {
                                 Peer peer = getDownloadPeer();
                                 log.warn(String.format(Locale.US, "Chain download stalled: received %.2f KB/sec for %d seconds, require average of %.2f KB/sec, disconnecting %s", average / 1024.0, samples.length, minSpeedBytesPerSec / 1024.0, peer));
-                                peer.close();
+                                // The download peer may have disconnected in the meantime.
+                                if (peer != null) {
+                                    peer.getScore().recordStall();
+                                    peer.close();
+                                }
                                 // Reset the sample buffer and give the next peer time to get going.
                                 samples = null;
                                 warmupSeconds = period;
+                                checkRotation = false;
                             }
                         }
                     } else {
@@ -1658,6 +1703,13 @@ public class PeerGroup implements TransactionBroadcaster {
                 origTxnsInLastSecond = 0;
                 bytesInLastSecond = 0;
             }
+            // Outside our own lock, so it isn't held whilst the download is restarted from another peer.
+            if (checkRotation && maybeRotateDownloadPeer()) {
+                synchronized (this) {
+                    // Give the new peer time to get going, as after a stall.
+                    samples = null;
+                }
+            }
         }
     }
     @Nullable private ChainDownloadSpeedCalculator chainDownloadSpeedCalculator;
@@ -1674,8 +1726,53 @@ public class PeerGroup implements TransactionBroadcaster {
             }
             peer.addEventListener(chainDownloadSpeedCalculator, Threading.SAME_THREAD);
 
-            // startBlockChainDownload will setDownloadData(true) on itself automatically.
-            peer.startBlockChainDownload();
+            if (headersFirst != null) {
+                headersFirst.cancel();
+                headersFirst = null;
+            }
+            if (shouldDownloadHeadersFirst(peer)) {
+                headersFirst = new HeadersFirstDownload(this, chain, peer, fastCatchupTimeSecs, wallets, executor);
+                headersFirst.start();
+            } else {
+                // startBlockChainDownload will setDownloadData(true) on itself automatically.
+                peer.startBlockChainDownload();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean shouldDownloadHeadersFirst(Peer peer) {
+        // Only filtered blocks are fetched in parallel, full blocks are still downloaded the regular way.
+        return headersFirstDownload && chain != null && !chain.shouldVerifyTransactions() &&
+                bloomFilterMerger.getLastFilter() != null &&
+                peer.getPeerVersionMessage().isBloomFilteringSupported();
+    }
+
+    /**
+     * <p>If set, the chain is downloaded headers first: the headers are fetched from the download peer, and the
+     * filtered blocks for them are then requested from all connected peers at once and put back in order before they
+     * are added to the chain. This lets catching up after some time offline use the bandwidth of several peers
+     * instead of waiting on the round trips to a single one. Once caught up, the regular download takes over. Only
+     * applies when Bloom filtering is in use. Defaults to false.</p>
+     *
+     * <p>Call this before starting the chain download.</p>
+     */
+    public void setHeadersFirstDownload(boolean headersFirstDownload) {
+        lock.lock();
+        try {
+            this.headersFirstDownload = headersFirstDownload;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns whether the chain is downloaded headers first, see {@link #setHeadersFirstDownload(boolean)}. */
+    public boolean isHeadersFirstDownload() {
+        lock.lock();
+        try {
+            return headersFirstDownload;
         } finally {
             lock.unlock();
         }
@@ -1939,6 +2036,60 @@ public class PeerGroup implements TransactionBroadcaster {
         return vMinRequiredProtocolVersion;
     }
 
+    /**
+     * Sets the {@link MessageDispatcher} that processes the messages of peers connected to from now on, instead of
+     * processing them on the network threads, or null for the default of processing them on the network threads.
+     * The dispatcher isn't shut down by {@link #stop()}, as it may be shared.
+     */
+    public void setMessageDispatcher(@Nullable MessageDispatcher dispatcher) {
+        this.vMessageDispatcher = dispatcher;
+    }
+
+    /** Returns the dispatcher set by {@link #setMessageDispatcher(MessageDispatcher)}, or null if there is none. */
+    @Nullable
+    public MessageDispatcher getMessageDispatcher() {
+        return vMessageDispatcher;
+    }
+
+    /**
+     * <p>When enabled, transactions announced by peers are downloaded through an {@link InventoryScheduler} shared by
+     * all of them, rather than each peer requesting what it hears about straight away. A transaction is requested from
+     * one peer at a time and asked of the next peer that announced it if the first fails to deliver, and requests to a
+     * peer are sent together after a short delay, so fewer and larger getdata messages go out.</p>
+     *
+     * <p>Disabled by default. Changing this applies to connected peers too.</p>
+     */
+    public void setInventoryScheduling(boolean enabled) {
+        lock.lock();
+        try {
+            if (enabled == (inventoryScheduler != null))
+                return;
+            if (inventoryScheduler != null)
+                inventoryScheduler.stop();
+            inventoryScheduler = enabled ? new InventoryScheduler(params, executor) : null;
+            for (Peer peer : pendingPeers)
+                peer.setInventoryScheduler(inventoryScheduler);
+            for (Peer peer : peers)
+                peer.setInventoryScheduler(inventoryScheduler);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the scheduler used when {@link #setInventoryScheduling(boolean)} is enabled, which can be tuned and
+     * reports how many requests it saved, or null if it is disabled.
+     */
+    @Nullable
+    public InventoryScheduler getInventoryScheduler() {
+        lock.lock();
+        try {
+            return inventoryScheduler;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns our peers most commonly reported chain height. If multiple heights are tied, the highest is returned.
      * If no peers are connected, returns zero.
@@ -1973,6 +2124,8 @@ public class PeerGroup implements TransactionBroadcaster {
         // Characteristics to select for in order of importance:
         //  - Chain height is reasonable (majority of nodes)
         //  - High enough protocol version for the features we want (but we'll settle for less)
+        //  - Best score, ie has answered pings quickest and served us well before. Scores are moving averages that
+        //    hardly ever tie, so peers within DOWNLOAD_PEER_ROTATION_MARGIN of the best count as equally good.
         //  - Randomly, to try and spread the load.
         if (peers.isEmpty())
             return null;
@@ -1999,8 +2152,48 @@ public class PeerGroup implements TransactionBroadcaster {
                 candidates2.add(peer);
             }
         }
-        int index = (int) (Math.random() * candidates2.size());
-        return candidates2.get(index);
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (Peer peer : candidates2)
+            bestScore = Math.max(peer.getScore().getScore(), bestScore);
+        List<Peer> best = new ArrayList<Peer>(candidates2.size());
+        for (Peer peer : candidates2) {
+            if (peer.getScore().getScore() > bestScore - DOWNLOAD_PEER_ROTATION_MARGIN)
+                best.add(peer);
+        }
+        int index = (int) (Math.random() * best.size());
+        return best.get(index);
+    }
+
+    /**
+     * If the chain is being downloaded and another peer scores clearly better than the download peer, moves the
+     * download over to it. Does nothing once the chain has caught up with the peers, even though the download
+     * listener stays set. Called periodically whilst the chain downloads.
+     *
+     * @return true if the download peer was changed.
+     */
+    @VisibleForTesting
+    boolean maybeRotateDownloadPeer() {
+        lock.lock();
+        try {
+            Peer current = downloadPeer;
+            if (current == null || downloadListener == null)
+                return false;
+            if (chain == null || chain.getBestChainHeight() >= getMostCommonChainHeight())
+                return false;
+            Peer candidate = selectDownloadPeer(peers);
+            if (candidate == null || candidate == current)
+                return false;
+            if (candidate.getScore().getScore() < current.getScore().getScore() + DOWNLOAD_PEER_ROTATION_MARGIN)
+                return false;
+            log.info("Moving chain download from {} ({}) to {} ({})", current, current.getScore(), candidate,
+                    candidate.getScore());
+            if (chainDownloadSpeedCalculator != null)
+                current.removeEventListener(chainDownloadSpeedCalculator);
+            startBlockChainDownloadFromPeer(candidate);
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.Locale;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Keeps track of how well a remote node has served us: how quickly it answers pings, how fast it delivered the
+ * block chain when it was the download peer, how often it stalled and how often it sent us something invalid. A
+ * {@link PeerGroup} keeps one per address, so what it learns survives reconnects, and uses {@link #getScore()} to pick
+ * the download peer and the peers a transaction is broadcast to.</p>
+ *
+ * <p>This class is thread safe.</p>
+ */
+public class PeerScore {
+    // Weight of a new sample in the moving averages, so roughly the last five samples count.
+    private static final double SAMPLE_WEIGHT = 0.2;
+    // Ping time assumed for a node that hasn't answered a ping yet, so that a node known to be quick is preferred.
+    private static final long UNKNOWN_PING_TIME_MSEC = 1000;
+    private static final double STALL_PENALTY = 5;
+    private static final double MISBEHAVIOUR_PENALTY = 10;
+
+    @GuardedBy("this") private double pingTime = -1;
+    @GuardedBy("this") private double bytesPerSecond = -1;
+    @GuardedBy("this") private int stalls;
+    @GuardedBy("this") private int misbehaviour;
+
+    /** Records the time a ping took to be answered. */
+    public synchronized void recordPingTime(long msec) {
+        checkArgument(msec >= 0);
+        pingTime = pingTime < 0 ? msec : pingTime + SAMPLE_WEIGHT * (msec - pingTime);
+    }
+
+    /** Records how many bytes of blocks and transactions the node delivered in the last second of a chain download. */
+    public synchronized void recordThroughput(long bytesPerSecond) {
+        checkArgument(bytesPerSecond >= 0);
+        this.bytesPerSecond = this.bytesPerSecond < 0 ? bytesPerSecond :
+                this.bytesPerSecond + SAMPLE_WEIGHT * (bytesPerSecond - this.bytesPerSecond);
+    }
+
+    /** Records that the chain download from the node became too slow and was moved to another peer. */
+    public synchronized void recordStall() {
+        stalls++;
+    }
+
+    /** Records that the node sent something malformed or invalid. */
+    public synchronized void recordMisbehaviour() {
+        misbehaviour++;
+    }
+
+    /** Returns a moving average of the node's ping times, or {@link Long#MAX_VALUE} if it has never answered a ping. */
+    public synchronized long getPingTime() {
+        return pingTime < 0 ? Long.MAX_VALUE : Math.round(pingTime);
+    }
+
+    /** Returns a moving average of the node's chain download speed, or -1 if it has never been the download peer. */
+    public synchronized long getBytesPerSecond() {
+        return bytesPerSecond < 0 ? -1 : Math.round(bytesPerSecond);
+    }
+
+    /** Returns how many times the chain download from the node has stalled. */
+    public synchronized int getStalls() {
+        return stalls;
+    }
+
+    /** Returns how many times the node has sent something malformed or invalid. */
+    public synchronized int getMisbehaviour() {
+        return misbehaviour;
+    }
+
+    /**
+     * Returns a number to compare nodes by, where higher is better. Every 100 msec of ping time costs a point and
+     * every doubling of download speed (from 1 KB/sec) earns one, whilst stalls and misbehaviour cost many points each.
+     * Nodes that have never been measured are all scored the same.
+     */
+    public synchronized double getScore() {
+        double score = -(pingTime < 0 ? UNKNOWN_PING_TIME_MSEC : pingTime) / 100;
+        if (bytesPerSecond >= 0)
+            score += Math.log(1 + bytesPerSecond / 1024) / Math.log(2);
+        return score - stalls * STALL_PENALTY - misbehaviour * MISBEHAVIOUR_PENALTY;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "score %.2f (ping %s, %s, %d stalls, %d misbehaviour)", getScore(),
+                pingTime < 0 ? "unknown" : Math.round(pingTime) + " msec",
+                bytesPerSecond < 0 ? "speed unknown" : String.format(Locale.US, "%.2f KB/sec", bytesPerSecond / 1024),
+                stalls, misbehaviour);
+    }
+}
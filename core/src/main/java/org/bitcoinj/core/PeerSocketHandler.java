@@ -17,13 +17,17 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.net.AbstractTimeoutHandler;
+import org.bitcoinj.net.BufferPool;
+import org.bitcoinj.net.GatheringMessageWriteTarget;
 import org.bitcoinj.net.MessageWriteTarget;
+import org.bitcoinj.net.PausableMessageWriteTarget;
 import org.bitcoinj.net.StreamParser;
 import org.bitcoinj.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
@@ -51,13 +55,17 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
+    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes. It comes
+    // from a pool, as full nodes relaying blocks would otherwise allocate one for nearly every block.
+    private final BufferPool bufferPool = BufferPool.DEFAULT;
+    private ByteBuffer largeReadBuffer;
     private BitcoinSerializer.BitcoinPacketHeader header;
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
+    // When set, messages are processed by the dispatcher's worker threads rather than the network thread.
+    @Nullable private volatile MessageDispatcher.PeerQueue dispatchQueue;
+
     public PeerSocketHandler(NetworkParameters params, InetSocketAddress remoteIp) {
         serializer = new BitcoinSerializer(checkNotNull(params));
         this.peerAddress = new PeerAddress(remoteIp);
@@ -81,11 +89,16 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // Where the target allows it, the header and payload are written as they are, without first copying them
+        // into one array.
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            if (writeTarget instanceof GatheringMessageWriteTarget) {
+                ((GatheringMessageWriteTarget) writeTarget).writeBytes(serializer.serializeToBuffers(message));
+            } else {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                serializer.serialize(message, out);
+                writeTarget.writeBytes(out.toByteArray());
+            }
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -114,10 +127,80 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     }
 
     /**
-     * Called every time a message is received from the network
+     * Called every time a message is received from the network, on the network thread or, if a
+     * {@link MessageDispatcher} is set, on one of its worker threads. Either way messages are processed one at a time
+     * and in the order they were received.
      */
     protected abstract void processMessage(Message m) throws Exception;
 
+    /**
+     * Hands the messages received from this peer to the given dispatcher instead of processing them on the network
+     * thread, or goes back to processing them on the network thread if null. Must be called before the connection is
+     * opened.
+     */
+    public void setMessageDispatcher(@Nullable MessageDispatcher dispatcher) {
+        lock.lock();
+        try {
+            checkState(writeTarget == null, "Connection already open");
+            dispatchQueue = dispatcher == null ? null : dispatcher.newQueue(this);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of messages received from this peer that are still waiting to be processed. */
+    public int getQueuedMessageCount() {
+        MessageDispatcher.PeerQueue queue = dispatchQueue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    /**
+     * Runs the given task once all the messages received so far have been processed, on the thread that processes
+     * them. Used to keep events such as a disconnection from overtaking the messages that came before them.
+     */
+    protected void runAfterQueuedMessages(Runnable task) {
+        MessageDispatcher.PeerQueue queue = dispatchQueue;
+        if (queue == null)
+            task.run();
+        else
+            queue.dispatch(task);
+    }
+
+    // Processes the message right away, or queues it with the dispatcher if there is one.
+    private void dispatchMessage(final Message message) throws Exception {
+        MessageDispatcher.PeerQueue queue = dispatchQueue;
+        if (queue == null) {
+            processMessage(message);
+            return;
+        }
+        queue.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    processMessage(message);
+                } catch (Exception e) {
+                    exceptionCaught(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Pauses or resumes reading from the connection, see {@link PausableMessageWriteTarget#setReadingPaused(boolean)}.
+     * Does nothing if the connection can't be paused.
+     */
+    void setReadingPaused(boolean paused) {
+        MessageWriteTarget target;
+        lock.lock();
+        try {
+            target = writeTarget;
+        } finally {
+            lock.unlock();
+        }
+        if (target instanceof PausableMessageWriteTarget)
+            ((PausableMessageWriteTarget) target).setReadingPaused(paused);
+    }
+
     @Override
     public int receiveBytes(ByteBuffer buff) {
         checkArgument(buff.position() == 0 &&
@@ -131,15 +214,24 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     // This can only happen in the first iteration
                     checkState(firstMessage);
                     // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
+                    ByteBuffer bytes = buff.duplicate();
+                    bytes.limit(bytes.position() + Math.min(bytes.remaining(), largeReadBuffer.remaining()));
+                    largeReadBuffer.put(bytes);
+                    buff.position(bytes.position());
                     // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
+                    if (!largeReadBuffer.hasRemaining()) {
+                        // ...processing a message if one is available. The payload is copied out of the pooled
+                        // buffer, so it can be given back before the message is processed.
+                        largeReadBuffer.flip();
+                        Message message;
+                        try {
+                            message = serializer.deserializePayload(header, largeReadBuffer);
+                        } finally {
+                            bufferPool.release(largeReadBuffer);
+                            largeReadBuffer = null;
+                        }
                         header = null;
+                        dispatchMessage(message);
                         firstMessage = false;
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
@@ -159,9 +251,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                             header = serializer.deserializeHeader(buff);
                             // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
                             // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            largeReadBuffer = bufferPool.acquire(header.size);
+                            largeReadBuffer.put(buff);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
                             // In cases where the buff is just really small, we could create a second largeReadBuffer
@@ -177,7 +268,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                     return buff.position();
                 }
                 // Process our freshly deserialized message
-                processMessage(message);
+                dispatchMessage(message);
                 firstMessage = false;
             }
         } catch (Exception e) {
@@ -220,7 +311,7 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
     }
 
     /** Catch any exceptions, logging them and then closing the channel. */
-    private void exceptionCaught(Exception e) {
+    protected void exceptionCaught(Exception e) {
         PeerAddress addr = getAddress();
         String s = addr == null ? "?" : addr.toString();
         if (e instanceof ConnectException || e instanceof IOException) {
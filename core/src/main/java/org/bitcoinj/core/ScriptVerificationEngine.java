@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.Script.VerifyFlag;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A long lived pool of threads that runs scriptSig/scriptPubKey verification for {@link FullPrunedBlockChain}.
+ * Work is split per input rather than per transaction, so a single transaction with hundreds of inputs is spread
+ * across all cores, whilst inputs from small transactions are batched together to keep scheduling overhead low.</p>
+ *
+ * <p>Verification of a block is driven through a {@link BlockVerification}: inputs are handed over as soon as their
+ * connected outputs have been looked up, so script execution for the early transactions of a block overlaps with
+ * the UTXO lookups for the later ones. A failure aborts the outstanding work of that block only; the threads
+ * themselves are never torn down.</p>
+ */
+public class ScriptVerificationEngine {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationEngine.class);
+
+    /** The default number of inputs that are grouped into a single unit of work. */
+    public static final int DEFAULT_BATCH_SIZE = 8;
+
+    private final ExecutorService executor;
+    private final int threads;
+    private final int batchSize;
+    @Nullable private final SignatureCache signatureCache;
+
+    // Number of batches that have been submitted but not yet finished running.
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    // Number of tasks handed to executeInBackground() that have not finished running.
+    private final AtomicInteger backgroundTasks = new AtomicInteger();
+    private volatile long lastBlockVerificationTimeMillis;
+    private volatile int lastBlockInputCount;
+    private volatile int maxQueueDepth;
+
+    /**
+     * Creates an engine with one thread per available processor and the {@link #DEFAULT_BATCH_SIZE}, which checks
+     * signatures against the given cache.
+     */
+    public ScriptVerificationEngine(@Nullable SignatureCache signatureCache) {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE, signatureCache);
+    }
+
+    /**
+     * Creates an engine with the given number of threads, grouping up to batchSize inputs into a single unit of work.
+     * If a signature cache is given, signatures that were already verified elsewhere (for instance when the
+     * transaction was relayed) are not checked again.
+     */
+    public ScriptVerificationEngine(int threads, int batchSize, @Nullable SignatureCache signatureCache) {
+        checkArgument(threads > 0);
+        checkArgument(batchSize > 0);
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.signatureCache = signatureCache;
+        this.executor = Executors.newFixedThreadPool(threads, new ContextPropagatingThreadFactory("Script verification"));
+    }
+
+    /**
+     * Starts verifying a new block. The returned object must be either finished or aborted.
+     */
+    public BlockVerification begin(int height) {
+        checkState(!executor.isShutdown(), "Engine has been shut down");
+        return new BlockVerification(height);
+    }
+
+    /**
+     * Runs the given task on the verification threads if they have room for it, returning false if it was dropped
+     * because as many background tasks as there are threads are already queued or running, or the engine was shut
+     * down. Meant for work that is only worth doing when the threads would otherwise be idle, such as checking
+     * transactions relayed by peers to fill the signature cache, so that it never holds up verification of a block
+     * for long. The task must handle its own failures.
+     */
+    public boolean executeInBackground(final Runnable task) {
+        if (backgroundTasks.incrementAndGet() > threads) {
+            backgroundTasks.decrementAndGet();
+            return false;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.warn("Background verification task failed", e);
+                    } finally {
+                        backgroundTasks.decrementAndGet();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            backgroundTasks.decrementAndGet();
+            return false;
+        }
+    }
+
+    /** Returns the number of batches that are queued or currently running. */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /** Returns the wall clock time the most recently finished block spent in script verification. */
+    public long getLastBlockVerificationTimeMillis() {
+        return lastBlockVerificationTimeMillis;
+    }
+
+    /** Returns the number of inputs verified for the most recently finished block. */
+    public int getLastBlockInputCount() {
+        return lastBlockInputCount;
+    }
+
+    /** Returns the highest queue depth seen while verifying the most recently finished block. */
+    public int getLastBlockMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /** Stops the verification threads. Blocks that are still being verified will fail. */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Collects the inputs of a single block and hands them to the pool in batches. This object is not thread safe
+     * and is meant to be driven by the thread connecting the block.
+     */
+    public class BlockVerification {
+        private final int height;
+        private final long startTime = System.currentTimeMillis();
+        private final AtomicBoolean aborted = new AtomicBoolean();
+        private final List<Future<VerificationException>> results = new ArrayList<Future<VerificationException>>();
+        private Batch pending = new Batch();
+        private int inputCount;
+        private int blockMaxQueueDepth;
+        private boolean done;
+
+        private BlockVerification(int height) {
+            this.height = height;
+        }
+
+        /**
+         * Queues all inputs of the given transaction for verification against the connected output scripts.
+         * The transaction is serialized immediately, so it may be modified once this method returns.
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, Set<VerifyFlag> verifyFlags) {
+            checkState(!done);
+            checkArgument(tx.getInputs().size() == prevOutScripts.size());
+            final byte[] txBytes = tx.bitcoinSerialize();
+            int index = 0;
+            for (Script prevOutScript : prevOutScripts) {
+                pending.add(new Input(tx.getParams(), txBytes, index++, prevOutScript, verifyFlags));
+                if (pending.size() >= batchSize)
+                    submitPending();
+            }
+        }
+
+        private void submitPending() {
+            if (pending.size() == 0)
+                return;
+            inputCount += pending.size();
+            FutureTask<VerificationException> future = new FutureTask<VerificationException>(pending);
+            pending = new Batch();
+            int depth = queueDepth.incrementAndGet();
+            if (depth > blockMaxQueueDepth)
+                blockMaxQueueDepth = depth;
+            try {
+                executor.execute(future);
+            } catch (RejectedExecutionException e) {
+                queueDepth.decrementAndGet();
+                throw e;
+            }
+            results.add(future);
+        }
+
+        /**
+         * Waits for all queued inputs to be verified, throwing the first failure encountered.
+         */
+        public void finish() throws VerificationException {
+            checkState(!done);
+            submitPending();
+            done = true;
+            try {
+                for (Future<VerificationException> future : results) {
+                    VerificationException e;
+                    try {
+                        e = future.get();
+                    } catch (InterruptedException thrownE) {
+                        throw new RuntimeException(thrownE); // Shouldn't happen
+                    } catch (ExecutionException thrownE) {
+                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
+                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
+                    }
+                    if (e != null)
+                        throw e;
+                }
+            } catch (VerificationException e) {
+                aborted.set(true);
+                throw e;
+            }
+            lastBlockVerificationTimeMillis = System.currentTimeMillis() - startTime;
+            lastBlockInputCount = inputCount;
+            maxQueueDepth = blockMaxQueueDepth;
+            if (log.isDebugEnabled())
+                log.debug("Verified {} inputs of block {} in {} ms, max queue depth {}", inputCount, height,
+                        lastBlockVerificationTimeMillis, blockMaxQueueDepth);
+        }
+
+        /**
+         * Abandons verification of this block. Batches that have not started yet are skipped, there is no need to
+         * wait for them.
+         */
+        public void abort() {
+            aborted.set(true);
+            done = true;
+        }
+
+        private class Batch extends ArrayList<Input> implements Callable<VerificationException> {
+            Batch() {
+                super(batchSize);
+            }
+
+            @Nullable
+            @Override
+            public VerificationException call() throws Exception {
+                try {
+                    // Inputs of the same transaction tend to end up in the same batch, so only parse it once. The copy
+                    // belongs to this batch alone, so the scripts can run against it without copying it again.
+                    Map<byte[], Transaction> txs = new IdentityHashMap<byte[], Transaction>();
+                    for (Input input : this) {
+                        if (aborted.get())
+                            return null;
+                        Transaction tx = txs.get(input.txBytes);
+                        if (tx == null) {
+                            tx = new Transaction(input.params, input.txBytes);
+                            txs.put(input.txBytes, tx);
+                        }
+                        tx.getInputs().get(input.index).getScriptSig().correctlySpendsInPlace(tx, input.index,
+                                input.prevOutScript, input.verifyFlags, signatureCache);
+                    }
+                } catch (VerificationException e) {
+                    aborted.set(true);
+                    return e;
+                } finally {
+                    queueDepth.decrementAndGet();
+                }
+                return null;
+            }
+        }
+    }
+
+    private static class Input {
+        final NetworkParameters params;
+        final byte[] txBytes;
+        final int index;
+        final Script prevOutScript;
+        final Set<VerifyFlag> verifyFlags;
+
+        Input(NetworkParameters params, byte[] txBytes, int index, Script prevOutScript, Set<VerifyFlag> verifyFlags) {
+            this.params = params;
+            this.txBytes = txBytes;
+            this.index = index;
+            this.prevOutScript = prevOutScript;
+            this.verifyFlags = verifyFlags;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A bounded, thread safe cache of signatures that have already been found to be valid, keyed by the signed hash,
+ * the public key and the signature itself. Transactions are usually seen twice, once when they are relayed and then
+ * again when they are included in a block, so remembering the result of the expensive ECDSA check the first time
+ * around means block connection can skip most of that work.</p>
+ *
+ * <p>Only successful verifications are cached, so an attacker can't fill the cache with garbage that would evict
+ * useful entries without first producing valid signatures. A cache is owned by each {@link Context}, see
+ * {@link Context#getSignatureCache()}.</p>
+ */
+public class SignatureCache {
+    /** The default maximum number of entries, which uses a few megabytes of heap. */
+    public static final int DEFAULT_MAX_SIZE = 50000;
+
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Creates a cache holding up to {@link #DEFAULT_MAX_SIZE} entries. */
+    public SignatureCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /** Creates a cache holding up to the given number of entries. */
+    public SignatureCache(int maxSize) {
+        checkArgument(maxSize > 0);
+        validSignatures = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /**
+     * Verifies the given signature over the given hash with the public key, like
+     * {@link ECKey#verify(byte[], ECKey.ECDSASignature, byte[])} does, but consults the cache first and remembers the
+     * result if the signature turns out to be valid.
+     */
+    public boolean verify(byte[] data, ECKey.ECDSASignature signature, byte[] pub) {
+        Sha256Hash key = cacheKey(data, signature, pub);
+        if (validSignatures.getIfPresent(key) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        boolean valid = ECKey.verify(data, signature, pub);
+        if (valid)
+            validSignatures.put(key, Boolean.TRUE);
+        return valid;
+    }
+
+    private static Sha256Hash cacheKey(byte[] data, ECKey.ECDSASignature signature, byte[] pub) {
+        // The entries are hashed together rather than kept as-is so each entry has a small, fixed size. Lengths are
+        // included so different splits of the same concatenated bytes can't collide.
+        MessageDigest digest = Sha256Hash.newDigest();
+        byte[] length = new byte[4];
+        Utils.uint32ToByteArrayLE(data.length, length, 0);
+        digest.update(length);
+        digest.update(data);
+        Utils.uint32ToByteArrayLE(pub.length, length, 0);
+        digest.update(length);
+        digest.update(pub);
+        digest.update(signature.encodeToDER());
+        return Sha256Hash.wrap(digest.digest());
+    }
+
+    /** Returns the number of verifications that were answered from the cache. */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /** Returns the number of verifications that had to run the ECDSA check. */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /** Returns the approximate number of signatures currently cached. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Forgets all cached signatures. The hit and miss counters are not reset. */
+    public void clear() {
+        validSignatures.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        return "SignatureCache: " + size() + " entries, " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+}
@@ -121,8 +121,9 @@ public class TransactionBroadcast {
             // thread.
 
             // We will send the tx simultaneously to half the connected peers and wait to hear back from at least half
-            // of the other half, i.e., with 4 peers connected we will send the tx to 2 randomly chosen peers, and then
-            // wait for it to show up on one of the other two. This will be taken as sign of network acceptance. As can
+            // of the other half, i.e., with 4 peers connected we will send the tx to the 2 best scoring peers (chosen
+            // randomly amongst equals, the best answer quickest so should relay it fastest), and then wait for it to
+            // show up on one of the other two. This will be taken as sign of network acceptance. As can
             // be seen, 4 peers is probably too little - it doesn't taken many broken peers for tx propagation to have
             // a big effect.
             List<Peer> peers = peerGroup.getConnectedPeers();    // snapshots
@@ -142,6 +143,17 @@ public class TransactionBroadcast {
             int numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
             numWaitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
             Collections.shuffle(peers, random);
+            // Scores are taken up front as they may change whilst sorting. The sort is stable, so equally scored peers
+            // stay shuffled.
+            final Map<Peer, Double> scores = new HashMap<Peer, Double>();
+            for (Peer peer : peers)
+                scores.put(peer, peer.getScore().getScore());
+            Collections.sort(peers, new Comparator<Peer>() {
+                @Override
+                public int compare(Peer a, Peer b) {
+                    return Double.compare(scores.get(b), scores.get(a));
+                }
+            });
             peers = peers.subList(0, numToBroadcastTo);
             log.info("broadcastTransaction: We have {} peers, adding {} to the memory pool", numConnected, tx.getHashAsString());
             log.info("Sending to {} peers, will wait for {}, sending to: {}", numToBroadcastTo, numWaitingFor, Joiner.on(",").join(peers));
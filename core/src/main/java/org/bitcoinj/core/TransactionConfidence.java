@@ -17,6 +17,7 @@
 
 package org.bitcoinj.core;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.*;
 import com.google.common.util.concurrent.*;
 import org.bitcoinj.utils.*;
@@ -25,6 +26,7 @@ import javax.annotation.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -71,6 +73,8 @@ public class TransactionConfidence implements Serializable {
     private final Sha256Hash hash;
     // Lazily created listeners array.
     private transient CopyOnWriteArrayList<ListenerRegistration<Listener>> listeners;
+    // Lazily created, see addChangeCounter.
+    @Nullable private transient volatile CopyOnWriteArrayList<AtomicLong> changeCounters;
 
     // The depth of the transaction on the best chain in blocks. An unconfirmed block has depth 0.
     private int depth;
@@ -251,6 +255,7 @@ public class TransactionConfidence implements Serializable {
         this.appearedAtChainHeight = appearedAtChainHeight;
         this.depth = 1;
         setConfidenceType(ConfidenceType.BUILDING);
+        changed();
     }
 
     /**
@@ -275,6 +280,7 @@ public class TransactionConfidence implements Serializable {
             depth = 0;
             appearedAtChainHeight = -1;
         }
+        changed();
     }
 
 
@@ -294,6 +300,7 @@ public class TransactionConfidence implements Serializable {
                 this.confidenceType = ConfidenceType.PENDING;
             }
         }
+        changed();
         return true;
     }
 
@@ -349,7 +356,9 @@ public class TransactionConfidence implements Serializable {
      * @return the new depth
      */
     public synchronized int incrementDepthInBlocks() {
-        return ++this.depth;
+        ++this.depth;
+        changed();
+        return this.depth;
     }
 
     /**
@@ -371,6 +380,7 @@ public class TransactionConfidence implements Serializable {
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
+        changed();
     }
 
     /**
@@ -380,6 +390,7 @@ public class TransactionConfidence implements Serializable {
     public void clearBroadcastBy() {
         checkState(getConfidenceType() != ConfidenceType.PENDING);
         broadcastBy.clear();
+        changed();
     }
 
     /**
@@ -406,9 +417,38 @@ public class TransactionConfidence implements Serializable {
     public synchronized void setOverridingTransaction(@Nullable Transaction overridingTransaction) {
         this.overridingTransaction = overridingTransaction;
         setConfidenceType(ConfidenceType.DEAD);
+        changed();
     }
 
-    /** Returns a copy of this object. Event listeners are not duplicated. */
+    /**
+     * Adds a counter that is incremented on the calling thread whenever this object changes. Unlike listeners, this
+     * also covers changes that are never announced with {@link #queueListeners(Listener.ChangeReason)}, so it suits
+     * state derived from the confidence, such as the cached balances of a {@link Wallet}.
+     */
+    public synchronized void addChangeCounter(AtomicLong counter) {
+        if (changeCounters == null)
+            changeCounters = new CopyOnWriteArrayList<AtomicLong>();
+        changeCounters.addIfAbsent(checkNotNull(counter));
+    }
+
+    /** Removes a counter added with {@link #addChangeCounter(AtomicLong)}. */
+    public synchronized boolean removeChangeCounter(AtomicLong counter) {
+        return changeCounters != null && changeCounters.remove(counter);
+    }
+
+    @VisibleForTesting
+    synchronized int numChangeCounters() {
+        return changeCounters == null ? 0 : changeCounters.size();
+    }
+
+    private void changed() {
+        CopyOnWriteArrayList<AtomicLong> counters = changeCounters;
+        if (counters != null)
+            for (AtomicLong counter : counters)
+                counter.incrementAndGet();
+    }
+
+    /** Returns a copy of this object. Event listeners and change counters are not duplicated. */
     public TransactionConfidence duplicate() {
         TransactionConfidence c = new TransactionConfidence(hash);
         c.broadcastBy.addAll(broadcastBy);
@@ -455,6 +495,7 @@ public class TransactionConfidence implements Serializable {
      */
     public synchronized void setSource(Source source) {
         this.source = source;
+        changed();
     }
 
     /**
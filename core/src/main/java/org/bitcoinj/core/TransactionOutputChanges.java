@@ -16,11 +16,18 @@
 
 package org.bitcoinj.core;
 
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptOpCodes;
+
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.RandomAccess;
 
 /**
  * <p>TransactionOutputChanges represents a delta to the set of unspent outputs. It used as a return value for
@@ -29,6 +36,14 @@ import java.util.List;
  * BIP30 (no duplicate txid creation if the previous one was not fully spent prior to this block) verification.</p>
  */
 public class TransactionOutputChanges {
+    // Starts the compact serialization. In the original one these bytes are the number of outputs created, which can't
+    // ever be that high.
+    private static final byte[] COMPACT_MARKER = { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+    // Compressed script types, other scripts are written as their length plus this offset followed by the script.
+    private static final int SCRIPT_PAY_TO_ADDRESS = 0;
+    private static final int SCRIPT_PAY_TO_SCRIPT_HASH = 1;
+    private static final int SCRIPT_RAW_OFFSET = 2;
+
     public final List<UTXO> txOutsCreated;
     public final List<UTXO> txOutsSpent;
     
@@ -37,11 +52,22 @@ public class TransactionOutputChanges {
         this.txOutsSpent = txOutsSpent;
     }
     
+    /**
+     * Reads changes written by either {@link #serializeToStream(OutputStream)} or
+     * {@link #serializeCompactToStream(OutputStream)}.
+     */
     public TransactionOutputChanges(InputStream in) throws IOException {
-        int numOutsCreated = (in.read() & 0xFF) |
-                             ((in.read() & 0xFF) << 8) |
-                             ((in.read() & 0xFF) << 16) |
-                             ((in.read() & 0xFF) << 24);
+        byte[] first = new byte[4];
+        readFully(in, first);
+        if (Arrays.equals(first, COMPACT_MARKER)) {
+            txOutsCreated = readCompactOutputs(in);
+            txOutsSpent = readCompactOutputs(in);
+            return;
+        }
+        int numOutsCreated = (first[0] & 0xFF) |
+                             ((first[1] & 0xFF) << 8) |
+                             ((first[2] & 0xFF) << 16) |
+                             ((first[3] & 0xFF) << 24);
         txOutsCreated = new LinkedList<UTXO>();
         for (int i = 0; i < numOutsCreated; i++)
             txOutsCreated.add(new UTXO(in));
@@ -74,4 +100,159 @@ public class TransactionOutputChanges {
             output.serializeToStream(bos);
         }
     }
+
+    /**
+     * Writes the changes in a compact form, which is what the full pruned block stores keep as undo data. Outputs are
+     * grouped by the transaction they belong to, so the transaction hash, height and coinbase flag are written once
+     * per transaction rather than once per output, numbers are written as variable length integers, and pay to
+     * address and pay to script hash scripts are reduced to the hash they contain.
+     */
+    public void serializeCompactToStream(OutputStream bos) throws IOException {
+        bos.write(COMPACT_MARKER);
+        writeCompactOutputs(txOutsCreated, bos);
+        writeCompactOutputs(txOutsSpent, bos);
+    }
+
+    /**
+     * Writes a list of outputs in the form used by {@link #serializeCompactToStream(OutputStream)}, to be read back
+     * with {@link #readCompactOutputs(InputStream)}. The addresses of the outputs are not written.
+     */
+    public static void writeCompactOutputs(List<UTXO> changes, OutputStream bos) throws IOException {
+        // The lists are usually linked, and we index into them below.
+        List<UTXO> outputs = changes instanceof RandomAccess ? changes : new ArrayList<UTXO>(changes);
+        // Only consecutive outputs are grouped, so the order of the list survives the round trip.
+        int numGroups = 0;
+        UTXO prev = null;
+        for (UTXO output : outputs) {
+            if (!isSameGroup(prev, output))
+                numGroups++;
+            prev = output;
+        }
+        bos.write(new VarInt(numGroups).encode());
+        int i = 0;
+        while (i < outputs.size()) {
+            UTXO first = outputs.get(i);
+            int end = i + 1;
+            while (end < outputs.size() && isSameGroup(first, outputs.get(end)))
+                end++;
+            bos.write(first.getHash().getBytes());
+            bos.write(new VarInt(((long) first.getHeight() << 1) | (first.isCoinbase() ? 1 : 0)).encode());
+            bos.write(new VarInt(end - i).encode());
+            for (; i < end; i++) {
+                UTXO output = outputs.get(i);
+                bos.write(new VarInt(output.getIndex()).encode());
+                bos.write(new VarInt(output.getValue().value).encode());
+                writeCompactScript(output.getScript().getProgram(), bos);
+            }
+        }
+    }
+
+    private static boolean isSameGroup(UTXO a, UTXO b) {
+        return a != null && a.getHash().equals(b.getHash()) && a.getHeight() == b.getHeight()
+                && a.isCoinbase() == b.isCoinbase();
+    }
+
+    private static void writeCompactScript(byte[] program, OutputStream bos) throws IOException {
+        // The opcodes are compared unsigned, as most of them don't fit in a signed byte.
+        if (program.length == 25 && (program[0] & 0xFF) == ScriptOpCodes.OP_DUP
+                && (program[1] & 0xFF) == ScriptOpCodes.OP_HASH160 && program[2] == 20
+                && (program[23] & 0xFF) == ScriptOpCodes.OP_EQUALVERIFY
+                && (program[24] & 0xFF) == ScriptOpCodes.OP_CHECKSIG) {
+            bos.write(SCRIPT_PAY_TO_ADDRESS);
+            bos.write(program, 3, 20);
+        } else if (program.length == 23 && (program[0] & 0xFF) == ScriptOpCodes.OP_HASH160 && program[1] == 20
+                && (program[22] & 0xFF) == ScriptOpCodes.OP_EQUAL) {
+            bos.write(SCRIPT_PAY_TO_SCRIPT_HASH);
+            bos.write(program, 2, 20);
+        } else {
+            bos.write(new VarInt(program.length + SCRIPT_RAW_OFFSET).encode());
+            bos.write(program);
+        }
+    }
+
+    /** Reads a list of outputs written by {@link #writeCompactOutputs(List, OutputStream)}. */
+    public static List<UTXO> readCompactOutputs(InputStream in) throws IOException {
+        List<UTXO> outputs = new LinkedList<UTXO>();
+        long numGroups = readVarInt(in);
+        byte[] hashBytes = new byte[32];
+        for (long g = 0; g < numGroups; g++) {
+            readFully(in, hashBytes);
+            Sha256Hash hash = Sha256Hash.wrap(hashBytes.clone());
+            long heightAndCoinbase = readVarInt(in);
+            int height = (int) (heightAndCoinbase >>> 1);
+            boolean coinbase = (heightAndCoinbase & 1) != 0;
+            long numOutputs = readVarInt(in);
+            for (long i = 0; i < numOutputs; i++) {
+                long index = readVarInt(in);
+                Coin value = Coin.valueOf(readVarInt(in));
+                Script script = new Script(readCompactScript(in));
+                outputs.add(new UTXO(hash, index, value, height, coinbase, script, null));
+            }
+        }
+        return outputs;
+    }
+
+    private static byte[] readCompactScript(InputStream in) throws IOException {
+        long type = readVarInt(in);
+        byte[] program;
+        if (type == SCRIPT_PAY_TO_ADDRESS) {
+            program = new byte[25];
+            program[0] = (byte) ScriptOpCodes.OP_DUP;
+            program[1] = (byte) ScriptOpCodes.OP_HASH160;
+            program[2] = 20;
+            readFully(in, program, 3, 20);
+            program[23] = (byte) ScriptOpCodes.OP_EQUALVERIFY;
+            program[24] = (byte) ScriptOpCodes.OP_CHECKSIG;
+        } else if (type == SCRIPT_PAY_TO_SCRIPT_HASH) {
+            program = new byte[23];
+            program[0] = (byte) ScriptOpCodes.OP_HASH160;
+            program[1] = 20;
+            readFully(in, program, 2, 20);
+            program[22] = (byte) ScriptOpCodes.OP_EQUAL;
+        } else {
+            long length = type - SCRIPT_RAW_OFFSET;
+            if (length > Block.MAX_BLOCK_SIZE)
+                throw new IOException("Script too long: " + length);
+            program = new byte[(int) length];
+            readFully(in, program, 0, program.length);
+        }
+        return program;
+    }
+
+    private static long readVarInt(InputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0)
+            throw new EOFException();
+        int size;
+        if (first < 253)
+            return first;
+        else if (first == 253)
+            size = 2;
+        else if (first == 254)
+            size = 4;
+        else
+            size = 8;
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            value |= (long) b << (8 * i);
+        }
+        return value;
+    }
+
+    private static void readFully(InputStream in, byte[] buf) throws IOException {
+        readFully(in, buf, 0, buf.length);
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = in.read(buf, offset, length);
+            if (read < 0)
+                throw new EOFException();
+            offset += read;
+            length -= read;
+        }
+    }
 }
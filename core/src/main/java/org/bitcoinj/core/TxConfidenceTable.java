@@ -150,6 +150,32 @@ public class TxConfidenceTable {
         return confidence;
     }
 
+    /**
+     * Like {@link #seen(Sha256Hash, PeerAddress)} for all the hashes of an "inv" message at once, which only takes the
+     * table's lock a single time.
+     *
+     * @return the confidence objects, in the same order as the hashes
+     */
+    public List<TransactionConfidence> seen(List<Sha256Hash> hashes, PeerAddress byPeer) {
+        List<TransactionConfidence> confidences = new ArrayList<TransactionConfidence>(hashes.size());
+        List<TransactionConfidence> fresh = new ArrayList<TransactionConfidence>();
+        lock.lock();
+        try {
+            cleanTable();
+            for (Sha256Hash hash : hashes) {
+                TransactionConfidence confidence = getOrCreate(hash);
+                if (confidence.markBroadcastBy(byPeer))
+                    fresh.add(confidence);
+                confidences.add(confidence);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (TransactionConfidence confidence : fresh)
+            confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+        return confidences;
+    }
+
     /**
      * Returns the {@link TransactionConfidence} for the given hash if we have downloaded it, or null if that tx hash
      * is unknown to the system at this time.
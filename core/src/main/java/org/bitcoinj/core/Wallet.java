@@ -122,13 +122,43 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     @VisibleForTesting final Map<Sha256Hash, Transaction> spent;
     @VisibleForTesting final Map<Sha256Hash, Transaction> dead;
 
-    // All transactions together.
+    // All transactions together. Only changed with the lock held, but concurrent so that getTransaction() can look
+    // a transaction up without taking the lock.
     protected final Map<Sha256Hash, Transaction> transactions;
 
+    // An immutable copy of the pools above, so that queries for transactions don't have to wait for the lock whilst
+    // the wallet is busy with a block. It is made by the first query after the pools change, and its version tells
+    // whether it is still the current one, see invalidateTransactions().
+    private final AtomicLong transactionsVersion = new AtomicLong();
+    private transient volatile TransactionSnapshot transactionSnapshot;
+
+    // How many threads are in the middle of an update from the block chain or peers. Whilst there is one, queries
+    // return the last snapshot and balances instead of waiting for the update to finish.
+    private transient AtomicInteger updatesInProgress;
+
+    // How long the block chain and peers held the wallet lock, by operation.
+    private transient LockHoldTimes lockHoldTimes;
+
+    // What changed since the wallet was last written to a WalletJournal, so that appending to the journal only has to
+    // look at that. Transactions are only recorded once the journal has asked for them, see drainChangedTransactions().
+    @GuardedBy("lock") @Nullable private transient Set<Sha256Hash> changedTransactions;
+    private transient volatile boolean keysChanged;
+
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
     // Used to speed up various calculations.
     protected final HashSet<TransactionOutput> myUnspents = Sets.newHashSet();
 
+    // Balances by BalanceType, computed on demand and kept until something they depend on changes, so that reading
+    // the balance of an unchanged wallet neither takes the lock nor goes over all the outputs again. A cached balance
+    // is only used while its version is the current one, see invalidateBalances().
+    private final AtomicLong balancesVersion = new AtomicLong();
+    private transient AtomicReferenceArray<CachedBalance> cachedBalances;
+
+    // The mature outputs we could spend, with and without the ones we can't sign for, ordered by value, largest first.
+    // They depend on the same things as the balances, so they are kept until the balances are invalidated. Coin
+    // selectors looking for an exact match then don't have to sort them for every send.
+    @GuardedBy("lock") private transient CachedSpendCandidates[] cachedSpendCandidates;
+
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
     // then it actually does confirm and does so within the same network session, remote peers will not resend us
@@ -149,6 +179,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     // A list of scripts watched by this wallet.
     @GuardedBy("keychainLock") private Set<Script> watchedScripts;
+    // Incremented whenever watchedScripts changes.
+    @GuardedBy("keychainLock") private int watchedScriptsVersion;
 
     protected final Context context;
     protected final NetworkParameters params;
@@ -175,6 +207,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // side effect of how the code is written (e.g. during re-orgs confidence data gets adjusted multiple times).
     private int onWalletChangedSuppressions;
     private boolean insideReorg;
+    // Set by receiveTransactions, which saves, checks consistency and informs listeners once for the whole batch.
+    private boolean insideBatch;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
     // Object that is used to send transactions asynchronously when the wallet requires it.
@@ -198,6 +232,15 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     // a high risk of being a double spending attack.
     private RiskAnalysis.Analyzer riskAnalyzer = DefaultRiskAnalysis.FACTORY;
 
+    // If this is set then transactions that are fully spent and buried at least archiveDepth blocks deep are moved
+    // out of the pools and into it, see archiveTransactions().
+    @Nullable private volatile TransactionArchive vTransactionArchive;
+    @GuardedBy("lock") private int archiveDepth;
+    // Archiving looks at every transaction, so it is only done every archiveInterval blocks, see
+    // maybeArchiveTransactions().
+    @GuardedBy("lock") private int archiveInterval;
+    @GuardedBy("lock") private int nextArchiveHeight;
+
     // Objects that perform transaction signing. Applied subsequently one after another
     @GuardedBy("lock") private List<TransactionSigner> signers;
 
@@ -276,7 +319,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         spent = new HashMap<Sha256Hash, Transaction>();
         pending = new HashMap<Sha256Hash, Transaction>();
         dead = new HashMap<Sha256Hash, Transaction>();
-        transactions = new HashMap<Sha256Hash, Transaction>();
+        transactions = new ConcurrentHashMap<Sha256Hash, Transaction>();
         eventListeners = new CopyOnWriteArrayList<ListenerRegistration<WalletEventListener>>();
         extensions = new HashMap<String, WalletExtension>();
         // Use a linked hash map to ensure ordering of event listeners is correct.
@@ -288,6 +331,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        cachedBalances = new AtomicReferenceArray<CachedBalance>(BalanceType.values().length);
+        cachedSpendCandidates = new CachedSpendCandidates[2];
+        lockHoldTimes = new LockHoldTimes();
+        updatesInProgress = new AtomicInteger();
+        keysChanged = true;
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(TransactionConfidence confidence, TransactionConfidence.Listener.ChangeReason reason) {
@@ -301,7 +349,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     lock.lock();
                     try {
                         checkBalanceFuturesLocked(null);
-                        Transaction tx = getTransaction(confidence.getTransactionHash());
+                        Transaction tx = transactions.get(confidence.getTransactionHash());
+                        markChanged(tx);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
@@ -366,6 +415,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             maybeUpgradeToHD();
+            keysChanged = true;
             return keychain.currentKey(purpose);
         } finally {
             keychainLock.unlock();
@@ -387,6 +437,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             maybeUpgradeToHD();
+            keysChanged = true;
             return keychain.currentAddress(purpose);
         } finally {
             keychainLock.unlock();
@@ -427,6 +478,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         try {
             maybeUpgradeToHD();
             keys = keychain.freshKeys(purpose, numberOfKeys);
+            keysChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -452,6 +504,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             key = keychain.freshAddress(purpose);
+            keysChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -503,6 +556,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.upgradeToDeterministic(vKeyRotationTimestamp, aesKey);
+            keysChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -561,6 +615,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public boolean removeKey(ECKey key) {
         keychainLock.lock();
         try {
+            keysChanged = true;
             return keychain.removeImportedKey(key);
         } finally {
             keychainLock.unlock();
@@ -637,6 +692,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             result = keychain.importKeys(keys);
+            keysChanged = true;
+            invalidateBalances();
         } finally {
             keychainLock.unlock();
         }
@@ -667,7 +724,10 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             checkNoDeterministicKeys(keys);
-            return keychain.importKeysAndEncrypt(keys, aesKey);
+            int result = keychain.importKeysAndEncrypt(keys, aesKey);
+            keysChanged = true;
+            invalidateBalances();
+            return result;
         } finally {
             keychainLock.unlock();
         }
@@ -688,6 +748,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.addAndActivateHDChain(chain);
+            keysChanged = true;
+            invalidateBalances();
         } finally {
             keychainLock.unlock();
         }
@@ -698,6 +760,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.setLookaheadSize(lookaheadSize);
+            keysChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -719,6 +782,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         try {
             maybeUpgradeToHD();
             keychain.setLookaheadThreshold(num);
+            keysChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -835,6 +899,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 watchedScripts.add(script);
                 added++;
             }
+            watchedScriptsVersion++;
         } finally {
             keychainLock.unlock();
         }
@@ -884,6 +949,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
                 watchedScripts.remove(script);
             }
+            watchedScriptsVersion++;
 
             queueOnScriptsChanged(scripts, false);
             saveNow();
@@ -1020,6 +1086,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     log.warn("Could not parse tx output script: {}", e.toString());
                 }
             }
+            keysChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -1065,6 +1132,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         try {
             final KeyCrypterScrypt scrypt = new KeyCrypterScrypt();
             keychain.encrypt(scrypt, scrypt.deriveKey(password));
+            keysChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -1083,6 +1151,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.encrypt(keyCrypter, aesKey);
+            keysChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -1099,6 +1168,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             final KeyCrypter crypter = keychain.getKeyCrypter();
             checkState(crypter != null, "Not encrypted");
             keychain.decrypt(crypter.deriveKey(password));
+            keysChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -1115,6 +1185,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         keychainLock.lock();
         try {
             keychain.decrypt(aesKey);
+            keysChanged = true;
         } finally {
             keychainLock.unlock();
         }
@@ -1265,6 +1336,99 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    /**
+     * Saves the whole wallet to the wallet file of the given journal, by way of the given temp file, and starts a new
+     * empty journal for it. See {@link WalletJournal}.
+     */
+    public void saveToFile(File temp, WalletJournal journal) throws IOException {
+        lock.lock();
+        try {
+            journal.writeSnapshot(this, temp);
+        } catch (RuntimeException e) {
+            log.error("Failed whilst saving wallet", e);
+            throw e;
+        } finally {
+            lock.unlock();
+            if (temp.exists()) {
+                log.warn("Temp file still exists after failed save.");
+            }
+        }
+    }
+
+    /**
+     * Appends the changes made to the wallet since it was last saved with the given journal to that journal. Returns
+     * false if that isn't possible, in which case the wallet should be saved with
+     * {@link #saveToFile(File, WalletJournal)} instead.
+     */
+    public boolean appendToJournal(WalletJournal journal) throws IOException {
+        lock.lock();
+        try {
+            return journal.append(this);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the transactions that were added, changed or removed since the last call, along with the wallet
+     * transactions they spend from, as whether their outputs are spent may have changed too. Removed transactions map
+     * to null. The first call starts recording the changes and returns null, as nothing is known about what changed
+     * before. This is how a {@link WalletJournal} finds out what to append, so a wallet can only be journaled to one
+     * file at a time. The wallet must be locked.
+     */
+    @Nullable
+    public Map<Sha256Hash, WalletTransaction> drainChangedTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        Set<Sha256Hash> changed = changedTransactions;
+        changedTransactions = new HashSet<Sha256Hash>();
+        if (changed == null)
+            return null;
+        Map<Sha256Hash, WalletTransaction> result = new HashMap<Sha256Hash, WalletTransaction>();
+        for (Sha256Hash hash : changed) {
+            WalletTransaction wtx = getWalletTransaction(hash);
+            result.put(hash, wtx);
+            if (wtx == null)
+                continue;
+            for (TransactionInput input : wtx.getTransaction().getInputs()) {
+                Sha256Hash spentHash = input.getOutpoint().getHash();
+                if (!result.containsKey(spentHash) && transactions.containsKey(spentHash))
+                    result.put(spentHash, getWalletTransaction(spentHash));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns true if keys were added, issued or otherwise changed since the last call, or if this is the first call.
+     * See {@link #drainChangedTransactions()}.
+     */
+    public boolean drainKeysChanged() {
+        boolean changed = keysChanged;
+        keysChanged = false;
+        return changed;
+    }
+
+    @Nullable
+    private WalletTransaction getWalletTransaction(Sha256Hash hash) {
+        Transaction tx;
+        if ((tx = unspent.get(hash)) != null)
+            return new WalletTransaction(Pool.UNSPENT, tx);
+        if ((tx = spent.get(hash)) != null)
+            return new WalletTransaction(Pool.SPENT, tx);
+        if ((tx = pending.get(hash)) != null)
+            return new WalletTransaction(Pool.PENDING, tx);
+        if ((tx = dead.get(hash)) != null)
+            return new WalletTransaction(Pool.DEAD, tx);
+        return null;
+    }
+
+    /** Records that the given transaction was added, changed or removed, see {@link #drainChangedTransactions()}. */
+    private void markChanged(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        if (changedTransactions != null)
+            changedTransactions.add(tx.getHash());
+    }
+
     /**
      * Uses protobuf serialization to save the wallet to the given file. To learn more about this file format, see
      * {@link WalletProtobufSerializer}. Writes out first to a temporary file in the same directory and then renames
@@ -1333,6 +1497,159 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         }
     }
 
+    /** How many blocks apart the wallet archives transactions by default, about a day's worth. */
+    public static final int DEFAULT_ARCHIVE_INTERVAL = 144;
+
+    /**
+     * Sets a {@link TransactionArchive} that transactions are moved into every {@link #DEFAULT_ARCHIVE_INTERVAL}
+     * blocks, see {@link #setTransactionArchive(TransactionArchive, int, int)}.
+     */
+    public void setTransactionArchive(@Nullable TransactionArchive archive, int minDepth) {
+        setTransactionArchive(archive, minDepth, DEFAULT_ARCHIVE_INTERVAL);
+    }
+
+    /**
+     * <p>Sets a {@link TransactionArchive} that transactions are moved into once they are fully spent and buried at
+     * least minDepth blocks deep, so that they no longer take up memory or space in the wallet file. This happens on
+     * the first new best block and then every interval blocks, see {@link #archiveTransactions()}. Archived
+     * transactions are still found by {@link #getTransaction(Sha256Hash)}, which reads them back from the archive, but
+     * they are no longer returned by {@link #getTransactions(boolean)} and friends, and are ignored if they are
+     * received again.</p>
+     *
+     * <p>The archive isn't saved with the wallet, so set it again after loading. Archived transactions can't take part
+     * in a re-org, so pick a depth that no re-org will reach.</p>
+     */
+    public void setTransactionArchive(@Nullable TransactionArchive archive, int minDepth, int interval) {
+        checkArgument(minDepth > 0, "minDepth must be positive");
+        checkArgument(interval > 0, "interval must be positive");
+        lock.lock();
+        try {
+            this.archiveDepth = minDepth;
+            this.archiveInterval = interval;
+            this.nextArchiveHeight = 0;
+            this.vTransactionArchive = archive;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the {@link TransactionArchive} set with {@link #setTransactionArchive(TransactionArchive, int)}. */
+    @Nullable
+    public TransactionArchive getTransactionArchive() {
+        return vTransactionArchive;
+    }
+
+    /**
+     * <p>Moves the transactions that are fully spent and buried deep enough out of the wallet and into the archive set
+     * with {@link #setTransactionArchive(TransactionArchive, int)}, and triggers auto saving. Returns how many were
+     * moved. This is done automatically every few blocks.</p>
+     *
+     * <p>A transaction is only archived together with all the wallet transactions it spends or is spent by, so that no
+     * transaction left in memory refers to an archived one. A coin that is still unspent or a spend that isn't deep
+     * enough yet therefore keeps the transactions around it in memory too. If writing to the archive fails, the
+     * transactions stay in the wallet.</p>
+     */
+    public int archiveTransactions() {
+        lock.lock();
+        try {
+            TransactionArchive archive = vTransactionArchive;
+            if (archive == null)
+                return 0;
+            Map<Sha256Hash, Transaction> candidates = new HashMap<Sha256Hash, Transaction>();
+            for (Transaction tx : spent.values()) {
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() == ConfidenceType.BUILDING &&
+                        confidence.getDepthInBlocks() >= archiveDepth)
+                    candidates.put(tx.getHash(), tx);
+            }
+            if (candidates.isEmpty())
+                return 0;
+            // Transactions that stay may refer to candidates without being connected to them, like a dead double
+            // spend or one that overrode it.
+            for (Transaction tx : transactions.values()) {
+                if (candidates.containsKey(tx.getHash()))
+                    continue;
+                for (TransactionInput input : tx.getInputs())
+                    candidates.remove(input.getOutpoint().getHash());
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() == ConfidenceType.DEAD &&
+                        confidence.getOverridingTransaction() != null)
+                    candidates.remove(confidence.getOverridingTransaction().getHash());
+            }
+            // Drop candidates connected to transactions that stay, until only closed groups are left. Dropping one
+            // only affects the candidates it is connected to, so only those are looked at again.
+            LinkedList<Transaction> toCheck = new LinkedList<Transaction>(candidates.values());
+            while (!toCheck.isEmpty()) {
+                Transaction tx = toCheck.poll();
+                if (!candidates.containsKey(tx.getHash()) || !isConnectedOutside(tx, candidates))
+                    continue;
+                candidates.remove(tx.getHash());
+                for (TransactionInput input : tx.getInputs()) {
+                    Transaction from = candidates.get(input.getOutpoint().getHash());
+                    if (from != null)
+                        toCheck.add(from);
+                }
+                for (TransactionOutput output : tx.getOutputs()) {
+                    TransactionInput spentBy = output.getSpentBy();
+                    Transaction by = spentBy != null ? candidates.get(spentBy.getParentTransaction().getHash()) : null;
+                    if (by != null)
+                        toCheck.add(by);
+                }
+            }
+            if (candidates.isEmpty())
+                return 0;
+            List<WalletTransaction> archived = new ArrayList<WalletTransaction>(candidates.size());
+            for (Transaction tx : candidates.values())
+                archived.add(new WalletTransaction(Pool.SPENT, tx));
+            try {
+                archive.archive(archived);
+            } catch (IOException e) {
+                log.error("Failed to archive transactions, keeping them in the wallet", e);
+                return 0;
+            }
+            for (Sha256Hash hash : candidates.keySet()) {
+                markChanged(candidates.get(hash));
+                spent.remove(hash);
+                forgetTransaction(candidates.get(hash));
+            }
+            invalidateTransactions();
+            log.info("Archived {} transactions, {} left in the wallet", candidates.size(), transactions.size());
+            saveLater();
+            return candidates.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Archives transactions if the interval set with setTransactionArchive() has passed since the last time.
+    private void maybeArchiveTransactions() {
+        checkState(lock.isHeldByCurrentThread());
+        if (vTransactionArchive == null || lastBlockSeenHeight < nextArchiveHeight)
+            return;
+        nextArchiveHeight = lastBlockSeenHeight + archiveInterval;
+        archiveTransactions();
+    }
+
+    // Returns true if any of the wallet transactions the given one spends from or is spent by is not in the group.
+    private boolean isConnectedOutside(Transaction tx, Map<Sha256Hash, Transaction> group) {
+        for (TransactionInput input : tx.getInputs()) {
+            Sha256Hash fromHash = input.getOutpoint().getHash();
+            if (transactions.containsKey(fromHash) && !group.containsKey(fromHash))
+                return true;
+        }
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            if (spentBy != null && !group.containsKey(spentBy.getParentTransaction().getHash()))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isArchived(Transaction tx) {
+        TransactionArchive archive = vTransactionArchive;
+        return archive != null && archive.contains(tx.getHash());
+    }
+
     /**
      * <p>Sets up the wallet to auto-save itself to the given file, using temp files with atomic renames to ensure
      * consistency. After connecting to a file, you no longer need to save the wallet manually, it will do it
@@ -1378,15 +1695,17 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * </p>
      */
     public void shutdownAutosaveAndWait() {
+        WalletFiles files;
         lock.lock();
         try {
-            WalletFiles files = vFileManager;
+            files = vFileManager;
             vFileManager = null;
             checkState(files != null, "Auto saving not enabled.");
-            files.shutdownAndWait();
         } finally {
             lock.unlock();
         }
+        // Not waiting with the lock held, as a save that already started on the auto-save thread needs it to finish.
+        files.shutdownAndWait();
     }
 
     /** Requests an asynchronous save on a background thread */
@@ -1439,10 +1758,19 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * <p>Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
      * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}</p>
      *
+     * <p>If the wallet was saved with a {@link WalletJournal}, the journal is replayed on top of the wallet file.</p>
+     *
      * @param file the wallet file to read
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        if (WalletJournal.getJournalFile(file).exists()) {
+            Wallet wallet = WalletJournal.readWallet(file, walletExtensions);
+            if (!wallet.isConsistent()) {
+                log.error("Loaded an inconsistent wallet");
+            }
+            return wallet;
+        }
         try {
             FileInputStream stream = null;
             try {
@@ -1510,6 +1838,18 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getHashAsString());
                 }
             }
+
+            // Cached balances must match a full calculation.
+            for (BalanceType type : BalanceType.values()) {
+                CachedBalance cached = cachedBalances.get(type.ordinal());
+                if (cached == null || cached.version != balancesVersion.get())
+                    continue;
+                Coin calculated = calculateBalance(type);
+                if (!calculated.equals(cached.value)) {
+                    throw new IllegalStateException("Inconsistent " + type + " balance: cached " +
+                            cached.value.toFriendlyString() + ", calculated " + calculated.toFriendlyString());
+                }
+            }
         } finally {
             lock.unlock();
         }
@@ -1557,7 +1897,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
                                               BlockChain.NewBlockType blockType,
                                               int relativityOffset) throws VerificationException {
-        lock.lock();
+        long lockedAt = lockForUpdate();
         try {
             Transaction tx = transactions.get(txHash);
             if (tx == null) {
@@ -1573,7 +1913,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             receive(tx, block, blockType, relativityOffset);
             return true;
         } finally {
-            lock.unlock();
+            unlockAfterUpdate("notifyTransactionIsInBlock", lockedAt);
         }
     }
 
@@ -1594,7 +1934,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         // Can run in a peer thread. This method will only be called if a prior call to isPendingTransactionRelevant
         // returned true, so we already know by this point that it sends coins to or from our wallet, or is a double
         // spend against one of our other pending transactions.
-        lock.lock();
+        long lockedAt = lockForUpdate();
         try {
             tx.verify();
             // Ignore it if we already know about this transaction. Receiving a pending transaction never moves it
@@ -1604,6 +1944,10 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 log.debug("Received tx we already saw in a block or created ourselves: " + tx.getHashAsString());
                 return;
             }
+            if (isArchived(tx)) {
+                log.debug("Received tx that was archived: " + tx.getHashAsString());
+                return;
+            }
             // Repeat the check of relevancy here, even though the caller may have already done so - this is to avoid
             // race conditions where receivePending may be being called in parallel.
             if (!overrideIsRelevant && !isPendingTransactionRelevant(tx))
@@ -1629,7 +1973,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             // timestamp on the transaction and registers/runs event listeners.
             commitTx(tx);
         } finally {
-            lock.unlock();
+            unlockAfterUpdate("receivePending", lockedAt);
         }
         // maybeRotateKeys() will ignore pending transactions so we don't bother calling it here (see the comments
         // in that function for an explanation of why).
@@ -1690,6 +2034,10 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 log.debug("Received tx we already saw in a block or created ourselves: " + tx.getHashAsString());
                 return false;
             }
+            if (isArchived(tx)) {
+                log.debug("Received tx that was archived: " + tx.getHashAsString());
+                return false;
+            }
             // We only care about transactions that:
             //   - Send us coins
             //   - Spend our coins
@@ -1776,27 +2124,237 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     public void receiveFromBlock(Transaction tx, StoredBlock block,
                                  BlockChain.NewBlockType blockType,
                                  int relativityOffset) throws VerificationException {
-        lock.lock();
+        long lockedAt = lockForUpdate();
         try {
+            if (isArchived(tx)) {
+                log.info("Ignoring tx {} that was archived", tx.getHashAsString());
+                return;
+            }
             receive(tx, block, blockType, relativityOffset);
         } finally {
-            lock.unlock();
+            unlockAfterUpdate("receiveFromBlock", lockedAt);
+        }
+    }
+
+    /**
+     * A transaction for {@link Wallet#receiveTransactions(List)}, together with the best chain block it appeared in, or
+     * without one if it is pending.
+     */
+    public static class ReceivedTransaction {
+        public final Transaction tx;
+        @Nullable public final StoredBlock block;
+        public final int relativityOffset;
+
+        /** A transaction at the given position in the given block of the best chain. */
+        public ReceivedTransaction(Transaction tx, StoredBlock block, int relativityOffset) {
+            this.tx = checkNotNull(tx);
+            this.block = checkNotNull(block);
+            this.relativityOffset = relativityOffset;
+        }
+
+        /** A transaction that isn't in the block chain yet. */
+        public ReceivedTransaction(Transaction tx) {
+            this.tx = checkNotNull(tx);
+            this.block = null;
+            this.relativityOffset = 0;
         }
     }
 
+    /**
+     * <p>Receives many transactions at once, for example when importing them from an external index or catching up
+     * after a rescan. The transactions in blocks are received in chain order, those without in the order they spend
+     * each other, so spends within the batch connect no matter the order of the list. Transactions that aren't
+     * relevant to this wallet are skipped, and pending ones go through the same risk analysis as with
+     * {@link #receivePending(Transaction, List)}. Returns the number of transactions that were received.</p>
+     *
+     * <p>This is much quicker than receiving the transactions one by one: the wallet is locked, checked for
+     * consistency and saved only once, and {@link WalletEventListener#onWalletChanged(Wallet)} and the confidence
+     * listeners are only informed once the whole batch is done. The coins received and sent events are still run for
+     * each transaction in a block, but with the balances before and after the batch. If any of the blocks is higher than the last
+     * seen one, the highest becomes the last seen block, as if {@link #notifyNewBestBlock(StoredBlock)} had been
+     * called for it, and the depths of all transactions are brought up to date.</p>
+     */
+    public int receiveTransactions(List<ReceivedTransaction> batch) throws VerificationException {
+        List<ReceivedTransaction> inBlocks = new ArrayList<ReceivedTransaction>();
+        Map<Sha256Hash, Transaction> pendingTxns = new LinkedHashMap<Sha256Hash, Transaction>();
+        for (ReceivedTransaction received : batch) {
+            if (received.block != null)
+                inBlocks.add(received);
+            else
+                pendingTxns.put(received.tx.getHash(), received.tx);
+        }
+        Collections.sort(inBlocks, new Comparator<ReceivedTransaction>() {
+            @Override
+            public int compare(ReceivedTransaction a, ReceivedTransaction b) {
+                int result = Ints.compare(a.block.getHeight(), b.block.getHeight());
+                return result != 0 ? result : Ints.compare(a.relativityOffset, b.relativityOffset);
+            }
+        });
+        List<Transaction> pendingInOrder = new ArrayList<Transaction>(pendingTxns.size());
+        Set<Sha256Hash> visited = new HashSet<Sha256Hash>();
+        for (Transaction tx : pendingTxns.values())
+            sortBySpends(tx, pendingTxns, visited, pendingInOrder);
+
+        long lockedAt = lockForUpdate();
+        if (insideReorg || insideBatch) {
+            unlockAfterUpdate("receiveTransactions", lockedAt);
+            throw new IllegalStateException("Can't receive a batch of transactions whilst re-organizing or receiving one");
+        }
+        insideBatch = true;
+        onWalletChangedSuppressions++;
+        try {
+            int count = 0;
+            Coin prevBalance = getBalance();
+            int prevHeight = lastBlockSeenHeight;
+            StoredBlock bestBlock = null;
+            Set<Transaction> receivedInBlocks = new HashSet<Transaction>();
+            Map<Transaction, Coin> valueChanges = new LinkedHashMap<Transaction, Coin>();
+            for (ReceivedTransaction received : inBlocks) {
+                Transaction tx = received.tx;
+                if (bestBlock == null || received.block.getHeight() > bestBlock.getHeight())
+                    bestBlock = received.block;
+                Sha256Hash hash = tx.getHash();
+                if (unspent.containsKey(hash) || spent.containsKey(hash))
+                    continue;  // Already in the chain.
+                if (isArchived(tx) || (!transactions.containsKey(hash) && !isTransactionRelevant(tx)))
+                    continue;
+                boolean wasPending = pending.containsKey(hash);
+                Coin valueDifference = tx.getValueSentToMe(this).subtract(tx.getValueSentFromMe(this));
+                tx = moveIntoPools(tx, received.block, BlockChain.NewBlockType.BEST_CHAIN, received.relativityOffset,
+                        valueDifference);
+                if (!wasPending)
+                    valueChanges.put(tx, valueDifference);
+                receivedInBlocks.add(tx);
+                count++;
+            }
+            for (Transaction tx : pendingInOrder) {
+                if (!isPendingTransactionRelevant(tx))
+                    continue;
+                receivePending(tx, null);
+                if (pending.containsKey(tx.getHash()))
+                    count++;
+            }
+
+            if (bestBlock != null && bestBlock.getHeight() > lastBlockSeenHeight) {
+                setLastBlockSeenHash(bestBlock.getHeader().getHash());
+                setLastBlockSeenHeight(bestBlock.getHeight());
+                setLastBlockSeenTimeSecs(bestBlock.getHeader().getTimeSeconds());
+            }
+            int height = lastBlockSeenHeight;
+            for (Transaction tx : transactions.values()) {
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() != ConfidenceType.BUILDING)
+                    continue;
+                int depth;
+                if (receivedInBlocks.contains(tx)) {
+                    // As notifyNewBestBlock won't be called for the blocks of the batch.
+                    ignoreNextNewBlock.remove(tx.getHash());
+                    depth = Math.max(1, height - confidence.getAppearedAtChainHeight() + 1);
+                } else {
+                    depth = confidence.getDepthInBlocks() + (prevHeight >= 0 ? Math.max(0, height - prevHeight) : 0);
+                }
+                if (depth == confidence.getDepthInBlocks())
+                    continue;
+                confidence.setDepthInBlocks(depth);
+                if (depth > context.getEventHorizon() && confidence.numBroadcastPeers() > 0) {
+                    confidence.clearBroadcastBy();
+                    markChanged(tx);
+                }
+                if (!confidenceChanged.containsKey(tx))
+                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            }
+
+            Coin newBalance = getBalance();
+            for (Map.Entry<Transaction, Coin> entry : valueChanges.entrySet()) {
+                if (entry.getValue().signum() > 0)
+                    queueOnCoinsReceived(entry.getKey(), prevBalance, newBalance);
+                else if (entry.getValue().signum() < 0)
+                    queueOnCoinsSent(entry.getKey(), prevBalance, newBalance);
+            }
+            log.info("Received {} of {} transactions in a batch, balance is now: {}", count, batch.size(),
+                    newBalance.toFriendlyString());
+            checkBalanceFuturesLocked(newBalance);
+
+            insideBatch = false;
+            onWalletChangedSuppressions--;
+            if (count > 0 || height != prevHeight) {
+                maybeQueueOnWalletChanged();
+                informConfidenceListenersIfNotReorganizing();
+                isConsistentOrThrow();
+                maybeArchiveTransactions();
+                saveNow();
+            }
+            return count;
+        } finally {
+            if (insideBatch) {
+                insideBatch = false;
+                onWalletChangedSuppressions--;
+            }
+            unlockAfterUpdate("receiveTransactions", lockedAt);
+        }
+    }
+
+    // Adds the given transaction to the list after the ones it spends from within the batch.
+    private static void sortBySpends(Transaction tx, Map<Sha256Hash, Transaction> batch, Set<Sha256Hash> visited,
+                                     List<Transaction> sorted) {
+        if (!visited.add(tx.getHash()))
+            return;
+        for (TransactionInput input : tx.getInputs()) {
+            Transaction from = batch.get(input.getOutpoint().getHash());
+            if (from != null)
+                sortBySpends(from, batch, visited, sorted);
+        }
+        sorted.add(tx);
+    }
+
     private void receive(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType,
                          int relativityOffset) throws VerificationException {
         // Runs in a peer thread.
         checkState(lock.isHeldByCurrentThread());
         Coin prevBalance = getBalance();
+        boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
+        boolean wasPending = pending.containsKey(tx.getHash());
+        Coin valueDifference = tx.getValueSentToMe(this).subtract(tx.getValueSentFromMe(this));
+
+        tx = moveIntoPools(tx, block, blockType, relativityOffset, valueDifference);
+
+        // Inform anyone interested that we have received or sent coins but only if:
+        //  - This is not due to a re-org.
+        //  - The coins appeared on the best chain.
+        //  - We did in fact receive some new money.
+        //  - We have not already informed the user about the coins when we received the tx broadcast, or for our
+        //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
+        //    listeners.
+        if (!insideReorg && bestChain) {
+            Coin newBalance = getBalance();  // This is slow.
+            log.info("Balance is now: " + newBalance.toFriendlyString());
+            if (!wasPending) {
+                int diff = valueDifference.signum();
+                // We pick one callback based on the value difference, though a tx can of course both send and receive
+                // coins from the wallet.
+                if (diff > 0) {
+                    queueOnCoinsReceived(tx, prevBalance, newBalance);
+                } else if (diff < 0) {
+                    queueOnCoinsSent(tx, prevBalance, newBalance);
+                }
+            }
+            checkBalanceFuturesLocked(newBalance);
+        }
+
+        informConfidenceListenersIfNotReorganizing();
+        isConsistentOrThrow();
+        saveNow();
+    }
+
+    // The part of receive() that is done for each transaction of a batch: records the appearance of the transaction
+    // in the block and moves it into the right pool. Returns the wallet's own copy of the transaction.
+    private Transaction moveIntoPools(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType,
+                                      int relativityOffset, Coin valueDifference) throws VerificationException {
+        checkState(lock.isHeldByCurrentThread());
         Sha256Hash txHash = tx.getHash();
         boolean bestChain = blockType == BlockChain.NewBlockType.BEST_CHAIN;
         boolean sideChain = blockType == BlockChain.NewBlockType.SIDE_CHAIN;
 
-        Coin valueSentFromMe = tx.getValueSentFromMe(this);
-        Coin valueSentToMe = tx.getValueSentToMe(this);
-        Coin valueDifference = valueSentToMe.subtract(valueSentFromMe);
-
         log.info("Received tx{} for {}: {} [{}] in block {}", sideChain ? " on a side chain" : "",
                 valueDifference.toFriendlyString(), tx.getHashAsString(), relativityOffset,
                 block != null ? block.getHeader().getHash() : "(unit test)");
@@ -1815,9 +2373,12 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 tx = tmp;
         }
 
+        markChanged(tx);
         boolean wasPending = pending.remove(txHash) != null;
-        if (wasPending)
+        if (wasPending) {
             log.info("  <-pending");
+            invalidateTransactions();
+        }
 
         if (bestChain) {
             if (wasPending) {
@@ -1827,6 +2388,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
                         checkState(myUnspents.add(output));
+                        invalidateBalances();
                         spentBy.disconnect();
                     }
                 }
@@ -1871,40 +2433,15 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         if (bestChain) {
             // notifyNewBestBlock will be invoked next and will then call maybeQueueOnWalletChanged for us.
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markChanged(tx);
         } else {
             maybeQueueOnWalletChanged();
         }
-
-        // Inform anyone interested that we have received or sent coins but only if:
-        //  - This is not due to a re-org.
-        //  - The coins appeared on the best chain.
-        //  - We did in fact receive some new money.
-        //  - We have not already informed the user about the coins when we received the tx broadcast, or for our
-        //    own spends. If users want to know when a broadcast tx becomes confirmed, they need to use tx confidence
-        //    listeners.
-        if (!insideReorg && bestChain) {
-            Coin newBalance = getBalance();  // This is slow.
-            log.info("Balance is now: " + newBalance.toFriendlyString());
-            if (!wasPending) {
-                int diff = valueDifference.signum();
-                // We pick one callback based on the value difference, though a tx can of course both send and receive
-                // coins from the wallet.
-                if (diff > 0) {
-                    queueOnCoinsReceived(tx, prevBalance, newBalance);
-                } else if (diff < 0) {
-                    queueOnCoinsSent(tx, prevBalance, newBalance);
-                }
-            }
-            checkBalanceFuturesLocked(newBalance);
-        }
-
-        informConfidenceListenersIfNotReorganizing();
-        isConsistentOrThrow();
-        saveNow();
+        return tx;
     }
 
     private void informConfidenceListenersIfNotReorganizing() {
-        if (insideReorg)
+        if (insideReorg || insideBatch)
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
@@ -1929,7 +2466,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         Sha256Hash newBlockHash = block.getHeader().getHash();
         if (newBlockHash.equals(getLastBlockSeenHash()))
             return;
-        lock.lock();
+        long lockedAt = lockForUpdate();
         try {
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
@@ -1953,8 +2490,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                         // included once again. We could have a separate was-in-chain-and-now-isn't confidence type
                         // but this way is backwards compatible with existing software, and the new state probably
                         // wouldn't mean anything different to just remembering peers anyway.
-                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon())
+                        if (confidence.incrementDepthInBlocks() > context.getEventHorizon() &&
+                                confidence.numBroadcastPeers() > 0) {
                             confidence.clearBroadcastBy();
+                            markChanged(tx);
+                        }
                         confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
                     }
                 }
@@ -1962,10 +2502,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
+            maybeArchiveTransactions();
             // Coalesce writes to avoid throttling on disk access when catching up with the chain.
             saveLater();
         } finally {
-            lock.unlock();
+            unlockAfterUpdate("notifyNewBestBlock", lockedAt);
         }
     }
 
@@ -1991,7 +2532,9 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             // happen in practice, thus for simplicities sake we ignore it here.
             log.info("  coinbase tx <-dead: confidence {}", tx.getHashAsString(),
                     tx.getConfidence().getConfidenceType().name());
+            markChanged(tx);
             dead.remove(tx.getHash());
+            invalidateTransactions();
         }
 
         // Update tx and other unspent/pending transactions by connecting inputs/outputs.
@@ -2089,6 +2632,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
                     checkState(myUnspents.remove(output));
+                    invalidateBalances();
                 }
             }
         }
@@ -2113,6 +2657,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     // and thus becomes spent the moment we become aware of it.
                     if (myUnspents.remove(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
+                    invalidateBalances();
                 }
             }
         }
@@ -2133,9 +2678,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     overridingTx != null ? " by " + overridingTx.getHashAsString() : "");
             log.warn("Disconnecting each input and moving connected transactions.");
             // TX could be pending (finney attack), or in unspent/spent (coinbase killed by reorg).
+            markChanged(tx);
             pending.remove(tx.getHash());
             unspent.remove(tx.getHash());
             spent.remove(tx.getHash());
+            invalidateTransactions();
             addWalletTransaction(Pool.DEAD, tx);
             for (TransactionInput deadInput : tx.getInputs()) {
                 Transaction connected = deadInput.getOutpoint().fromTx;
@@ -2143,16 +2690,19 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD) {
                     checkState(myUnspents.add(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getHash());
+                    invalidateBalances();
                 }
                 deadInput.disconnect();
                 maybeMovePool(connected, "kill");
             }
             tx.getConfidence().setOverridingTransaction(overridingTx);
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
+            markChanged(tx);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
                 if (myUnspents.remove(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
+                invalidateBalances();
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
                 final Transaction parentTransaction = connected.getParentTransaction();
@@ -2169,12 +2719,14 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 maybeMovePool(input.getOutpoint().fromTx, "kill");
                 myUnspents.remove(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
+                invalidateBalances();
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getOutpoint().fromTx, "kill");
                     myUnspents.remove(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
+                    invalidateBalances();
                 }
             }
         }
@@ -2186,6 +2738,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Called whenever outputs of the transaction were spent or unspent.
+        markChanged(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -2193,6 +2747,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     log.info("  {} {} <-unspent ->spent", tx.getHashAsString(), context);
                 }
                 spent.put(tx.getHash(), tx);
+                invalidateTransactions();
             }
         } else {
             if (spent.remove(tx.getHash()) != null) {
@@ -2200,6 +2755,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     log.info("  {} {} <-spent ->unspent", tx.getHashAsString(), context);
                 }
                 unspent.put(tx.getHash(), tx);
+                invalidateTransactions();
             }
         }
     }
@@ -2211,7 +2767,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     public boolean maybeCommitTx(Transaction tx) throws VerificationException {
         tx.verify();
-        lock.lock();
+        long lockedAt = lockForUpdate();
         try {
             if (pending.containsKey(tx.getHash()))
                 return false;
@@ -2256,11 +2812,13 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 throw new RuntimeException(e);
             }
 
-            isConsistentOrThrow();
             informConfidenceListenersIfNotReorganizing();
-            saveNow();
+            if (!insideBatch) {
+                isConsistentOrThrow();
+                saveNow();
+            }
         } finally {
-            lock.unlock();
+            unlockAfterUpdate("maybeCommitTx", lockedAt);
         }
         return true;
     }
@@ -2333,6 +2891,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         // Don't invoke the callback in some circumstances, eg, whilst we are re-organizing or fiddling with
         // transactions due to a new block arriving. It will be called later instead.
         checkState(lock.isHeldByCurrentThread());
+        invalidateBalances();
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
@@ -2400,39 +2959,33 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     //region Vending transactions and other internal state
 
     /**
-     * Returns a set of all transactions in the wallet.
+     * Returns a set of all transactions in the wallet. Whilst the block chain or a peer is in the middle of updating the
+     * wallet, this returns the transactions as they were before the update rather than waiting for it to finish.
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
-        lock.lock();
-        try {
-            Set<Transaction> all = new HashSet<Transaction>();
-            all.addAll(unspent.values());
-            all.addAll(spent.values());
-            all.addAll(pending.values());
-            if (includeDead)
-                all.addAll(dead.values());
-            return all;
-        } finally {
-            lock.unlock();
-        }
+        TransactionSnapshot snapshot = getTransactionSnapshot();
+        Set<Transaction> all = new HashSet<Transaction>();
+        all.addAll(snapshot.unspent.values());
+        all.addAll(snapshot.spent.values());
+        all.addAll(snapshot.pending.values());
+        if (includeDead)
+            all.addAll(snapshot.dead.values());
+        return all;
     }
 
     /**
-     * Returns a set of all WalletTransactions in the wallet.
+     * Returns a set of all WalletTransactions in the wallet. Like {@link #getTransactions(boolean)}, this may return
+     * them as they were before an update that is still in progress.
      */
     public Iterable<WalletTransaction> getWalletTransactions() {
-        lock.lock();
-        try {
-            Set<WalletTransaction> all = new HashSet<WalletTransaction>();
-            addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
-            addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
-            addWalletTransactionsToSet(all, Pool.DEAD, dead.values());
-            addWalletTransactionsToSet(all, Pool.PENDING, pending.values());
-            return all;
-        } finally {
-            lock.unlock();
-        }
+        TransactionSnapshot snapshot = getTransactionSnapshot();
+        Set<WalletTransaction> all = new HashSet<WalletTransaction>();
+        addWalletTransactionsToSet(all, Pool.UNSPENT, snapshot.unspent.values());
+        addWalletTransactionsToSet(all, Pool.SPENT, snapshot.spent.values());
+        addWalletTransactionsToSet(all, Pool.DEAD, snapshot.dead.values());
+        addWalletTransactionsToSet(all, Pool.PENDING, snapshot.pending.values());
+        return all;
     }
 
     private static void addWalletTransactionsToSet(Set<WalletTransaction> txs,
@@ -2461,7 +3014,18 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
-        transactions.put(tx.getHash(), tx);
+        markChanged(tx);
+        Transaction previous = transactions.put(tx.getHash(), tx);
+        invalidateTransactions();
+        if (previous != tx) {
+            if (previous != null)
+                stopTrackingConfidence(previous);
+            // This registers txConfidenceListener so wallet listeners get informed, and the change counter, as
+            // confidence is part of the balance, including changes that listeners don't hear about. Both are removed
+            // again when the transaction leaves the wallet, see forgetTransaction().
+            tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
+            tx.getConfidence().addChangeCounter(balancesVersion);
+        }
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -2483,10 +3047,20 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
                     myUnspents.add(output);
             }
+            invalidateBalances();
         }
-        // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
-        // registration requests. That makes the code in the wallet simpler.
-        tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
+    }
+
+    // Removes the transaction from the map of all transactions, which must be done once it is in none of the pools.
+    private void forgetTransaction(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+        transactions.remove(tx.getHash());
+        stopTrackingConfidence(tx);
+    }
+
+    private void stopTrackingConfidence(Transaction tx) {
+        tx.getConfidence().removeEventListener(txConfidenceListener);
+        tx.getConfidence().removeChangeCounter(balancesVersion);
     }
 
     /**
@@ -2505,43 +3079,60 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      * depending on how the wallet is implemented (eg if backed by a database).
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
-        lock.lock();
-        try {
-            checkArgument(numTransactions >= 0);
-            // Firstly, put all transactions into an array.
-            int size = getPoolSize(Pool.UNSPENT) +
-                    getPoolSize(Pool.SPENT) +
-                    getPoolSize(Pool.PENDING);
-            if (numTransactions > size || numTransactions == 0) {
-                numTransactions = size;
-            }
-            ArrayList<Transaction> all = new ArrayList<Transaction>(getTransactions(includeDead));
-            // Order by update time.
-            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
-            if (numTransactions == all.size()) {
-                return all;
-            } else {
-                all.subList(numTransactions, all.size()).clear();
-                return all;
-            }
-        } finally {
-            lock.unlock();
+        checkArgument(numTransactions >= 0);
+        // Firstly, put all transactions into an array.
+        ArrayList<Transaction> all = new ArrayList<Transaction>(getTransactions(includeDead));
+        if (numTransactions > all.size() || numTransactions == 0) {
+            numTransactions = all.size();
         }
+        // Order by update time.
+        Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
+        if (numTransactions < all.size())
+            all.subList(numTransactions, all.size()).clear();
+        return all;
     }
 
     /**
-     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise.
+     * Returns a transaction object given its hash, if it exists in this wallet, or null otherwise. Transactions that
+     * were archived are read back from the archive, see {@link #getArchivedTransaction(Sha256Hash)}, and a failure to
+     * read it is thrown as a RuntimeException.
      */
     @Nullable
     public Transaction getTransaction(Sha256Hash hash) {
-        lock.lock();
+        Transaction tx = transactions.get(hash);
+        if (tx != null || vTransactionArchive == null)
+            return tx;
         try {
-            return transactions.get(hash);
-        } finally {
-            lock.unlock();
+            return getArchivedTransaction(hash);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Like {@link #getTransaction(Sha256Hash)}, but only looks in the archive set with
+     * {@link #setTransactionArchive(TransactionArchive, int)} and throws a checked exception if it can't be read.
+     * The transaction's depth is brought up to date. Returns null if there is no archive or the transaction isn't in
+     * it.
+     *
+     * @throws IOException if the archive could not be read.
+     */
+    @Nullable
+    public Transaction getArchivedTransaction(Sha256Hash hash) throws IOException {
+        TransactionArchive archive = vTransactionArchive;
+        if (archive == null)
+            return null;
+        WalletTransaction wtx = archive.get(hash);
+        if (wtx == null)
+            return null;
+        // The depth was saved when the transaction was archived.
+        Transaction tx = wtx.getTransaction();
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING)
+            confidence.setDepthInBlocks(getLastBlockSeenHeight() - confidence.getAppearedAtChainHeight() + 1);
+        return tx;
+    }
+
     /** {@inheritDoc} */
     @Override
     public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
@@ -2603,12 +3194,18 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     }
 
     private void clearTransactions() {
+        if (changedTransactions != null)
+            changedTransactions.addAll(transactions.keySet());
         unspent.clear();
         spent.clear();
         pending.clear();
         dead.clear();
+        for (Transaction tx : transactions.values())
+            stopTrackingConfidence(tx);
         transactions.clear();
+        invalidateTransactions();
         myUnspents.clear();
+        invalidateBalances();
     }
 
     /**
@@ -2661,12 +3258,16 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                             if (output.isMineOrWatched(this))
                                 checkState(myUnspents.add(output));
                             input.disconnect();
+                            invalidateBalances();
                         }
                         for (TransactionOutput output : tx.getOutputs())
                             myUnspents.remove(output);
+                        invalidateBalances();
 
                         i.remove();
-                        transactions.remove(tx.getHash());
+                        markChanged(tx);
+                        forgetTransaction(tx);
+                        invalidateTransactions();
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -2755,22 +3356,23 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     public String toString(boolean includePrivateKeys, boolean includeTransactions, boolean includeExtensions,
                            @Nullable AbstractBlockChain chain) {
-        lock.lock();
+        // Works from a snapshot of the transactions so printing a big wallet doesn't hold up the block chain.
+        TransactionSnapshot snapshot = getTransactionSnapshot();
+        StringBuilder builder = new StringBuilder();
+        Coin estimatedBalance = getBalance(BalanceType.ESTIMATED);
+        Coin availableBalance = getBalance(BalanceType.AVAILABLE_SPENDABLE);
+        builder.append(String.format(Locale.US, "Wallet containing %s BTC (spendable: %s BTC) in:%n",
+                estimatedBalance.toPlainString(), availableBalance.toPlainString()));
+        builder.append(String.format(Locale.US, "  %d pending transactions%n", snapshot.pending.size()));
+        builder.append(String.format(Locale.US, "  %d unspent transactions%n", snapshot.unspent.size()));
+        builder.append(String.format(Locale.US, "  %d spent transactions%n", snapshot.spent.size()));
+        builder.append(String.format(Locale.US, "  %d dead transactions%n", snapshot.dead.size()));
+        final Date lastBlockSeenTime = getLastBlockSeenTime();
+        final String lastBlockSeenTimeStr = lastBlockSeenTime == null ? "time unknown" : lastBlockSeenTime.toString();
+        builder.append(String.format(Locale.US, "Last seen best block: %d (%s): %s%n",
+                getLastBlockSeenHeight(), lastBlockSeenTimeStr, getLastBlockSeenHash()));
         keychainLock.lock();
         try {
-            StringBuilder builder = new StringBuilder();
-            Coin estimatedBalance = getBalance(BalanceType.ESTIMATED);
-            Coin availableBalance = getBalance(BalanceType.AVAILABLE_SPENDABLE);
-            builder.append(String.format(Locale.US, "Wallet containing %s BTC (spendable: %s BTC) in:%n",
-                    estimatedBalance.toPlainString(), availableBalance.toPlainString()));
-            builder.append(String.format(Locale.US, "  %d pending transactions%n", pending.size()));
-            builder.append(String.format(Locale.US, "  %d unspent transactions%n", unspent.size()));
-            builder.append(String.format(Locale.US, "  %d spent transactions%n", spent.size()));
-            builder.append(String.format(Locale.US, "  %d dead transactions%n", dead.size()));
-            final Date lastBlockSeenTime = getLastBlockSeenTime();
-            final String lastBlockSeenTimeStr = lastBlockSeenTime == null ? "time unknown" : lastBlockSeenTime.toString();
-            builder.append(String.format(Locale.US, "Last seen best block: %d (%s): %s%n",
-                    getLastBlockSeenHeight(), lastBlockSeenTimeStr, getLastBlockSeenHash()));
             final KeyCrypter crypter = keychain.getKeyCrypter();
             if (crypter != null)
                 builder.append(String.format(Locale.US, "Encryption: %s%n", crypter));
@@ -2792,43 +3394,43 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     builder.append("  ").append(script).append("\n");
                 }
             }
+        } finally {
+            keychainLock.unlock();
+        }
 
-            if (includeTransactions) {
-                // Print the transactions themselves
-                if (pending.size() > 0) {
-                    builder.append("\n>>> PENDING:\n");
-                    toStringHelper(builder, pending, chain, Transaction.SORT_TX_BY_UPDATE_TIME);
-                }
-                if (unspent.size() > 0) {
-                    builder.append("\n>>> UNSPENT:\n");
-                    toStringHelper(builder, unspent, chain, Transaction.SORT_TX_BY_HEIGHT);
-                }
-                if (spent.size() > 0) {
-                    builder.append("\n>>> SPENT:\n");
-                    toStringHelper(builder, spent, chain, Transaction.SORT_TX_BY_HEIGHT);
-                }
-                if (dead.size() > 0) {
-                    builder.append("\n>>> DEAD:\n");
-                    toStringHelper(builder, dead, chain, Transaction.SORT_TX_BY_UPDATE_TIME);
-                }
+        if (includeTransactions) {
+            // Print the transactions themselves
+            if (snapshot.pending.size() > 0) {
+                builder.append("\n>>> PENDING:\n");
+                toStringHelper(builder, snapshot.pending, chain, Transaction.SORT_TX_BY_UPDATE_TIME);
             }
-            if (includeExtensions && extensions.size() > 0) {
+            if (snapshot.unspent.size() > 0) {
+                builder.append("\n>>> UNSPENT:\n");
+                toStringHelper(builder, snapshot.unspent, chain, Transaction.SORT_TX_BY_HEIGHT);
+            }
+            if (snapshot.spent.size() > 0) {
+                builder.append("\n>>> SPENT:\n");
+                toStringHelper(builder, snapshot.spent, chain, Transaction.SORT_TX_BY_HEIGHT);
+            }
+            if (snapshot.dead.size() > 0) {
+                builder.append("\n>>> DEAD:\n");
+                toStringHelper(builder, snapshot.dead, chain, Transaction.SORT_TX_BY_UPDATE_TIME);
+            }
+        }
+        if (includeExtensions) {
+            Map<String, WalletExtension> extensions = getExtensions();
+            if (extensions.size() > 0) {
                 builder.append("\n>>> EXTENSIONS:\n");
                 for (WalletExtension extension : extensions.values()) {
                     builder.append(extension).append("\n\n");
                 }
             }
-            return builder.toString();
-        } finally {
-            keychainLock.unlock();
-            lock.unlock();
         }
+        return builder.toString();
     }
 
     private void toStringHelper(StringBuilder builder, Map<Sha256Hash, Transaction> transactionMap,
                                 @Nullable AbstractBlockChain chain, @Nullable Comparator<Transaction> sortOrder) {
-        checkState(lock.isHeldByCurrentThread());
-
         final Collection<Transaction> txns;
         if (sortOrder != null) {
             txns = new TreeSet<Transaction>(sortOrder);
@@ -2854,15 +3456,11 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     }
 
     /**
-     * Returns an immutable view of the transactions currently waiting for network confirmations.
+     * Returns an immutable view of the transactions currently waiting for network confirmations. Like
+     * {@link #getTransactions(boolean)}, this may return them as they were before an update that is still in progress.
      */
     public Collection<Transaction> getPendingTransactions() {
-        lock.lock();
-        try {
-            return Collections.unmodifiableCollection(pending.values());
-        } finally {
-            lock.unlock();
-        }
+        return Collections.unmodifiableCollection(getTransactionSnapshot().pending.values());
     }
 
     /**
@@ -3060,35 +3658,179 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
     /**
      * Returns the AVAILABLE balance of this wallet. See {@link BalanceType#AVAILABLE} for details on what this
-     * means.
+     * means. Like {@link #getBalance(BalanceType)}, this may return the balance from before an update that is still in
+     * progress.
      */
     public Coin getBalance() {
         return getBalance(BalanceType.AVAILABLE);
     }
 
     /**
-     * Returns the balance of this wallet as calculated by the provided balanceType.
+     * Returns the balance of this wallet as calculated by the provided balanceType. Balances are cached until the
+     * wallet changes, so repeated calls are cheap and don't wait for the wallet lock. Note that a wallet backed by a
+     * {@link UTXOProvider} can't know when the provider changes, so its balances are always calculated afresh.
+     *
+     * <p>Whilst the block chain or a peer is in the middle of updating the wallet, the balance from before the update
+     * is returned rather than waiting for it to finish, unless there is none yet. Event listeners run after the
+     * update, so they always see the balance it led to.</p>
      */
     public Coin getBalance(BalanceType balanceType) {
+        CachedBalance cached = cachedBalances.get(balanceType.ordinal());
+        // Whilst the block chain or peers are updating the wallet, the last balance is returned instead of waiting.
+        if (cached != null && (cached.version == balancesVersion.get() || isUpdateInProgress()))
+            return cached.value;
         lock.lock();
         try {
-            if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
-                List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
-                CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
-                return selection.valueGathered;
-            } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
-                List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
-                Coin value = Coin.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
-            } else {
-                throw new AssertionError("Unknown balance type");  // Unreachable.
+            // Read the version before looking at the wallet, so a change made while we calculate leaves it stale.
+            long version = balancesVersion.get();
+            Coin value = calculateBalance(balanceType);
+            if (vUTXOProvider == null)
+                cachedBalances.set(balanceType.ordinal(), new CachedBalance(version, value));
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Coin calculateBalance(BalanceType balanceType) {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
+            List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
+            CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
+            return selection.valueGathered;
+        } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
+            List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
+            Coin value = Coin.ZERO;
+            for (TransactionOutput out : all) value = value.add(out.getValue());
+            return value;
+        } else {
+            throw new AssertionError("Unknown balance type");  // Unreachable.
+        }
+    }
+
+    private static class CachedSpendCandidates {
+        final long version;
+        final List<TransactionOutput> outputs;
+
+        CachedSpendCandidates(long version, List<TransactionOutput> outputs) {
+            this.version = version;
+            this.outputs = outputs;
+        }
+    }
+
+    private static final Comparator<TransactionOutput> BY_VALUE_DESCENDING = new Comparator<TransactionOutput>() {
+        @Override
+        public int compare(TransactionOutput a, TransactionOutput b) {
+            return b.getValue().compareTo(a.getValue());
+        }
+    };
+
+    private static class CachedBalance {
+        final long version;
+        final Coin value;
+
+        CachedBalance(long version, Coin value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Drops the cached balances. Must be called whenever something that goes into the balance changes: the set of
+     * unspent outputs, the confidence of a transaction, the keys or the coin selector.
+     */
+    protected void invalidateBalances() {
+        balancesVersion.incrementAndGet();
+    }
+
+    /** An immutable copy of the transaction pools, see {@link #getTransactionSnapshot()}. */
+    private static class TransactionSnapshot {
+        final long version;
+        final Map<Sha256Hash, Transaction> unspent, spent, pending, dead;
+
+        TransactionSnapshot(long version, Map<Sha256Hash, Transaction> unspent, Map<Sha256Hash, Transaction> spent,
+                            Map<Sha256Hash, Transaction> pending, Map<Sha256Hash, Transaction> dead) {
+            this.version = version;
+            this.unspent = unspent;
+            this.spent = spent;
+            this.pending = pending;
+            this.dead = dead;
+        }
+    }
+
+    /** Must be called whenever a transaction is added to, moved between or removed from the pools. */
+    private void invalidateTransactions() {
+        transactionsVersion.incrementAndGet();
+    }
+
+    /**
+     * Takes the wallet lock for an update from the block chain or peers. Until the matching
+     * {@link #unlockAfterUpdate(String, long)}, queries don't wait for the lock. Returns the time the lock was taken.
+     */
+    private long lockForUpdate() {
+        lock.lock();
+        updatesInProgress.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /** Releases the lock taken by {@link #lockForUpdate()}. */
+    private void unlockAfterUpdate(String operation, long lockedAt) {
+        updatesInProgress.decrementAndGet();
+        lockHoldTimes.record(operation, lockedAt);
+        lock.unlock();
+    }
+
+    /**
+     * Returns true if another thread is updating the wallet, so a query may return the state from before the update
+     * rather than wait for it. Event listeners run on the user thread and expect to see the change they are told about,
+     * so they always wait.
+     */
+    private boolean isUpdateInProgress() {
+        return updatesInProgress.get() > 0 && !lock.isHeldByCurrentThread() &&
+                Thread.currentThread() != Threading.USER_THREAD;
+    }
+
+    /**
+     * Returns the transaction pools for a read-only query, without taking the wallet lock in the common case: the pools
+     * are copied by the first query after they change and the copy is shared until they change again, and whilst the
+     * block chain or peers are busy with an update the last copy is returned. Updates themselves don't copy anything,
+     * so receiving many transactions one by one doesn't copy the whole wallet each time. If the calling thread already
+     * holds the lock, the pools themselves are returned, as copying them in the middle of an update would be wasted
+     * effort.
+     */
+    private TransactionSnapshot getTransactionSnapshot() {
+        if (lock.isHeldByCurrentThread())
+            return new TransactionSnapshot(transactionsVersion.get(), unspent, spent, pending, dead);
+        TransactionSnapshot snapshot = transactionSnapshot;
+        if (snapshot != null && (snapshot.version == transactionsVersion.get() || isUpdateInProgress()))
+            return snapshot;
+        lock.lock();
+        long lockedAt = System.nanoTime();
+        try {
+            // Another query may have made the copy whilst this one waited for the lock.
+            snapshot = transactionSnapshot;
+            long version = transactionsVersion.get();
+            if (snapshot == null || snapshot.version != version) {
+                snapshot = new TransactionSnapshot(version, ImmutableMap.copyOf(unspent), ImmutableMap.copyOf(spent),
+                        ImmutableMap.copyOf(pending), ImmutableMap.copyOf(dead));
+                transactionSnapshot = snapshot;
             }
+            return snapshot;
         } finally {
+            lockHoldTimes.record("transactionSnapshot", lockedAt);
             lock.unlock();
         }
     }
 
+    /**
+     * Returns how long the wallet lock was held by the block chain and peers, and for making copies of the
+     * transactions for queries like {@link #getTransactions(boolean)}. Useful to find out what a slow wallet is
+     * waiting for.
+     */
+    public LockHoldTimes getLockHoldTimes() {
+        return lockHoldTimes;
+    }
+
     /**
      * Returns the balance that would be considered spendable by the given coin selector, including watched outputs
      * (i.e. balance includes outputs we don't have the private keys for). Just asks it to select as many coins as
@@ -3771,7 +4513,8 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                     // We assume if its already signed, its hopefully got a SIGHASH type that will not invalidate when
                     // we sign missing pieces (to check this would require either assuming any signatures are signing
                     // standard output types or a way to get processed signatures out of script execution)
-                    txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey());
+                    txIn.getScriptSig().correctlySpends(tx, i, txIn.getConnectedOutput().getScriptPubKey(),
+                            Script.ALL_VERIFY_FLAGS, context.getSignatureCache());
                     log.warn("Input {} already correctly spends output, assuming SIGHASH type used will be safe and skipping signing.", i);
                     continue;
                 } catch (ScriptException e) {
@@ -3837,7 +4580,24 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             List<TransactionOutput> candidates;
-            if (vUTXOProvider == null) {
+            if (vUTXOProvider == null && excludeImmatureCoinbases) {
+                int slot = excludeUnsignable ? 1 : 0;
+                CachedSpendCandidates cached = cachedSpendCandidates[slot];
+                long version = balancesVersion.get();
+                if (cached == null || cached.version != version) {
+                    List<TransactionOutput> outputs = new ArrayList<TransactionOutput>(myUnspents.size());
+                    for (TransactionOutput output : myUnspents) {
+                        if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
+                        if (!checkNotNull(output.getParentTransaction()).isMature()) continue;
+                        outputs.add(output);
+                    }
+                    Collections.sort(outputs, BY_VALUE_DESCENDING);
+                    cached = new CachedSpendCandidates(version, outputs);
+                    cachedSpendCandidates[slot] = cached;
+                }
+                // Callers and coin selectors may change the list they are given.
+                candidates = new ArrayList<TransactionOutput>(cached.outputs);
+            } else if (vUTXOProvider == null) {
                 candidates = new ArrayList<TransactionOutput>(myUnspents.size());
                 for (TransactionOutput output : myUnspents) {
                     if (excludeUnsignable && !canSignFor(output.getScriptPubKey())) continue;
@@ -3960,6 +4720,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         lock.lock();
         try {
             this.coinSelector = checkNotNull(coinSelector);
+            invalidateBalances();
         } finally {
             lock.unlock();
         }
@@ -4001,6 +4762,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         try {
             checkArgument(provider == null || provider.getParams().equals(params));
             this.vUTXOProvider = provider;
+            invalidateBalances();
         } finally {
             lock.unlock();
         }
@@ -4091,7 +4853,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
      */
     @Override
     public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
-        lock.lock();
+        long lockedAt = lockForUpdate();
         try {
             // This runs on any peer thread with the block chain locked.
             //
@@ -4162,11 +4924,14 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                                 if (output.isMineOrWatched(this))
                                     checkState(myUnspents.add(output));
                                 input.disconnect();
+                                invalidateBalances();
                             }
                         }
                         oldChainTxns.add(tx);
+                        markChanged(tx);
                         unspent.remove(txHash);
                         spent.remove(txHash);
+                        invalidateTransactions();
                         checkState(!pending.containsKey(txHash));
                         checkState(!dead.containsKey(txHash));
                     }
@@ -4231,7 +4996,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             informConfidenceListenersIfNotReorganizing();
             saveLater();
         } finally {
-            lock.unlock();
+            unlockAfterUpdate("reorganize", lockedAt);
         }
     }
 
@@ -4243,6 +5008,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
                 tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+                markChanged(tx);
             }
         }
     }
@@ -4256,6 +5022,16 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     private final ArrayList<TransactionOutPoint> bloomOutPoints = Lists.newArrayList();
     // Used to track whether we must automatically begin/end a filter calculation and calc outpoints/take the locks.
     private final AtomicInteger bloomFilterGuard = new AtomicInteger(0);
+    // The versions of the pools, unspent outputs and watched scripts that bloomOutPoints were calculated from. The
+    // unspent outputs don't have a version of their own, but never change without invalidating the balances.
+    private long bloomTransactionsVersion = -1, bloomBalancesVersion = -1;
+    private int bloomWatchedScriptsVersion = -1;
+    // The watched scripts and bloomOutPoints in a filter with the parameters last asked for, to be merged with the
+    // one of the key chain group. Built again when any of them changes.
+    @Nullable private BloomFilter bloomElementsFilter;
+    private int bloomElementsFilterSize;
+    private double bloomElementsFilterFalsePositiveRate;
+    private long bloomElementsFilterTweak;
 
     @Override
     public void beginBloomFilterCalculation() {
@@ -4268,30 +5044,43 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
     }
 
     private void calcBloomOutPointsLocked() {
-        // TODO: This could be done once and then kept up to date.
+        long transactionsVersion = this.transactionsVersion.get();
+        long balancesVersion = this.balancesVersion.get();
+        if (transactionsVersion == bloomTransactionsVersion && balancesVersion == bloomBalancesVersion &&
+                watchedScriptsVersion == bloomWatchedScriptsVersion)
+            return;
         bloomOutPoints.clear();
-        Set<Transaction> all = new HashSet<Transaction>();
-        all.addAll(unspent.values());
-        all.addAll(spent.values());
-        all.addAll(pending.values());
-        for (Transaction tx : all) {
-            for (TransactionOutput out : tx.getOutputs()) {
-                try {
-                    if (isTxOutputBloomFilterable(out))
-                        bloomOutPoints.add(out.getOutPointFor());
-                } catch (ScriptException e) {
-                    // If it is ours, we parsed the script correctly, so this shouldn't happen.
-                    throw new RuntimeException(e);
+        bloomElementsFilter = null;
+        try {
+            for (TransactionOutput out : myUnspents) {
+                if (isTxOutputBloomFilterableUnspent(out))
+                    bloomOutPoints.add(out.getOutPointFor());
+            }
+            // Outputs to watched scripts are included even once they're spent.
+            if (!watchedScripts.isEmpty()) {
+                for (Map<Sha256Hash, Transaction> pool : ImmutableList.of(unspent, spent, pending)) {
+                    for (Transaction tx : pool.values()) {
+                        for (TransactionOutput out : tx.getOutputs()) {
+                            if (watchedScripts.contains(out.getScriptPubKey()) &&
+                                    !isTxOutputBloomFilterableUnspent(out))
+                                bloomOutPoints.add(out.getOutPointFor());
+                        }
+                    }
                 }
             }
+        } catch (ScriptException e) {
+            // If it is ours, we parsed the script correctly, so this shouldn't happen.
+            throw new RuntimeException(e);
         }
+        bloomTransactionsVersion = transactionsVersion;
+        bloomBalancesVersion = balancesVersion;
+        bloomWatchedScriptsVersion = watchedScriptsVersion;
     }
 
     @Override @GuardedBy("keychainLock")
     public void endBloomFilterCalculation() {
         if (bloomFilterGuard.decrementAndGet() > 0)
             return;
-        bloomOutPoints.clear();
         keychainLock.unlock();
         lock.unlock();
     }
@@ -4361,29 +5150,39 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
         beginBloomFilterCalculation();
         try {
             BloomFilter filter = keychain.getBloomFilter(size, falsePositiveRate, nTweak);
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
+            if (bloomElementsFilter == null || size != bloomElementsFilterSize ||
+                    falsePositiveRate != bloomElementsFilterFalsePositiveRate || nTweak != bloomElementsFilterTweak) {
+                BloomFilter elements = new BloomFilter(size, falsePositiveRate, nTweak);
+                for (Script script : watchedScripts) {
+                    for (ScriptChunk chunk : script.getChunks()) {
+                        // Only add long (at least 64 bit) data to the bloom filter.
+                        // If any long constants become popular in scripts, we will need logic
+                        // here to exclude them.
+                        if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
+                            elements.insert(chunk.data);
+                        }
                     }
                 }
+                for (TransactionOutPoint point : bloomOutPoints)
+                    elements.insert(point.bitcoinSerialize());
+                bloomElementsFilter = elements;
+                bloomElementsFilterSize = size;
+                bloomElementsFilterFalsePositiveRate = falsePositiveRate;
+                bloomElementsFilterTweak = nTweak;
             }
-            for (TransactionOutPoint point : bloomOutPoints)
-                filter.insert(point.bitcoinSerialize());
+            filter.merge(bloomElementsFilter);
             return filter;
         } finally {
             endBloomFilterCalculation();
         }
     }
 
-    // Returns true if the output is one that won't be selected by a data element matching in the scriptSig.
-    private boolean isTxOutputBloomFilterable(TransactionOutput out) {
+    // Returns true if the output is an unspent one of ours that won't be selected by a data element matching in the
+    // scriptSig.
+    private boolean isTxOutputBloomFilterableUnspent(TransactionOutput out) {
         Script script = out.getScriptPubKey();
         boolean isScriptTypeSupported = script.isSentToRawPubKey() || script.isPayToScriptHash();
-        return (isScriptTypeSupported && myUnspents.contains(out)) || watchedScripts.contains(script);
+        return isScriptTypeSupported && myUnspents.contains(out);
     }
 
     /**
@@ -4557,8 +5356,23 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
 
             // Of the coins we could spend, pick some that we actually will spend.
             CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+            CoinSelection selection = null;
+            if (selector instanceof BranchAndBoundCoinSelector) {
+                // A match needs no change output, so it is looked for against what we are paying, not including the
+                // extra value the change categories below ask for. Whatever it gathers on top goes to the miners.
+                BranchAndBoundCoinSelector exactSelector = (BranchAndBoundCoinSelector) selector;
+                selection = exactSelector.selectExactly(value.add(fees), candidates);
+                if (selection != null) {
+                    valueNeeded = value.add(fees);
+                    additionalValueSelected = additionalValueForNextCategory = null;
+                } else {
+                    selector = exactSelector.getFallback();
+                }
+            }
+            boolean exactMatch = selection != null;
             // selector is allowed to modify candidates list.
-            CoinSelection selection = selector.select(valueNeeded, new LinkedList<TransactionOutput>(candidates));
+            if (selection == null)
+                selection = selector.select(valueNeeded, new LinkedList<TransactionOutput>(candidates));
             // Can we afford this?
             if (selection.valueGathered.compareTo(valueNeeded) < 0) {
                 valueMissing = valueNeeded.subtract(selection.valueGathered);
@@ -4575,7 +5389,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
             boolean eitherCategory2Or3 = false;
             boolean isCategory3 = false;
 
-            Coin change = selection.valueGathered.subtract(valueNeeded);
+            Coin change = exactMatch ? Coin.ZERO : selection.valueGathered.subtract(valueNeeded);
             if (additionalValueSelected != null)
                 change = change.add(additionalValueSelected);
 
@@ -4915,6 +5729,7 @@ public class Wallet extends BaseTaggableObject implements Serializable, BlockCha
                 log.info(" ... no non-rotating random keys available, generating entirely new HD tree: backup required after this.");
                 keychain.createAndActivateNewHDChain();
             }
+            keysChanged = true;
             saveNow();
         }
 
@@ -36,7 +36,7 @@ import static com.google.common.base.Preconditions.*;
  * and {@link BlockingClientManager}, unless you wish to connect over a proxy or use some other network settings that
  * cannot be set using NIO.</p>
  */
-public class BlockingClient implements MessageWriteTarget {
+public class BlockingClient implements GatheringMessageWriteTarget, PausableMessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(BlockingClient.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -45,6 +45,9 @@ public class BlockingClient implements MessageWriteTarget {
     private final ByteBuffer dbuf;
     private Socket socket;
     private volatile boolean vCloseRequested = false;
+    // Guarded by readPauseLock, which the network thread waits on while reads are paused.
+    private final Object readPauseLock = new Object();
+    private boolean readingPaused = false;
     private SettableFuture<SocketAddress> connectFuture;
 
     /**
@@ -82,6 +85,10 @@ public class BlockingClient implements MessageWriteTarget {
                     byte[] readBuff = new byte[dbuf.capacity()];
 
                     while (true) {
+                        synchronized (readPauseLock) {
+                            while (readingPaused && !vCloseRequested)
+                                readPauseLock.wait();
+                        }
                         // TODO Kill the message duplication here
                         checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
                         int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
@@ -129,6 +136,9 @@ public class BlockingClient implements MessageWriteTarget {
         // Closes the channel, triggering an exception in the network-handling thread triggering connectionClosed()
         try {
             vCloseRequested = true;
+            synchronized (readPauseLock) {
+                readPauseLock.notifyAll();
+            }
             socket.close();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -148,6 +158,35 @@ public class BlockingClient implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public synchronized void writeBytes(ByteBuffer... buffers) throws IOException {
+        try {
+            OutputStream stream = socket.getOutputStream();
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasArray()) {
+                    stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                } else {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.duplicate().get(bytes);
+                    stream.write(bytes);
+                }
+            }
+            stream.flush();
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setReadingPaused(boolean paused) {
+        synchronized (readPauseLock) {
+            readingPaused = paused;
+            readPauseLock.notifyAll();
+        }
+    }
+
     /** Returns a future that completes once connection has occurred at the socket level or with an exception if failed to connect. */
     public ListenableFuture<SocketAddress> getConnectFuture() {
         return connectFuture;
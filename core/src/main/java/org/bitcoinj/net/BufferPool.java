@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A thread safe pool of heap {@link ByteBuffer}s, used for the short lived buffers of the network code such as the
+ * ones large messages are reassembled in. Buffers come in power of two sizes, so a returned buffer is reused for any
+ * request of up to its size.</p>
+ *
+ * <p>The pool only keeps up to a fixed number of bytes of idle buffers. Buffers that don't fit are left to the garbage
+ * collector, as are buffers that are never released, so failing to release one wastes an allocation but not memory.
+ * A buffer must not be used any more once it has been released.</p>
+ */
+public class BufferPool {
+    /** The pool used by the network code unless told otherwise. */
+    public static final BufferPool DEFAULT = new BufferPool(16 * 1024 * 1024);
+
+    // Smaller buffers are cheap to allocate and aren't worth pooling.
+    private static final int MIN_SIZE_SHIFT = 12;
+    private static final int MAX_SIZE_SHIFT = 30;
+
+    private final long maxIdleBytes;
+    private final AtomicLong idleBytes = new AtomicLong();
+    private final List<Queue<ByteBuffer>> idle;
+
+    /** Creates a pool that keeps at most the given number of bytes of buffers that aren't in use. */
+    public BufferPool(long maxIdleBytes) {
+        checkArgument(maxIdleBytes >= 0);
+        this.maxIdleBytes = maxIdleBytes;
+        idle = new ArrayList<Queue<ByteBuffer>>(MAX_SIZE_SHIFT + 1);
+        for (int i = 0; i <= MAX_SIZE_SHIFT; i++)
+            idle.add(new ConcurrentLinkedQueue<ByteBuffer>());
+    }
+
+    /**
+     * Returns a buffer with position 0 and a limit of the given size. Its capacity may be larger and its contents are
+     * undefined.
+     */
+    public ByteBuffer acquire(int size) {
+        checkArgument(size >= 0);
+        int shift = sizeShift(size);
+        if (shift > MAX_SIZE_SHIFT)
+            return ByteBuffer.allocate(size);
+        ByteBuffer buffer = idle.get(shift).poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(1 << shift);
+        } else {
+            idleBytes.addAndGet(-buffer.capacity());
+            buffer.clear();
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /** Returns a buffer obtained from {@link #acquire(int)} to the pool. */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int shift = sizeShift(capacity);
+        if (buffer.isDirect() || buffer.isReadOnly() || capacity != 1 << shift || shift > MAX_SIZE_SHIFT)
+            return;  // Not one of ours.
+        if (idleBytes.addAndGet(capacity) > maxIdleBytes) {
+            idleBytes.addAndGet(-capacity);
+            return;
+        }
+        idle.get(shift).offer(buffer);
+    }
+
+    /** Returns the number of bytes held by idle buffers. */
+    public long getIdleBytes() {
+        return idleBytes.get();
+    }
+
+    // Returns the power of two of the smallest pooled size that can hold the given number of bytes.
+    private static int sizeShift(int size) {
+        if (size <= 1 << MIN_SIZE_SHIFT)
+            return MIN_SIZE_SHIFT;
+        return 32 - Integer.numberOfLeadingZeros(size - 1);
+    }
+}
@@ -29,7 +29,6 @@ import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.concurrent.locks.ReentrantLock;
@@ -43,7 +42,7 @@ import static com.google.common.base.Preconditions.checkState;
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
  * Used only by the NioClient and NioServer classes
  */
-class ConnectionHandler implements MessageWriteTarget {
+class ConnectionHandler implements GatheringMessageWriteTarget, PausableMessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
 
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
@@ -112,17 +111,14 @@ class ConnectionHandler implements MessageWriteTarget {
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer with one gathering
+            // write, then drop the buffers which were written completely.
+            if (!bytesToWrite.isEmpty()) {
+                bytesToWriteRemaining -= channel.write(bytesToWrite.toArray(new ByteBuffer[bytesToWrite.size()]));
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.getFirst().hasRemaining())
+                    bytesToWrite.removeFirst();
+                if (!bytesToWrite.isEmpty())
                     setWriteOps();
-                    break;
-                }
             }
             // If we are done writing, clear the OP_WRITE interestOps
             if (bytesToWrite.isEmpty())
@@ -135,6 +131,12 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        // TODO: Kill the needless message duplication when the write completes right away
+        writeBytes(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
+    }
+
+    @Override
+    public void writeBytes(ByteBuffer... buffers) throws IOException {
         boolean andUnlock = true;
         lock.lock();
         try {
@@ -143,12 +145,16 @@ class ConnectionHandler implements MessageWriteTarget {
             // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
             // register our SelectionKey to wakeup when we have free outbound buffer space available.
 
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            long length = 0;
+            for (ByteBuffer buffer : buffers)
+                length += buffer.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
+            // Just dump the buffers onto the write queue, without copying their contents, and let the selector thread
+            // write them once the socket is writable.
+            for (ByteBuffer buffer : buffers)
+                bytesToWrite.offer(buffer.duplicate());
+            bytesToWriteRemaining += length;
             setWriteOps();
         } catch (IOException e) {
             lock.unlock();
@@ -168,6 +174,26 @@ class ConnectionHandler implements MessageWriteTarget {
         }
     }
 
+    @Override
+    public void setReadingPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (closeCalled)
+                return;
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                // Refresh the selector to make sure it gets the new interestOps
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // The connection is being closed, there is nothing left to pause.
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // May NOT be called with lock held
     @Override
     public void closeConnection() {
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+/**
+ * Decides which selector thread services a new connection when a {@link NioClientManager} or {@link NioServer} runs
+ * more than one. A connection stays on the thread it was given until it is closed, so all its reads, writes and parser
+ * callbacks still happen on one thread.
+ */
+public enum EventLoopAffinity {
+    /** Hands new connections to each selector thread in turn. */
+    ROUND_ROBIN,
+    /** Hands new connections to the selector thread servicing the fewest connections. */
+    LEAST_CONNECTIONS,
+    /**
+     * Picks the selector thread from the remote IP address, so that all connections to or from a host share a thread.
+     * Useful when a host opens several connections whose processing shouldn't run concurrently.
+     */
+    REMOTE_ADDRESS
+}
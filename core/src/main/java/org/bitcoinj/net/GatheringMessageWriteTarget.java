@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link MessageWriteTarget} that can write several buffers one after the other without first copying them into
+ * one array. Callers check for it with instanceof and fall back to {@link #writeBytes(byte[])} otherwise.
+ */
+public interface GatheringMessageWriteTarget extends MessageWriteTarget {
+    /**
+     * Writes the remaining bytes of the given buffers to the remote server, one after the other. The buffers aren't
+     * copied, so their contents must not change afterwards, but their positions and limits are left alone.
+     */
+    void writeBytes(ByteBuffer... buffers) throws IOException;
+}
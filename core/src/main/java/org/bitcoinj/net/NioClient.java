@@ -28,7 +28,7 @@ import java.nio.*;
 /**
  * Creates a simple connection to a server using a {@link StreamParser} to process data.
  */
-public class NioClient implements MessageWriteTarget {
+public class NioClient implements GatheringMessageWriteTarget, PausableMessageWriteTarget {
     private static final Logger log = LoggerFactory.getLogger(NioClient.class);
 
     private final Handler handler;
@@ -123,4 +123,25 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBytes(ByteBuffer... buffers) throws IOException {
+        if (handler.writeTarget instanceof GatheringMessageWriteTarget) {
+            ((GatheringMessageWriteTarget) handler.writeTarget).writeBytes(buffers);
+        } else {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (ByteBuffer buffer : buffers) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.duplicate().get(bytes);
+                out.write(bytes);
+            }
+            handler.writeTarget.writeBytes(out.toByteArray());
+        }
+    }
+
+    @Override
+    public void setReadingPaused(boolean paused) {
+        if (handler.writeTarget instanceof PausableMessageWriteTarget)
+            ((PausableMessageWriteTarget) handler.writeTarget).setReadingPaused(paused);
+    }
 }
@@ -25,18 +25,20 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
 import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * single network processing thread, or shards the connections over several such threads if constructed with
+ * {@link #NioClientManager(int, EventLoopAffinity)}.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
+    private final NioEventLoopGroup loops;
 
     class PendingConnect {
         SocketChannel sc;
@@ -46,7 +48,6 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
         PendingConnect(SocketChannel sc, StreamParser parser, SocketAddress address) { this.sc = sc; this.parser = parser; this.address = address; }
     }
-    final Queue<PendingConnect> newConnectionChannels = new LinkedBlockingQueue<PendingConnect>();
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
@@ -91,59 +92,51 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
+        this(1, EventLoopAffinity.ROUND_ROBIN);
+    }
+
+    /**
+     * Creates a new client manager which spreads its connections over the given number of selector threads, picking
+     * the thread for each new connection with the given policy. A connection is serviced by the same thread for as
+     * long as it is open, so its {@link StreamParser} is never called concurrently.
+     */
+    public NioClientManager(int selectorThreads, EventLoopAffinity affinity) {
+        checkArgument(selectorThreads > 0);
+        List<NioEventLoop> list = new ArrayList<NioEventLoop>(selectorThreads);
+        for (int i = 0; i < selectorThreads; i++) {
+            list.add(new NioEventLoop() {
+                @Override
+                void handleKey(SelectionKey key) throws IOException {
+                    NioClientManager.this.handleKey(key);
+                }
+
+                @Override
+                void closeKey(SelectionKey key) {
+                    if (key.attachment() instanceof ConnectionHandler)
+                        ConnectionHandler.handleKey(key); // Close connection if relevant
+                }
+            });
         }
+        loops = new NioEventLoopGroup(list, affinity);
     }
 
     @Override
     public void run() {
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        loops.startOthers("NioClientManager", Thread.MIN_PRIORITY);
         try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                PendingConnect conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn);
-                    } catch (ClosedChannelException e) {
-                        log.warn("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.warn("Error trying to open/read from connection: ", e);
+            loops.first().run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.warn("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.warn("Error closing client manager selector", e);
-            }
+            loops.stopOthers();
         }
     }
 
+    @Override
+    protected void shutDown() {
+        // run() isn't called at all if the manager is stopped as soon as it has started.
+        loops.close();
+    }
+
     @Override
     public ListenableFuture<SocketAddress> openConnection(SocketAddress serverAddress, StreamParser parser) {
         if (!isRunning())
@@ -153,9 +146,19 @@ public class NioClientManager extends AbstractExecutionThreadService implements
             SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            PendingConnect data = new PendingConnect(sc, parser, serverAddress);
-            newConnectionChannels.offer(data);
-            selector.wakeup();
+            final PendingConnect data = new PendingConnect(sc, parser, serverAddress);
+            final NioEventLoop loop = loops.choose(serverAddress);
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey key = data.sc.register(loop.selector, SelectionKey.OP_CONNECT);
+                        key.attach(data);
+                    } catch (ClosedChannelException e) {
+                        log.warn("SocketChannel was closed before it could be registered");
+                    }
+                }
+            });
             return data.future;
         } catch (Throwable e) {
             return Futures.immediateFailedFuture(e);
@@ -164,7 +167,7 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        loops.first().stop();
     }
 
     @Override
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A selector together with the loop servicing it. Channels may only be registered with the selector from the thread
+ * running the loop, as registering blocks whilst another thread selects, so other threads hand that work over with
+ * {@link #execute(Runnable)}. Used by {@link NioClientManager} and {@link NioServer}.
+ */
+abstract class NioEventLoop implements Runnable {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioEventLoop.class);
+
+    final Selector selector;
+    private final Queue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+    private volatile boolean running = true;
+    // Written by the loop after each select, read by other threads to balance connections.
+    private volatile int keyCount;
+    private volatile Thread thread;
+
+    NioEventLoop() {
+        try {
+            selector = SelectorProvider.provider().openSelector();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Shouldn't ever happen
+        }
+    }
+
+    /** Handles a key which was selected. */
+    abstract void handleKey(SelectionKey key) throws IOException;
+
+    /** Called for each key once the loop has stopped and the key's channel has been closed. */
+    abstract void closeKey(SelectionKey key) throws IOException;
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            while (running) {
+                runTasks();
+                selector.select();
+
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    handleKey(key);
+                }
+                keyCount = selector.keys().size();
+            }
+        } catch (Exception e) {
+            log.warn("Error trying to open/read from connection: ", e);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the selector and every channel registered with it. Done by the loop itself once it stops, or by the owner
+     * if the loop never ran. Does nothing if the selector is already closed.
+     */
+    void close() {
+        if (!selector.isOpen())
+            return;
+        running = false;
+        // Registrations still queued are done now, so that their channels get closed below.
+        runTasks();
+        // Go through and close everything, without letting IOExceptions get in our way
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                log.warn("Error closing channel", e);
+            }
+            key.cancel();
+            try {
+                closeKey(key);
+            } catch (IOException e) {
+                log.warn("Error closing selection key", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.warn("Error closing selector", e);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.warn("Error running selector task", e);
+            }
+        }
+    }
+
+    /** Runs the given task on the loop's thread, before it next selects. */
+    void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /** Returns true if called from the thread running this loop. */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /** Asks the loop to close its channels and return. */
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /** Returns the number of channels registered with the selector, including those waiting to be. */
+    int getLoad() {
+        return keyCount + tasks.size();
+    }
+}
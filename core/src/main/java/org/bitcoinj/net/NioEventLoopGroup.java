@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A fixed set of {@link NioEventLoop}s that connections are spread over according to an {@link EventLoopAffinity}.
+ * The first loop is run by the owner's own service thread, the others each get a thread of their own.
+ */
+class NioEventLoopGroup {
+    private final List<NioEventLoop> loops;
+    private final EventLoopAffinity affinity;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final List<Thread> threads = new ArrayList<Thread>();
+
+    NioEventLoopGroup(List<NioEventLoop> loops, EventLoopAffinity affinity) {
+        checkArgument(!loops.isEmpty());
+        this.loops = loops;
+        this.affinity = checkNotNull(affinity);
+    }
+
+    /** Returns the loop run by the owner's service thread. */
+    NioEventLoop first() {
+        return loops.get(0);
+    }
+
+    int size() {
+        return loops.size();
+    }
+
+    /** Picks the loop that should service a new connection to or from the given address. */
+    NioEventLoop choose(SocketAddress address) {
+        int size = loops.size();
+        if (size == 1)
+            return loops.get(0);
+        switch (affinity) {
+            case LEAST_CONNECTIONS:
+                NioEventLoop best = loops.get(0);
+                int bestLoad = best.getLoad();
+                for (int i = 1; i < size; i++) {
+                    int load = loops.get(i).getLoad();
+                    if (load < bestLoad) {
+                        best = loops.get(i);
+                        bestLoad = load;
+                    }
+                }
+                return best;
+            case REMOTE_ADDRESS:
+                int hash = address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null
+                        ? ((InetSocketAddress) address).getAddress().hashCode()
+                        : address.hashCode();
+                return loops.get((hash & Integer.MAX_VALUE) % size);
+            case ROUND_ROBIN:
+            default:
+                return loops.get((nextLoop.getAndIncrement() & Integer.MAX_VALUE) % size);
+        }
+    }
+
+    /** Starts a thread for each loop except the first. */
+    void startOthers(String name, int priority) {
+        ContextPropagatingThreadFactory factory = new ContextPropagatingThreadFactory(name, priority);
+        for (int i = 1; i < loops.size(); i++) {
+            Thread thread = factory.newThread(loops.get(i));
+            thread.setName(name + " selector " + i);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /** Stops the loops other than the first and waits until they have closed their connections. */
+    void stopOthers() {
+        for (int i = 1; i < loops.size(); i++)
+            loops.get(i).stop();
+        for (Thread thread : threads)
+            Uninterruptibles.joinUninterruptibly(thread);
+        threads.clear();
+    }
+
+    /** Closes the loops that never ran, once none of them is running any more. */
+    void close() {
+        for (NioEventLoop loop : loops)
+            loop.close();
+    }
+}
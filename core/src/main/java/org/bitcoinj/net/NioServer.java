@@ -19,17 +19,20 @@ package org.bitcoinj.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Throwables;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamParser} to
- * process data.
+ * process data. Connections are serviced by a single thread, or sharded over several if constructed with
+ * {@link #NioServer(StreamParserFactory, InetSocketAddress, int, EventLoopAffinity)}.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -38,28 +41,57 @@ public class NioServer extends AbstractExecutionThreadService {
 
     private final ServerSocketChannel sc;
     @VisibleForTesting final Selector selector;
+    private final NioEventLoopGroup loops;
 
     // Handle a SelectionKey which was selected
-    private void handleKey(Selector selector, SelectionKey key) throws IOException {
+    private void handleKey(SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
-            // Accept a new connection, give it a parser as an attachment
-            SocketChannel newChannel = sc.accept();
+            // Accept a new connection and hand it to the selector thread that will service it
+            final SocketChannel newChannel = sc.accept();
+            if (newChannel == null)
+                return;
             newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            try {
-                ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
-                newKey.attach(handler);
-                handler.parser.connectionOpened();
-            } catch (IOException e) {
-                // This can happen if ConnectionHandler's call to get a new handler returned null
-                log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
-                newKey.channel().close();
+            final NioEventLoop loop = loops.choose(newChannel.socket().getRemoteSocketAddress());
+            if (loop.inLoop()) {
+                register(loop, newChannel);
+            } else {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            register(loop, newChannel);
+                        } catch (IOException e) {
+                            log.error("Error registering new connection", e);
+                        }
+                    }
+                });
             }
         } else { // Got a closing channel or a channel to a client connection
             ConnectionHandler.handleKey(key);
         }
     }
 
+    // Registers a newly accepted channel with the given loop's selector, giving it a parser as an attachment. Runs on
+    // that loop's thread, so that the parser is only ever called from there.
+    private void register(NioEventLoop loop, SocketChannel newChannel) throws IOException {
+        SelectionKey newKey;
+        try {
+            newKey = newChannel.register(loop.selector, SelectionKey.OP_READ);
+        } catch (ClosedChannelException e) {
+            log.warn("SocketChannel was closed before it could be registered");
+            return;
+        }
+        try {
+            ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
+            newKey.attach(handler);
+            handler.parser.connectionOpened();
+        } catch (IOException e) {
+            // This can happen if ConnectionHandler's call to get a new handler returned null
+            log.error("Error handling new connection", Throwables.getRootCause(e).getMessage());
+            newKey.channel().close();
+        }
+    }
+
     /**
      * Creates a new server which is capable of listening for incoming connections and processing client provided data
      * using {@link StreamParser}s created by the given {@link StreamParserFactory}
@@ -67,56 +99,63 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress) throws IOException {
+        this(parserFactory, bindAddress, 1, EventLoopAffinity.ROUND_ROBIN);
+    }
+
+    /**
+     * Creates a new server which accepts connections on one thread and spreads them over the given number of selector
+     * threads, that one included, picking the thread for each new connection with the given policy. A connection is
+     * serviced by the same thread for as long as it is open, so its {@link StreamParser} is never called concurrently.
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress, int selectorThreads,
+                     EventLoopAffinity affinity) throws IOException {
+        checkArgument(selectorThreads > 0);
         this.parserFactory = parserFactory;
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
-        selector = SelectorProvider.provider().openSelector();
+
+        List<NioEventLoop> list = new ArrayList<NioEventLoop>(selectorThreads);
+        for (int i = 0; i < selectorThreads; i++) {
+            list.add(new NioEventLoop() {
+                @Override
+                void handleKey(SelectionKey key) throws IOException {
+                    NioServer.this.handleKey(key);
+                }
+
+                @Override
+                void closeKey(SelectionKey key) {
+                    ConnectionHandler.handleKey(key);
+                }
+            });
+        }
+        loops = new NioEventLoopGroup(list, affinity);
+        selector = loops.first().selector;
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
     @Override
     protected void run() throws Exception {
+        loops.startOthers("NioServer", Thread.NORM_PRIORITY);
         try {
-            while (isRunning()) {
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-
-                    handleKey(selector, key);
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: {}", e);
+            loops.first().run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing server selector", e);
-            }
-            try {
-                sc.close();
-            } catch (IOException e) {
-                log.error("Error closing server channel", e);
-            }
+            loops.stopOthers();
+        }
+    }
+
+    @Override
+    protected void shutDown() {
+        // run() isn't called at all if the server is stopped as soon as it has started, in which case the selector
+        // still holds the server socket open.
+        loops.close();
+        try {
+            sc.close();
+        } catch (IOException e) {
+            log.error("Error closing server channel", e);
         }
     }
 
@@ -127,7 +166,7 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
-        selector.wakeup();
+        // Wake up the selector and let the selection thread break its loop
+        loops.first().stop();
     }
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+/**
+ * A {@link MessageWriteTarget} whose connection can stop reading for a while. Callers check for it with instanceof;
+ * connections that don't implement it just keep reading.
+ */
+public interface PausableMessageWriteTarget extends MessageWriteTarget {
+    /**
+     * Stops reading from the connection while paused is true, so that a receiver which can't keep up isn't handed more
+     * bytes. Data already read is still delivered. Has no effect once the connection is closed.
+     */
+    void setReadingPaused(boolean paused);
+}
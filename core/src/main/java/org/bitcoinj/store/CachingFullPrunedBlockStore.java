@@ -0,0 +1,513 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that wraps another one and keeps the unspent transaction output set it works on
+ * in memory. Outputs that are read are kept in a bounded LRU cache, and all writes are held back and later flushed to
+ * the underlying store in one go. Outputs that are created and spent again before a flush never reach the underlying
+ * store at all, which during initial sync is the case for a large fraction of all outputs.</p>
+ *
+ * <p>Headers, undo blocks and the chain head pointers are held back as well, so that the underlying store always
+ * contains a consistent snapshot: whatever was flushed last, with the verified chain head matching the unspent
+ * output set. A crash therefore loses the blocks connected since the last flush, but never corrupts the store.</p>
+ *
+ * <p>A flush happens whenever the estimated size of the held back output changes exceeds a limit, once a number of
+ * blocks has been committed since the previous flush, or when {@link #flush()} or {@link #close()} is called. When
+ * the underlying store is a {@link DatabaseFullPrunedBlockStore} the outputs are written using JDBC batches.</p>
+ *
+ * <p>Database batch writes begun by one thread are only visible to that thread until they are committed, like the
+ * other stores. The cache assumes there is a single writer, which is the case with {@link FullPrunedBlockChain}.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default limit for the estimated size of output changes held back before a flush. */
+    public static final long DEFAULT_MAX_DIRTY_BYTES = 64 * 1024 * 1024;
+    /** The default number of blocks committed between flushes. */
+    public static final int DEFAULT_FLUSH_BLOCK_COUNT = 2000;
+    /** The default number of unmodified outputs kept around for reading. */
+    public static final int DEFAULT_MAX_CLEAN_ENTRIES = 200000;
+
+    // A rough estimate of the heap used by an output in the cache, including key, script and map overhead.
+    private static final int ESTIMATED_ENTRY_SIZE = 300;
+
+    private enum State {
+        /** Not in the underlying store and has to be inserted. */
+        ADDED,
+        /** In the underlying store, but has to be deleted and inserted again. */
+        REPLACED,
+        /** In the underlying store and has to be deleted. */
+        SPENT,
+        /** Known not to be in the underlying store, nothing to write. */
+        ABSENT
+    }
+
+    private static class Entry {
+        final State state;
+        // The output itself, or the one being spent. Null if ABSENT.
+        @Nullable final UTXO utxo;
+
+        Entry(State state, @Nullable UTXO utxo) {
+            this.state = state;
+            this.utxo = utxo;
+        }
+
+        boolean isPresent() {
+            return state == State.ADDED || state == State.REPLACED;
+        }
+    }
+
+    private static class BlockEntry {
+        final StoredBlock block;
+        @Nullable final StoredUndoableBlock undoableBlock;
+
+        BlockEntry(StoredBlock block, @Nullable StoredUndoableBlock undoableBlock) {
+            this.block = block;
+            this.undoableBlock = undoableBlock;
+        }
+    }
+
+    private final FullPrunedBlockStore store;
+    private final long maxDirtyBytes;
+    private final int flushBlockCount;
+
+    // Outputs as they are in the underlying store, in least recently used order.
+    private final LinkedHashMap<StoredTransactionOutPoint, UTXO> clean;
+    // Transactions the underlying store was found to have no outputs of since the last flush, so that their new outputs
+    // don't each have to be looked up there.
+    private final Set<Sha256Hash> absentTransactions;
+    // Committed changes that have not been flushed yet.
+    private final HashMap<StoredTransactionOutPoint, Entry> dirty = new HashMap<StoredTransactionOutPoint, Entry>();
+    private final LinkedHashMap<Sha256Hash, BlockEntry> dirtyBlocks = new LinkedHashMap<Sha256Hash, BlockEntry>();
+    // Changes of the currently open batch write, only visible to batchThread.
+    private final HashMap<StoredTransactionOutPoint, Entry> pending = new HashMap<StoredTransactionOutPoint, Entry>();
+    private final LinkedHashMap<Sha256Hash, BlockEntry> pendingBlocks = new LinkedHashMap<Sha256Hash, BlockEntry>();
+    @Nullable private Thread batchThread;
+
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+    private boolean chainHeadDirty, verifiedChainHeadDirty;
+    private int blocksSinceFlush;
+
+    private long hits, misses, flushes;
+
+    /**
+     * Wraps the given store using the default limits.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) throws BlockStoreException {
+        this(store, DEFAULT_MAX_DIRTY_BYTES, DEFAULT_FLUSH_BLOCK_COUNT, DEFAULT_MAX_CLEAN_ENTRIES);
+    }
+
+    /**
+     * Wraps the given store.
+     *
+     * @param store The store to cache. It must not be used directly any more.
+     * @param maxDirtyBytes Estimated size of the output changes after which they are flushed.
+     * @param flushBlockCount Number of committed blocks after which all changes are flushed.
+     * @param maxCleanEntries Number of unmodified outputs kept in memory for reading.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxDirtyBytes, int flushBlockCount,
+                                       final int maxCleanEntries) throws BlockStoreException {
+        checkArgument(maxDirtyBytes > 0);
+        checkArgument(flushBlockCount > 0);
+        checkArgument(maxCleanEntries >= 0);
+        this.store = checkNotNull(store);
+        this.maxDirtyBytes = maxDirtyBytes;
+        this.flushBlockCount = flushBlockCount;
+        this.clean = new LinkedHashMap<StoredTransactionOutPoint, UTXO>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StoredTransactionOutPoint, UTXO> eldest) {
+                return size() > maxCleanEntries;
+            }
+        };
+        this.absentTransactions = Collections.newSetFromMap(new LinkedHashMap<Sha256Hash, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+                return size() > maxCleanEntries;
+            }
+        });
+        this.chainHead = store.getChainHead();
+        this.verifiedChainHead = store.getVerifiedChainHead();
+    }
+
+    private boolean inBatch() {
+        return batchThread == Thread.currentThread();
+    }
+
+    // Returns the entry describing the current state of the given output, or null if nothing is known about it.
+    @Nullable
+    private Entry lookup(StoredTransactionOutPoint key) {
+        if (inBatch()) {
+            Entry entry = pending.get(key);
+            if (entry != null)
+                return entry;
+        }
+        return dirty.get(key);
+    }
+
+    // Records a change, either in the open batch or directly as committed.
+    private void record(StoredTransactionOutPoint key, Entry entry) {
+        if (inBatch())
+            pending.put(key, entry);
+        else
+            commitEntry(key, entry);
+    }
+
+    private void commitEntry(StoredTransactionOutPoint key, Entry entry) {
+        clean.remove(key);
+        if (entry.state == State.ABSENT)
+            dirty.remove(key);
+        else
+            dirty.put(key, entry);
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock) throws BlockStoreException {
+        putBlock(new BlockEntry(storedBlock, null));
+    }
+
+    @Override
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        putBlock(new BlockEntry(storedBlock, undoableBlock));
+    }
+
+    private void putBlock(BlockEntry entry) {
+        Sha256Hash hash = entry.block.getHeader().getHash();
+        if (inBatch())
+            pendingBlocks.put(hash, entry);
+        else
+            dirtyBlocks.put(hash, entry);
+    }
+
+    @Nullable
+    private BlockEntry lookupBlock(Sha256Hash hash) {
+        if (inBatch()) {
+            BlockEntry entry = pendingBlocks.get(hash);
+            if (entry != null)
+                return entry;
+        }
+        return dirtyBlocks.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        BlockEntry entry = lookupBlock(hash);
+        if (entry != null)
+            return entry.block;
+        return store.get(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        BlockEntry entry = lookupBlock(hash);
+        if (entry != null && entry.undoableBlock != null)
+            return entry.block;
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    @Override
+    @Nullable
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        BlockEntry entry = lookupBlock(hash);
+        if (entry != null && entry.undoableBlock != null)
+            return entry.undoableBlock;
+        return store.getUndoBlock(hash);
+    }
+
+    @Override
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        return chainHead;
+    }
+
+    @Override
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.chainHead = chainHead;
+        this.chainHeadDirty = true;
+    }
+
+    @Override
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        return verifiedChainHead;
+    }
+
+    @Override
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        this.verifiedChainHead = chainHead;
+        this.verifiedChainHeadDirty = true;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, index);
+        Entry entry = lookup(key);
+        if (entry != null) {
+            hits++;
+            return entry.isPresent() ? entry.utxo : null;
+        }
+        UTXO utxo = clean.get(key);
+        if (utxo != null) {
+            hits++;
+            return utxo;
+        }
+        misses++;
+        utxo = store.getTransactionOutput(hash, index);
+        if (utxo != null)
+            clean.put(key, utxo);
+        return utxo;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        Entry entry = lookup(key);
+        State state;
+        if (entry == null) {
+            if (clean.containsKey(key)) {
+                state = State.REPLACED;
+            } else if (absentTransactions.contains(out.getHash())) {
+                state = State.ADDED;
+            } else {
+                // It may still be in the underlying store without being cached, eg when a re-org adds back an output
+                // that was spent, and then it has to be replaced rather than inserted.
+                misses++;
+                state = store.getTransactionOutput(out.getHash(), out.getIndex()) != null ? State.REPLACED : State.ADDED;
+            }
+        } else if (entry.state == State.SPENT || entry.state == State.REPLACED)
+            state = State.REPLACED;
+        else
+            state = State.ADDED;
+        record(key, new Entry(state, out));
+        maybeFlushOutsideBatch();
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        StoredTransactionOutPoint key = new StoredTransactionOutPoint(out);
+        Entry entry = lookup(key);
+        if (entry == null) {
+            if (!clean.containsKey(key) && store.getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                throw new BlockStoreException("Tried to remove a UTXO from CachingFullPrunedBlockStore that it didn't have!");
+            record(key, new Entry(State.SPENT, out));
+        } else if (entry.state == State.ADDED) {
+            // Created since the last flush, so the underlying store never needs to hear about it.
+            record(key, new Entry(State.ABSENT, null));
+        } else if (entry.state == State.REPLACED) {
+            record(key, new Entry(State.SPENT, out));
+        } else {
+            throw new BlockStoreException("Tried to remove a UTXO from CachingFullPrunedBlockStore that it didn't have!");
+        }
+        maybeFlushOutsideBatch();
+    }
+
+    @Override
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        boolean allKnown = true;
+        for (int i = 0; i < numOutputs; i++) {
+            StoredTransactionOutPoint key = new StoredTransactionOutPoint(hash, i);
+            Entry entry = lookup(key);
+            if (entry != null) {
+                if (entry.isPresent())
+                    return true;
+            } else if (clean.containsKey(key)) {
+                return true;
+            } else {
+                allKnown = false;
+            }
+        }
+        if (allKnown)
+            return false;
+        if (!store.hasUnspentOutputs(hash, numOutputs)) {
+            absentTransactions.add(hash);
+            return false;
+        }
+        // The underlying store has some, but they might have been spent since the last flush.
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        // Multiple calls are treated as one.
+        batchThread = Thread.currentThread();
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        if (!inBatch())
+            return;
+        for (Map.Entry<StoredTransactionOutPoint, Entry> entry : pending.entrySet())
+            commitEntry(entry.getKey(), entry.getValue());
+        dirtyBlocks.putAll(pendingBlocks);
+        clearBatch();
+        blocksSinceFlush++;
+        if (blocksSinceFlush >= flushBlockCount || getEstimatedDirtyBytes() >= maxDirtyBytes)
+            flush();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        if (!inBatch())
+            return;
+        clearBatch();
+    }
+
+    private void clearBatch() {
+        pending.clear();
+        pendingBlocks.clear();
+        batchThread = null;
+    }
+
+    private void maybeFlushOutsideBatch() throws BlockStoreException {
+        if (batchThread == null && getEstimatedDirtyBytes() >= maxDirtyBytes)
+            flush();
+    }
+
+    /** Returns a rough estimate of the heap used by changes that have not been flushed yet. */
+    public synchronized long getEstimatedDirtyBytes() {
+        return (long) dirty.size() * ESTIMATED_ENTRY_SIZE;
+    }
+
+    /**
+     * Writes all committed changes to the underlying store in a single database batch write. Changes of a batch
+     * write that is still open are not included.
+     */
+    public synchronized void flush() throws BlockStoreException {
+        if (dirty.isEmpty() && dirtyBlocks.isEmpty() && !chainHeadDirty && !verifiedChainHeadDirty)
+            return;
+        long start = System.currentTimeMillis();
+        List<UTXO> added = new ArrayList<UTXO>();
+        List<UTXO> removed = new ArrayList<UTXO>();
+        for (Entry entry : dirty.values()) {
+            if (entry.state == State.SPENT || entry.state == State.REPLACED)
+                removed.add(entry.utxo);
+            if (entry.state == State.ADDED || entry.state == State.REPLACED)
+                added.add(entry.utxo);
+        }
+        store.beginDatabaseBatchWrite();
+        try {
+            for (BlockEntry entry : dirtyBlocks.values()) {
+                if (entry.undoableBlock != null)
+                    store.put(entry.block, entry.undoableBlock);
+                else
+                    store.put(entry.block);
+            }
+            // Deletes go first, so outputs that were spent and then re-added during a re-org end up present.
+            if (store instanceof DatabaseFullPrunedBlockStore) {
+                DatabaseFullPrunedBlockStore database = (DatabaseFullPrunedBlockStore) store;
+                database.removeUnspentTransactionOutputs(removed);
+                database.addUnspentTransactionOutputs(added);
+            } else {
+                for (UTXO out : removed)
+                    store.removeUnspentTransactionOutput(out);
+                for (UTXO out : added)
+                    store.addUnspentTransactionOutput(out);
+            }
+            if (chainHeadDirty)
+                store.setChainHead(chainHead);
+            if (verifiedChainHeadDirty)
+                store.setVerifiedChainHead(verifiedChainHead);
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        // Now that they are in the underlying store, keep the new outputs around for reading.
+        for (UTXO out : added)
+            clean.put(new StoredTransactionOutPoint(out), out);
+        dirty.clear();
+        dirtyBlocks.clear();
+        absentTransactions.clear();
+        chainHeadDirty = verifiedChainHeadDirty = false;
+        flushes++;
+        log.info("Flushed {} blocks, {} new and {} spent outputs in {} ms", blocksSinceFlush, added.size(),
+                removed.size(), System.currentTimeMillis() - start);
+        blocksSinceFlush = 0;
+    }
+
+    /** Returns the number of output lookups answered from memory. */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /** Returns the number of output lookups that went to the underlying store. */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /** Returns how many times changes have been flushed to the underlying store. */
+    public synchronized long getFlushCount() {
+        return flushes;
+    }
+
+    /** Returns the store being cached. */
+    public FullPrunedBlockStore getUnderlyingStore() {
+        return store;
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        flush();
+        clean.clear();
+        store.close();
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return store.getParams();
+    }
+
+    @Override
+    public synchronized int getChainHeadHeight() throws UTXOProviderException {
+        return verifiedChainHead.getHeight();
+    }
+
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        // Scanning by address is only supported by the underlying store, so bring it up to date first.
+        try {
+            flush();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+        return store.getOpenTransactionOutputs(addresses);
+    }
+
+    @Override
+    public synchronized void visitUnspentTransactionOutputs(UTXOVisitor visitor) throws BlockStoreException {
+        // As above, the underlying store has to hold every output before it can be scanned.
+        flush();
+        store.visitUnspentTransactionOutputs(visitor);
+    }
+}
@@ -20,6 +20,7 @@ package org.bitcoinj.store;
 import com.google.common.collect.Lists;
 import org.bitcoinj.core.*;
 import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,6 +31,9 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>A generic full pruned block store for a relational database.  This generic class requires
@@ -111,11 +115,13 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String INSERT_UNDOABLEBLOCKS_SQL                       = "INSERT INTO undoableblocks(hash, height, txoutchanges, transactions) VALUES(?, ?, ?, ?)";
     private static final String UPDATE_UNDOABLEBLOCKS_SQL                       = "UPDATE undoableblocks SET txoutchanges=?, transactions=? WHERE hash = ?";
     private static final String DELETE_UNDOABLEBLOCKS_SQL                       = "DELETE FROM undoableblocks WHERE height <= ?";
+    private static final String SELECT_UNDOABLEBLOCKS_MIN_HEIGHT_SQL            = "SELECT MIN(height) FROM undoableblocks";
 
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND index = ?";
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
+    private static final String SELECT_ALL_OPENOUTPUTS_SQL                      = "SELECT hash, value, scriptbytes, height, index, coinbase, toaddress FROM openoutputs ORDER BY hash, index";
 
     // Dump table SQL (this is just for data sizing statistics).
     private static final String SELECT_DUMP_SETTINGS_SQL                        = "SELECT name, value FROM settings";
@@ -147,6 +153,48 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     protected String password;
     protected String schemaName;
 
+    // Statements are prepared once per connection and then reused. Each connection is only used by one thread.
+    private final Map<Connection, Map<String, PreparedStatement>> preparedStatements =
+            Collections.synchronizedMap(new HashMap<Connection, Map<String, PreparedStatement>>());
+    // Headers and undoable blocks put during a batch write, which are inserted with JDBC batches when it's committed.
+    // Present only while the thread is in a batch write.
+    private final ThreadLocal<LinkedHashMap<Sha256Hash, PendingBlock>> pendingBlocks =
+            new ThreadLocal<LinkedHashMap<Sha256Hash, PendingBlock>>();
+    // Undoable blocks are serialized into this, so the buffer doesn't have to grow from scratch for every block.
+    private final ThreadLocal<ByteArrayOutputStream> undoBuffer = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(64 * 1024);
+        }
+    };
+
+    // Set when undoable blocks are pruned in the background rather than whenever the verified chain head moves.
+    @Nullable private volatile ScheduledExecutorService pruningExecutor;
+    private volatile int verifiedChainHeadHeight;
+    // Everything up to here has been pruned, or -1 if not known yet.
+    private volatile int prunedHeight = -1;
+
+    /** An undoable block, serialized in the form it's stored in the undoableblocks table. */
+    protected static class SerializedUndoableBlock {
+        @Nullable public final byte[] txOutChanges;
+        @Nullable public final byte[] transactions;
+
+        public SerializedUndoableBlock(@Nullable byte[] txOutChanges, @Nullable byte[] transactions) {
+            this.txOutChanges = txOutChanges;
+            this.transactions = transactions;
+        }
+    }
+
+    private static class PendingBlock {
+        final StoredBlock block;
+        @Nullable final SerializedUndoableBlock undoableBlock;
+
+        PendingBlock(StoredBlock block, @Nullable SerializedUndoableBlock undoableBlock) {
+            this.block = block;
+            this.undoableBlock = undoableBlock;
+        }
+    }
+
     /**
      * <p>Create a new DatabaseFullPrunedBlockStore, using the full connection URL instead of a hostname and password,
      * and optionally allowing a schema to be specified.</p>
@@ -351,6 +399,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return DELETE_UNDOABLEBLOCKS_SQL;
     }
 
+    /**
+     * Get the SQL to select the lowest height of any undoableblocks record.
+     * @return The SQL select statement.
+     */
+    protected String getSelectUndoableBlocksMinHeightSQL() {
+        return SELECT_UNDOABLEBLOCKS_MIN_HEIGHT_SQL;
+    }
+
     /**
      * Get the SQL to select a openoutputs record.
      * @return The SQL select statement.
@@ -359,6 +415,14 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return SELECT_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select all openoutputs records, ordered by hash and index.
+     * @return The SQL select statement.
+     */
+    protected String getSelectAllOpenoutputsSQL() {
+        return SELECT_ALL_OPENOUTPUTS_SQL;
+    }
+
     /**
      * Get the SQL to select count of openoutputs.
      * @return The SQL select statement.
@@ -424,6 +488,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         try {
             if (conn.get() != null && !conn.get().isClosed())
                 return;
+            if (conn.get() != null)
+                preparedStatements.remove(conn.get());
 
             if (username == null || password == null) {
                 conn.set(DriverManager.getConnection(connectionURL));
@@ -450,11 +516,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
 
     @Override
     public synchronized void close() {
+        if (pruningExecutor != null) {
+            pruningExecutor.shutdownNow();
+            pruningExecutor = null;
+        }
         for (Connection conn : allConnections) {
             try {
                 if (!conn.getAutoCommit()) {
                     conn.rollback();
                 }
+                preparedStatements.remove(conn);
                 conn.close();
                 if (conn == this.conn.get()) {
                     this.conn.set(null);
@@ -464,6 +535,36 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             }
         }
         allConnections.clear();
+        pendingBlocks.remove();
+    }
+
+    /**
+     * <p>Returns a prepared statement for the given SQL on the connection of the calling thread. It's prepared the first
+     * time it's asked for and then reused, so callers must not close it, and should close any result sets they get
+     * from it.</p>
+     */
+    protected PreparedStatement getPreparedStatement(String sql) throws SQLException {
+        Connection connection = conn.get();
+        Map<String, PreparedStatement> statements = preparedStatements.get(connection);
+        if (statements == null) {
+            statements = new HashMap<String, PreparedStatement>();
+            preparedStatements.put(connection, statements);
+        }
+        PreparedStatement s = statements.get(sql);
+        if (s == null) {
+            s = connection.prepareStatement(sql);
+            statements.put(sql, s);
+        }
+        return s;
+    }
+
+    private void closePreparedStatements() throws SQLException {
+        synchronized (preparedStatements) {
+            for (Map<String, PreparedStatement> statements : preparedStatements.values())
+                for (PreparedStatement s : statements.values())
+                    s.close();
+            preparedStatements.clear();
+        }
     }
 
     /**
@@ -607,64 +708,68 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         if (this.verifiedChainHeadBlock == null) {
             throw new BlockStoreException("corrupt databse block store - verified head block not found");
         }
+        this.verifiedChainHeadHeight = verifiedChainHeadBlock.getHeight();
     }
 
     protected void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
-            PreparedStatement s =
-                    conn.get().prepareStatement(getInsertHeadersSQL());
-            // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
-            byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
-            s.setBytes(1, hashBytes);
-            s.setBytes(2, storedBlock.getChainWork().toByteArray());
-            s.setInt(3, storedBlock.getHeight());
-            s.setBytes(4, storedBlock.getHeader().cloneAsHeader().unsafeBitcoinSerialize());
-            s.setBoolean(5, wasUndoable);
+            PreparedStatement s = getPreparedStatement(getInsertHeadersSQL());
+            setHeaderParameters(s, storedBlock, wasUndoable);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             // It is possible we try to add a duplicate StoredBlock if we upgraded
             // In that case, we just update the entry to mark it wasUndoable
             if  (!(e.getSQLState().equals(getDuplicateKeyErrorCode())) || !wasUndoable)
                 throw e;
 
-            PreparedStatement s = conn.get().prepareStatement(getUpdateHeadersSQL());
+            PreparedStatement s = getPreparedStatement(getUpdateHeadersSQL());
             s.setBoolean(1, true);
-            // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
-            byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
-            s.setBytes(2, hashBytes);
+            s.setBytes(2, getHashBytes(storedBlock.getHeader().getHash()));
             s.executeUpdate();
-            s.close();
         }
     }
 
-    @Override
-    public void put(StoredBlock storedBlock) throws BlockStoreException {
-        maybeConnect();
-        try {
-            putUpdateStoredBlock(storedBlock, false);
-        } catch (SQLException e) {
-            throw new BlockStoreException(e);
-        }
+    private void setHeaderParameters(PreparedStatement s, StoredBlock storedBlock, boolean wasUndoable)
+            throws SQLException {
+        s.setBytes(1, getHashBytes(storedBlock.getHeader().getHash()));
+        s.setBytes(2, storedBlock.getChainWork().toByteArray());
+        s.setInt(3, storedBlock.getHeight());
+        s.setBytes(4, storedBlock.getHeader().cloneAsHeader().unsafeBitcoinSerialize());
+        s.setBoolean(5, wasUndoable);
     }
 
+    private void setUndoableBlockParameters(PreparedStatement s, StoredBlock storedBlock,
+                                            SerializedUndoableBlock undoableBlock) throws SQLException {
+        s.setBytes(1, getHashBytes(storedBlock.getHeader().getHash()));
+        s.setInt(2, storedBlock.getHeight());
+        if (undoableBlock.transactions == null) {
+            s.setBytes(3, undoableBlock.txOutChanges);
+            s.setNull(4, Types.BINARY);
+        } else {
+            s.setNull(3, Types.BINARY);
+            s.setBytes(4, undoableBlock.transactions);
+        }
+    }
 
-    @Override
-    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
-        maybeConnect();
+    /** Returns the key a block is stored under in the headers and undoableblocks tables. */
+    protected static byte[] getHashBytes(Sha256Hash hash) {
         // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
         byte[] hashBytes = new byte[28];
-        System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
-        int height = storedBlock.getHeight();
-        byte[] transactions = null;
-        byte[] txOutChanges = null;
+        System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
+        return hashBytes;
+    }
+
+    /**
+     * <p>Serializes an undoable block for the undoableblocks table, into a buffer that is reused between calls.</p>
+     */
+    protected SerializedUndoableBlock serializeUndoableBlock(StoredUndoableBlock undoableBlock)
+            throws BlockStoreException {
+        ByteArrayOutputStream bos = undoBuffer.get();
+        bos.reset();
         try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
             if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
-                txOutChanges = bos.toByteArray();
+                undoableBlock.getTxOutChanges().serializeCompactToStream(bos);
+                return new SerializedUndoableBlock(bos.toByteArray(), null);
             } else {
                 int numTxn = undoableBlock.getTransactions().size();
                 bos.write(0xFF & numTxn);
@@ -673,72 +778,203 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
                 bos.write(0xFF & (numTxn >> 24));
                 for (Transaction tx : undoableBlock.getTransactions())
                     tx.bitcoinSerialize(bos);
-                transactions = bos.toByteArray();
+                return new SerializedUndoableBlock(null, bos.toByteArray());
             }
-            bos.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
+    }
+
+    /**
+     * <p>If the calling thread is in a batch write, queues the block to be inserted when the batch is committed and
+     * returns true. Otherwise returns false and the caller should write it straight away.</p>
+     *
+     * @param undoableBlock The undo data of the block, or null if only the header is to be stored.
+     */
+    protected boolean queueBlock(StoredBlock storedBlock, @Nullable SerializedUndoableBlock undoableBlock) {
+        LinkedHashMap<Sha256Hash, PendingBlock> pending = pendingBlocks.get();
+        if (pending == null)
+            return false;
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        PendingBlock previous = pending.get(hash);
+        // Don't lose undo data if the header is put again.
+        if (undoableBlock == null && previous != null)
+            undoableBlock = previous.undoableBlock;
+        pending.put(hash, new PendingBlock(storedBlock, undoableBlock));
+        return true;
+    }
 
+    /**
+     * <p>Inserts the blocks queued by {@link #queueBlock(StoredBlock, SerializedUndoableBlock)} on this thread, with one
+     * JDBC batch for the headers and one for the undo data. This happens on commit, and before anything is read that
+     * could depend on them.</p>
+     */
+    protected void flushQueuedBlocks() throws BlockStoreException {
+        LinkedHashMap<Sha256Hash, PendingBlock> pending = pendingBlocks.get();
+        if (pending == null || pending.isEmpty())
+            return;
+        List<PendingBlock> blocks = new ArrayList<PendingBlock>(pending.values());
+        pending.clear();
+        PreparedStatement headers = null, undoableBlocks = null;
+        Savepoint savepoint = null;
         try {
-            try {
-                PreparedStatement s =
-                        conn.get().prepareStatement(getInsertUndoableBlocksSQL());
-                s.setBytes(1, hashBytes);
-                s.setInt(2, height);
-                if (transactions == null) {
-                    s.setBytes(3, txOutChanges);
-                    s.setNull(4, Types.BINARY);
-                } else {
-                    s.setNull(3, Types.BINARY);
-                    s.setBytes(4, transactions);
-                }
-                s.executeUpdate();
-                s.close();
-                try {
-                    putUpdateStoredBlock(storedBlock, true);
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
+            Connection connection = conn.get();
+            // Some databases (Postgres) abort the whole transaction when a statement fails, so mark where the batch
+            // starts to be able to carry on after a failure.
+            if (!connection.getAutoCommit())
+                savepoint = connection.setSavepoint();
+            headers = getPreparedStatement(getInsertHeadersSQL());
+            undoableBlocks = getPreparedStatement(getInsertUndoableBlocksSQL());
+            for (PendingBlock block : blocks) {
+                setHeaderParameters(headers, block.block, block.undoableBlock != null);
+                headers.addBatch();
+                if (block.undoableBlock != null) {
+                    setUndoableBlockParameters(undoableBlocks, block.block, block.undoableBlock);
+                    undoableBlocks.addBatch();
                 }
-            } catch (SQLException e) {
-                if (!e.getSQLState().equals(getDuplicateKeyErrorCode()))
-                    throw new BlockStoreException(e);
+            }
+            headers.executeBatch();
+            undoableBlocks.executeBatch();
+            if (savepoint != null)
+                connection.releaseSavepoint(savepoint);
+        } catch (BatchUpdateException e) {
+            // Some of the blocks were stored before, eg a header that is now being connected with its undo data during
+            // a re-org, or rows left from before an upgrade. Drivers differ in how much of a failed batch they apply,
+            // so undo it and write the blocks one by one, looking for existing rows rather than relying on duplicate
+            // key errors.
+            try {
+                headers.clearBatch();
+                undoableBlocks.clearBatch();
+                if (savepoint != null)
+                    conn.get().rollback(savepoint);
+                for (PendingBlock block : blocks)
+                    insertOrUpdateBlock(block);
+            } catch (SQLException e2) {
+                throw new BlockStoreException(e2);
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
 
-                // There is probably an update-or-insert statement, but it wasn't obvious from the docs
-                PreparedStatement s =
-                        conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
+    // Writes a queued block without causing a duplicate key error.
+    private void insertOrUpdateBlock(PendingBlock block) throws SQLException {
+        byte[] hashBytes = getHashBytes(block.block.getHeader().getHash());
+        SerializedUndoableBlock undoableBlock = block.undoableBlock;
+        if (undoableBlock != null) {
+            if (rowExists(getSelectUndoableBlocksSQL(), hashBytes)) {
+                PreparedStatement s = getPreparedStatement(getUpdateUndoableBlocksSQL());
                 s.setBytes(3, hashBytes);
-                if (transactions == null) {
-                    s.setBytes(1, txOutChanges);
+                if (undoableBlock.transactions == null) {
+                    s.setBytes(1, undoableBlock.txOutChanges);
                     s.setNull(2, Types.BINARY);
                 } else {
                     s.setNull(1, Types.BINARY);
-                    s.setBytes(2, transactions);
+                    s.setBytes(2, undoableBlock.transactions);
                 }
                 s.executeUpdate();
-                s.close();
+            } else {
+                PreparedStatement s = getPreparedStatement(getInsertUndoableBlocksSQL());
+                setUndoableBlockParameters(s, block.block, undoableBlock);
+                s.executeUpdate();
             }
+        }
+        if (!rowExists(getSelectHeadersSQL(), hashBytes)) {
+            PreparedStatement s = getPreparedStatement(getInsertHeadersSQL());
+            setHeaderParameters(s, block.block, undoableBlock != null);
+            s.executeUpdate();
+        } else if (undoableBlock != null) {
+            PreparedStatement s = getPreparedStatement(getUpdateHeadersSQL());
+            s.setBoolean(1, true);
+            s.setBytes(2, hashBytes);
+            s.executeUpdate();
+        }
+    }
+
+    private boolean rowExists(String sql, byte[] hashBytes) throws SQLException {
+        PreparedStatement s = getPreparedStatement(sql);
+        s.setBytes(1, hashBytes);
+        ResultSet results = s.executeQuery();
+        try {
+            return results.next();
+        } finally {
+            results.close();
+        }
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock) throws BlockStoreException {
+        maybeConnect();
+        if (queueBlock(storedBlock, null))
+            return;
+        try {
+            putUpdateStoredBlock(storedBlock, false);
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        maybeConnect();
+        SerializedUndoableBlock serialized = serializeUndoableBlock(undoableBlock);
+        if (queueBlock(storedBlock, serialized))
+            return;
+        try {
+            putUndoableBlock(storedBlock, serialized);
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
     }
 
+    private void putUndoableBlock(StoredBlock storedBlock, SerializedUndoableBlock undoableBlock)
+            throws SQLException, BlockStoreException {
+        try {
+            PreparedStatement s = getPreparedStatement(getInsertUndoableBlocksSQL());
+            setUndoableBlockParameters(s, storedBlock, undoableBlock);
+            s.executeUpdate();
+            try {
+                putUpdateStoredBlock(storedBlock, true);
+            } catch (SQLException e) {
+                throw new BlockStoreException(e);
+            }
+        } catch (SQLException e) {
+            if (!e.getSQLState().equals(getDuplicateKeyErrorCode()))
+                throw new BlockStoreException(e);
+
+            // There is probably an update-or-insert statement, but it wasn't obvious from the docs
+            PreparedStatement s = getPreparedStatement(getUpdateUndoableBlocksSQL());
+            s.setBytes(3, getHashBytes(storedBlock.getHeader().getHash()));
+            if (undoableBlock.transactions == null) {
+                s.setBytes(1, undoableBlock.txOutChanges);
+                s.setNull(2, Types.BINARY);
+            } else {
+                s.setNull(1, Types.BINARY);
+                s.setBytes(2, undoableBlock.transactions);
+            }
+            s.executeUpdate();
+        }
+    }
+
     public StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
         // Optimize for chain head
         if (chainHeadHash != null && chainHeadHash.equals(hash))
             return chainHeadBlock;
         if (verifiedChainHeadHash != null && verifiedChainHeadHash.equals(hash))
             return verifiedChainHeadBlock;
+        LinkedHashMap<Sha256Hash, PendingBlock> pending = pendingBlocks.get();
+        if (pending != null) {
+            PendingBlock block = pending.get(hash);
+            if (block != null && (!wasUndoableOnly || block.undoableBlock != null))
+                return block.block;
+        }
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectHeadersSQL());
-            // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
-            byte[] hashBytes = new byte[28];
-            System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
-            s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            PreparedStatement s = getPreparedStatement(getSelectHeadersSQL());
+            s.setBytes(1, getHashBytes(hash));
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -763,13 +999,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             // blocks.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
         }
     }
 
@@ -786,16 +1016,12 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        flushQueuedBlocks();
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectUndoableBlocksSQL());
-            // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
-
-            byte[] hashBytes = new byte[28];
-            System.arraycopy(hash.getBytes(), 4, hashBytes, 0, 28);
-            s.setBytes(1, hashBytes);
-            ResultSet results = s.executeQuery();
+            PreparedStatement s = getPreparedStatement(getSelectUndoableBlocksSQL());
+            s.setBytes(1, getHashBytes(hash));
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -837,12 +1063,16 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             // Corrupted database.
             throw new BlockStoreException(e);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
+            closeResultSet(results);
+        }
+    }
+
+    private static void closeResultSet(@Nullable ResultSet results) throws BlockStoreException {
+        if (results != null) {
+            try {
+                results.close();
+            } catch (SQLException e) {
+                throw new BlockStoreException("Failed to close ResultSet");
             }
         }
     }
@@ -859,12 +1089,10 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.chainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
+            PreparedStatement s = getPreparedStatement(getUpdateSettingsSLQ());
             s.setString(2, CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -882,29 +1110,89 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         this.verifiedChainHeadBlock = chainHead;
         maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getUpdateSettingsSLQ());
+            PreparedStatement s = getPreparedStatement(getUpdateSettingsSLQ());
             s.setString(2, VERIFIED_CHAIN_HEAD_SETTING);
             s.setBytes(1, hash.getBytes());
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
         if (this.chainHeadBlock.getHeight() < chainHead.getHeight())
             setChainHead(chainHead);
-        removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+        verifiedChainHeadHeight = chainHead.getHeight();
+        if (pruningExecutor == null)
+            removeUndoableBlocksWhereHeightIsLessThan(chainHead.getHeight() - fullStoreDepth);
+    }
+
+    /**
+     * <p>Moves the deletion of undoable blocks that have fallen more than fullStoreDepth blocks behind the verified
+     * chain head off the thread that connects blocks. Otherwise they are deleted as part of every
+     * {@link #setVerifiedChainHead(StoredBlock)}, which makes connecting a block take longer whenever the database has
+     * a lot to delete.</p>
+     *
+     * <p>A background thread with its own connection deletes the undoable blocks of at most maxBlocksPerRound heights
+     * every interval, so a store that is far behind catches up gradually instead of holding locks in the database for
+     * a long time. Pass zero for maxBlocksPerRound to go back to deleting them inline.</p>
+     */
+    public synchronized void setBackgroundUndoPruning(final int maxBlocksPerRound, long interval, TimeUnit unit) {
+        if (pruningExecutor != null) {
+            pruningExecutor.shutdown();
+            pruningExecutor = null;
+        }
+        if (maxBlocksPerRound <= 0)
+            return;
+        ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1,
+                new ContextPropagatingThreadFactory("Undoable block pruning", Thread.MIN_PRIORITY));
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                pruneUndoableBlocks(maxBlocksPerRound);
+            }
+        }, interval, interval, unit);
+        pruningExecutor = executor;
+    }
+
+    private void pruneUndoableBlocks(int maxBlocksPerRound) {
+        ResultSet results = null;
+        try {
+            maybeConnect();
+            int target = verifiedChainHeadHeight - fullStoreDepth;
+            if (prunedHeight < 0) {
+                results = getPreparedStatement(getSelectUndoableBlocksMinHeightSQL()).executeQuery();
+                if (!results.next())
+                    return;
+                int minHeight = results.getInt(1);
+                if (results.wasNull())
+                    return;
+                prunedHeight = minHeight - 1;
+            }
+            if (prunedHeight >= target)
+                return;
+            int height = Math.min(target, prunedHeight + maxBlocksPerRound);
+            // Everything below the height goes, including blocks that were stored there since the last round.
+            removeUndoableBlocksWhereHeightIsLessThan(height);
+            prunedHeight = height;
+        } catch (Exception e) {
+            // The next round will try again.
+            log.warn("Failed to prune undoable blocks", e);
+        } finally {
+            try {
+                closeResultSet(results);
+            } catch (BlockStoreException e) {
+                log.warn("Failed to close ResultSet", e);
+            }
+        }
     }
 
     private void removeUndoableBlocksWhereHeightIsLessThan(int height) throws BlockStoreException {
+        // Queued blocks have to go in first, or the old ones among them would escape the delete.
+        flushQueuedBlocks();
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteUndoableBlocksSQL());
+            PreparedStatement s = getPreparedStatement(getDeleteUndoableBlocksSQL());
             s.setInt(1, height);
             if (log.isDebugEnabled())
                 log.debug("Deleting undoable undoable block with height <= " + height);
             s.executeUpdate();
-            s.close();
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         }
@@ -913,14 +1201,13 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get()
-                    .prepareStatement(getSelectOpenoutputsSQL());
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsSQL());
             s.setBytes(1, hash.getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) index);
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 return null;
             }
@@ -941,22 +1228,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
-                }
-            }
+            closeResultSet(results);
         }
     }
 
     @Override
     public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
+            PreparedStatement s = getPreparedStatement(getInsertOpenoutputsSQL());
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int) out.getIndex());
@@ -967,18 +1247,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
             s.setInt(7, out.getScript().getScriptType().ordinal());
             s.setBoolean(8, out.isCoinbase());
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
             if (!(e.getSQLState().equals(getDuplicateKeyErrorCode())))
                 throw new BlockStoreException(e);
-        } finally {
-            if (s != null) {
-                try {
-                    s.close();
-                } catch (SQLException e) {
-                    throw new BlockStoreException(e);
-                }
-            }
         }
     }
 
@@ -989,13 +1260,93 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
             throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
         try {
-            PreparedStatement s = conn.get()
-                    .prepareStatement(getDeleteOpenoutputsSQL());
+            PreparedStatement s = getPreparedStatement(getDeleteOpenoutputsSQL());
             s.setBytes(1, out.getHash().getBytes());
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
             s.executeUpdate();
-            s.close();
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /**
+     * Adds all the given outputs to the list of unspent TransactionOutputs using a JDBC batch. Used by
+     * {@link CachingFullPrunedBlockStore} to flush many outputs at once. Outputs which are already present are
+     * ignored, as in {@link #addUnspentTransactionOutput(UTXO)}.
+     */
+    public void addUnspentTransactionOutputs(Collection<UTXO> outs) throws BlockStoreException {
+        if (outs.isEmpty())
+            return;
+        maybeConnect();
+        PreparedStatement s = null;
+        Savepoint savepoint = null;
+        try {
+            Connection connection = conn.get();
+            // As with queued blocks, mark the start of the batch so the transaction survives it failing.
+            if (!connection.getAutoCommit())
+                savepoint = connection.setSavepoint();
+            s = getPreparedStatement(getInsertOpenoutputsSQL());
+            for (UTXO out : outs) {
+                setOutputParameters(s, out);
+                s.addBatch();
+            }
+            s.executeBatch();
+            if (savepoint != null)
+                connection.releaseSavepoint(savepoint);
+        } catch (BatchUpdateException e) {
+            // Most likely a duplicate, which can legitimately happen for the two BIP30 violating coinbases. Not all
+            // drivers report the state or which rows made it in, so undo the batch and insert the outputs that aren't
+            // there yet one by one.
+            try {
+                s.clearBatch();
+                if (savepoint != null)
+                    conn.get().rollback(savepoint);
+                for (UTXO out : outs) {
+                    if (getTransactionOutput(out.getHash(), out.getIndex()) != null)
+                        continue;
+                    PreparedStatement insert = getPreparedStatement(getInsertOpenoutputsSQL());
+                    setOutputParameters(insert, out);
+                    insert.executeUpdate();
+                }
+            } catch (SQLException e2) {
+                throw new BlockStoreException(e2);
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static void setOutputParameters(PreparedStatement s, UTXO out) throws SQLException {
+        s.setBytes(1, out.getHash().getBytes());
+        // index is actually an unsigned int
+        s.setInt(2, (int) out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().value);
+        s.setBytes(5, out.getScript().getProgram());
+        s.setString(6, out.getAddress());
+        s.setInt(7, out.getScript().getScriptType().ordinal());
+        s.setBoolean(8, out.isCoinbase());
+    }
+
+    /**
+     * Removes all the given outputs from the list of unspent TransactionOutputs using a JDBC batch. Unlike
+     * {@link #removeUnspentTransactionOutput(UTXO)} this doesn't check that the outputs are present, the caller is
+     * expected to have done so already.
+     */
+    public void removeUnspentTransactionOutputs(Collection<UTXO> outs) throws BlockStoreException {
+        if (outs.isEmpty())
+            return;
+        maybeConnect();
+        try {
+            PreparedStatement s = getPreparedStatement(getDeleteOpenoutputsSQL());
+            for (UTXO out : outs) {
+                s.setBytes(1, out.getHash().getBytes());
+                // index is actually an unsigned int
+                s.setInt(2, (int) out.getIndex());
+                s.addBatch();
+            }
+            s.executeBatch();
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -1011,6 +1362,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (pendingBlocks.get() == null)
+            pendingBlocks.set(new LinkedHashMap<Sha256Hash, PendingBlock>());
     }
 
     @Override
@@ -1018,6 +1371,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Committing database batch write with connection: " + conn.get().toString());
+        flushQueuedBlocks();
+        pendingBlocks.remove();
         try {
             conn.get().commit();
             conn.get().setAutoCommit(true);
@@ -1031,6 +1386,7 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         maybeConnect();
         if (log.isDebugEnabled())
             log.debug("Rollback database batch write with connection: " + conn.get().toString());
+        pendingBlocks.remove();
         try {
             if (!conn.get().getAutoCommit()) {
                 conn.get().rollback();
@@ -1046,11 +1402,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     @Override
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
         maybeConnect();
-        PreparedStatement s = null;
+        ResultSet results = null;
         try {
-            s = conn.get().prepareStatement(getSelectOpenoutputsCountSQL());
+            PreparedStatement s = getPreparedStatement(getSelectOpenoutputsCountSQL());
             s.setBytes(1, hash.getBytes());
-            ResultSet results = s.executeQuery();
+            results = s.executeQuery();
             if (!results.next()) {
                 throw new BlockStoreException("Got no results from a COUNT(*) query");
             }
@@ -1059,13 +1415,39 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
-            if (s != null) {
+            closeResultSet(results);
+        }
+    }
+
+    @Override
+    public void visitUnspentTransactionOutputs(UTXOVisitor visitor) throws BlockStoreException {
+        maybeConnect();
+        PreparedStatement s = null;
+        try {
+            s = conn.get().prepareStatement(getSelectAllOpenoutputsSQL());
+            // Ask the driver to stream the rows rather than reading the whole table into memory.
+            s.setFetchSize(1000);
+            ResultSet rs = s.executeQuery();
+            while (rs.next()) {
+                Sha256Hash hash = Sha256Hash.wrap(rs.getBytes(1));
+                Coin amount = Coin.valueOf(rs.getLong(2));
+                byte[] scriptBytes = rs.getBytes(3);
+                int height = rs.getInt(4);
+                long index = rs.getLong(5);
+                boolean coinbase = rs.getBoolean(6);
+                String toAddress = rs.getString(7);
+                visitor.visit(new UTXO(hash, index, amount, height, coinbase, new Script(scriptBytes), toAddress));
+            }
+            rs.close();
+        } catch (SQLException ex) {
+            throw new BlockStoreException(ex);
+        } finally {
+            if (s != null)
                 try {
                     s.close();
                 } catch (SQLException e) {
-                    throw new BlockStoreException("Failed to close PreparedStatement");
+                    throw new BlockStoreException(e);
                 }
-            }
         }
     }
 
@@ -1104,7 +1486,11 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
      */
     public void deleteStore() throws BlockStoreException {
         maybeConnect();
+        pendingBlocks.remove();
+        prunedHeight = -1;
         try {
+            // Statements prepared against the old tables may not survive them being dropped.
+            closePreparedStatements();
             Statement s = conn.get().createStatement();
             for(String sql : getDropTablesSQL()) {
                 s.execute(sql);
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.TransactionArchive;
+import org.bitcoinj.wallet.WalletTransaction;
+import com.google.common.base.Charsets;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link TransactionArchive} that appends transactions to a file. Only an index from transaction hash to file
+ * position is kept in memory, which is rebuilt by reading the record headers when the file is opened.</p>
+ *
+ * <p>The file starts with the string "TXARCHIVE 1", followed by records that each consist of the 32 byte transaction
+ * hash, a 4 byte big endian length and a {@link Protos.Transaction} of that length. A truncated last record, left by
+ * a crash whilst archiving, is cut off when the file is opened; the wallet still has those transactions as it only
+ * lets go of them after they were written.</p>
+ */
+public class FileTransactionArchive implements TransactionArchive {
+    private static final Logger log = LoggerFactory.getLogger(FileTransactionArchive.class);
+
+    private static final byte[] MAGIC = "TXARCHIVE 1".getBytes(Charsets.US_ASCII);
+    private static final int RECORD_HEADER_SIZE = 32 + 4;
+
+    private final ReentrantLock lock = Threading.lock("FileTransactionArchive");
+    private final NetworkParameters params;
+    private final File file;
+    private final Map<Sha256Hash, Long> positions = new HashMap<Sha256Hash, Long>();
+    private RandomAccessFile randomAccessFile;
+    private FileLock fileLock;
+
+    /**
+     * Opens the archive in the given file, creating it if it doesn't exist yet. The file is locked against use by
+     * other processes until {@link #close()} is called.
+     */
+    public FileTransactionArchive(NetworkParameters params, File file) throws IOException {
+        this.params = checkNotNull(params);
+        this.file = checkNotNull(file);
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            fileLock = randomAccessFile.getChannel().tryLock();
+            if (fileLock == null)
+                throw new IOException("Transaction archive " + file + " is already locked by another process");
+            if (randomAccessFile.length() == 0) {
+                log.info("Creating new transaction archive {}", file);
+                randomAccessFile.write(MAGIC);
+            } else {
+                readIndex();
+            }
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /** Returns the archive file belonging to the given wallet file. */
+    public static File getArchiveFile(File walletFile) {
+        return new File(walletFile.getPath() + ".archive");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void readIndex() throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        randomAccessFile.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC))
+            throw new IOException("Not a transaction archive: " + file);
+        long length = randomAccessFile.length();
+        long position = MAGIC.length;
+        byte[] hash = new byte[32];
+        while (position + RECORD_HEADER_SIZE <= length) {
+            randomAccessFile.seek(position);
+            randomAccessFile.readFully(hash);
+            int size = randomAccessFile.readInt();
+            if (size < 0 || position + RECORD_HEADER_SIZE + size > length)
+                break;
+            positions.put(Sha256Hash.wrap(hash.clone()), position);
+            position += RECORD_HEADER_SIZE + size;
+        }
+        if (position < length) {
+            log.warn("Cutting off {} bytes of a truncated record at the end of {}", length - position, file);
+            randomAccessFile.setLength(position);
+        }
+        log.info("Opened transaction archive {} holding {} transactions", file, positions.size());
+    }
+
+    @Override
+    public void archive(List<WalletTransaction> transactions) throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream records = new DataOutputStream(bytes);
+            long end = randomAccessFile.length();
+            Map<Sha256Hash, Long> added = new HashMap<Sha256Hash, Long>();
+            for (WalletTransaction wtx : transactions) {
+                Sha256Hash hash = wtx.getTransaction().getHash();
+                if (positions.containsKey(hash) || added.containsKey(hash))
+                    continue;
+                added.put(hash, end + records.size());
+                byte[] proto = WalletProtobufSerializer.makeTxProto(wtx).toByteArray();
+                records.write(hash.getBytes());
+                records.writeInt(proto.length);
+                records.write(proto);
+            }
+            if (added.isEmpty())
+                return;
+            randomAccessFile.seek(end);
+            randomAccessFile.write(bytes.toByteArray());
+            randomAccessFile.getChannel().force(false);
+            positions.putAll(added);
+            log.info("Archived {} transactions to {}", added.size(), file);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    @Nullable
+    public WalletTransaction get(Sha256Hash hash) throws IOException {
+        lock.lock();
+        try {
+            checkOpen();
+            Long position = positions.get(hash);
+            if (position == null)
+                return null;
+            randomAccessFile.seek(position + 32);
+            byte[] proto = new byte[randomAccessFile.readInt()];
+            randomAccessFile.readFully(proto);
+            try {
+                return new WalletProtobufSerializer().readWalletTransaction(Protos.Transaction.parseFrom(proto),
+                        params);
+            } catch (UnreadableWalletException e) {
+                throw new IOException("Could not read archived transaction " + hash, e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return positions.containsKey(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return positions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Releases the lock on the file and closes it. */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (randomAccessFile == null)
+                return;
+            fileLock.release();
+            randomAccessFile.close();
+            randomAccessFile = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (randomAccessFile == null)
+            throw new IOException("Transaction archive closed");
+    }
+}
@@ -47,6 +47,13 @@ import org.bitcoinj.core.*;
  * <p>FullPrunedBlockStores are thread safe.</p>
  */
 public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
+    /**
+     * Receives the unspent outputs of a store from {@link FullPrunedBlockStore#visitUnspentTransactionOutputs}.
+     */
+    interface UTXOVisitor {
+        void visit(UTXO output) throws BlockStoreException;
+    }
+
     /**
      * <p>Saves the given {@link StoredUndoableBlock} and {@link StoredBlock}. Calculates keys from the {@link StoredBlock}</p>
      * 
@@ -94,6 +101,13 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      */
     boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException;
     
+    /**
+     * Passes every unspent transaction output in this store to the given visitor, ordered by transaction hash and
+     * then index, so the outputs of one transaction are visited one after the other. Writes made in a batch that has
+     * not been committed yet need not be seen. This is what {@link UTXOSnapshot} uses to export the output set.
+     */
+    void visitUnspentTransactionOutputs(UTXOVisitor visitor) throws BlockStoreException;
+
     /**
      * Returns the {@link StoredBlock} that represents the top of the chain of greatest total work that has
      * been fully verified and the point in the chain at which the unspent transaction output set in this
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+
+import javax.annotation.*;
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>A variant of {@link SPVBlockStore} that uses the same memory mapped ring buffer file, but keeps every header in
+ * the ring indexed by hash in memory. Lookups never scan the ring, and neither {@link #get(Sha256Hash)} nor
+ * {@link #getChainHead()} take a lock, so wallet, peer and UI threads don't contend with the thread that is
+ * downloading headers. Only writes are serialized.</p>
+ *
+ * <p>The index holds {@link SPVBlockStore#DEFAULT_NUM_HEADERS} blocks, which costs a few megabytes of heap. Files
+ * written by either class can be opened with the other. To use it with
+ * {@link org.bitcoinj.kits.WalletAppKit}, override {@link org.bitcoinj.kits.WalletAppKit#provideBlockStore(File)}.</p>
+ */
+public class IndexedSPVBlockStore extends SPVBlockStore {
+    /** A block in the ring together with the offset of its record, so overwritten records can be unindexed. */
+    private static class IndexEntry {
+        final int offset;
+        final StoredBlock block;
+
+        IndexEntry(int offset, StoredBlock block) {
+            this.offset = offset;
+            this.block = block;
+        }
+    }
+
+    // Readers go to the index and chainHead, which are safe to read concurrently. Only writers take the lock.
+    private final ConcurrentHashMap<Sha256Hash, IndexEntry> index;
+    private volatile StoredBlock chainHead;
+
+    /**
+     * Creates and initializes an indexed SPV block store. Will create the given file if it's missing, and then reads
+     * all headers it contains into memory. This operation will block on disk.
+     */
+    public IndexedSPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        super(params, file);
+        this.index = new ConcurrentHashMap<Sha256Hash, IndexEntry>(numHeaders * 2);
+        // The blocks cached by SPVBlockStore whilst opening the file aren't needed.
+        blockCache.clear();
+        try {
+            loadIndex();
+        } catch (BlockStoreException e) {
+            // Release the file, as the store will never be handed out.
+            super.close();
+            throw e;
+        }
+    }
+
+    private void loadIndex() throws BlockStoreException {
+        byte[] scratch = new byte[32];
+        // Visit the records from the oldest to the newest, so that if a hash occurs more than once the newest wins.
+        int offset = getNextRecordOffset(buffer);
+        for (int i = 0; i < numHeaders; i++) {
+            if (offset >= getFileSize())
+                offset = FILE_PROLOGUE_BYTES;
+            buffer.position(offset);
+            buffer.get(scratch);
+            if (!isEmptyRecord(scratch)) {
+                try {
+                    StoredBlock block = StoredBlock.deserializeCompact(params, buffer);
+                    index.put(Sha256Hash.wrap(scratch.clone()), new IndexEntry(offset, block));
+                } catch (ProtocolException e) {
+                    throw new BlockStoreException(e);
+                }
+            }
+            offset += RECORD_SIZE;
+        }
+
+        byte[] headHash = new byte[32];
+        buffer.position(8);
+        buffer.get(headHash);
+        Sha256Hash hash = Sha256Hash.wrap(headHash);
+        IndexEntry head = index.get(hash);
+        if (head == null)
+            throw new BlockStoreException("Corrupted block store: could not find chain head: " + hash);
+        chainHead = head.block;
+    }
+
+    private static boolean isEmptyRecord(byte[] hash) {
+        for (byte b : hash)
+            if (b != 0)
+                return false;
+        return true;
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            // Drop the block we're about to overwrite from the index, unless it was stored again since.
+            int offset = getNextRecordOffset(buffer);
+            byte[] oldHash = new byte[32];
+            buffer.position(offset);
+            buffer.get(oldHash);
+            if (!isEmptyRecord(oldHash)) {
+                Sha256Hash old = Sha256Hash.wrap(oldHash);
+                IndexEntry oldEntry = index.get(old);
+                if (oldEntry != null && oldEntry.offset == offset)
+                    index.remove(old, oldEntry);
+            }
+            writeRecord(buffer, block);
+            index.put(block.getHeader().getHash(), new IndexEntry(offset, block));
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        if (buffer == null) throw new BlockStoreException("Store closed");
+        IndexEntry entry = index.get(hash);
+        return entry != null ? entry.block : null;
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        if (buffer == null) throw new BlockStoreException("Store closed");
+        return chainHead;
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            this.chainHead = chainHead;
+            writeChainHead(buffer, chainHead);
+        } finally { lock.unlock(); }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            super.close();
+            index.clear();
+        } finally { lock.unlock(); }
+    }
+}
@@ -0,0 +1,653 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
+import org.fusesource.leveldbjni.*;
+import org.iq80.leveldb.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that keeps headers, undo blocks and the unspent transaction output set in a
+ * <a href="https://github.com/fusesource/leveldbjni">LevelDB</a>. Unlike {@link MemoryFullPrunedBlockStore} it isn't
+ * limited by the heap, and unlike the {@link DatabaseFullPrunedBlockStore}s it doesn't need a SQL server.</p>
+ *
+ * <p>All writes between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are collected in
+ * a single LevelDB {@link WriteBatch}, so connecting or disconnecting a block is atomic. Until committed, the writes
+ * are only visible to the thread that made them. Outputs are stored in a compact binary form: the height and
+ * coinbase flag and the value as var ints followed by the raw script.</p>
+ *
+ * <p>Reads don't take any locks, LevelDB itself is thread safe.</p>
+ */
+public class LevelDBFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LevelDBFullPrunedBlockStore.class);
+
+    // Every key starts with one of these to separate the different kinds of records.
+    private static final byte KEY_SETTING = 's';
+    private static final byte KEY_HEADER = 'h';
+    private static final byte KEY_UNDO = 'u';
+    private static final byte KEY_UNDO_HEIGHT = 'd';
+    private static final byte KEY_OUTPUT = 'o';
+    private static final byte KEY_ADDRESS = 'a';
+
+    private static final byte[] CHAIN_HEAD_KEY = settingKey("chainhead");
+    private static final byte[] VERIFIED_CHAIN_HEAD_KEY = settingKey("verifiedchainhead");
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int UNDO_TXOUTCHANGES = 0;
+    private static final int UNDO_TRANSACTIONS = 1;
+
+    private final NetworkParameters params;
+    private final int fullStoreDepth;
+    private final File path;
+    private final DBFactory dbFactory;
+    private DB db;
+
+    private volatile StoredBlock chainHead;
+    private volatile StoredBlock verifiedChainHead;
+
+    /**
+     * The writes of a batch that has not been committed yet. Values are null for deletions. The chain heads are set
+     * once the batch has been committed, until then they are only seen by the thread writing it.
+     */
+    private static class Batch {
+        final WriteBatch writeBatch;
+        final Map<ByteBuffer, byte[]> writes = new HashMap<ByteBuffer, byte[]>();
+        @Nullable StoredBlock chainHead;
+        @Nullable StoredBlock verifiedChainHead;
+
+        Batch(WriteBatch writeBatch) {
+            this.writeBatch = writeBatch;
+        }
+    }
+
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    /**
+     * Creates a LevelDB full pruned block store using the JNI/C++ version of LevelDB.
+     *
+     * @param context The context of the network the blocks belong to.
+     * @param directory The directory of the database, created if missing.
+     * @param fullStoreDepth The number of blocks for which undo data is kept.
+     */
+    public LevelDBFullPrunedBlockStore(Context context, File directory, int fullStoreDepth) throws BlockStoreException {
+        this(context, directory, fullStoreDepth, JniDBFactory.factory);
+    }
+
+    /** Creates a LevelDB full pruned block store using the given factory, which is useful if you want a pure Java version. */
+    public LevelDBFullPrunedBlockStore(Context context, File directory, int fullStoreDepth, DBFactory dbFactory)
+            throws BlockStoreException {
+        this.params = context.getParams();
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        this.path = directory;
+        this.dbFactory = dbFactory;
+        Options options = new Options();
+        options.createIfMissing();
+
+        try {
+            tryOpen(directory, dbFactory, options);
+        } catch (IOException e) {
+            try {
+                dbFactory.repair(directory, options);
+                tryOpen(directory, dbFactory, options);
+            } catch (IOException e1) {
+                throw new BlockStoreException(e1);
+            }
+        }
+    }
+
+    private synchronized void tryOpen(File directory, DBFactory dbFactory, Options options) throws IOException, BlockStoreException {
+        db = dbFactory.open(directory, options);
+        initStoreIfNeeded();
+    }
+
+    private synchronized void initStoreIfNeeded() throws BlockStoreException {
+        byte[] chainHeadHash = db.get(CHAIN_HEAD_KEY);
+        if (chainHeadHash != null) {
+            chainHead = get(Sha256Hash.wrap(chainHeadHash));
+            verifiedChainHead = get(Sha256Hash.wrap(db.get(VERIFIED_CHAIN_HEAD_KEY)));
+            if (chainHead == null || verifiedChainHead == null)
+                throw new BlockStoreException("Corrupt LevelDB block store: chain head not found");
+            return;
+        }
+        Block genesis = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+        // The coinbase in the genesis block is not spendable.
+        List<Transaction> genesisTransactions = new LinkedList<Transaction>();
+        put(storedGenesis, new StoredUndoableBlock(genesis.getHash(), genesisTransactions));
+        setChainHead(storedGenesis);
+        setVerifiedChainHead(storedGenesis);
+    }
+
+    //
+    // Keys and encodings
+    //
+
+    private static byte[] settingKey(String name) {
+        byte[] nameBytes = name.getBytes();
+        byte[] key = new byte[1 + nameBytes.length];
+        key[0] = KEY_SETTING;
+        System.arraycopy(nameBytes, 0, key, 1, nameBytes.length);
+        return key;
+    }
+
+    private static byte[] hashKey(byte prefix, Sha256Hash hash) {
+        byte[] key = new byte[33];
+        key[0] = prefix;
+        System.arraycopy(hash.getBytes(), 0, key, 1, 32);
+        return key;
+    }
+
+    private static byte[] undoHeightKey(int height, Sha256Hash hash) {
+        // Big endian, so iterating visits the oldest blocks first.
+        ByteBuffer key = ByteBuffer.allocate(1 + 4 + 32);
+        key.put(KEY_UNDO_HEIGHT).putInt(height).put(hash.getBytes());
+        return key.array();
+    }
+
+    private static byte[] outputKey(Sha256Hash hash, long index) {
+        ByteBuffer key = ByteBuffer.allocate(1 + 32 + 4);
+        key.put(KEY_OUTPUT).put(hash.getBytes()).putInt((int) index);
+        return key.array();
+    }
+
+    private static byte[] addressPrefix(String address) {
+        byte[] addressBytes = address.getBytes();
+        ByteBuffer key = ByteBuffer.allocate(1 + 1 + addressBytes.length);
+        key.put(KEY_ADDRESS).put((byte) addressBytes.length).put(addressBytes);
+        return key.array();
+    }
+
+    private static byte[] addressKey(String address, Sha256Hash hash, long index) {
+        byte[] prefix = addressPrefix(address);
+        ByteBuffer key = ByteBuffer.allocate(prefix.length + 32 + 4);
+        key.put(prefix).put(hash.getBytes()).putInt((int) index);
+        return key.array();
+    }
+
+    private static boolean hasPrefix(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (key[i] != prefix[i])
+                return false;
+        return true;
+    }
+
+    private static byte[] encodeOutput(UTXO out) {
+        byte[] heightAndCoinbase = new VarInt(((long) out.getHeight() << 1) | (out.isCoinbase() ? 1 : 0)).encode();
+        byte[] value = new VarInt(out.getValue().value).encode();
+        byte[] script = out.getScript().getProgram();
+        byte[] encoded = new byte[heightAndCoinbase.length + value.length + script.length];
+        System.arraycopy(heightAndCoinbase, 0, encoded, 0, heightAndCoinbase.length);
+        System.arraycopy(value, 0, encoded, heightAndCoinbase.length, value.length);
+        System.arraycopy(script, 0, encoded, heightAndCoinbase.length + value.length, script.length);
+        return encoded;
+    }
+
+    private UTXO decodeOutput(Sha256Hash hash, long index, byte[] encoded) {
+        VarInt heightAndCoinbase = new VarInt(encoded, 0);
+        int offset = heightAndCoinbase.getOriginalSizeInBytes();
+        VarInt value = new VarInt(encoded, offset);
+        offset += value.getOriginalSizeInBytes();
+        Script script = new Script(Arrays.copyOfRange(encoded, offset, encoded.length));
+        return new UTXO(hash, index, Coin.valueOf(value.value), (int) (heightAndCoinbase.value >>> 1),
+                (heightAndCoinbase.value & 1) == 1, script, getScriptAddress(script));
+    }
+
+    // The address isn't stored with the output as it can be derived from the script.
+    private String getScriptAddress(Script script) {
+        try {
+            return script.getToAddress(params, true).toString();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    private static byte[] encodeUndoBlock(StoredUndoableBlock undoableBlock) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        if (undoableBlock.getTxOutChanges() != null) {
+            bos.write(UNDO_TXOUTCHANGES);
+            undoableBlock.getTxOutChanges().serializeCompactToStream(bos);
+        } else {
+            bos.write(UNDO_TRANSACTIONS);
+            int numTxn = undoableBlock.getTransactions().size();
+            bos.write(0xFF & numTxn);
+            bos.write(0xFF & (numTxn >> 8));
+            bos.write(0xFF & (numTxn >> 16));
+            bos.write(0xFF & (numTxn >> 24));
+            for (Transaction tx : undoableBlock.getTransactions())
+                tx.bitcoinSerialize(bos);
+        }
+        return bos.toByteArray();
+    }
+
+    private StoredUndoableBlock decodeUndoBlock(Sha256Hash hash, byte[] encoded) throws IOException {
+        if (encoded[0] == UNDO_TXOUTCHANGES) {
+            TransactionOutputChanges changes = new TransactionOutputChanges(
+                    new ByteArrayInputStream(encoded, 1, encoded.length - 1));
+            return new StoredUndoableBlock(hash, changes);
+        }
+        int offset = 1;
+        int numTxn = ((encoded[offset++] & 0xFF)) |
+                ((encoded[offset++] & 0xFF) << 8) |
+                ((encoded[offset++] & 0xFF) << 16) |
+                ((encoded[offset++] & 0xFF) << 24);
+        List<Transaction> transactions = new LinkedList<Transaction>();
+        for (int i = 0; i < numTxn; i++) {
+            Transaction tx = new Transaction(params, encoded, offset);
+            transactions.add(tx);
+            offset += tx.getMessageSize();
+        }
+        return new StoredUndoableBlock(hash, transactions);
+    }
+
+    //
+    // Reading and writing through the batch of the current thread
+    //
+
+    @Nullable
+    private byte[] read(byte[] key) {
+        Batch b = batch.get();
+        if (b != null) {
+            ByteBuffer wrapped = ByteBuffer.wrap(key);
+            if (b.writes.containsKey(wrapped))
+                return b.writes.get(wrapped);
+        }
+        return db.get(key);
+    }
+
+    private void write(byte[] key, byte[] value) {
+        Batch b = batch.get();
+        if (b != null) {
+            b.writeBatch.put(key, value);
+            b.writes.put(ByteBuffer.wrap(key), value);
+        } else {
+            db.put(key, value);
+        }
+    }
+
+    private void delete(byte[] key) {
+        Batch b = batch.get();
+        if (b != null) {
+            b.writeBatch.delete(key);
+            b.writes.put(ByteBuffer.wrap(key), null);
+        } else {
+            db.delete(key);
+        }
+    }
+
+    //
+    // Headers and undo blocks
+    //
+
+    private void putHeader(StoredBlock block, boolean wasUndoable) {
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE + 1);
+        block.serializeCompact(buffer);
+        buffer.put((byte) (wasUndoable ? 1 : 0));
+        write(hashKey(KEY_HEADER, block.getHeader().getHash()), buffer.array());
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock) throws BlockStoreException {
+        putHeader(storedBlock, false);
+    }
+
+    @Override
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        try {
+            write(hashKey(KEY_UNDO, hash), encodeUndoBlock(undoableBlock));
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        write(undoHeightKey(storedBlock.getHeight(), hash), EMPTY);
+        putHeader(storedBlock, true);
+    }
+
+    @Nullable
+    private StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        byte[] bits = read(hashKey(KEY_HEADER, hash));
+        if (bits == null)
+            return null;
+        if (wasUndoableOnly && bits[StoredBlock.COMPACT_SERIALIZED_SIZE] == 0)
+            return null;
+        try {
+            return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(bits));
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    @Override
+    @Nullable
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    @Override
+    @Nullable
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        byte[] bits = read(hashKey(KEY_UNDO, hash));
+        if (bits == null)
+            return null;
+        try {
+            return decodeUndoBlock(hash, bits);
+        } catch (IOException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        Batch b = batch.get();
+        return b != null && b.chainHead != null ? b.chainHead : chainHead;
+    }
+
+    @Override
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        write(CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+        Batch b = batch.get();
+        if (b != null)
+            b.chainHead = chainHead;
+        else
+            this.chainHead = chainHead;
+    }
+
+    @Override
+    public StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Batch b = batch.get();
+        return b != null && b.verifiedChainHead != null ? b.verifiedChainHead : verifiedChainHead;
+    }
+
+    @Override
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        write(VERIFIED_CHAIN_HEAD_KEY, chainHead.getHeader().getHash().getBytes());
+        Batch b = batch.get();
+        if (b != null)
+            b.verifiedChainHead = chainHead;
+        else
+            this.verifiedChainHead = chainHead;
+        if (getChainHead().getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        removeUndoBlocksUpToHeight(chainHead.getHeight() - fullStoreDepth);
+    }
+
+    private void removeUndoBlocksUpToHeight(int height) {
+        if (height < 0)
+            return;
+        // The current batch may have added undo blocks that aren't in the database yet, or already removed some that
+        // still are, so the keys are collected from both before anything is deleted.
+        Batch b = batch.get();
+        List<byte[]> keys = new ArrayList<byte[]>();
+        DBIterator it = db.iterator();
+        try {
+            it.seek(new byte[] { KEY_UNDO_HEIGHT });
+            while (it.hasNext()) {
+                byte[] key = it.next().getKey();
+                if (key[0] != KEY_UNDO_HEIGHT || getUndoHeight(key) > height)
+                    break;
+                if (b == null || !b.writes.containsKey(ByteBuffer.wrap(key)))
+                    keys.add(key);
+            }
+        } finally {
+            closeQuietly(it);
+        }
+        if (b != null) {
+            for (Map.Entry<ByteBuffer, byte[]> write : b.writes.entrySet()) {
+                byte[] key = write.getKey().array();
+                if (write.getValue() != null && key[0] == KEY_UNDO_HEIGHT && getUndoHeight(key) <= height)
+                    keys.add(key);
+            }
+        }
+        for (byte[] key : keys) {
+            byte[] hashBytes = Arrays.copyOfRange(key, 5, 37);
+            delete(hashKey(KEY_UNDO, Sha256Hash.wrap(hashBytes)));
+            delete(key);
+        }
+    }
+
+    // Returns the height in a key made by undoHeightKey.
+    private static int getUndoHeight(byte[] key) {
+        return ByteBuffer.wrap(key, 1, 4).getInt();
+    }
+
+    //
+    // Unspent outputs
+    //
+
+    @Override
+    @Nullable
+    public UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        byte[] bits = read(outputKey(hash, index));
+        if (bits == null)
+            return null;
+        return decodeOutput(hash, index, bits);
+    }
+
+    @Override
+    public void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        write(outputKey(out.getHash(), out.getIndex()), encodeOutput(out));
+        // Outputs restored from undo data don't always carry their address, so index by the one the script pays to.
+        String address = getScriptAddress(out.getScript());
+        if (!address.isEmpty())
+            write(addressKey(address, out.getHash(), out.getIndex()), EMPTY);
+    }
+
+    @Override
+    public void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        UTXO existing = getTransactionOutput(out.getHash(), out.getIndex());
+        if (existing == null)
+            throw new BlockStoreException("Tried to remove a UTXO from LevelDBFullPrunedBlockStore that it didn't have!");
+        delete(outputKey(out.getHash(), out.getIndex()));
+        if (!existing.getAddress().isEmpty())
+            delete(addressKey(existing.getAddress(), out.getHash(), out.getIndex()));
+    }
+
+    @Override
+    public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Batch b = batch.get();
+        if (b != null) {
+            // Writes of the current batch override what is in the database.
+            for (int i = 0; i < numOutputs; i++)
+                if (b.writes.get(ByteBuffer.wrap(outputKey(hash, i))) != null)
+                    return true;
+        }
+        byte[] prefix = hashKey(KEY_OUTPUT, hash);
+        DBIterator it = db.iterator();
+        try {
+            it.seek(prefix);
+            while (it.hasNext()) {
+                byte[] key = it.next().getKey();
+                if (!hasPrefix(key, prefix))
+                    return false;
+                if (b == null || !b.writes.containsKey(ByteBuffer.wrap(key)))
+                    return true;
+            }
+            return false;
+        } finally {
+            closeQuietly(it);
+        }
+    }
+
+    @Override
+    public void visitUnspentTransactionOutputs(UTXOVisitor visitor) throws BlockStoreException {
+        // Output keys are the transaction hash followed by the big endian index, so they come out in order.
+        DBIterator it = db.iterator();
+        try {
+            it.seek(new byte[] { KEY_OUTPUT });
+            while (it.hasNext()) {
+                Map.Entry<byte[], byte[]> entry = it.next();
+                byte[] key = entry.getKey();
+                if (key[0] != KEY_OUTPUT)
+                    break;
+                ByteBuffer buffer = ByteBuffer.wrap(key, 1, key.length - 1);
+                byte[] hashBytes = new byte[32];
+                buffer.get(hashBytes);
+                long index = buffer.getInt() & 0xFFFFFFFFL;
+                visitor.visit(decodeOutput(Sha256Hash.wrap(hashBytes), index, entry.getValue()));
+            }
+        } finally {
+            closeQuietly(it);
+        }
+    }
+
+    @Override
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        // Multiple calls are treated as one.
+        if (batch.get() == null)
+            batch.set(new Batch(db.createWriteBatch()));
+    }
+
+    @Override
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        Batch b = batch.get();
+        if (b == null)
+            return;
+        batch.remove();
+        try {
+            db.write(b.writeBatch);
+        } finally {
+            closeQuietly(b.writeBatch);
+        }
+        if (b.chainHead != null)
+            chainHead = b.chainHead;
+        if (b.verifiedChainHead != null)
+            verifiedChainHead = b.verifiedChainHead;
+    }
+
+    @Override
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        Batch b = batch.get();
+        if (b == null) {
+            log.warn("Warning: Rollback attempt without transaction");
+            return;
+        }
+        batch.remove();
+        closeQuietly(b.writeBatch);
+    }
+
+    //
+    // UTXOProvider
+    //
+
+    @Override
+    public List<UTXO> getOpenTransactionOutputs(List<Address> addresses) throws UTXOProviderException {
+        List<UTXO> foundOutputs = new ArrayList<UTXO>();
+        for (Address address : addresses) {
+            byte[] prefix = addressPrefix(address.toString());
+            DBIterator it = db.iterator();
+            try {
+                it.seek(prefix);
+                while (it.hasNext()) {
+                    byte[] key = it.next().getKey();
+                    if (!hasPrefix(key, prefix))
+                        break;
+                    ByteBuffer buffer = ByteBuffer.wrap(key, prefix.length, key.length - prefix.length);
+                    byte[] hashBytes = new byte[32];
+                    buffer.get(hashBytes);
+                    long index = buffer.getInt() & 0xFFFFFFFFL;
+                    UTXO output = getTransactionOutput(Sha256Hash.wrap(hashBytes), index);
+                    if (output != null)
+                        foundOutputs.add(output);
+                }
+            } catch (BlockStoreException e) {
+                throw new UTXOProviderException(e);
+            } finally {
+                closeQuietly(it);
+            }
+        }
+        return foundOutputs;
+    }
+
+    @Override
+    public int getChainHeadHeight() throws UTXOProviderException {
+        try {
+            return getVerifiedChainHead().getHeight();
+        } catch (BlockStoreException e) {
+            throw new UTXOProviderException(e);
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    @Override
+    public synchronized void close() throws BlockStoreException {
+        try {
+            db.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Erases the contents of the database (but NOT the underlying files themselves) and then reinitialises with the genesis block. */
+    public synchronized void reset() throws BlockStoreException {
+        try {
+            WriteBatch batch = db.createWriteBatch();
+            try {
+                DBIterator it = db.iterator();
+                try {
+                    it.seekToFirst();
+                    while (it.hasNext())
+                        batch.delete(it.next().getKey());
+                    db.write(batch);
+                } finally {
+                    it.close();
+                }
+            } finally {
+                batch.close();
+            }
+            initStoreIfNeeded();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    /** Deletes the underlying files. The store must be closed first. */
+    public synchronized void destroy() throws IOException {
+        dbFactory.destroy(path, new Options());
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            log.warn("Failed to close", e);
+        }
+    }
+}
@@ -20,6 +20,7 @@ import org.bitcoinj.core.*;
 import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedBytes;
 
 import javax.annotation.Nullable;
 import java.io.Serializable;
@@ -429,4 +430,23 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         }
         return foundOutputs;
     }
+
+    @Override
+    public synchronized void visitUnspentTransactionOutputs(UTXOVisitor visitor) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputMap, "MemoryFullPrunedBlockStore is closed");
+        List<UTXO> outputs = transactionOutputMap.values();
+        Collections.sort(outputs, new Comparator<UTXO>() {
+            private final Comparator<byte[]> hashComparator = UnsignedBytes.lexicographicalComparator();
+
+            @Override
+            public int compare(UTXO a, UTXO b) {
+                int result = hashComparator.compare(a.getHash().getBytes(), b.getHash().getBytes());
+                if (result != 0)
+                    return result;
+                return a.getIndex() < b.getIndex() ? -1 : (a.getIndex() == b.getIndex() ? 0 : 1);
+            }
+        });
+        for (UTXO output : outputs)
+            visitor.visit(output);
+    }
 }
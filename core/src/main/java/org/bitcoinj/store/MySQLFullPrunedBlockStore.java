@@ -78,6 +78,7 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     private static final String SELECT_OPENOUTPUTS_SQL                          = "SELECT height, value, scriptbytes, coinbase, toaddress, addresstargetable FROM openoutputs WHERE hash = ? AND `index` = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, `index`, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND `index`= ?";
+    private static final String SELECT_ALL_OPENOUTPUTS_SQL                      = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress FROM openoutputs ORDER BY hash, `index`";
 
     private static final String SELECT_TRANSACTION_OUTPUTS_SQL                  = "SELECT hash, value, scriptbytes, height, `index`, coinbase, toaddress, addresstargetable FROM openoutputs where toaddress = ?";
 
@@ -107,6 +108,11 @@ public class MySQLFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
         return SELECT_OPENOUTPUTS_SQL;
     }
 
+    @Override
+    protected String getSelectAllOpenoutputsSQL() {
+        return SELECT_ALL_OPENOUTPUTS_SQL;
+    }
+
     @Override
     protected String getInsertOpenoutputsSQL() {
         return INSERT_OPENOUTPUTS_SQL;
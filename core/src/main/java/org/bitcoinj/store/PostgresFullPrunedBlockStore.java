@@ -22,8 +22,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -167,85 +165,64 @@ public class PostgresFullPrunedBlockStore extends DatabaseFullPrunedBlockStore {
     @Override
     public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
         maybeConnect();
-        // We skip the first 4 bytes because (on mainnet) the minimum target has 4 0-bytes
-        byte[] hashBytes = new byte[28];
-        System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 4, hashBytes, 0, 28);
+        byte[] hashBytes = getHashBytes(storedBlock.getHeader().getHash());
         int height = storedBlock.getHeight();
-        byte[] transactions = null;
-        byte[] txOutChanges = null;
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
-                txOutChanges = bos.toByteArray();
-            } else {
-                int numTxn = undoableBlock.getTransactions().size();
-                bos.write(0xFF & numTxn);
-                bos.write(0xFF & (numTxn >> 8));
-                bos.write(0xFF & (numTxn >> 16));
-                bos.write(0xFF & (numTxn >> 24));
-                for (Transaction tx : undoableBlock.getTransactions())
-                    tx.bitcoinSerialize(bos);
-                transactions = bos.toByteArray();
-            }
-            bos.close();
-        } catch (IOException e) {
-            throw new BlockStoreException(e);
-        }
-
+        SerializedUndoableBlock serialized = serializeUndoableBlock(undoableBlock);
 
         try {
             if (log.isDebugEnabled())
                 log.debug("Looking for undoable block with hash: " + Utils.HEX.encode(hashBytes));
 
-            PreparedStatement findS = conn.get().prepareStatement(SELECT_UNDOABLEBLOCKS_EXISTS_SQL);
+            // A failed insert aborts the whole transaction in Postgres, so we can't rely on duplicate key errors and
+            // have to check first. That also goes for blocks that are queued to be inserted in a batch.
+            PreparedStatement findS = getPreparedStatement(SELECT_UNDOABLEBLOCKS_EXISTS_SQL);
             findS.setBytes(1, hashBytes);
 
             ResultSet rs = findS.executeQuery();
-            if (rs.next())
+            boolean exists = rs.next();
+            rs.close();
+            if (exists)
             {
                 // We already have this output, update it.
-                findS.close();
 
                 // Postgres insert-or-updates are very complex (and finnicky).  This level of transaction isolation
                 // seems to work for bitcoinj
-                PreparedStatement s =
-                        conn.get().prepareStatement(getUpdateUndoableBlocksSQL());
+                PreparedStatement s = getPreparedStatement(getUpdateUndoableBlocksSQL());
                 s.setBytes(3, hashBytes);
 
                 if (log.isDebugEnabled())
                     log.debug("Updating undoable block with hash: " + Utils.HEX.encode(hashBytes));
 
-                if (transactions == null) {
-                    s.setBytes(1, txOutChanges);
+                if (serialized.transactions == null) {
+                    s.setBytes(1, serialized.txOutChanges);
                     s.setNull(2, Types.BINARY);
                 } else {
                     s.setNull(1, Types.BINARY);
-                    s.setBytes(2, transactions);
+                    s.setBytes(2, serialized.transactions);
                 }
                 s.executeUpdate();
-                s.close();
 
                 return;
             }
 
-            PreparedStatement s =
-                    conn.get().prepareStatement(getInsertUndoableBlocksSQL());
+            if (queueBlock(storedBlock, serialized))
+                return;
+
+            PreparedStatement s = getPreparedStatement(getInsertUndoableBlocksSQL());
             s.setBytes(1, hashBytes);
             s.setInt(2, height);
 
             if (log.isDebugEnabled())
                 log.debug("Inserting undoable block with hash: " + Utils.HEX.encode(hashBytes)  + " at height " + height);
 
-            if (transactions == null) {
-                s.setBytes(3, txOutChanges);
+            if (serialized.transactions == null) {
+                s.setBytes(3, serialized.txOutChanges);
                 s.setNull(4, Types.BINARY);
             } else {
                 s.setNull(3, Types.BINARY);
-                s.setBytes(4, transactions);
+                s.setBytes(4, serialized.transactions);
             }
             s.executeUpdate();
-            s.close();
             try {
                 putUpdateStoredBlock(storedBlock, true);
             } catch (SQLException e) {
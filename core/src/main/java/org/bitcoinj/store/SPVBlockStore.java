@@ -136,17 +136,20 @@ public class SPVBlockStore implements BlockStore {
         byte[] header;
         header = HEADER_MAGIC.getBytes("US-ASCII");
         buffer.put(header);
-        // Insert the genesis block.
+        // Insert the genesis block. This goes straight to the file rather than through put() and setChainHead(), as
+        // subclasses aren't constructed yet.
+        Block genesis = params.getGenesisBlock().cloneAsHeader();
+        StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
         lock.lock();
         try {
             setRingCursor(buffer, FILE_PROLOGUE_BYTES);
+            writeRecord(buffer, storedGenesis);
+            blockCache.put(genesis.getHash(), storedGenesis);
+            writeChainHead(buffer, storedGenesis);
+            lastChainHead = storedGenesis;
         } finally {
             lock.unlock();
         }
-        Block genesis = params.getGenesisBlock().cloneAsHeader();
-        StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
-        put(storedGenesis);
-        setChainHead(storedGenesis);
     }
 
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
@@ -161,17 +164,9 @@ public class SPVBlockStore implements BlockStore {
 
         lock.lock();
         try {
-            int cursor = getRingCursor(buffer);
-            if (cursor == getFileSize()) {
-                // Wrapped around.
-                cursor = FILE_PROLOGUE_BYTES;
-            }
-            buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
             notFoundCache.remove(hash);
-            buffer.put(hash.getBytes());
-            block.serializeCompact(buffer);
-            setRingCursor(buffer, buffer.position());
+            writeRecord(buffer, block);
             blockCache.put(hash, block);
         } finally { lock.unlock(); }
     }
@@ -252,9 +247,7 @@ public class SPVBlockStore implements BlockStore {
         lock.lock();
         try {
             lastChainHead = chainHead;
-            byte[] headHash = chainHead.getHeader().getHash().getBytes();
-            buffer.position(8);
-            buffer.put(headHash);
+            writeChainHead(buffer, chainHead);
         } finally { lock.unlock(); }
     }
 
@@ -293,7 +286,7 @@ public class SPVBlockStore implements BlockStore {
     protected static final int FILE_PROLOGUE_BYTES = 1024;
 
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
-    private int getRingCursor(ByteBuffer buffer) {
+    protected int getRingCursor(ByteBuffer buffer) {
         int c = buffer.getInt(4);
         checkState(c >= FILE_PROLOGUE_BYTES, "Integer overflow");
         return c;
@@ -303,4 +296,28 @@ public class SPVBlockStore implements BlockStore {
         checkArgument(newCursor >= 0);
         buffer.putInt(4, newCursor);
     }
+
+    /** Returns the offset of the record the next block will be written to, which may hold the oldest block. */
+    protected int getNextRecordOffset(ByteBuffer buffer) {
+        int cursor = getRingCursor(buffer);
+        if (cursor == getFileSize()) {
+            // Wrapped around.
+            cursor = FILE_PROLOGUE_BYTES;
+        }
+        return cursor;
+    }
+
+    /** Writes the block to the next record of the ring and moves the cursor past it. The lock must be held. */
+    protected void writeRecord(ByteBuffer buffer, StoredBlock block) {
+        buffer.position(getNextRecordOffset(buffer));
+        buffer.put(block.getHeader().getHash().getBytes());
+        block.serializeCompact(buffer);
+        setRingCursor(buffer, buffer.position());
+    }
+
+    /** Writes the hash of the chain head to the file. The lock must be held. */
+    protected void writeChainHead(ByteBuffer buffer, StoredBlock chainHead) {
+        buffer.position(8);
+        buffer.put(chainHead.getHeader().getHash().getBytes());
+    }
 }
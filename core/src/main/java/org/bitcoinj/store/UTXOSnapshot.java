@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>Writes the unspent output set of a {@link FullPrunedBlockStore} to a snapshot file, and loads such a file into a
+ * fresh store. This lets a new fully verifying node start from the point the snapshot was taken at instead of
+ * replaying the whole chain, provided the snapshot comes from a source that is trusted.</p>
+ *
+ * <p>The file format consists of the string "UTXOSNAPSHOT 1", followed by the network id written with
+ * {@link DataOutputStream#writeUTF(String)}. Then come an int32 containing the number of headers and the headers
+ * themselves in {@link StoredBlock#serializeCompact(ByteBuffer)} form, oldest first. The last header is the verified
+ * chain head the output set belongs to. It is followed by the undo data of the chain head as written by
+ * {@link TransactionOutputChanges#serializeCompactToStream(OutputStream)}. The outputs follow in chunks, each an int32 containing the number of outputs
+ * in the chunk followed by the outputs as written by
+ * {@link TransactionOutputChanges#writeCompactOutputs(List, OutputStream)}. A chunk of zero outputs ends the list.
+ * Outputs are in the order {@link FullPrunedBlockStore#visitUnspentTransactionOutputs} hands them out. The file ends
+ * with the SHA-256 hash of all bytes before it.</p>
+ *
+ * <p>Headers are needed to check the difficulty of the blocks following the snapshot, so at least one difficulty
+ * interval of them should be included. Only the chain head comes with undo data, so a store loaded from a snapshot
+ * can't re-org past the block before it.</p>
+ */
+public class UTXOSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(UTXOSnapshot.class);
+
+    private static final String MAGIC = "UTXOSNAPSHOT 1";
+    private static final int OUTPUTS_PER_CHUNK = 10000;
+
+    /**
+     * Writes the unspent outputs of the given store, along with its verified chain head and up to numHeaders headers
+     * ending at it, to the given stream. The store must not be modified while this runs. The stream is not closed.
+     *
+     * @return the hash at the end of the snapshot.
+     */
+    public static Sha256Hash write(FullPrunedBlockStore store, OutputStream outputStream, int numHeaders)
+            throws BlockStoreException, IOException {
+        checkArgument(numHeaders > 0, "A snapshot needs at least its chain head");
+        MessageDigest digest = Sha256Hash.newDigest();
+        DigestOutputStream digestOutputStream = new DigestOutputStream(new BufferedOutputStream(outputStream), digest);
+        final DataOutputStream out = new DataOutputStream(digestOutputStream);
+        out.write(MAGIC.getBytes("US-ASCII"));
+        out.writeUTF(store.getParams().getId());
+
+        LinkedList<StoredBlock> headers = new LinkedList<StoredBlock>();
+        StoredBlock cursor = store.getVerifiedChainHead();
+        while (cursor != null && headers.size() < numHeaders) {
+            headers.addFirst(cursor);
+            cursor = cursor.getPrev(store);
+        }
+        out.writeInt(headers.size());
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        for (StoredBlock header : headers) {
+            header.serializeCompact(buffer);
+            out.write(buffer.array());
+            buffer.clear();
+        }
+        StoredBlock head = headers.getLast();
+        StoredUndoableBlock undoBlock = store.getUndoBlock(head.getHeader().getHash());
+        TransactionOutputChanges undo;
+        if (undoBlock != null && undoBlock.getTxOutChanges() != null)
+            undo = undoBlock.getTxOutChanges();
+        else if (head.getHeight() == 0)
+            undo = new TransactionOutputChanges(new ArrayList<UTXO>(), new ArrayList<UTXO>());
+        else
+            throw new BlockStoreException("No undo data for the verified chain head " + head.getHeader().getHash());
+        undo.serializeCompactToStream(out);
+
+        final List<UTXO> chunk = new ArrayList<UTXO>(OUTPUTS_PER_CHUNK);
+        final long[] numOutputs = new long[1];
+        try {
+            store.visitUnspentTransactionOutputs(new FullPrunedBlockStore.UTXOVisitor() {
+                @Override
+                public void visit(UTXO output) throws BlockStoreException {
+                    chunk.add(output);
+                    numOutputs[0]++;
+                    if (chunk.size() == OUTPUTS_PER_CHUNK) {
+                        try {
+                            writeChunk(out, chunk);
+                        } catch (IOException e) {
+                            throw new BlockStoreException(e);
+                        }
+                    }
+                }
+            });
+        } catch (BlockStoreException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw e;
+        }
+        if (!chunk.isEmpty())
+            writeChunk(out, chunk);
+        out.writeInt(0);
+
+        digestOutputStream.on(false);
+        Sha256Hash hash = Sha256Hash.wrap(digest.digest());
+        out.write(hash.getBytes());
+        out.flush();
+        log.info("Wrote snapshot of {} outputs at height {}, hash is {}", numOutputs[0], head.getHeight(), hash);
+        return hash;
+    }
+
+    private static void writeChunk(DataOutputStream out, List<UTXO> chunk) throws IOException {
+        out.writeInt(chunk.size());
+        TransactionOutputChanges.writeCompactOutputs(chunk, out);
+        chunk.clear();
+    }
+
+    /**
+     * Loads a snapshot written by {@link #write(FullPrunedBlockStore, OutputStream, int)} into the given store, which
+     * must be fresh, i.e. not have verified anything past the genesis block. Outputs are committed a chunk at a time.
+     * The chain heads of the store are only moved to the head of the snapshot once its hash has been checked, but if
+     * that fails the outputs read so far are left behind, and the store should be thrown away. The stream is not
+     * closed.
+     *
+     * @return the new verified chain head of the store.
+     * @throws IOException if the snapshot is malformed, doesn't match its hash or is for a different network.
+     */
+    public static StoredBlock load(FullPrunedBlockStore store, InputStream inputStream)
+            throws BlockStoreException, IOException {
+        checkState(store.getVerifiedChainHead().getHeight() == 0, "Snapshots can only be loaded into a fresh store");
+        NetworkParameters params = store.getParams();
+        MessageDigest digest = Sha256Hash.newDigest();
+        DigestInputStream digestInputStream = new DigestInputStream(new BufferedInputStream(inputStream), digest);
+        DataInputStream in = new DataInputStream(digestInputStream);
+        try {
+            byte[] magic = new byte[MAGIC.length()];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC.getBytes("US-ASCII")))
+                throw new IOException("Header bytes did not match expected version");
+            String id = in.readUTF();
+            if (!id.equals(params.getId()))
+                throw new IOException("Snapshot is for network " + id + ", not " + params.getId());
+
+            int numHeaders = in.readInt();
+            if (numHeaders <= 0)
+                throw new IOException("Snapshot has no chain head");
+            StoredBlock head = null;
+            byte[] headerBytes = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+            store.beginDatabaseBatchWrite();
+            try {
+                for (int i = 0; i < numHeaders; i++) {
+                    in.readFully(headerBytes);
+                    StoredBlock header = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(headerBytes));
+                    if (head != null && !header.getHeader().getPrevBlockHash().equals(head.getHeader().getHash()))
+                        throw new IOException("Snapshot headers don't connect at height " + header.getHeight());
+                    head = header;
+                    if (i < numHeaders - 1)
+                        store.put(header);
+                }
+                // The chain head goes in with its undo data, which also lets the block chain connect blocks to it.
+                TransactionOutputChanges undo = new TransactionOutputChanges(in);
+                if (head.getHeight() > 0)
+                    store.put(head, new StoredUndoableBlock(head.getHeader().getHash(), undo));
+                else
+                    store.put(head);
+                store.commitDatabaseBatchWrite();
+            } catch (IOException e) {
+                store.abortDatabaseBatchWrite();
+                throw e;
+            }
+
+            long numOutputs = 0;
+            int chunkSize;
+            while ((chunkSize = in.readInt()) != 0) {
+                if (chunkSize < 0)
+                    throw new IOException("Negative snapshot chunk size " + chunkSize);
+                List<UTXO> chunk = TransactionOutputChanges.readCompactOutputs(in);
+                if (chunk.size() != chunkSize)
+                    throw new IOException("Snapshot chunk has " + chunk.size() + " outputs, expected " + chunkSize);
+                addOutputs(store, chunk);
+                numOutputs += chunkSize;
+            }
+
+            digestInputStream.on(false);
+            Sha256Hash expected = Sha256Hash.wrap(digest.digest());
+            byte[] hashBytes = new byte[32];
+            in.readFully(hashBytes);
+            if (!expected.equals(Sha256Hash.wrap(hashBytes)))
+                throw new IOException("Snapshot hash mismatch, expected " + expected);
+
+            store.beginDatabaseBatchWrite();
+            store.setChainHead(head);
+            store.setVerifiedChainHead(head);
+            store.commitDatabaseBatchWrite();
+            log.info("Loaded snapshot of {} outputs at height {}, hash is {}", numOutputs, head.getHeight(), expected);
+            return head;
+        } catch (ProtocolException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void addOutputs(FullPrunedBlockStore store, List<UTXO> chunk) throws BlockStoreException {
+        NetworkParameters params = store.getParams();
+        List<UTXO> outputs = new ArrayList<UTXO>(chunk.size());
+        for (UTXO output : chunk) {
+            // Addresses are not part of the snapshot, derive them the same way the block chain does.
+            outputs.add(new UTXO(output.getHash(), output.getIndex(), output.getValue(), output.getHeight(),
+                    output.isCoinbase(), output.getScript(), getScriptAddress(params, output.getScript())));
+        }
+        store.beginDatabaseBatchWrite();
+        try {
+            if (store instanceof DatabaseFullPrunedBlockStore) {
+                ((DatabaseFullPrunedBlockStore) store).addUnspentTransactionOutputs(outputs);
+            } else {
+                for (UTXO output : outputs)
+                    store.addUnspentTransactionOutput(output);
+            }
+            store.commitDatabaseBatchWrite();
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+    }
+
+    private static String getScriptAddress(NetworkParameters params, @Nullable Script script) {
+        String address = "";
+        try {
+            if (script != null)
+                address = script.getToAddress(params, true).toString();
+        } catch (Exception e) {
+        }
+        return address;
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.utils.ExchangeRate;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.WalletTransaction;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Saves a wallet as a full protobuf snapshot plus an append-only journal of the changes made since, so that a save
+ * after a small change doesn't have to serialize and rewrite the whole wallet. The journal lives next to the wallet
+ * file, with ".journal" appended to its name, and is compacted into a new snapshot once it grows larger than the
+ * snapshot. {@link Wallet#loadFromFile(File, WalletExtension...)} replays the journal if there is one.</p>
+ *
+ * <p>The journal consists of the string "WALLETJOURNAL 1" and the SHA-256 hash of the snapshot it applies to,
+ * followed by records, each a length prefixed {@link Protos.Wallet} holding:</p>
+ *
+ * <ul>
+ *     <li>the transactions that are new or changed, replacing those with the same hash,</li>
+ *     <li>the whole key list if any key was issued or added, marked by a {@link #KEYS_TAG} tag,</li>
+ *     <li>the extensions that changed, replacing those with the same id,</li>
+ *     <li>the hashes of removed transactions in a {@link #REMOVED_TAG} tag, and</li>
+ *     <li>the last seen block.</li>
+ * </ul>
+ *
+ * <p>The wallet records which transactions and whether the keys changed, see {@link Wallet#drainChangedTransactions()},
+ * so only those are looked at and written. Changes made directly to a transaction, like setting its memo, aren't
+ * recorded and are saved with the next snapshot. As every block increments the depth of every building transaction,
+ * a transaction whose depth merely follows the last seen block height isn't written again; its depth is brought
+ * forward on replay instead. Changes to anything
+ * else, like the description, encryption or tags of the wallet, result in a new snapshot. A journal whose hash does
+ * not match the snapshot is left over from before the last snapshot was written and is ignored, as is a truncated
+ * last record.</p>
+ *
+ * <p>Instances are not thread safe, and the wallet must be locked whilst they read it. Use
+ * {@link Wallet#appendToJournal(WalletJournal)} and {@link Wallet#saveToFile(File, WalletJournal)}, or
+ * {@link org.bitcoinj.wallet.WalletFiles#setJournaling(boolean)} to have this done on auto-save.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    private static final String MAGIC = "WALLETJOURNAL 1";
+    /** Tag marking a record that replaces the whole key list. */
+    public static final String KEYS_TAG = "journal.keys";
+    /** Tag holding the concatenated hashes of transactions that were removed from the wallet. */
+    public static final String REMOVED_TAG = "journal.removed";
+
+    private final File walletFile;
+    private final File journalFile;
+
+    // What was last written, or null if the files on disk weren't written by us and need a new snapshot.
+    @Nullable private Map<Sha256Hash, List<Object>> txStates;
+    private List<Protos.Key> keys;
+    private Map<String, ByteString> extensions;
+    private Protos.Wallet header;
+    private boolean hasLastSeenBlock;
+    private List<Object> lastSeenBlock;
+
+    private long snapshotSize;
+    private long journalSize;
+
+    public WalletJournal(File walletFile) {
+        this.walletFile = checkNotNull(walletFile);
+        this.journalFile = getJournalFile(walletFile);
+    }
+
+    /** Returns the journal file belonging to the given wallet file. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    public File getWalletFile() {
+        return walletFile;
+    }
+
+    /** Returns true if the journal has grown larger than the snapshot, and should be compacted into a new one. */
+    public boolean needsCompaction() {
+        return txStates != null && journalSize > snapshotSize;
+    }
+
+    /**
+     * Appends the changes made to the given wallet since the last snapshot or record to the journal. Returns false
+     * without writing anything if the changes can't be expressed as a journal record, in which case a new snapshot has
+     * to be written with {@link #writeSnapshot(Wallet, File)}. The wallet must be locked.
+     */
+    public boolean append(Wallet wallet) throws IOException {
+        if (txStates == null || !journalFile.exists())
+            return false;
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        if (!serializer.walletHeaderToProto(wallet).build().equals(header))
+            return false;
+        boolean nowHasLastSeenBlock = wallet.getLastBlockSeenHash() != null;
+        if (hasLastSeenBlock && !nowHasLastSeenBlock)
+            return false;
+
+        Map<Sha256Hash, WalletTransaction> changedTransactions = wallet.drainChangedTransactions();
+        if (changedTransactions == null)
+            return false;
+
+        Protos.Wallet.Builder record = Protos.Wallet.newBuilder();
+        record.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        boolean changed = false;
+
+        int height = wallet.getLastBlockSeenHeight();
+        ByteArrayOutputStream removed = new ByteArrayOutputStream();
+        for (Map.Entry<Sha256Hash, WalletTransaction> entry : changedTransactions.entrySet()) {
+            Sha256Hash hash = entry.getKey();
+            WalletTransaction wtx = entry.getValue();
+            if (wtx == null) {
+                if (txStates.remove(hash) != null)
+                    removed.write(hash.getBytes());
+                continue;
+            }
+            List<Object> state = getTransactionState(wtx, height);
+            if (!state.equals(txStates.put(hash, state))) {
+                record.addTransaction(WalletProtobufSerializer.makeTxProto(wtx));
+                changed = true;
+            }
+        }
+        if (removed.size() > 0) {
+            record.addTags(Protos.Tag.newBuilder().setTag(REMOVED_TAG).setData(ByteString.copyFrom(removed.toByteArray())));
+            changed = true;
+        }
+
+        List<Protos.Key> newKeys = keys;
+        if (wallet.drainKeysChanged()) {
+            newKeys = wallet.serializeKeychainToProtobuf();
+            if (!newKeys.equals(keys)) {
+                record.addAllKey(newKeys);
+                record.addTags(Protos.Tag.newBuilder().setTag(KEYS_TAG).setData(ByteString.EMPTY));
+                changed = true;
+            }
+        }
+
+        Map<String, ByteString> newExtensions = new HashMap<String, ByteString>();
+        for (WalletExtension extension : wallet.getExtensions().values()) {
+            Protos.Extension proto = WalletProtobufSerializer.makeExtensionProto(extension);
+            newExtensions.put(proto.getId(), proto.getData());
+            if (!proto.getData().equals(extensions.get(proto.getId()))) {
+                record.addExtension(proto);
+                changed = true;
+            }
+        }
+
+        List<Object> newLastSeenBlock = getLastSeenBlock(wallet);
+        if (nowHasLastSeenBlock) {
+            record.setLastSeenBlockHash(WalletProtobufSerializer.hashToByteString(wallet.getLastBlockSeenHash()));
+            record.setLastSeenBlockHeight(height);
+        }
+        if (wallet.getLastBlockSeenTimeSecs() > 0)
+            record.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+        changed |= !newLastSeenBlock.equals(lastSeenBlock);
+
+        if (changed) {
+            FileOutputStream stream;
+            try {
+                stream = new FileOutputStream(journalFile, true);
+            } catch (IOException e) {
+                // The changes drained from the wallet are only in txStates now, so they go in a snapshot next time.
+                txStates = null;
+                throw e;
+            }
+            try {
+                Protos.Wallet proto = record.build();
+                proto.writeDelimitedTo(stream);
+                stream.flush();
+                stream.getFD().sync();
+                journalSize = stream.getChannel().position();
+                log.info("Appended {} transactions, {} keys and {} extensions to wallet journal, now {} bytes",
+                        proto.getTransactionCount(), proto.getKeyCount(), proto.getExtensionCount(), journalSize);
+            } catch (IOException e) {
+                // We don't know what made it to disk, start over with a snapshot next time.
+                txStates = null;
+                throw e;
+            } finally {
+                stream.close();
+            }
+        }
+        keys = newKeys;
+        extensions = newExtensions;
+        hasLastSeenBlock = nowHasLastSeenBlock;
+        lastSeenBlock = newLastSeenBlock;
+        return true;
+    }
+
+    /**
+     * Writes the whole wallet to the wallet file, by way of the given temp file, and starts an empty journal for it.
+     * The wallet must be locked.
+     */
+    public void writeSnapshot(Wallet wallet, File temp) throws IOException {
+        // Forget what was written before, in case anything goes wrong.
+        txStates = null;
+        // Everything is written, so start recording changes afresh.
+        wallet.drainChangedTransactions();
+        wallet.drainKeysChanged();
+        Map<Sha256Hash, List<Object>> newTxStates = new HashMap<Sha256Hash, List<Object>>();
+        for (WalletTransaction wtx : wallet.getWalletTransactions())
+            newTxStates.put(wtx.getTransaction().getHash(), getTransactionState(wtx, wallet.getLastBlockSeenHeight()));
+        WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+        Protos.Wallet proto = serializer.walletToProto(wallet);
+
+        MessageDigest digest = Sha256Hash.newDigest();
+        FileOutputStream stream = new FileOutputStream(temp);
+        try {
+            OutputStream out = new BufferedOutputStream(new DigestOutputStream(stream, digest));
+            proto.writeTo(out);
+            out.flush();
+            stream.getFD().sync();
+            snapshotSize = stream.getChannel().position();
+        } finally {
+            stream.close();
+        }
+        rename(temp, walletFile);
+
+        // If we crash before the rename below, the old journal is ignored because its hash doesn't match.
+        File journalTemp = File.createTempFile("journal", null, temp.getAbsoluteFile().getParentFile());
+        stream = new FileOutputStream(journalTemp);
+        try {
+            stream.write(MAGIC.getBytes("US-ASCII"));
+            stream.write(digest.digest());
+            stream.flush();
+            stream.getFD().sync();
+            journalSize = stream.getChannel().position();
+        } finally {
+            stream.close();
+        }
+        rename(journalTemp, journalFile);
+
+        keys = proto.getKeyList();
+        extensions = new HashMap<String, ByteString>();
+        for (Protos.Extension extension : proto.getExtensionList())
+            extensions.put(extension.getId(), extension.getData());
+        header = serializer.walletHeaderToProto(wallet).build();
+        hasLastSeenBlock = wallet.getLastBlockSeenHash() != null;
+        lastSeenBlock = getLastSeenBlock(wallet);
+        txStates = newTxStates;
+        log.info("Wrote wallet snapshot of {} bytes and started a new journal", snapshotSize);
+    }
+
+    private static void rename(File temp, File destFile) throws IOException {
+        if (Utils.isWindows()) {
+            // Work around an issue on Windows whereby you can't rename over existing files.
+            File canonical = destFile.getCanonicalFile();
+            if (canonical.exists() && !canonical.delete())
+                throw new IOException("Failed to delete " + canonical + " for replacement");
+            if (!temp.renameTo(canonical))
+                throw new IOException("Failed to rename " + temp + " to " + canonical);
+        } else if (!temp.renameTo(destFile)) {
+            throw new IOException("Failed to rename " + temp + " to " + destFile);
+        }
+    }
+
+    private static List<Object> getLastSeenBlock(Wallet wallet) {
+        return Arrays.<Object>asList(wallet.getLastBlockSeenHash(), wallet.getLastBlockSeenHeight(),
+                wallet.getLastBlockSeenTimeSecs());
+    }
+
+    /**
+     * Returns everything about the given transaction that can change whilst it's in the wallet, except the depth of
+     * a building transaction, which is included relative to the given height.
+     */
+    private static List<Object> getTransactionState(WalletTransaction wtx, int lastSeenBlockHeight) {
+        Transaction tx = wtx.getTransaction();
+        List<Object> state = new ArrayList<Object>();
+        state.add(wtx.getPool());
+        for (TransactionOutput output : tx.getOutputs()) {
+            TransactionInput spentBy = output.getSpentBy();
+            state.add(spentBy != null ? spentBy.getParentTransaction().getHash() : null);
+        }
+        Map<Sha256Hash, Integer> appearsInHashes = tx.getAppearsInHashes();
+        state.add(appearsInHashes != null ? new HashMap<Sha256Hash, Integer>(appearsInHashes) : null);
+        state.add(tx.getUpdateTime());
+        state.add(tx.getPurpose());
+        state.add(tx.getMemo());
+        ExchangeRate exchangeRate = tx.getExchangeRate();
+        state.add(exchangeRate != null ? exchangeRate.coin : null);
+        state.add(exchangeRate != null ? exchangeRate.fiat : null);
+        if (tx.hasConfidence()) {
+            TransactionConfidence confidence = tx.getConfidence();
+            synchronized (confidence) {
+                TransactionConfidence.ConfidenceType type = confidence.getConfidenceType();
+                state.add(type);
+                if (type == TransactionConfidence.ConfidenceType.BUILDING) {
+                    state.add(confidence.getAppearedAtChainHeight());
+                    state.add(confidence.getDepthInBlocks() - lastSeenBlockHeight);
+                }
+                if (type == TransactionConfidence.ConfidenceType.DEAD) {
+                    Transaction overridingTransaction = confidence.getOverridingTransaction();
+                    state.add(overridingTransaction != null ? overridingTransaction.getHash() : null);
+                }
+                state.add(confidence.getSource());
+                state.add(confidence.numBroadcastPeers());
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Reads the wallet file and replays its journal, if there is one, into the wallet it was last saved as.
+     *
+     * @throws UnreadableWalletException if the wallet file can't be read or parsed.
+     */
+    public static Wallet readWallet(File walletFile, @Nullable WalletExtension... walletExtensions)
+            throws UnreadableWalletException {
+        try {
+            Protos.Wallet walletProto = readWalletProto(walletFile);
+            final String paramsID = walletProto.getNetworkIdentifier();
+            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+            return new WalletProtobufSerializer().readWallet(params, walletExtensions, walletProto);
+        } catch (IOException e) {
+            throw new UnreadableWalletException("Could not read wallet and journal", e);
+        } catch (IllegalStateException e) {
+            throw new UnreadableWalletException("Could not parse wallet and journal", e);
+        } catch (IllegalArgumentException e) {
+            throw new UnreadableWalletException("Could not parse wallet and journal", e);
+        }
+    }
+
+    /**
+     * Returns the protocol buffer the wallet was last saved as, by reading the wallet file and replaying its
+     * journal, if there is one. This is meant for low level work, you normally want
+     * {@link Wallet#loadFromFile(File, WalletExtension...)} instead.
+     */
+    public static Protos.Wallet readWalletProto(File walletFile) throws IOException {
+        MessageDigest digest = Sha256Hash.newDigest();
+        Protos.Wallet snapshot;
+        InputStream stream = new DigestInputStream(new BufferedInputStream(new FileInputStream(walletFile)), digest);
+        try {
+            snapshot = WalletProtobufSerializer.parseToProto(stream);
+        } finally {
+            stream.close();
+        }
+        byte[] snapshotHash = digest.digest();
+
+        File journalFile = getJournalFile(walletFile);
+        if (!journalFile.exists())
+            return snapshot;
+        DataInputStream journal = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            byte[] magic = new byte[MAGIC.length()];
+            byte[] hash = new byte[32];
+            try {
+                journal.readFully(magic);
+                journal.readFully(hash);
+            } catch (EOFException e) {
+                log.warn("Ignoring truncated wallet journal {}", journalFile);
+                return snapshot;
+            }
+            if (!Arrays.equals(magic, MAGIC.getBytes("US-ASCII")))
+                throw new IOException("Header bytes of wallet journal did not match expected version");
+            if (!Arrays.equals(hash, snapshotHash)) {
+                log.info("Ignoring wallet journal {} that belongs to an earlier snapshot", journalFile);
+                return snapshot;
+            }
+            return replay(snapshot, journal);
+        } finally {
+            journal.close();
+        }
+    }
+
+    /** Merges the journal records read from the given stream into the given snapshot. */
+    private static Protos.Wallet replay(Protos.Wallet snapshot, InputStream journal) throws IOException {
+        int height = snapshot.hasLastSeenBlockHeight() ? snapshot.getLastSeenBlockHeight() : -1;
+        // Transactions by hash, along with the height they were last written at.
+        Map<ByteString, Protos.Transaction> txns = new LinkedHashMap<ByteString, Protos.Transaction>();
+        Map<ByteString, Integer> txHeights = new HashMap<ByteString, Integer>();
+        for (Protos.Transaction tx : snapshot.getTransactionList()) {
+            txns.put(tx.getHash(), tx);
+            txHeights.put(tx.getHash(), height);
+        }
+        Map<String, Protos.Extension> extensions = new LinkedHashMap<String, Protos.Extension>();
+        for (Protos.Extension extension : snapshot.getExtensionList())
+            extensions.put(extension.getId(), extension);
+        Protos.Wallet.Builder merged = snapshot.toBuilder();
+
+        int numRecords = 0;
+        while (true) {
+            Protos.Wallet record;
+            try {
+                record = Protos.Wallet.parseDelimitedFrom(journal);
+            } catch (InvalidProtocolBufferException e) {
+                // Records are synced one by one, so only the last one can be partially written.
+                log.warn("Ignoring truncated last record of wallet journal: {}", e.getMessage());
+                break;
+            }
+            if (record == null)
+                break;
+            numRecords++;
+            if (record.hasLastSeenBlockHeight())
+                height = record.getLastSeenBlockHeight();
+            for (Protos.Tag tag : record.getTagsList()) {
+                if (tag.getTag().equals(REMOVED_TAG)) {
+                    byte[] hashes = tag.getData().toByteArray();
+                    for (int i = 0; i + 32 <= hashes.length; i += 32)
+                        txns.remove(ByteString.copyFrom(hashes, i, 32));
+                } else if (tag.getTag().equals(KEYS_TAG)) {
+                    merged.clearKey().addAllKey(record.getKeyList());
+                }
+            }
+            for (Protos.Transaction tx : record.getTransactionList()) {
+                txns.put(tx.getHash(), tx);
+                txHeights.put(tx.getHash(), height);
+            }
+            for (Protos.Extension extension : record.getExtensionList())
+                extensions.put(extension.getId(), extension);
+            if (record.hasLastSeenBlockHash())
+                merged.setLastSeenBlockHash(record.getLastSeenBlockHash());
+            if (record.hasLastSeenBlockHeight())
+                merged.setLastSeenBlockHeight(record.getLastSeenBlockHeight());
+            if (record.hasLastSeenBlockTimeSecs())
+                merged.setLastSeenBlockTimeSecs(record.getLastSeenBlockTimeSecs());
+        }
+
+        merged.clearTransaction();
+        for (Protos.Transaction tx : txns.values()) {
+            int delta = height - txHeights.get(tx.getHash());
+            if (delta != 0 && tx.hasConfidence() && tx.getConfidence().hasDepth()) {
+                Protos.TransactionConfidence confidence = tx.getConfidence();
+                tx = tx.toBuilder().setConfidence(confidence.toBuilder().setDepth(confidence.getDepth() + delta)).build();
+            }
+            merged.addTransaction(tx);
+        }
+        merged.clearExtension().addAllExtension(extensions.values());
+        log.info("Replayed {} wallet journal records", numRecords);
+        return merged.build();
+    }
+}
@@ -30,10 +30,14 @@ import org.bitcoinj.wallet.DefaultKeyChainFactory;
 import org.bitcoinj.wallet.KeyChainFactory;
 import org.bitcoinj.wallet.KeyChainGroup;
 import org.bitcoinj.wallet.WalletTransaction;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
+import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.TextFormat;
+import com.google.protobuf.UnknownFieldSet;
 import com.google.protobuf.WireFormat;
 
 import org.bitcoinj.wallet.Protos;
@@ -49,6 +53,11 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -145,11 +154,7 @@ public class WalletProtobufSerializer {
      * additional data fields set, before serialization takes place.
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
-        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
-        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
-        if (wallet.getDescription() != null) {
-            walletBuilder.setDescription(wallet.getDescription());
-        }
+        Protos.Wallet.Builder walletBuilder = walletHeaderToProto(wallet);
 
         for (WalletTransaction wtx : wallet.getWalletTransactions()) {
             Protos.Transaction txProto = makeTxProto(wtx);
@@ -158,6 +163,31 @@ public class WalletProtobufSerializer {
 
         walletBuilder.addAllKey(wallet.serializeKeychainToProtobuf());
 
+        // Populate the lastSeenBlockHash field.
+        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
+        if (lastSeenBlockHash != null) {
+            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
+            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
+        }
+        if (wallet.getLastBlockSeenTimeSecs() > 0)
+            walletBuilder.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
+
+        populateExtensions(wallet, walletBuilder);
+
+        return walletBuilder.build();
+    }
+
+    /**
+     * Returns a builder holding everything of the wallet except its transactions, keys, extensions and last seen
+     * block. These are the parts that rarely change, see {@link WalletJournal}.
+     */
+    Protos.Wallet.Builder walletHeaderToProto(Wallet wallet) {
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        if (wallet.getDescription() != null) {
+            walletBuilder.setDescription(wallet.getDescription());
+        }
+
         for (Script script : wallet.getWatchedScripts()) {
             Protos.Script protoScript =
                     Protos.Script.newBuilder()
@@ -168,15 +198,6 @@ public class WalletProtobufSerializer {
             walletBuilder.addWatchedScript(protoScript);
         }
 
-        // Populate the lastSeenBlockHash field.
-        Sha256Hash lastSeenBlockHash = wallet.getLastBlockSeenHash();
-        if (lastSeenBlockHash != null) {
-            walletBuilder.setLastSeenBlockHash(hashToByteString(lastSeenBlockHash));
-            walletBuilder.setLastSeenBlockHeight(wallet.getLastBlockSeenHeight());
-        }
-        if (wallet.getLastBlockSeenTimeSecs() > 0)
-            walletBuilder.setLastSeenBlockTimeSecs(wallet.getLastBlockSeenTimeSecs());
-
         // Populate the scrypt parameters.
         KeyCrypter keyCrypter = wallet.getKeyCrypter();
         if (keyCrypter == null) {
@@ -199,8 +220,6 @@ public class WalletProtobufSerializer {
             walletBuilder.setKeyRotationTime(timeSecs);
         }
 
-        populateExtensions(wallet, walletBuilder);
-
         for (Map.Entry<String, ByteString> entry : wallet.getTags().entrySet()) {
             Protos.Tag.Builder tag = Protos.Tag.newBuilder().setTag(entry.getKey()).setData(entry.getValue());
             walletBuilder.addTags(tag);
@@ -219,20 +238,23 @@ public class WalletProtobufSerializer {
         // Populate the wallet version.
         walletBuilder.setVersion(wallet.getVersion());
 
-        return walletBuilder.build();
+        return walletBuilder;
     }
 
     private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
-        for (WalletExtension extension : wallet.getExtensions().values()) {
-            Protos.Extension.Builder proto = Protos.Extension.newBuilder();
-            proto.setId(extension.getWalletExtensionID());
-            proto.setMandatory(extension.isWalletExtensionMandatory());
-            proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
-            walletBuilder.addExtension(proto);
-        }
+        for (WalletExtension extension : wallet.getExtensions().values())
+            walletBuilder.addExtension(makeExtensionProto(extension));
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Extension makeExtensionProto(WalletExtension extension) {
+        Protos.Extension.Builder proto = Protos.Extension.newBuilder();
+        proto.setId(extension.getWalletExtensionID());
+        proto.setMandatory(extension.isWalletExtensionMandatory());
+        proto.setData(ByteString.copyFrom(extension.serializeWalletExtension()));
+        return proto.build();
+    }
+
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
         
@@ -389,19 +411,24 @@ public class WalletProtobufSerializer {
      * @throws UnreadableWalletException thrown in various error conditions (see description).
      */
     public Wallet readWallet(InputStream input, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        TransactionReader txReader = new TransactionReader();
         try {
-            Protos.Wallet walletProto = parseToProto(input);
+            long start = System.currentTimeMillis();
+            Protos.Wallet walletProto = parseToProto(input, txReader);
+            long parseTime = System.currentTimeMillis() - start;
             final String paramsID = walletProto.getNetworkIdentifier();
             NetworkParameters params = NetworkParameters.fromID(paramsID);
             if (params == null)
                 throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
-            return readWallet(params, walletExtensions, walletProto);
+            return readWallet(params, walletExtensions, walletProto, txReader, parseTime);
         } catch (IOException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalStateException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
         } catch (IllegalArgumentException e) {
             throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        } finally {
+            txReader.shutdown();
         }
     }
 
@@ -418,11 +445,28 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto) throws UnreadableWalletException {
+        TransactionReader txReader = new TransactionReader();
+        try {
+            for (Protos.Transaction txProto : walletProto.getTransactionList())
+                txReader.add(txProto);
+            return readWallet(params, extensions, walletProto, txReader, 0);
+        } finally {
+            txReader.shutdown();
+        }
+    }
+
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet walletProto, TransactionReader txReader, long parseTime)
+            throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
             throw new UnreadableWalletException.WrongNetwork();
 
+        // Transactions are built on other threads whilst the keys are read here.
+        txReader.setParams(params);
+        long start = System.currentTimeMillis();
+
         // Read the scrypt parameters that specify how encryption and decryption is performed.
         KeyChainGroup chain;
         if (walletProto.hasEncryptionParameters()) {
@@ -433,6 +477,7 @@ public class WalletProtobufSerializer {
             chain = KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList(), keyChainFactory);
         }
         Wallet wallet = factory.create(params, chain);
+        long keysTime = System.currentTimeMillis() - start;
 
         List<Script> scripts = Lists.newArrayList();
         for (Protos.Script protoScript : walletProto.getWatchedScriptList()) {
@@ -452,16 +497,25 @@ public class WalletProtobufSerializer {
             wallet.setDescription(walletProto.getDescription());
         }
 
-        // Read all transactions and insert into the txMap.
-        for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-            readTransaction(txProto, wallet.getParams());
+        // Collect all transactions and insert into the txMap.
+        start = System.currentTimeMillis();
+        List<Transaction> txns = txReader.finish();
+        for (int i = 0; i < txns.size(); i++) {
+            ByteString hash = walletProto.getTransaction(i).getHash();
+            if (txMap.containsKey(hash))
+                throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(hash));
+            txMap.put(hash, txns.get(i));
         }
+        long txnsTime = System.currentTimeMillis() - start;
 
         // Update transaction outputs to point to inputs that spend them
+        start = System.currentTimeMillis();
         for (Protos.Transaction txProto : walletProto.getTransactionList()) {
             WalletTransaction wtx = connectTransactionOutputs(txProto);
             wallet.addWalletTransaction(wtx);
         }
+        long connectTime = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
 
         // Update the lastBlockSeenHash.
         if (!walletProto.hasLastSeenBlockHash()) {
@@ -506,6 +560,10 @@ public class WalletProtobufSerializer {
         // Make sure the object can be re-used to read another wallet without corruption.
         txMap.clear();
 
+        log.info("Read wallet with {} keys and {} transactions: parsing {}ms, keys {}ms, waiting for transactions {}ms, " +
+                "connecting transactions {}ms, the rest {}ms", walletProto.getKeyCount(), txns.size(), parseTime,
+                keysTime, txnsTime, connectTime, System.currentTimeMillis() - start);
+
         return wallet;
     }
 
@@ -551,7 +609,127 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    /**
+     * Like {@link #parseToProto(InputStream)}, but hands each transaction to the given reader as soon as it has been
+     * parsed, so that building them can overlap with parsing the rest of the wallet.
+     */
+    private static Protos.Wallet parseToProto(InputStream input, TransactionReader txReader) throws IOException {
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        codedInput.setSizeLimit(WALLET_SIZE_LIMIT);
+        // Everything but the transactions is collected as is and parsed at the end.
+        UnknownFieldSet.Builder otherFields = UnknownFieldSet.newBuilder();
+        List<Protos.Transaction> txProtos = new ArrayList<Protos.Transaction>();
+        while (true) {
+            int tag = codedInput.readTag();
+            if (tag == 0)
+                break;
+            int field = WireFormat.getTagFieldNumber(tag);
+            int wireType = tag & 7;  // WireFormat.getTagWireType isn't public.
+            if (field == Protos.Wallet.TRANSACTION_FIELD_NUMBER && wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                Protos.Transaction txProto = codedInput.readMessage(Protos.Transaction.PARSER,
+                        ExtensionRegistryLite.getEmptyRegistry());
+                txProtos.add(txProto);
+                txReader.add(txProto);
+            } else if (field == Protos.Wallet.NETWORK_IDENTIFIER_FIELD_NUMBER
+                    && wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                String id = codedInput.readString();
+                otherFields.addField(field, UnknownFieldSet.Field.newBuilder()
+                        .addLengthDelimited(ByteString.copyFromUtf8(id)).build());
+                NetworkParameters params = NetworkParameters.fromID(id);
+                if (params != null)
+                    txReader.setParams(params);
+            } else if (!otherFields.mergeFieldFrom(tag, codedInput)) {
+                break;
+            }
+        }
+        Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
+        walletBuilder.mergeFrom(otherFields.build().toByteString());
+        walletBuilder.addAllTransaction(txProtos);
+        return walletBuilder.build();
+    }
+
+    /**
+     * Builds {@link Transaction}s from their protos in batches on a pool of threads, whilst the rest of the wallet is
+     * read. Wallets with no more than one batch of transactions are read on the calling thread.
+     */
+    private static class TransactionReader {
+        private static final int BATCH_SIZE = 500;
+
+        @Nullable private NetworkParameters params;
+        private List<Protos.Transaction> batch = new ArrayList<Protos.Transaction>(BATCH_SIZE);
+        // Full batches waiting for the network parameters to be known.
+        private final List<List<Protos.Transaction>> waiting = new ArrayList<List<Protos.Transaction>>();
+        private final List<Future<List<Transaction>>> results = new ArrayList<Future<List<Transaction>>>();
+        @Nullable private ExecutorService executor;
+
+        public void setParams(NetworkParameters params) {
+            if (this.params != null)
+                return;
+            this.params = params;
+            for (List<Protos.Transaction> protos : waiting)
+                submit(protos);
+            waiting.clear();
+        }
+
+        public void add(Protos.Transaction txProto) {
+            batch.add(txProto);
+            if (batch.size() == BATCH_SIZE) {
+                if (params != null)
+                    submit(batch);
+                else
+                    waiting.add(batch);
+                batch = new ArrayList<Protos.Transaction>(BATCH_SIZE);
+            }
+        }
+
+        private void submit(final List<Protos.Transaction> protos) {
+            final NetworkParameters params = checkNotNull(this.params);
+            if (executor == null) {
+                Context.getOrCreate(params);
+                executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                        new ContextPropagatingThreadFactory("Wallet transaction reader"));
+            }
+            results.add(executor.submit(new Callable<List<Transaction>>() {
+                @Override
+                public List<Transaction> call() throws Exception {
+                    return readTransactions(protos, params);
+                }
+            }));
+        }
+
+        /** Returns all transactions in the order they were added, once they have been built. */
+        public List<Transaction> finish() throws UnreadableWalletException {
+            NetworkParameters params = checkNotNull(this.params);
+            List<Transaction> txns = new ArrayList<Transaction>();
+            try {
+                for (Future<List<Transaction>> result : results)
+                    txns.addAll(result.get());
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), UnreadableWalletException.class);
+                throw new RuntimeException(e.getCause());
+            }
+            // The last batch isn't worth handing to another thread.
+            txns.addAll(readTransactions(batch, params));
+            return txns;
+        }
+
+        public void shutdown() {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+    }
+
+    private static List<Transaction> readTransactions(List<Protos.Transaction> txProtos, NetworkParameters params)
+            throws UnreadableWalletException {
+        List<Transaction> txns = new ArrayList<Transaction>(txProtos.size());
+        for (Protos.Transaction txProto : txProtos)
+            txns.add(readTransaction(txProto, params));
+        return txns;
+    }
+
+    private static Transaction readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
         if (txProto.hasUpdatedAt()) {
             tx.setUpdateTime(new Date(txProto.getUpdatedAt()));
@@ -618,30 +796,12 @@ public class WalletProtobufSerializer {
         Sha256Hash protoHash = byteStringToHash(txProto.getHash());
         if (!tx.getHash().equals(protoHash))
             throw new UnreadableWalletException(String.format(Locale.US, "Transaction did not deserialize completely: %s vs %s", tx.getHash(), protoHash));
-        if (txMap.containsKey(txProto.getHash()))
-            throw new UnreadableWalletException("Wallet contained duplicate transaction " + byteStringToHash(txProto.getHash()));
-        txMap.put(txProto.getHash(), tx);
+        return tx;
     }
 
     private WalletTransaction connectTransactionOutputs(org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
-        final WalletTransaction.Pool pool;
-        switch (txProto.getPool()) {
-            case DEAD: pool = WalletTransaction.Pool.DEAD; break;
-            case PENDING: pool = WalletTransaction.Pool.PENDING; break;
-            case SPENT: pool = WalletTransaction.Pool.SPENT; break;
-            case UNSPENT: pool = WalletTransaction.Pool.UNSPENT; break;
-            // Upgrade old wallets: inactive pool has been merged with the pending pool.
-            // Remove this some time after 0.9 is old and everyone has upgraded.
-            // There should not be any spent outputs in this tx as old wallets would not allow them to be spent
-            // in this state.
-            case INACTIVE:
-            case PENDING_INACTIVE:
-                pool = WalletTransaction.Pool.PENDING;
-                break;
-            default:
-                throw new UnreadableWalletException("Unknown transaction pool: " + txProto.getPool());
-        }
+        final WalletTransaction.Pool pool = readPool(txProto);
         for (int i = 0 ; i < tx.getOutputs().size() ; i++) {
             TransactionOutput output = tx.getOutputs().get(i);
             final Protos.TransactionOutput transactionOutput = txProto.getTransactionOutput(i);
@@ -667,6 +827,37 @@ public class WalletProtobufSerializer {
         return new WalletTransaction(pool, tx);
     }
 
+    /**
+     * Reads a transaction written on its own by {@link #makeTxProto(WalletTransaction)}, outside of a wallet. Its
+     * outputs aren't connected to the transactions spending them and an overriding transaction isn't restored, as
+     * those aren't available.
+     */
+    WalletTransaction readWalletTransaction(Protos.Transaction txProto, NetworkParameters params)
+            throws UnreadableWalletException {
+        Transaction tx = readTransaction(txProto, params);
+        if (txProto.hasConfidence())
+            readConfidence(tx, txProto.getConfidence(), tx.getConfidence());
+        return new WalletTransaction(readPool(txProto), tx);
+    }
+
+    private static WalletTransaction.Pool readPool(Protos.Transaction txProto) throws UnreadableWalletException {
+        switch (txProto.getPool()) {
+            case DEAD: return WalletTransaction.Pool.DEAD;
+            case PENDING: return WalletTransaction.Pool.PENDING;
+            case SPENT: return WalletTransaction.Pool.SPENT;
+            case UNSPENT: return WalletTransaction.Pool.UNSPENT;
+            // Upgrade old wallets: inactive pool has been merged with the pending pool.
+            // Remove this some time after 0.9 is old and everyone has upgraded.
+            // There should not be any spent outputs in this tx as old wallets would not allow them to be spent
+            // in this state.
+            case INACTIVE:
+            case PENDING_INACTIVE:
+                return WalletTransaction.Pool.PENDING;
+            default:
+                throw new UnreadableWalletException("Unknown transaction pool: " + txProto.getPool());
+        }
+    }
+
     private void readConfidence(Transaction tx, Protos.TransactionConfidence confidenceProto,
                                 TransactionConfidence confidence) throws UnreadableWalletException {
         // We are lenient here because tx confidence is not an essential part of the wallet.
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.base.Throwables;
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PrunedException;
+import org.bitcoinj.core.VerificationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Imports block files stored in the reference/Satoshi client format into a block chain, like
+ * {@link BlockFileLoader} does, but splits the work into three stages that run at the same time:</p>
+ *
+ * <ol>
+ *     <li>A reader thread memory maps each file and slices out the raw blocks.</li>
+ *     <li>A pool of threads deserializes the blocks and checks them against their merkle roots.</li>
+ *     <li>The calling thread connects the blocks to the chain, in the order they appear in the files.</li>
+ * </ol>
+ *
+ * <p>At most a fixed number of blocks are in flight between the reader and the chain, so a slow chain (for example
+ * a {@link org.bitcoinj.core.FullPrunedBlockChain}) holds the reader back rather than filling up the heap.
+ * Blocks that fail to parse or don't match their merkle root are logged and skipped, as with
+ * {@link BlockFileLoader}.</p>
+ *
+ * <p>A pipeline can only be run once:</p>
+ *
+ * <pre>
+ * BlockImportPipeline pipeline = new BlockImportPipeline(params, BlockFileLoader.getReferenceClientBlockFileList());
+ * pipeline.importInto(chain);
+ * </pre>
+ */
+public class BlockImportPipeline {
+    private static final Logger log = LoggerFactory.getLogger(BlockImportPipeline.class);
+
+    /** The default number of blocks that may be read ahead of the chain. */
+    public static final int DEFAULT_MAX_BLOCKS_IN_FLIGHT = 256;
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 10 * 1000;
+
+    private final NetworkParameters params;
+    private final List<File> files;
+    private final int parserThreads;
+    private final BlockingQueue<Future<ParsedBlock>> inFlight;
+
+    // Marks the end of the input in the inFlight queue.
+    private final Future<ParsedBlock> endOfInput = new FutureTask<ParsedBlock>(new Callable<ParsedBlock>() {
+        @Override
+        public ParsedBlock call() throws Exception {
+            return null;
+        }
+    });
+
+    @Nullable private volatile Throwable readFailure;
+    private boolean started;
+
+    private volatile long startTime;
+    private volatile long endTime;
+    private volatile long blocksConnected;
+    private volatile long bytesConnected;
+    private volatile long blocksSkipped;
+
+    /**
+     * Creates a pipeline that reads the given files, parsing with one thread per available processor.
+     */
+    public BlockImportPipeline(NetworkParameters params, List<File> files) {
+        this(params, files, Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_BLOCKS_IN_FLIGHT);
+    }
+
+    /**
+     * Creates a pipeline that reads the given files, parsing with the given number of threads and reading at most
+     * maxBlocksInFlight blocks ahead of the chain.
+     */
+    public BlockImportPipeline(NetworkParameters params, List<File> files, int parserThreads, int maxBlocksInFlight) {
+        checkArgument(parserThreads > 0);
+        checkArgument(maxBlocksInFlight > 0);
+        this.params = params;
+        this.files = new ArrayList<File>(files);
+        this.parserThreads = parserThreads;
+        this.inFlight = new ArrayBlockingQueue<Future<ParsedBlock>>(maxBlocksInFlight);
+    }
+
+    /**
+     * Reads all blocks from the files and adds them to the given chain, returning once the last one has been added.
+     * Blocks that are found out of order are handled by the chain as orphans.
+     *
+     * @throws IOException if one of the files couldn't be read. Blocks read up until then have been added.
+     */
+    public void importInto(AbstractBlockChain chain) throws IOException, InterruptedException, VerificationException,
+            PrunedException {
+        synchronized (this) {
+            checkState(!started, "A pipeline can only be run once");
+            started = true;
+        }
+        final ExecutorService parsers = Executors.newFixedThreadPool(parserThreads,
+                new ContextPropagatingThreadFactory("Block import parser"));
+        Thread reader = new ContextPropagatingThreadFactory("Block import reader").newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (File file : files)
+                        readFile(file, parsers);
+                } catch (InterruptedException e) {
+                    // The import was stopped.
+                    return;
+                } catch (Throwable t) {
+                    readFailure = t;
+                }
+                try {
+                    inFlight.put(endOfInput);
+                } catch (InterruptedException e) {
+                    // The import was stopped.
+                }
+            }
+        });
+        startTime = System.currentTimeMillis();
+        long lastProgress = startTime;
+        reader.start();
+        try {
+            while (true) {
+                Future<ParsedBlock> future = inFlight.take();
+                if (future == endOfInput)
+                    break;
+                ParsedBlock parsed;
+                try {
+                    parsed = future.get();
+                } catch (ExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
+                }
+                if (parsed.block == null) {
+                    blocksSkipped++;
+                    continue;
+                }
+                chain.add(parsed.block);
+                blocksConnected++;
+                bytesConnected += parsed.size;
+                long now = System.currentTimeMillis();
+                if (now - lastProgress >= PROGRESS_INTERVAL_MILLIS) {
+                    lastProgress = now;
+                    logProgress();
+                }
+            }
+        } finally {
+            endTime = System.currentTimeMillis();
+            reader.interrupt();
+            parsers.shutdownNow();
+        }
+        logProgress();
+        if (readFailure != null) {
+            Throwables.propagateIfPossible(readFailure, IOException.class);
+            throw new RuntimeException(readFailure);
+        }
+    }
+
+    private void readFile(File file, ExecutorService parsers) throws IOException, InterruptedException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // Block files are at most 128MB, so the whole file fits into one mapping.
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            int magic = (int) params.getPacketMagic();
+            while (buffer.remaining() >= 8) {
+                int position = buffer.position();
+                // The magic is stored big endian, the same byte order the buffer uses.
+                if (buffer.getInt(position) != magic) {
+                    buffer.position(position + 1);
+                    continue;
+                }
+                buffer.position(position + 4);
+                int size = Integer.reverseBytes(buffer.getInt());
+                // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+                if (size <= 0 || size > Block.MAX_BLOCK_SIZE * 2)
+                    continue;
+                if (size > buffer.remaining()) {
+                    log.warn("Truncated block at the end of {}", file);
+                    break;
+                }
+                byte[] bytes = new byte[size];
+                buffer.get(bytes);
+                FutureTask<ParsedBlock> task = new FutureTask<ParsedBlock>(new ParseTask(bytes));
+                // Blocks when too many blocks are waiting for the chain.
+                inFlight.put(task);
+                parsers.execute(task);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static class ParsedBlock {
+        @Nullable final Block block;
+        final int size;
+
+        ParsedBlock(@Nullable Block block, int size) {
+            this.block = block;
+            this.size = size;
+        }
+    }
+
+    private class ParseTask implements Callable<ParsedBlock> {
+        private final byte[] bytes;
+
+        ParseTask(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public ParsedBlock call() throws Exception {
+            try {
+                Block block = new Block(params, bytes);
+                // Hashes every transaction and checks the merkle root, which the chain would otherwise do itself on
+                // the single connecting thread.
+                block.verifyTransactions();
+                return new ParsedBlock(block, bytes.length);
+            } catch (VerificationException e) {
+                log.warn("Skipping invalid block: {}", e.getMessage());
+                return new ParsedBlock(null, bytes.length);
+            }
+        }
+    }
+
+    private void logProgress() {
+        log.info("Imported {} blocks ({} skipped), {} blocks/s, {} MB/s", blocksConnected, blocksSkipped,
+                String.format("%.1f", getBlocksPerSecond()), String.format("%.2f", getMegabytesPerSecond()));
+    }
+
+    /** Returns the number of blocks that have been added to the chain so far. */
+    public long getBlocksConnected() {
+        return blocksConnected;
+    }
+
+    /** Returns the number of blocks that were skipped because they couldn't be parsed or were invalid. */
+    public long getBlocksSkipped() {
+        return blocksSkipped;
+    }
+
+    /** Returns the serialized size of all blocks that have been added to the chain so far. */
+    public long getBytesConnected() {
+        return bytesConnected;
+    }
+
+    /** Returns the time spent importing, or zero if the import wasn't started. */
+    public long getElapsedMillis() {
+        if (startTime == 0)
+            return 0;
+        return (endTime != 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    /** Returns the average number of blocks added to the chain per second. */
+    public double getBlocksPerSecond() {
+        long elapsed = Math.max(getElapsedMillis(), 1);
+        return blocksConnected * 1000.0 / elapsed;
+    }
+
+    /** Returns the average number of megabytes of blocks added to the chain per second. */
+    public double getMegabytesPerSecond() {
+        long elapsed = Math.max(getElapsedMillis(), 1);
+        return bytesConnected * 1000.0 / elapsed / (1024 * 1024);
+    }
+}
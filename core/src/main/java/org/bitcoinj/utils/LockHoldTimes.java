@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSortedMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects how long a lock was held by each of the operations that report to it, so that lock contention can be
+ * measured. Operations call {@link #record(String, long)} right before they release the lock. This class is thread
+ * safe.
+ */
+public class LockHoldTimes {
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    /** The number of times an operation held the lock, and for how long in total and at most. */
+    public static class Stats {
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        private Stats() {
+        }
+
+        private Stats(Stats other) {
+            synchronized (other) {
+                this.count = other.count;
+                this.totalNanos = other.totalNanos;
+                this.maxNanos = other.maxNanos;
+            }
+        }
+
+        private synchronized void add(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalTime(TimeUnit unit) {
+            return unit.convert(totalNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public long getMaxTime(TimeUnit unit) {
+            return unit.convert(maxNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this).add("count", count)
+                    .add("totalMicros", TimeUnit.NANOSECONDS.toMicros(totalNanos))
+                    .add("maxMicros", TimeUnit.NANOSECONDS.toMicros(maxNanos)).toString();
+        }
+    }
+
+    /**
+     * Records that the given operation held the lock since the given time, as returned by {@link System#nanoTime()}
+     * when the lock was acquired.
+     */
+    public void record(String operation, long lockedAtNanos) {
+        long nanos = System.nanoTime() - lockedAtNanos;
+        Stats operationStats = stats.get(operation);
+        if (operationStats == null) {
+            Stats newStats = new Stats();
+            operationStats = stats.putIfAbsent(operation, newStats);
+            if (operationStats == null)
+                operationStats = newStats;
+        }
+        operationStats.add(nanos);
+    }
+
+    /** Returns a copy of the statistics collected so far, by operation. */
+    public Map<String, Stats> getStats() {
+        ImmutableSortedMap.Builder<String, Stats> copy = ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<String, Stats> entry : stats.entrySet())
+            copy.put(entry.getKey(), new Stats(entry.getValue()));
+        return copy.build();
+    }
+
+    /** Forgets everything collected so far. */
+    public void reset() {
+        stats.clear();
+    }
+
+    @Override
+    public String toString() {
+        return getStats().toString();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import com.google.common.primitives.Longs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A {@link CoinSelector} that looks for a set of outputs adding up to exactly the target, or to no more than
+ * the cost of creating a change output above it. Such a spend needs no change output, which saves fees now and
+ * avoids splitting the wallet into ever smaller coins.</p>
+ *
+ * <p>The search is a depth first branch and bound over the outputs ordered by value, as done by Bitcoin Core. It is
+ * bounded both in the number of steps and in time. If it doesn't find a match, the selection is left to a
+ * {@link DefaultCoinSelector}, which also decides which outputs may be spent at all.</p>
+ *
+ * <p>Candidates that are already ordered by value, largest first, aren't sorted again. The spend candidates of a
+ * {@link org.bitcoinj.core.Wallet} are kept in that order.</p>
+ */
+public class BranchAndBoundCoinSelector implements CoinSelector {
+    private static final Logger log = LoggerFactory.getLogger(BranchAndBoundCoinSelector.class);
+
+    /** Excess value that isn't worth a change output: it would be dust, so it goes to the miners. */
+    public static final Coin DEFAULT_COST_OF_CHANGE = Transaction.MIN_NONDUST_OUTPUT;
+    /** How many steps the search takes at most, the same limit as Bitcoin Core uses. */
+    public static final int MAX_TRIES = 100000;
+    public static final long DEFAULT_TIME_LIMIT_MILLIS = 50;
+
+    private final Coin costOfChange;
+    private final long timeLimitNanos;
+    private final DefaultCoinSelector fallback;
+
+    public BranchAndBoundCoinSelector() {
+        this(DEFAULT_COST_OF_CHANGE, DEFAULT_TIME_LIMIT_MILLIS, new DefaultCoinSelector());
+    }
+
+    /**
+     * @param costOfChange how much value over the target may be spent rather than returned as change
+     * @param timeLimitMillis how long the search may run for before giving up
+     * @param fallback picks the outputs if no match is found, and its {@link DefaultCoinSelector#shouldSelect}
+     *                 decides which outputs are considered
+     */
+    public BranchAndBoundCoinSelector(Coin costOfChange, long timeLimitMillis, DefaultCoinSelector fallback) {
+        checkArgument(costOfChange.signum() >= 0, "Negative cost of change: %s", costOfChange);
+        checkArgument(timeLimitMillis > 0, "Time limit must be positive: %s", timeLimitMillis);
+        this.costOfChange = costOfChange;
+        this.timeLimitNanos = TimeUnit.MILLISECONDS.toNanos(timeLimitMillis);
+        this.fallback = checkNotNull(fallback);
+    }
+
+    // An output and its value, so the sort and the search work on a primitive.
+    private static class Candidate {
+        final TransactionOutput output;
+        final long value;
+
+        Candidate(TransactionOutput output) {
+            this.output = output;
+            this.value = output.getValue().value;
+        }
+    }
+
+    private static final Comparator<Candidate> BY_VALUE_DESCENDING = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            return Longs.compare(b.value, a.value);
+        }
+    };
+
+    /** Returns the selector used when no match is found. */
+    public DefaultCoinSelector getFallback() {
+        return fallback;
+    }
+
+    @Override
+    public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+        CoinSelection selection = selectExactly(target, candidates);
+        return selection != null ? selection : fallback.select(target, candidates);
+    }
+
+    /**
+     * Returns a selection gathering at least the target and at most the target plus the cost of change, with the
+     * least excess that the search could find, or null if it didn't find any.
+     */
+    public CoinSelection selectExactly(Coin target, List<TransactionOutput> candidates) {
+        if (target.signum() <= 0)
+            return null;
+        List<Candidate> eligible = new ArrayList<Candidate>(candidates.size());
+        long available = 0;
+        boolean inOrder = true;
+        for (TransactionOutput output : candidates) {
+            Transaction parent = output.getParentTransaction();
+            if (output.getValue().signum() > 0 && fallback.shouldSelect(parent)) {
+                Candidate candidate = new Candidate(output);
+                if (!eligible.isEmpty() && eligible.get(eligible.size() - 1).value < candidate.value)
+                    inOrder = false;
+                eligible.add(candidate);
+                available += candidate.value;
+            }
+        }
+        // Also covers the wallet asking for everything to calculate its balance.
+        if (available < target.value)
+            return null;
+        Candidate[] sorted = eligible.toArray(new Candidate[eligible.size()]);
+        if (!inOrder)
+            Arrays.sort(sorted, BY_VALUE_DESCENDING);
+        long[] values = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++)
+            values[i] = sorted[i].value;
+
+        boolean[] best = search(values, available, target.value, target.value + costOfChange.value);
+        if (best == null)
+            return null;
+        List<TransactionOutput> gathered = new ArrayList<TransactionOutput>();
+        long total = 0;
+        for (int i = 0; i < best.length; i++) {
+            if (best[i]) {
+                gathered.add(sorted[i].output);
+                total += values[i];
+            }
+        }
+        return new CoinSelection(Coin.valueOf(total), gathered);
+    }
+
+    /**
+     * Walks the tree of include/exclude decisions over the values, largest first, cutting branches that overshoot
+     * the upper bound or can no longer reach the target. Returns which values make up the best match, or null.
+     */
+    private boolean[] search(long[] values, long available, long target, long upperBound) {
+        final long deadline = System.nanoTime() + timeLimitNanos;
+        boolean[] selection = new boolean[values.length];
+        int depth = 0;  // Number of values decided on, the next one to decide is values[depth].
+        long selected = 0;
+        boolean[] best = null;
+        long bestExcess = Long.MAX_VALUE;
+        for (int tries = 0; tries < MAX_TRIES; tries++) {
+            boolean backtrack = false;
+            if (selected + available < target || selected > upperBound) {
+                backtrack = true;
+            } else if (selected >= target) {
+                long excess = selected - target;
+                if (excess < bestExcess) {
+                    best = Arrays.copyOf(selection, depth);
+                    bestExcess = excess;
+                    if (excess == 0)
+                        break;
+                }
+                backtrack = true;
+            }
+            if (backtrack) {
+                // Undo the excluded values at the end, then exclude the last included one instead.
+                while (depth > 0 && !selection[depth - 1]) {
+                    depth--;
+                    available += values[depth];
+                }
+                if (depth == 0)
+                    break;  // Tried everything.
+                selection[depth - 1] = false;
+                selected -= values[depth - 1];
+            } else {
+                long value = values[depth];
+                available -= value;
+                // Including a value equal to one we just excluded would only repeat that branch.
+                boolean include = depth == 0 || selection[depth - 1] || values[depth - 1] != value;
+                selection[depth++] = include;
+                if (include)
+                    selected += value;
+            }
+            if ((tries & 1023) == 0 && System.nanoTime() - deadline > 0) {
+                log.info("Gave up searching for an exact match after {} tries", tries);
+                break;
+            }
+        }
+        if (best == null)
+            return null;
+        return Arrays.copyOf(best, values.length);
+    }
+}
@@ -7,6 +7,10 @@ import org.bitcoinj.core.TransactionConfidence;
 import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.params.RegTestParams;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.Longs;
+import com.google.common.primitives.UnsignedBytes;
+
+import javax.annotation.Nullable;
 
 import java.math.BigInteger;
 import java.util.*;
@@ -45,26 +49,51 @@ public class DefaultCoinSelector implements CoinSelector {
     }
 
     @VisibleForTesting static void sortOutputs(ArrayList<TransactionOutput> outputs) {
-        Collections.sort(outputs, new Comparator<TransactionOutput>() {
-            @Override
-            public int compare(TransactionOutput a, TransactionOutput b) {
-                int depth1 = a.getParentTransactionDepthInBlocks();
-                int depth2 = b.getParentTransactionDepthInBlocks();
-                Coin aValue = a.getValue();
-                Coin bValue = b.getValue();
-                BigInteger aCoinDepth = BigInteger.valueOf(aValue.value).multiply(BigInteger.valueOf(depth1));
-                BigInteger bCoinDepth = BigInteger.valueOf(bValue.value).multiply(BigInteger.valueOf(depth2));
-                int c1 = bCoinDepth.compareTo(aCoinDepth);
-                if (c1 != 0) return c1;
-                // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
-                int c2 = bValue.compareTo(aValue);
-                if (c2 != 0) return c2;
-                // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
-                BigInteger aHash = a.getParentTransactionHash().toBigInteger();
-                BigInteger bHash = b.getParentTransactionHash().toBigInteger();
-                return aHash.compareTo(bHash);
+        // Work out what to sort by once per output, rather than on every comparison.
+        SortKey[] keys = new SortKey[outputs.size()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = new SortKey(outputs.get(i));
+        Arrays.sort(keys);
+        for (int i = 0; i < keys.length; i++)
+            outputs.set(i, keys[i].output);
+    }
+
+    private static class SortKey implements Comparable<SortKey> {
+        final TransactionOutput output;
+        final long value;
+        final long coinDepth;
+        // Only set if value*depth doesn't fit in a long, which takes a very large output buried very deep.
+        @Nullable final BigInteger bigCoinDepth;
+
+        SortKey(TransactionOutput output) {
+            this.output = output;
+            this.value = output.getValue().value;
+            int depth = output.getParentTransactionDepthInBlocks();
+            if (depth <= 0 || Math.abs(value) <= Long.MAX_VALUE / depth) {
+                this.coinDepth = value * depth;
+                this.bigCoinDepth = null;
+            } else {
+                this.coinDepth = 0;
+                this.bigCoinDepth = BigInteger.valueOf(value).multiply(BigInteger.valueOf(depth));
             }
-        });
+        }
+
+        private BigInteger getBigCoinDepth() {
+            return bigCoinDepth != null ? bigCoinDepth : BigInteger.valueOf(coinDepth);
+        }
+
+        @Override
+        public int compareTo(SortKey other) {
+            int c1 = bigCoinDepth == null && other.bigCoinDepth == null ? Longs.compare(other.coinDepth, coinDepth)
+                    : other.getBigCoinDepth().compareTo(getBigCoinDepth());
+            if (c1 != 0) return c1;
+            // The "coin*days" destroyed are equal, sort by value alone to get the lowest transaction size.
+            int c2 = Longs.compare(other.value, value);
+            if (c2 != 0) return c2;
+            // They are entirely equivalent (possibly pending) so sort by hash to ensure a total ordering.
+            return UnsignedBytes.lexicographicalComparator().compare(output.getParentTransactionHash().getBytes(),
+                    other.output.getParentTransactionHash().getBytes());
+        }
     }
 
     /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
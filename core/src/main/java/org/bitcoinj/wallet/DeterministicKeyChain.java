@@ -23,8 +23,11 @@ import org.bitcoinj.core.Utils;
 import org.bitcoinj.crypto.*;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.store.UnreadableWalletException;
+import org.bitcoinj.utils.DaemonThreadFactory;
 import org.bitcoinj.utils.Threading;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.PeekingIterator;
@@ -37,7 +40,12 @@ import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -126,6 +134,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     // yet. For new chains it's set to whatever the default is, unless overridden by setLookaheadSize. For deserialized
     // chains, it will be calculated on demand from the number of loaded keys.
     private static final int LAZY_CALCULATE_LOOKAHEAD = -1;
+    // Below this many lookahead keys, handing them to other threads costs more than it saves.
+    private static final int PARALLEL_DERIVATION_THRESHOLD = 64;
+    @Nullable private static ExecutorService derivationExecutor;
     protected int lookaheadSize = 100;
     // The lookahead threshold causes us to batch up creation of new keys to minimize the frequency of Bloom filter
     // regenerations, which are expensive and will (in future) trigger chain download stalls/retries. One third
@@ -1172,20 +1183,94 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
         log.info("{} keys needed for {} = {} issued + {} lookahead size + {} lookahead threshold - {} num children",
                 needed, parent.getPathAsString(), issued, lookaheadSize, lookaheadThreshold, numChildren);
 
-        List<DeterministicKey> result  = new ArrayList<DeterministicKey>(needed);
         long now = System.currentTimeMillis();
-        int nextChild = numChildren;
-        for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
-            key = key.dropPrivateBytes();
+        List<DeterministicKey> result = deriveLookaheadKeys(parent, numChildren, needed,
+                Runtime.getRuntime().availableProcessors());
+        for (DeterministicKey key : result)
             hierarchy.putKey(key);
-            result.add(key);
-            nextChild = key.getChildNumber().num() + 1;
-        }
         log.info("Took {} msec", System.currentTimeMillis() - now);
         return result;
     }
 
+    /**
+     * Derives the given number of children of the parent, starting at the given child number and skipping any that
+     * are invalid. Lookahead keys only ever need their public half, so they are derived from the parent's public key,
+     * and big batches are split up to be derived on other threads.
+     */
+    @VisibleForTesting
+    static List<DeterministicKey> deriveLookaheadKeys(DeterministicKey parent, int firstChild, int count, int batches) {
+        if (count >= PARALLEL_DERIVATION_THRESHOLD && batches > 1) {
+            try {
+                List<DeterministicKey> result = deriveLookaheadKeysInParallel(parent, firstChild, count, batches);
+                if (result != null)
+                    return result;
+            } catch (HDDerivationException e) {
+                // One of the children is invalid, which is astronomically unlikely. The loop below skips it, which
+                // moves all the following keys along by one.
+                log.warn("Invalid child of {}, deriving one at a time: {}", parent.getPathAsString(), e.getMessage());
+            }
+        }
+        List<DeterministicKey> result = new ArrayList<DeterministicKey>(count);
+        for (int nextChild = firstChild; result.size() < count; nextChild++) {
+            try {
+                result.add(derivePublicChildKey(parent, new ChildNumber(nextChild)));
+            } catch (HDDerivationException e) {
+                log.warn("Skipping invalid child {} of {}", nextChild, parent.getPathAsString());
+            }
+        }
+        return result;
+    }
+
+    /** Returns null if interrupted, leaving the work to the calling thread. */
+    @Nullable
+    private static List<DeterministicKey> deriveLookaheadKeysInParallel(final DeterministicKey parent, int firstChild,
+                                                                        int count, int numBatches) {
+        // Decode the parent's public key up front instead of in each of the threads.
+        parent.getPubKeyPoint();
+        int batchSize = (count + numBatches - 1) / numBatches;
+        List<Callable<List<DeterministicKey>>> batches = new ArrayList<Callable<List<DeterministicKey>>>(numBatches);
+        for (int start = firstChild; start < firstChild + count; start += batchSize) {
+            final int from = start;
+            final int to = Math.min(start + batchSize, firstChild + count);
+            batches.add(new Callable<List<DeterministicKey>>() {
+                @Override
+                public List<DeterministicKey> call() {
+                    List<DeterministicKey> keys = new ArrayList<DeterministicKey>(to - from);
+                    for (int child = from; child < to; child++)
+                        keys.add(derivePublicChildKey(parent, new ChildNumber(child)));
+                    return keys;
+                }
+            });
+        }
+        List<DeterministicKey> result = new ArrayList<DeterministicKey>(count);
+        try {
+            for (Future<List<DeterministicKey>> batch : getDerivationExecutor().invokeAll(batches))
+                result.addAll(batch.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), HDDerivationException.class);
+            throw Throwables.propagate(e.getCause());
+        }
+        return result;
+    }
+
+    /** The same key as deriving the child from the private key and then dropping the private bytes would give. */
+    private static DeterministicKey derivePublicChildKey(DeterministicKey parent, ChildNumber childNumber) {
+        HDKeyDerivation.RawKeyBytes rawKey = HDKeyDerivation.deriveChildKeyBytesFromPublic(parent, childNumber,
+                HDKeyDerivation.PublicDeriveMode.NORMAL);
+        return new DeterministicKey(HDUtils.append(parent.getPath(), childNumber), rawKey.chainCode,
+                new LazyECPoint(ECKey.CURVE.getCurve(), rawKey.keyBytes), null, parent);
+    }
+
+    private static synchronized ExecutorService getDerivationExecutor() {
+        if (derivationExecutor == null)
+            derivationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new DaemonThreadFactory("Key derivation"));
+        return derivationExecutor;
+    }
+
     /** Housekeeping call to call when lookahead might be needed.  Normally called automatically by KeychainGroup. */
     public void maybeLookAheadScripts() {
     }
@@ -1374,4 +1459,9 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
     public RedeemData findRedeemDataByScriptHash(ByteString bytes) {
         return null;
     }
+
+    /** Returns all redeem data this keychain generated, by script hash. */
+    /* package */ Map<ByteString, RedeemData> getRedeemDataByScriptHash() {
+        return Collections.emptyMap();
+    }
 }
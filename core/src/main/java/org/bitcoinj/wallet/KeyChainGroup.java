@@ -75,6 +75,32 @@ public class KeyChainGroup implements KeyBag {
     private int lookaheadSize = -1;
     private int lookaheadThreshold = -1;
 
+    // The keys and married redeem data of all chains by hash, so that finding out whether something is ours takes one
+    // lookup instead of one per chain. They are built when first needed, keys issued after that are added by
+    // keyIndexUpdater as they appear, and anything else that changes the chains sets them back to null.
+    @Nullable private KeyHashIndex<ECKey> keysByPubKeyHash;
+    @Nullable private KeyHashIndex<RedeemData> redeemDataByScriptHash;
+    private final KeyChainEventListener keyIndexUpdater = new KeyChainEventListener() {
+        @Override
+        public void onKeysAdded(List<ECKey> keys) {
+            if (keysByPubKeyHash != null) {
+                for (ECKey key : keys)
+                    keysByPubKeyHash.putIfAbsent(key.getPubKeyHash(), key);
+            }
+            if (filter != null)
+                keysAddedSinceFilter.addAll(keys);
+        }
+    };
+
+    // The last Bloom filter built and its parameters. The next one with the same parameters is a copy of it with the
+    // keys added since inserted, unless something other than adding keys changed the chains. Filters for married
+    // chains, which hold scripts as well as keys, are always built from scratch.
+    @Nullable private BloomFilter filter;
+    private int filterSize;
+    private double filterFalsePositiveRate;
+    private long filterTweak;
+    private final List<ECKey> keysAddedSinceFilter = new ArrayList<ECKey>();
+
     /** Creates a keychain group with no basic chain, and a single, lazily created HD chain. */
     public KeyChainGroup(NetworkParameters params) {
         this(params, null, new ArrayList<DeterministicKeyChain>(1), null, null);
@@ -113,6 +139,9 @@ public class KeyChainGroup implements KeyBag {
                 ? new EnumMap<KeyChain.KeyPurpose, DeterministicKey>(KeyChain.KeyPurpose.class)
                 : currentKeys;
         this.currentAddresses = new EnumMap<KeyChain.KeyPurpose, Address>(KeyChain.KeyPurpose.class);
+        indexNewKeysOf(this.basic);
+        for (DeterministicKeyChain chain : this.chains)
+            indexNewKeysOf(chain);
         maybeLookaheadScripts();
 
         if (isMarried()) {
@@ -128,6 +157,56 @@ public class KeyChainGroup implements KeyBag {
         for (DeterministicKeyChain chain : chains) {
             chain.maybeLookAheadScripts();
         }
+        redeemDataByScriptHash = null;
+    }
+
+    private void indexNewKeysOf(KeyChain chain) {
+        chain.addEventListener(keyIndexUpdater, Threading.SAME_THREAD);
+    }
+
+    private void invalidateIndexes() {
+        keysByPubKeyHash = null;
+        redeemDataByScriptHash = null;
+        filter = null;
+        keysAddedSinceFilter.clear();
+    }
+
+    private KeyHashIndex<ECKey> getKeysByPubKeyHash() {
+        if (keysByPubKeyHash == null) {
+            // Same order as asking the chains one by one would give: imported keys first.
+            List<ECKey> basicKeys = basic.getKeys();
+            List<List<ECKey>> chainKeys = new ArrayList<List<ECKey>>(chains.size());
+            int size = basicKeys.size();
+            for (DeterministicKeyChain chain : chains) {
+                List<ECKey> keys = chain.getKeys(true);
+                chainKeys.add(keys);
+                size += keys.size();
+            }
+            KeyHashIndex<ECKey> index = new KeyHashIndex<ECKey>(size);
+            for (ECKey key : basicKeys)
+                index.putIfAbsent(key.getPubKeyHash(), key);
+            for (List<ECKey> keys : chainKeys)
+                for (ECKey key : keys)
+                    index.putIfAbsent(key.getPubKeyHash(), key);
+            keysByPubKeyHash = index;
+        }
+        return keysByPubKeyHash;
+    }
+
+    private KeyHashIndex<RedeemData> getRedeemDataByScriptHash() {
+        if (redeemDataByScriptHash == null) {
+            int size = 0;
+            for (DeterministicKeyChain chain : chains)
+                size += chain.getRedeemDataByScriptHash().size();
+            KeyHashIndex<RedeemData> index = new KeyHashIndex<RedeemData>(size);
+            // The active chain is the one most likely to have the hit, so it goes first.
+            for (Iterator<DeterministicKeyChain> iter = chains.descendingIterator(); iter.hasNext(); ) {
+                for (Map.Entry<ByteString, RedeemData> entry : iter.next().getRedeemDataByScriptHash().entrySet())
+                    index.putIfAbsent(entry.getKey().toByteArray(), entry.getValue());
+            }
+            redeemDataByScriptHash = index;
+        }
+        return redeemDataByScriptHash;
     }
 
     /** Adds a new HD chain to the chains list, and make it the default chain (from which keys are issued). */
@@ -150,6 +229,8 @@ public class KeyChainGroup implements KeyBag {
         if (lookaheadThreshold >= 0)
             chain.setLookaheadThreshold(lookaheadThreshold);
         chains.add(chain);
+        // The listeners copied from the basic chain included keyIndexUpdater.
+        invalidateIndexes();
     }
 
     /**
@@ -312,6 +393,8 @@ public class KeyChainGroup implements KeyBag {
 
     /** Imports the given keys into the basic chain, creating it if necessary. */
     public int importKeys(List<ECKey> keys) {
+        // Imported keys take precedence over deterministic ones with the same hash, so start the index over.
+        invalidateIndexes();
         return basic.importKeys(keys);
     }
 
@@ -348,14 +431,7 @@ public class KeyChainGroup implements KeyBag {
     @Override
     @Nullable
     public RedeemData findRedeemDataFromScriptHash(byte[] scriptHash) {
-        // Iterate in reverse order, since the active keychain is the one most likely to have the hit
-        for (Iterator<DeterministicKeyChain> iter = chains.descendingIterator() ; iter.hasNext() ; ) {
-            DeterministicKeyChain chain = iter.next();
-            RedeemData redeemData = chain.findRedeemDataByScriptHash(ByteString.copyFrom(scriptHash));
-            if (redeemData != null)
-                return redeemData;
-        }
-        return null;
+        return getRedeemDataByScriptHash().get(scriptHash);
     }
 
     public void markP2SHAddressAsUsed(Address address) {
@@ -377,14 +453,7 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubHash(pubkeyHash)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubHash(pubkeyHash)) != null)
-                return result;
-        }
-        return null;
+        return getKeysByPubKeyHash().get(pubkeyHash);
     }
 
     /**
@@ -439,14 +508,9 @@ public class KeyChainGroup implements KeyBag {
     @Nullable
     @Override
     public ECKey findKeyFromPubKey(byte[] pubkey) {
-        ECKey result;
-        if ((result = basic.findKeyFromPubKey(pubkey)) != null)
-            return result;
-        for (DeterministicKeyChain chain : chains) {
-            if ((result = chain.findKeyFromPubKey(pubkey)) != null)
-                return result;
-        }
-        return null;
+        // A key is indexed under the hash of its public key, so one lookup finds it whichever chain it is in.
+        ECKey result = getKeysByPubKeyHash().get(Utils.sha256hash160(pubkey));
+        return result != null && Arrays.equals(result.getPubKey(), pubkey) ? result : null;
     }
 
     /**
@@ -478,6 +542,7 @@ public class KeyChainGroup implements KeyBag {
     public boolean removeImportedKey(ECKey key) {
         checkNotNull(key);
         checkArgument(!(key instanceof DeterministicKey));
+        invalidateIndexes();
         return basic.removeKey(key);
     }
 
@@ -515,6 +580,7 @@ public class KeyChainGroup implements KeyBag {
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        reindexAllChains();
     }
 
     /**
@@ -535,6 +601,15 @@ public class KeyChainGroup implements KeyBag {
         basic = newBasic;
         chains.clear();
         chains.addAll(newChains);
+        reindexAllChains();
+    }
+
+    // After the chains were replaced by encrypted or decrypted copies.
+    private void reindexAllChains() {
+        indexNewKeysOf(basic);
+        for (DeterministicKeyChain chain : chains)
+            indexNewKeysOf(chain);
+        invalidateIndexes();
     }
 
     /** Returns true if the group is encrypted. */
@@ -597,13 +672,38 @@ public class KeyChainGroup implements KeyBag {
 
     public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
         BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
-        if (basic.numKeys() > 0)
-            filter.merge(basic.getFilter(size, falsePositiveRate, nTweak));
+        if (this.filter != null && size == filterSize && falsePositiveRate == filterFalsePositiveRate &&
+                nTweak == filterTweak) {
+            for (DeterministicKeyChain chain : chains) {
+                // As the chains would do when building their own filters.
+                chain.maybeLookAhead();
+                checkArgument(size >= chain.numBloomFilterEntries());
+            }
+            filter.merge(this.filter);
+            for (ECKey key : keysAddedSinceFilter)
+                filter.insert(key);
+        } else {
+            if (basic.numKeys() > 0)
+                filter.merge(basic.getFilter(size, falsePositiveRate, nTweak));
 
+            for (DeterministicKeyChain chain : chains) {
+                filter.merge(chain.getFilter(size, falsePositiveRate, nTweak));
+            }
+        }
+        keysAddedSinceFilter.clear();
+        this.filter = null;
         for (DeterministicKeyChain chain : chains) {
-            filter.merge(chain.getFilter(size, falsePositiveRate, nTweak));
+            if (chain.isMarried())
+                return filter;
         }
-        return filter;
+        this.filter = filter;
+        this.filterSize = size;
+        this.filterFalsePositiveRate = falsePositiveRate;
+        this.filterTweak = nTweak;
+        // Hand out a copy, as the caller may add its own elements.
+        BloomFilter copy = new BloomFilter(size, falsePositiveRate, nTweak);
+        copy.merge(filter);
+        return copy;
     }
 
     /** {@inheritDoc} */
@@ -747,6 +847,8 @@ public class KeyChainGroup implements KeyBag {
             chain = chain.toEncrypted(checkNotNull(basic.getKeyCrypter()), aesKey);
         }
         chains.add(chain);
+        indexNewKeysOf(chain);
+        invalidateIndexes();
         return chain;
     }
 
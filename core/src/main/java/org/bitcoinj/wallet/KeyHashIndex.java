@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A compact hash table from 20 byte hashes, as used for public keys and scripts, to values. The hashes are kept in a
+ * long array rather than as objects, and as they are uniformly distributed already their first bytes are used to
+ * pick the slot. Lookups that miss, which is what happens for almost everything the wallet is shown, don't allocate.
+ * Not thread safe.
+ */
+class KeyHashIndex<V> {
+    static final int HASH_LENGTH = 20;
+    // Each slot takes three longs: bytes 0-7, 8-15 and 16-19 of the hash.
+    private static final int LONGS_PER_HASH = 3;
+
+    private long[] hashes;
+    private Object[] values;  // A null value marks an empty slot.
+    private int size;
+
+    KeyHashIndex(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        hashes = new long[capacity * LONGS_PER_HASH];
+        values = new Object[capacity];
+    }
+
+    /** Returns the value for the given hash, or null if there is none. */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    V get(byte[] hash) {
+        if (hash.length != HASH_LENGTH)
+            return null;
+        long a = readLong(hash, 0), b = readLong(hash, 8), c = readInt(hash, 16);
+        int mask = values.length - 1;
+        for (int slot = (int) a & mask; values[slot] != null; slot = (slot + 1) & mask) {
+            int i = slot * LONGS_PER_HASH;
+            if (hashes[i] == a && hashes[i + 1] == b && hashes[i + 2] == c)
+                return (V) values[slot];
+        }
+        return null;
+    }
+
+    /** Adds the value under the given hash, unless there already is one. Returns whether it was added. */
+    boolean putIfAbsent(byte[] hash, V value) {
+        checkArgument(hash.length == HASH_LENGTH, "Not a 20 byte hash");
+        checkNotNull(value);
+        if ((size + 1) * 2 > values.length)
+            resize(values.length * 2);
+        long a = readLong(hash, 0), b = readLong(hash, 8), c = readInt(hash, 16);
+        int mask = values.length - 1;
+        int slot = (int) a & mask;
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            int i = slot * LONGS_PER_HASH;
+            if (hashes[i] == a && hashes[i + 1] == b && hashes[i + 2] == c)
+                return false;
+        }
+        int i = slot * LONGS_PER_HASH;
+        hashes[i] = a;
+        hashes[i + 1] = b;
+        hashes[i + 2] = c;
+        values[slot] = value;
+        size++;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        long[] oldHashes = hashes;
+        Object[] oldValues = values;
+        hashes = new long[capacity * LONGS_PER_HASH];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int oldSlot = 0; oldSlot < oldValues.length; oldSlot++) {
+            if (oldValues[oldSlot] == null)
+                continue;
+            int o = oldSlot * LONGS_PER_HASH;
+            int slot = (int) oldHashes[o] & mask;
+            while (values[slot] != null)
+                slot = (slot + 1) & mask;
+            System.arraycopy(oldHashes, o, hashes, slot * LONGS_PER_HASH, LONGS_PER_HASH);
+            values[slot] = oldValues[oldSlot];
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        return ((long) readInt(bytes, offset) << 32) | readInt(bytes, offset + 4);
+    }
+
+    private static long readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFFL) << 24) | ((bytes[offset + 1] & 0xFFL) << 16) |
+                ((bytes[offset + 2] & 0xFFL) << 8) | (bytes[offset + 3] & 0xFFL);
+    }
+}
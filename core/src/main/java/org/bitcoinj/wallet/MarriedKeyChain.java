@@ -30,6 +30,7 @@ import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
 
 import java.security.SecureRandom;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
@@ -267,7 +268,9 @@ public class MarriedKeyChain extends DeterministicKeyChain {
             return;
 
         maybeLookAhead();
-        for (DeterministicKey followedKey : getLeafKeys()) {
+        // Leaf keys only ever get appended, so the ones at the front already have their scripts.
+        List<DeterministicKey> leafKeys = getLeafKeys();
+        for (DeterministicKey followedKey : leafKeys.subList(marriedKeysRedeemData.size(), leafKeys.size())) {
             RedeemData redeemData = getRedeemData(followedKey);
             Script scriptPubKey = ScriptBuilder.createP2SHOutputScript(redeemData.redeemScript);
             marriedKeysRedeemData.put(ByteString.copyFrom(scriptPubKey.getPubKeyHash()), redeemData);
@@ -280,6 +283,11 @@ public class MarriedKeyChain extends DeterministicKeyChain {
         return marriedKeysRedeemData.get(bytes);
     }
 
+    @Override
+    /* package */ Map<ByteString, RedeemData> getRedeemDataByScriptHash() {
+        return Collections.unmodifiableMap(marriedKeysRedeemData);
+    }
+
     @Override
     public BloomFilter getFilter(int size, double falsePositiveRate, long tweak) {
         lock.lock();
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * <p>A store for old wallet transactions that no longer need to be kept in memory. A wallet that has one set with
+ * {@link org.bitcoinj.core.Wallet#setTransactionArchive(TransactionArchive, int)} moves transactions that are fully
+ * spent and buried deep in the chain into it, so that only the working set stays on the heap and in the wallet file.
+ * {@link org.bitcoinj.core.Wallet#getArchivedTransaction(org.bitcoinj.core.Sha256Hash)} reads them back.</p>
+ *
+ * <p>Implementations must be thread safe. Archived transactions are never removed again.</p>
+ *
+ * @see org.bitcoinj.store.FileTransactionArchive
+ */
+public interface TransactionArchive {
+    /**
+     * Durably stores the given transactions. They are removed from the wallet only once this has returned, so if it
+     * throws they simply stay in memory. Transactions that are archived already may be passed again and are ignored.
+     */
+    void archive(List<WalletTransaction> transactions) throws IOException;
+
+    /**
+     * Returns the archived transaction with the given hash, or null if there is none. The returned object is a new
+     * copy, whose outputs aren't connected to the transactions spending them.
+     */
+    @Nullable
+    WalletTransaction get(Sha256Hash hash) throws IOException;
+
+    /**
+     * Returns true if a transaction with the given hash has been archived. This is called for every transaction the
+     * wallet is shown, so it should not have to go to disk.
+     */
+    boolean contains(Sha256Hash hash);
+
+    /** Returns the number of archived transactions. */
+    int size();
+}
@@ -18,6 +18,7 @@
 package org.bitcoinj.wallet;
 
 import org.bitcoinj.core.*;
+import org.bitcoinj.store.*;
 import org.bitcoinj.utils.*;
 import org.slf4j.*;
 
@@ -33,7 +34,9 @@ import static com.google.common.base.Preconditions.*;
  * A class that handles atomic and optionally delayed writing of the wallet file to disk. In future: backups too.
  * It can be useful to delay writing of a wallet file to disk on slow devices where disk and serialization overhead
  * can come to dominate the chain processing speed, i.e. on Android phones. By coalescing writes and doing serialization
- * and disk IO on a background thread performance can be improved.
+ * and disk IO on a background thread performance can be improved. With {@link #setJournaling(boolean)} a save only
+ * appends what changed to a {@link WalletJournal}, and the full wallet file is rewritten in the background when the
+ * journal grows too large.
  */
 public class WalletFiles {
     private static final Logger log = LoggerFactory.getLogger(WalletFiles.class);
@@ -45,8 +48,11 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    private final AtomicBoolean compactionPending;
+    private final Runnable compactor;
 
     private volatile Listener vListener;
+    @Nullable private volatile WalletJournal vJournal;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -93,6 +99,18 @@ public class WalletFiles {
                 return null;
             }
         };
+        this.compactionPending = new AtomicBoolean();
+        this.compactor = new Runnable() {
+            @Override public void run() {
+                // Runs in an auto save thread.
+                compactionPending.set(false);
+                try {
+                    saveSnapshot();
+                } catch (IOException e) {
+                    log.error("Failed to compact wallet journal", e);
+                }
+            }
+        };
     }
 
     /**
@@ -114,18 +132,65 @@ public class WalletFiles {
     }
 
     private void saveNowInternal() throws IOException {
+        WalletJournal journal = vJournal;
+        if (journal != null) {
+            long now = System.currentTimeMillis();
+            if (wallet.appendToJournal(journal)) {
+                // The listener isn't told about appends, there's no new file.
+                log.info("Save to journal completed in {}msec", System.currentTimeMillis() - now);
+                if (journal.needsCompaction() && !compactionPending.getAndSet(true))
+                    executor.execute(compactor);
+                return;
+            }
+        }
+        saveSnapshot();
+    }
+
+    private void saveSnapshot() throws IOException {
         long now = System.currentTimeMillis();
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
+        WalletJournal journal = vJournal;
+        if (journal != null) {
+            wallet.saveToFile(temp, journal);
+            // Journaling may have been disabled whilst compacting, after the old journal was deleted.
+            if (vJournal != journal)
+                deleteJournalFile();
+        } else {
+            wallet.saveToFile(temp, file);
+        }
         if (listener != null)
             listener.onAfterAutoSave(file);
         log.info("Save completed in {}msec", System.currentTimeMillis() - now);
     }
 
+    /**
+     * Whether saves should append the changes made to the wallet to a {@link WalletJournal} next to the wallet file,
+     * instead of rewriting the whole file. The first save after enabling this writes the whole file anyway, as do
+     * saves after changes the journal can't hold, and the journal is compacted into a new wallet file on the auto-save
+     * thread once it grows larger than the wallet file. The listener is only called when the wallet file is written.
+     * Note that the wallet file alone doesn't hold the latest state of the wallet anymore, both files need to be kept
+     * together. Disabled by default. Disabling it folds the journal into the wallet file on the calling thread.
+     */
+    public void setJournaling(boolean enabled) throws IOException {
+        if (enabled == (vJournal != null))
+            return;
+        vJournal = enabled ? new WalletJournal(file) : null;
+        if (!enabled) {
+            saveSnapshot();
+            deleteJournalFile();
+        }
+    }
+
+    private void deleteJournalFile() {
+        File journalFile = WalletJournal.getJournalFile(file);
+        if (journalFile.exists() && !journalFile.delete())
+            log.warn("Could not delete wallet journal {}", journalFile);
+    }
+
     /** Queues up a save in the background. Useful for not very important wallet changes. */
     public void saveLater() {
         if (savePending.getAndSet(true))
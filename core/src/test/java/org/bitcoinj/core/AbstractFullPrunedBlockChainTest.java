@@ -23,6 +23,7 @@ import org.bitcoinj.params.UnitTestParams;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.UTXOSnapshot;
 import org.bitcoinj.utils.BlockFileLoader;
 import org.bitcoinj.utils.BriefLogFormatter;
 import org.bitcoinj.wallet.WalletTransaction;
@@ -31,7 +32,10 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
 import java.util.List;
@@ -228,6 +232,54 @@ public abstract class AbstractFullPrunedBlockChainTest {
         } catch (Exception e) {}
     }
 
+    @Test
+    public void relayedSignaturesAreNotCheckedAgainInBlock() throws Exception {
+        store = createStore(params, 10);
+        chain = new FullPrunedBlockChain(context, store);
+        SignatureCache cache = context.getSignatureCache();
+
+        ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+
+        Transaction t = new Transaction(params);
+        t.addOutput(new TransactionOutput(params, t, FIFTY_COINS, new ECKey()));
+        t.addSignedInput(new TransactionOutPoint(params, 0, coinbase.getHash()), coinbase.getOutput(0).getScriptPubKey(),
+                outKey);
+        // A copy with the signature of another transaction doesn't pass.
+        Transaction forged = new Transaction(params);
+        forged.addOutput(new TransactionOutput(params, forged, FIFTY_COINS, new ECKey()));
+        forged.addInput(t.getInput(0).duplicateDetached());
+        try {
+            chain.checkRelayedTransaction(forged);
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+
+        // The transaction is relayed first, then shows up in a block.
+        chain.verifyRelayedTransaction(t);
+        for (int i = 0; i < 100 && cache.size() == 0; i++)
+            Thread.sleep(50);
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.getHitCount());
+        long misses = cache.getMissCount();
+        rollingBlock = rollingBlock.createNextBlock(null);
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        assertTrue(chain.add(rollingBlock));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(misses, cache.getMissCount());
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
+
     @Test
     public void testGetOpenTransactionOutputs() throws Exception {
         final int UNDOABLE_BLOCKS_STORED = 10;
@@ -340,4 +392,62 @@ public abstract class AbstractFullPrunedBlockChainTest {
             store.close();
         } catch (Exception e) {}
     }
+
+    @Test
+    public void snapshotRoundTrip() throws Exception {
+        store = createStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        ECKey outKey = new ECKey();
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        chain.add(rollingBlock);
+        TransactionOutput spendableOutput = rollingBlock.getTransactions().get(0).getOutput(0);
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            chain.add(rollingBlock);
+        }
+        StoredBlock head = store.getVerifiedChainHead();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        UTXOSnapshot.write(store, bos, params.getInterval());
+        byte[] snapshot = bos.toByteArray();
+        store.close();
+
+        // A corrupted snapshot is rejected without moving the chain head.
+        store = createStore(params, 10);
+        byte[] corrupted = snapshot.clone();
+        corrupted[corrupted.length - 40] ^= 1;
+        try {
+            UTXOSnapshot.load(store, new ByteArrayInputStream(corrupted));
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(0, store.getVerifiedChainHead().getHeight());
+        store.close();
+
+        store = createStore(params, 10);
+        assertEquals(head, UTXOSnapshot.load(store, new ByteArrayInputStream(snapshot)));
+        assertEquals(head, store.getChainHead());
+        assertEquals(head, store.getVerifiedChainHead());
+        Sha256Hash spendableHash = spendableOutput.getParentTransactionHash();
+        UTXO loaded = store.getTransactionOutput(spendableHash, 0);
+        assertEquals(FIFTY_COINS, loaded.getValue());
+        assertTrue(loaded.isCoinbase());
+        assertEquals(1, loaded.getHeight());
+
+        // The chain carries on from the snapshot, spending an output it contained.
+        chain = new FullPrunedBlockChain(params, store);
+        chain.setRunScripts(false);
+        rollingBlock = rollingBlock.createNextBlock(null);
+        Transaction t = new Transaction(params);
+        t.addOutput(new TransactionOutput(params, t, FIFTY_COINS, new byte[] {}));
+        t.addInput(spendableOutput);
+        rollingBlock.addTransaction(t);
+        rollingBlock.solve();
+        assertTrue(chain.add(rollingBlock));
+        assertEquals(head.getHeight() + 1, chain.getChainHead().getHeight());
+        assertNull(store.getTransactionOutput(spendableHash, 0));
+        try {
+            store.close();
+        } catch (Exception e) {}
+    }
 }
@@ -159,6 +159,30 @@ public class BitcoinSerializerTest {
     /**
      * Get 1 header of the block number 1 (the first one is 0) in the chain
      */
+    @Test
+    public void serializeToBuffers() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get(), false, true);
+        Transaction tx = (Transaction) bs.deserialize(ByteBuffer.wrap(txMessage));
+        // The cached payload is written as it is.
+        ByteBuffer[] buffers = bs.serializeToBuffers(tx);
+        assertSame(tx.unsafeBitcoinSerialize(), buffers[1].array());
+        assertArrayEquals(txMessage, concat(buffers));
+
+        // A modified message gets a new checksum.
+        tx.getInput(0).setSequenceNumber(1);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(tx, bos);
+        assertArrayEquals(bos.toByteArray(), concat(bs.serializeToBuffers(tx)));
+        assertFalse(Arrays.equals(txMessage, bos.toByteArray()));
+    }
+
+    private static byte[] concat(ByteBuffer[] buffers) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers)
+            bos.write(buffer.array(), buffer.position(), buffer.remaining());
+        return bos.toByteArray();
+    }
+
     @Test
     public void testHeaders1() throws Exception {
         BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get());
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.CachingFullPrunedBlockStore;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.H2FullPrunedBlockStore;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * An H2 implementation of the FullPrunedBlockStoreTest, wrapped in a {@link CachingFullPrunedBlockStore} that
+ * flushes every few blocks.
+ */
+public class CachingFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    @After
+    public void tearDown() throws Exception {
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        deleteFiles();
+        return new CachingFullPrunedBlockStore(new H2FullPrunedBlockStore(params, "test-caching", blockCount),
+                CachingFullPrunedBlockStore.DEFAULT_MAX_DIRTY_BYTES, 3, 1000);
+    }
+
+    private void deleteFiles() {
+        maybeDelete("test-caching.h2.db");
+        maybeDelete("test-caching.trace.db");
+        maybeDelete("test-caching.lock.db");
+    }
+
+    private void maybeDelete(String s) {
+        new File(s).delete();
+    }
+
+    @Test
+    public void addOutputStillInUnderlyingStore() throws Exception {
+        deleteFiles();
+        // No room for clean outputs, so an output is forgotten as soon as it is flushed.
+        CachingFullPrunedBlockStore caching = new CachingFullPrunedBlockStore(
+                new H2FullPrunedBlockStore(params, "test-caching", 10),
+                CachingFullPrunedBlockStore.DEFAULT_MAX_DIRTY_BYTES, 3, 0);
+        store = caching;
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        Script script = ScriptBuilder.createOutputScript(new ECKey().toAddress(params));
+        caching.addUnspentTransactionOutput(new UTXO(hash, 0, Coin.COIN, 100, false, script, null));
+        caching.flush();
+        // As when a re-org adds it back at another height: it has to replace the row rather than be inserted.
+        caching.addUnspentTransactionOutput(new UTXO(hash, 0, Coin.COIN, 200, false, script, null));
+        caching.flush();
+        assertEquals(200, caching.getUnderlyingStore().getTransactionOutput(hash, 0).getHeight());
+        assertEquals(200, caching.getTransactionOutput(hash, 0).getHeight());
+        caching.close();
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        ((H2FullPrunedBlockStore) ((CachingFullPrunedBlockStore) store).getUnderlyingStore()).resetStore();
+    }
+}
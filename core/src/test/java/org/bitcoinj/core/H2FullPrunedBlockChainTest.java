@@ -4,8 +4,15 @@ import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.store.FullPrunedBlockStore;
 import org.bitcoinj.store.H2FullPrunedBlockStore;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
 
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
@@ -36,4 +43,95 @@ public class H2FullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest
     public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
         ((H2FullPrunedBlockStore)store).resetStore();
     }
+
+    @Test
+    public void batchedBlockWrites() throws Exception {
+        store = createStore(params, 10);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(new ECKey().toAddress(params)));
+        StoredBlock b2 = b1.build(b1.getHeader().createNextBlock(new ECKey().toAddress(params)));
+        StoredUndoableBlock undo1 = new StoredUndoableBlock(b1.getHeader().getHash(),
+                Collections.<Transaction>emptyList());
+
+        store.beginDatabaseBatchWrite();
+        store.put(b1, undo1);
+        store.put(b2);
+        // Queued blocks can be read back before they are written.
+        assertEquals(b1, store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+        assertEquals(b2, store.get(b2.getHeader().getHash()));
+        assertNull(store.getOnceUndoableStoredBlock(b2.getHeader().getHash()));
+        store.commitDatabaseBatchWrite();
+        assertEquals(b2, store.get(b2.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(b1.getHeader().getHash()));
+
+        // Putting them again in a batch, as an upgraded or re-orging chain may, falls back to updating the rows.
+        store.beginDatabaseBatchWrite();
+        store.put(b1, undo1);
+        store.put(b2, new StoredUndoableBlock(b2.getHeader().getHash(), Collections.<Transaction>emptyList()));
+        store.commitDatabaseBatchWrite();
+        assertEquals(b2, store.getOnceUndoableStoredBlock(b2.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(b2.getHeader().getHash()));
+
+        // An aborted batch leaves nothing behind.
+        StoredBlock b3 = b2.build(b2.getHeader().createNextBlock(new ECKey().toAddress(params)));
+        store.beginDatabaseBatchWrite();
+        store.put(b3);
+        store.abortDatabaseBatchWrite();
+        assertNull(store.get(b3.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void headerThenUndoableBlock() throws Exception {
+        // As in a re-org: a block is stored as a header first, and connected with its undo data later.
+        store = createStore(params, 10);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(new ECKey().toAddress(params)));
+        StoredBlock b2 = b1.build(b1.getHeader().createNextBlock(new ECKey().toAddress(params)));
+        store.beginDatabaseBatchWrite();
+        store.put(b1);
+        store.commitDatabaseBatchWrite();
+        assertNull(store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+
+        store.beginDatabaseBatchWrite();
+        store.put(b1, new StoredUndoableBlock(b1.getHeader().getHash(), Collections.<Transaction>emptyList()));
+        store.put(b2, new StoredUndoableBlock(b2.getHeader().getHash(), Collections.<Transaction>emptyList()));
+        store.commitDatabaseBatchWrite();
+        assertEquals(b1, store.getOnceUndoableStoredBlock(b1.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(b1.getHeader().getHash()));
+        // The block after it in the same batch made it in too.
+        assertEquals(b2, store.getOnceUndoableStoredBlock(b2.getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(b2.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void backgroundUndoPruning() throws Exception {
+        H2FullPrunedBlockStore store = (H2FullPrunedBlockStore) createStore(params, 2);
+        this.store = store;
+        // Nothing is deleted inline once background pruning is on.
+        store.setBackgroundUndoPruning(2, 1, TimeUnit.HOURS);
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        for (int i = 0; i < 6; i++) {
+            StoredBlock next = prev.build(prev.getHeader().createNextBlock(new ECKey().toAddress(params)));
+            store.put(next, new StoredUndoableBlock(next.getHeader().getHash(), Collections.<Transaction>emptyList()));
+            store.setVerifiedChainHead(next);
+            blocks.add(next);
+            prev = next;
+        }
+        assertNotNull(store.getUndoBlock(blocks.get(0).getHeader().getHash()));
+
+        // Heights up to 4 go, two heights at a time.
+        store.setBackgroundUndoPruning(2, 10, TimeUnit.MILLISECONDS);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (store.getUndoBlock(blocks.get(3).getHeader().getHash()) != null) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertNull(store.getUndoBlock(blocks.get(0).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(blocks.get(4).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(blocks.get(5).getHeader().getHash()));
+        store.close();
+    }
 }
@@ -0,0 +1,93 @@
+package org.bitcoinj.core;
+
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.FullPrunedBlockStore;
+import org.bitcoinj.store.LevelDBFullPrunedBlockStore;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * A LevelDB implementation of the FullPrunedBlockStoreTest
+ */
+public class LevelDBFullPrunedBlockChainTest extends AbstractFullPrunedBlockChainTest {
+    private File directory;
+
+    @After
+    public void tearDown() throws Exception {
+        deleteFiles();
+    }
+
+    @Override
+    public FullPrunedBlockStore createStore(NetworkParameters params, int blockCount) throws BlockStoreException {
+        deleteFiles();
+        try {
+            directory = File.createTempFile("leveldbfullprunedblockstore", null);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        directory.delete();
+        return new LevelDBFullPrunedBlockStore(new Context(params), directory, blockCount);
+    }
+
+    private void deleteFiles() {
+        if (directory == null)
+            return;
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+
+    @Override
+    public void resetStore(FullPrunedBlockStore store) throws BlockStoreException {
+        ((LevelDBFullPrunedBlockStore)store).reset();
+    }
+
+    @Test
+    public void batchIsOnlySeenOnceCommitted() throws Exception {
+        store = createStore(params, 1);
+        final StoredBlock genesis = store.getChainHead();
+        Address to = new ECKey().toAddress(params);
+        Block b1 = genesis.getHeader().createNextBlock(to);
+        StoredBlock s1 = genesis.build(b1.cloneAsHeader());
+        Block b2 = b1.createNextBlock(to);
+        StoredBlock s2 = s1.build(b2.cloneAsHeader());
+        ExecutorService otherThread = Executors.newSingleThreadExecutor();
+        Callable<StoredBlock> otherChainHead = new Callable<StoredBlock>() {
+            @Override
+            public StoredBlock call() throws Exception {
+                return store.getVerifiedChainHead();
+            }
+        };
+
+        store.beginDatabaseBatchWrite();
+        store.put(s1, new StoredUndoableBlock(b1.getHash(), new LinkedList<Transaction>()));
+        store.setVerifiedChainHead(s1);
+        store.put(s2, new StoredUndoableBlock(b2.getHash(), new LinkedList<Transaction>()));
+        store.setVerifiedChainHead(s2);
+        assertEquals(s2, store.getChainHead());
+        assertEquals(genesis, otherThread.submit(otherChainHead).get());
+        store.commitDatabaseBatchWrite();
+        assertEquals(s2, otherThread.submit(otherChainHead).get());
+        // The undo block written earlier in the same batch is already past the depth that is kept.
+        assertNull(store.getUndoBlock(b1.getHash()));
+        assertNotNull(store.getUndoBlock(b2.getHash()));
+
+        store.beginDatabaseBatchWrite();
+        store.setVerifiedChainHead(s1);
+        store.abortDatabaseBatchWrite();
+        assertEquals(s2, store.getVerifiedChainHead());
+        otherThread.shutdown();
+        store.close();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.net.PausableMessageWriteTarget;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MessageDispatcherTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private MessageDispatcher dispatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        // The worker threads take their context from the thread that first dispatches to them.
+        new Context(params);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (dispatcher != null)
+            assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+    }
+
+    // Records the pings it processes, blocking in processMessage until released.
+    private static class Handler extends PeerSocketHandler {
+        final List<Long> nonces = new CopyOnWriteArrayList<Long>();
+        final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Boolean> pauses = new CopyOnWriteArrayList<Boolean>();
+        volatile boolean closed;
+
+        Handler() throws Exception {
+            super(params, new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 8333));
+        }
+
+        @Override
+        protected void processMessage(Message m) throws Exception {
+            release.await();
+            threads.add(Thread.currentThread());
+            nonces.add(((Ping) m).getNonce());
+        }
+
+        @Override
+        public void connectionClosed() {
+        }
+
+        @Override
+        public void connectionOpened() {
+        }
+
+        void open() {
+            setWriteTarget(new PausableMessageWriteTarget() {
+                @Override
+                public void writeBytes(byte[] message) throws IOException {
+                }
+
+                @Override
+                public void setReadingPaused(boolean paused) {
+                    pauses.add(paused);
+                }
+
+                @Override
+                public void closeConnection() {
+                    closed = true;
+                }
+            });
+        }
+
+        void receive(long nonce) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            new BitcoinSerializer(params).serialize(new Ping(nonce), bytes);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            assertEquals(buffer.capacity(), receiveBytes(buffer));
+        }
+    }
+
+    @Test
+    public void pausesReadsUntilQueueDrains() throws Exception {
+        dispatcher = new MessageDispatcher(2, 4, MessageDispatcher.Backpressure.PAUSE_READS);
+        Handler handler = new Handler();
+        handler.setMessageDispatcher(dispatcher);
+        handler.open();
+        // The first message is taken by a worker, which blocks, so the others pile up in the queue.
+        for (int i = 0; i < 6; i++)
+            handler.receive(i);
+        assertTrue(dispatcher.getQueuedMessages() >= 5);
+        assertEquals(1, dispatcher.getBackpressureEvents());
+        assertTrue(dispatcher.getMaxQueueDepth() >= 5);
+        assertEquals(true, handler.pauses.get(0));
+        assertEquals(1, handler.pauses.size());
+        assertTrue(handler.nonces.isEmpty());
+
+        handler.release.countDown();
+        assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+        // Everything is processed in order, on one of the dispatcher's threads, and reading resumed along the way.
+        assertEquals(6, handler.nonces.size());
+        for (int i = 0; i < 6; i++)
+            assertEquals(i, (long) handler.nonces.get(i));
+        assertNotSame(Thread.currentThread(), handler.threads.get(0));
+        assertEquals(2, handler.pauses.size());
+        assertEquals(false, handler.pauses.get(1));
+        assertEquals(0, dispatcher.getQueuedMessages());
+        assertEquals(6, dispatcher.getDispatchedMessages());
+        assertEquals(0, handler.getQueuedMessageCount());
+        assertFalse(handler.closed);
+    }
+
+    @Test
+    public void disconnectsWhenQueueOverflows() throws Exception {
+        dispatcher = new MessageDispatcher(1, 3, MessageDispatcher.Backpressure.DISCONNECT);
+        Handler handler = new Handler();
+        handler.setMessageDispatcher(dispatcher);
+        handler.open();
+        for (int i = 0; i < 4; i++)
+            handler.receive(i);
+        assertTrue(handler.closed);
+        assertTrue(handler.pauses.isEmpty());
+        assertEquals(1, dispatcher.getBackpressureEvents());
+        // Messages received before the disconnect are still processed.
+        handler.release.countDown();
+        assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+        assertEquals(4, handler.nonces.size());
+    }
+
+    @Test
+    public void taskRunsAfterQueuedMessages() throws Exception {
+        dispatcher = new MessageDispatcher(4, 100, MessageDispatcher.Backpressure.PAUSE_READS);
+        final Handler handler = new Handler();
+        handler.setMessageDispatcher(dispatcher);
+        handler.open();
+        for (int i = 0; i < 50; i++)
+            handler.receive(i);
+        final CountDownLatch ran = new CountDownLatch(1);
+        final int[] processedBefore = new int[1];
+        handler.runAfterQueuedMessages(new Runnable() {
+            @Override
+            public void run() {
+                processedBefore[0] = handler.nonces.size();
+                ran.countDown();
+            }
+        });
+        handler.release.countDown();
+        assertTrue(ran.await(10, TimeUnit.SECONDS));
+        assertEquals(50, processedBefore[0]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cannotSetAfterOpen() throws Exception {
+        Handler handler = new Handler();
+        handler.open();
+        handler.setMessageDispatcher(new MessageDispatcher(1, 2, MessageDispatcher.Backpressure.PAUSE_READS));
+    }
+}
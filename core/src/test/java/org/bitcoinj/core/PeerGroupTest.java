@@ -221,7 +221,116 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(value, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
     }
 
-    
+    @Test
+    public void receiveTxBroadcastWithMessageDispatcher() throws Exception {
+        // Messages are processed on the dispatcher's threads, but still in order for each peer.
+        MessageDispatcher dispatcher = new MessageDispatcher(2, 100, MessageDispatcher.Backpressure.PAUSE_READS);
+        peerGroup.setMessageDispatcher(dispatcher);
+        peerGroup.start();
+        peerGroup.addEventListener(listener);
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+
+        Transaction t1 = FakeTxBuilder.createFakeTx(params, COIN, address);
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addTransaction(t1);
+        inbound(p1, inv);
+        assertTrue(outbound(p1) instanceof GetDataMessage);
+        inbound(p2, inv);
+        assertNull(outbound(p2));
+        inbound(p1, t1);
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        inbound(p1, new NotFoundMessage(params, getdata.getItems()));
+        pingAndWait(p1);
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(dispatcher.getDispatchedMessages() > 0);
+        assertEquals(0, peerOf(p1).getQueuedMessageCount());
+
+        // Disconnection is only reported once the messages before it have been processed.
+        closePeer(peerOf(p2));
+        assertEquals(peerOf(p2), disconnectedPeers.take());
+        assertEquals(1, peerGroup.numConnectedPeers());
+        peerGroup.stop();
+        assertTrue(dispatcher.shutdown(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void inventoryScheduling() throws Exception {
+        Utils.setMockClock();
+        peerGroup.setDownloadTxDependencies(false);
+        peerGroup.setInventoryScheduling(true);
+        InventoryScheduler scheduler = peerGroup.getInventoryScheduler();
+        assertNotNull(scheduler);
+        // Long enough for the announcements below to land in one batch.
+        scheduler.setBatchDelayMillis(500);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+
+        Transaction t1 = FakeTxBuilder.createFakeTx(params, COIN, address);
+        Transaction t2 = FakeTxBuilder.createFakeTx(params, CENT, address);
+        InventoryMessage inv1 = new InventoryMessage(params);
+        inv1.addTransaction(t1);
+        InventoryMessage inv2 = new InventoryMessage(params);
+        inv2.addTransaction(t2);
+        InventoryMessage inv3 = new InventoryMessage(params);
+        inv3.addTransaction(t1);
+        inv3.addTransaction(t2);
+        // p1 announces the transactions one at a time, then p2 announces both of them.
+        inbound(p1, inv1);
+        inbound(p1, inv2);
+        pingAndWait(p1);
+        inbound(p2, inv3);
+        // Both are requested from p1 in a single getdata, and nothing from p2.
+        GetDataMessage getdata = (GetDataMessage) waitForOutbound(p1);
+        assertEquals(2, getdata.getItems().size());
+        assertEquals(t1.getHash(), getdata.getItems().get(0).hash);
+        assertEquals(t2.getHash(), getdata.getItems().get(1).hash);
+        assertNull(outbound(p2));
+        assertEquals(2, scheduler.getDuplicateAnnouncements());
+
+        // p1 only has t2, so t1 is requested from p2 instead.
+        inbound(p1, t2);
+        inbound(p1, new NotFoundMessage(params, Lists.newArrayList(getdata.getItems().get(0))));
+        getdata = (GetDataMessage) waitForOutbound(p2);
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(t1.getHash(), getdata.getItems().get(0).hash);
+        inbound(p2, t1);
+        pingAndWait(p2);
+        assertEquals(COIN.add(CENT), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(0, scheduler.getPendingRequests());
+        assertEquals(1, scheduler.getRetries());
+        assertEquals(3, scheduler.getRequestedTransactions());
+        assertEquals(2, scheduler.getGetDataMessages());
+    }
+
+    @Test
+    public void inventorySchedulingGivesUp() throws Exception {
+        Utils.setMockClock();
+        peerGroup.setDownloadTxDependencies(false);
+        peerGroup.setInventoryScheduling(true);
+        InventoryScheduler scheduler = peerGroup.getInventoryScheduler();
+        scheduler.setBatchDelayMillis(0);
+        scheduler.setRequestTimeoutMillis(20);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+
+        Transaction t1 = FakeTxBuilder.createFakeTx(params, COIN, address);
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addTransaction(t1);
+        inbound(p1, inv);
+        GetDataMessage getdata = (GetDataMessage) waitForOutbound(p1);
+        // Nobody else announced it, so once p1 doesn't have it the request is dropped after a while, even though
+        // nothing else is sent in the meantime.
+        inbound(p1, new NotFoundMessage(params, Lists.newArrayList(getdata.getItems().get(0))));
+        pingAndWait(p1);
+        assertEquals(1, scheduler.getPendingRequests());
+        Utils.rollMockClockMillis(1000);
+        for (int i = 0; i < 100 && scheduler.getPendingRequests() > 0; i++)
+            Thread.sleep(20);
+        assertEquals(0, scheduler.getPendingRequests());
+    }
+
     @Test
     public void receiveTxBroadcastOnAddedWallet() throws Exception {
         // Check that when we receive transactions on all our peers, we do the right thing.
@@ -481,6 +590,65 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(d.peer, peerGroup.getDownloadPeer());*/
     }
 
+    @Test
+    public void downloadPeerSelectionByScore() throws Exception {
+        peerGroup.setPingIntervalMsec(0);
+        peerGroup.start();
+        Peer a = connectPeer(1).peer;
+        Peer b = connectPeer(2).peer;
+        Peer c = connectPeer(3).peer;
+        // Nothing is known yet, so any of them will do.
+        assertNotNull(peerGroup.selectDownloadPeer(peerGroup.getConnectedPeers()));
+        // a is slow to answer, b is quick but sent us something invalid, c is quick.
+        a.getScore().recordPingTime(800);
+        b.getScore().recordPingTime(10);
+        b.getScore().recordMisbehaviour();
+        c.getScore().recordPingTime(50);
+        for (int i = 0; i < 10; i++)
+            assertEquals(c, peerGroup.selectDownloadPeer(peerGroup.getConnectedPeers()));
+        // Peers that score about the same share the load.
+        for (int i = 0; i < 10; i++)
+            a.getScore().recordPingTime(50);
+        Set<Peer> selected = new HashSet<Peer>();
+        for (int i = 0; i < 100 && selected.size() < 2; i++)
+            selected.add(peerGroup.selectDownloadPeer(peerGroup.getConnectedPeers()));
+        assertEquals(ImmutableSet.of(a, c), selected);
+    }
+
+    @Test
+    public void rotateDownloadPeer() throws Exception {
+        peerGroup.setPingIntervalMsec(0);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        // Nothing to rotate until the chain is being downloaded.
+        assertFalse(peerGroup.maybeRotateDownloadPeer());
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener() {
+        });
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        InboundMessageQueuer p2 = connectPeer(2);
+        assertEquals(p1.peer, peerGroup.getDownloadPeer());
+        // p2 is a little quicker, but not by enough to be worth moving the download for.
+        p1.peer.getScore().recordPingTime(200);
+        p2.peer.getScore().recordPingTime(100);
+        assertFalse(peerGroup.maybeRotateDownloadPeer());
+        assertEquals(p1.peer, peerGroup.getDownloadPeer());
+        // Once p1 has stalled, the download moves over.
+        p1.peer.getScore().recordStall();
+        assertTrue(peerGroup.maybeRotateDownloadPeer());
+        assertEquals(p2.peer, peerGroup.getDownloadPeer());
+        assertTrue(outbound(p2) instanceof GetBlocksMessage);
+        // Once the chain has caught up with the peers, the download isn't moved any more.
+        p2.peer.getScore().recordStall();
+        p2.peer.getScore().recordStall();
+        blockChain.add(FakeTxBuilder.createFakeBlock(blockStore).block);
+        assertFalse(peerGroup.maybeRotateDownloadPeer());
+        assertEquals(p2.peer, peerGroup.getDownloadPeer());
+        // Scores outlive the connection.
+        closePeer(p1.peer);
+        InboundMessageQueuer p3 = connectPeer(1);
+        assertEquals(1, p3.peer.getScore().getStalls());
+    }
+
     @Test
     public void peerTimeoutTest() throws Exception {
         final int timeout = 100;
@@ -836,6 +1004,68 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(blocks.get(blocks.size() - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
     }
 
+    @Test
+    public void headersFirstDownload() throws Exception {
+        // Check that the headers come from the download peer, the filtered blocks are fetched from both peers, and
+        // they are added to the chain in order even if they arrive out of order.
+        peerGroup.setHeadersFirstDownload(true);
+        peerGroup.start();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        assertEquals(2, peerGroup.numConnectedPeers());
+
+        // Stay below the difficulty transition interval of the unit test params. The first few blocks pay to the wallet.
+        final int NUM_BLOCKS = params.getInterval() - 1;
+        List<Block> blocks = Lists.newArrayList();
+        List<Block> headers = Lists.newArrayList();
+        Block prev = blockStore.getChainHead().getHeader();
+        for (int i = 0; i < NUM_BLOCKS; i++) {
+            Block next = i < 3
+                    ? FakeTxBuilder.makeSolvedTestBlock(prev, FakeTxBuilder.createFakeTx(params, COIN, address))
+                    : FakeTxBuilder.makeSolvedTestBlock(prev);
+            blocks.add(next);
+            headers.add(next.cloneAsHeader());
+            prev = next;
+        }
+
+        InboundMessageQueuer download = peerGroup.getDownloadPeer() == peerOf(p1) ? p1 : p2;
+        InboundMessageQueuer other = download == p1 ? p2 : p1;
+        peerGroup.startBlockChainDownload(null);
+        GetHeadersMessage getheaders = assertNextMessageIs(download, GetHeadersMessage.class);
+        assertEquals(blockStore.getChainHead().getHeader().getHash(), getheaders.getLocator().get(0));
+        inbound(download, new HeadersMessage(params, headers));
+
+        // The blocks are spread over both peers.
+        GetDataMessage getdata1 = assertNextMessageIs(download, GetDataMessage.class);
+        Ping ping1 = assertNextMessageIs(download, Ping.class);
+        GetDataMessage getdata2 = assertNextMessageIs(other, GetDataMessage.class);
+        Ping ping2 = assertNextMessageIs(other, Ping.class);
+        assertEquals(NUM_BLOCKS, getdata1.getItems().size() + getdata2.getItems().size());
+        assertEquals(InventoryItem.Type.FilteredBlock, getdata1.getItems().get(0).type);
+        assertEquals(blocks.get(0).getHash(), getdata1.getHashOf(0));
+
+        // The later blocks arrive first, which doesn't move the chain.
+        BloomFilter filter = new BloomFilter(params, download.lastReceivedFilter.bitcoinSerialize());
+        filterAndSend(other, blocks.subList(getdata1.getItems().size(), NUM_BLOCKS), filter);
+        inbound(other, new Pong(ping2.getNonce()));
+        pingAndWait(other);
+        peerGroup.waitForJobQueue();
+        assertEquals(params.getGenesisBlock().getHash(), blockChain.getChainHead().getHeader().getHash());
+        // The peer that delivered them is credited for it, not the download peer.
+        assertTrue(peerOf(other).getScore().getBytesPerSecond() > 0);
+        assertEquals(-1, peerOf(download).getScore().getBytesPerSecond());
+
+        // Once the earlier blocks are in, everything is added and the download peer goes back to
+        // downloading newly announced blocks.
+        filterAndSend(download, blocks.subList(0, getdata1.getItems().size()), filter);
+        inbound(download, new Pong(ping1.getNonce()));
+        pingAndWait(download);
+        peerGroup.waitForJobQueue();
+        assertEquals(blocks.get(NUM_BLOCKS - 1).getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(COIN.multiply(3), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(peerOf(download).getDownloadData());
+    }
+
     private void filterAndSend(InboundMessageQueuer p1, List<Block> blocks, BloomFilter filter) {
         for (Block block : blocks) {
             FilteredBlock fb = filter.applyAndUpdate(block);
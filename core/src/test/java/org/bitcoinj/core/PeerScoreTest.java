@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PeerScoreTest {
+    @Test
+    public void unmeasured() {
+        PeerScore score = new PeerScore();
+        assertEquals(Long.MAX_VALUE, score.getPingTime());
+        assertEquals(-1, score.getBytesPerSecond());
+        assertEquals(new PeerScore().getScore(), score.getScore(), 0);
+    }
+
+    @Test
+    public void movingAverages() {
+        PeerScore score = new PeerScore();
+        score.recordPingTime(100);
+        assertEquals(100, score.getPingTime());
+        score.recordPingTime(200);
+        assertEquals(120, score.getPingTime());
+        score.recordThroughput(10000);
+        score.recordThroughput(0);
+        assertEquals(8000, score.getBytesPerSecond());
+    }
+
+    @Test
+    public void ordering() {
+        PeerScore quick = new PeerScore();
+        quick.recordPingTime(50);
+        PeerScore slow = new PeerScore();
+        slow.recordPingTime(500);
+        PeerScore unknown = new PeerScore();
+        assertTrue(quick.getScore() > slow.getScore());
+        assertTrue(slow.getScore() > unknown.getScore());
+        // Delivering the chain fast makes up for a slow ping.
+        slow.recordThroughput(1024 * 1024);
+        assertTrue(slow.getScore() > quick.getScore());
+        // But stalls and misbehaviour count for a lot.
+        slow.recordStall();
+        slow.recordStall();
+        assertTrue(quick.getScore() > slow.getScore());
+        PeerScore bad = new PeerScore();
+        bad.recordPingTime(10);
+        bad.recordMisbehaviour();
+        assertTrue(unknown.getScore() > bad.getScore());
+    }
+}
@@ -487,6 +487,41 @@ public class PeerTest extends TestWithNetworkConnections {
         closePeer(peer);
     }
 
+    @Test
+    public void blockHeadersRepliesGoToTheirRequest() throws Exception {
+        connect();
+        Utils.setMockClock();
+        Block b1 = createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Utils.rollMockClock(60 * 10);
+        Block b2 = makeSolvedTestBlock(b1);
+        b2.setTime(Utils.currentTimeSeconds());
+        b2.solve();
+        Utils.rollMockClock(60 * 10);
+        Block b3 = makeSolvedTestBlock(b2);
+        b3.setTime(Utils.currentTimeSeconds());
+        b3.solve();
+
+        // The chain download asks for headers, then headers are asked for through the API before the reply arrives.
+        peer.setDownloadParameters(Utils.currentTimeSeconds() + 1, false);
+        peer.startBlockChainDownload();
+        assertTrue(outbound(writeTarget) instanceof GetHeadersMessage);
+        ListenableFuture<HeadersMessage> future = peer.getBlockHeaders(ImmutableList.of(b2.getHash()),
+                Sha256Hash.ZERO_HASH);
+        assertEquals(ImmutableList.of(b2.getHash()), ((GetHeadersMessage) outbound(writeTarget)).getLocator());
+
+        // The reply to the chain download goes to the chain, even though the other request is older.
+        inbound(writeTarget, new HeadersMessage(params, b2.cloneAsHeader()));
+        pingAndWait(writeTarget);
+        assertFalse(future.isDone());
+        assertEquals(b2.getHash(), blockChain.getChainHead().getHeader().getHash());
+
+        inbound(writeTarget, new HeadersMessage(params, b3.cloneAsHeader()));
+        assertEquals(b3.cloneAsHeader(), future.get().getBlockHeaders().get(0));
+        assertEquals(b2.getHash(), blockChain.getChainHead().getHeader().getHash());
+        closePeer(peer);
+    }
+
     @Test
     public void pingPong() throws Exception {
         connect();
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private SignatureCache cache;
+    private ECKey key;
+    private Sha256Hash hash;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new SignatureCache(2);
+        key = new ECKey();
+        hash = Sha256Hash.of(new byte[] { 1, 2, 3 });
+    }
+
+    @Test
+    public void validSignaturesAreCached() throws Exception {
+        ECKey.ECDSASignature sig = key.sign(hash);
+        assertTrue(cache.verify(hash.getBytes(), sig, key.getPubKey()));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertTrue(cache.verify(hash.getBytes(), sig, key.getPubKey()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void invalidSignaturesAreNotCached() throws Exception {
+        ECKey.ECDSASignature sig = key.sign(hash);
+        byte[] otherPubKey = new ECKey().getPubKey();
+        assertFalse(cache.verify(hash.getBytes(), sig, otherPubKey));
+        assertFalse(cache.verify(hash.getBytes(), sig, otherPubKey));
+        assertEquals(0, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.size());
+        // A valid entry for the same signature must not answer for a different key or hash.
+        assertTrue(cache.verify(hash.getBytes(), sig, key.getPubKey()));
+        assertFalse(cache.verify(Sha256Hash.of(new byte[] { 4 }).getBytes(), sig, key.getPubKey()));
+        assertFalse(cache.verify(hash.getBytes(), sig, otherPubKey));
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            ECKey k = new ECKey();
+            assertTrue(cache.verify(hash.getBytes(), k.sign(hash), k.getPubKey()));
+        }
+        assertTrue(cache.size() <= 2);
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.core;
+
+import org.bitcoinj.params.UnitTestParams;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TransactionOutputChangesTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private TransactionOutputChanges createChanges() {
+        Sha256Hash tx1 = Sha256Hash.of(new byte[] { 1 });
+        Sha256Hash tx2 = Sha256Hash.of(new byte[] { 2 });
+        Sha256Hash tx3 = Sha256Hash.of(new byte[] { 3 });
+        Script toAddress = ScriptBuilder.createOutputScript(new ECKey().toAddress(params));
+        Script toScriptHash = ScriptBuilder.createP2SHOutputScript(new byte[20]);
+        Script toPubKey = ScriptBuilder.createOutputScript(new ECKey());
+        List<UTXO> created = new LinkedList<UTXO>();
+        created.add(new UTXO(tx1, 0, Coin.FIFTY_COINS, 1000, true, toAddress, null));
+        created.add(new UTXO(tx2, 0, Coin.COIN, 1000, false, toScriptHash, null));
+        created.add(new UTXO(tx2, 1, Coin.CENT, 1000, false, toPubKey, null));
+        List<UTXO> spent = new LinkedList<UTXO>();
+        spent.add(new UTXO(tx3, 5, Coin.valueOf(Long.MAX_VALUE / 2), 10, false, toAddress, null));
+        spent.add(new UTXO(tx3, 0xFFFFFFFFL, Coin.SATOSHI, 10, false, new Script(new byte[0]), null));
+        spent.add(new UTXO(tx1, 0, Coin.FIFTY_COINS, 999, true, toPubKey, null));
+        return new TransactionOutputChanges(created, spent);
+    }
+
+    @Test
+    public void compactRoundTrip() throws Exception {
+        TransactionOutputChanges changes = createChanges();
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        changes.serializeCompactToStream(compact);
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        changes.serializeToStream(original);
+        assertTrue(compact.size() < original.size());
+
+        TransactionOutputChanges read = new TransactionOutputChanges(new ByteArrayInputStream(compact.toByteArray()));
+        assertOutputsEqual(changes.txOutsCreated, read.txOutsCreated);
+        assertOutputsEqual(changes.txOutsSpent, read.txOutsSpent);
+    }
+
+    @Test
+    public void compactScripts() throws Exception {
+        Sha256Hash hash = Sha256Hash.of(new byte[] { 1 });
+        Script toAddress = ScriptBuilder.createOutputScript(new ECKey().toAddress(params));
+        Script toScriptHash = ScriptBuilder.createP2SHOutputScript(new byte[20]);
+        for (Script script : new Script[] { toAddress, toScriptHash }) {
+            List<UTXO> created = new LinkedList<UTXO>();
+            created.add(new UTXO(hash, 0, Coin.COIN, 1000, false, script, null));
+            TransactionOutputChanges changes = new TransactionOutputChanges(created, new LinkedList<UTXO>());
+            ByteArrayOutputStream compact = new ByteArrayOutputStream();
+            changes.serializeCompactToStream(compact);
+            // Marker, one group of one output (hash, height, count, index, value), the script type and its hash, then
+            // no spent outputs.
+            assertEquals(4 + 1 + 32 + 3 + 1 + 1 + 5 + 1 + 20 + 1, compact.size());
+            TransactionOutputChanges read = new TransactionOutputChanges(new ByteArrayInputStream(compact.toByteArray()));
+            assertArrayEquals(script.getProgram(), read.txOutsCreated.get(0).getScript().getProgram());
+            assertOutputsEqual(changes.txOutsCreated, read.txOutsCreated);
+        }
+    }
+
+    private void assertOutputsEqual(List<UTXO> expected, List<UTXO> actual) {
+        // UTXO.equals only compares the outpoint.
+        assertEquals(expected, actual);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getValue(), actual.get(i).getValue());
+            assertEquals(expected.get(i).getHeight(), actual.get(i).getHeight());
+            assertEquals(expected.get(i).isCoinbase(), actual.get(i).isCoinbase());
+            assertArrayEquals(expected.get(i).getScript().getProgram(), actual.get(i).getScript().getProgram());
+        }
+    }
+
+    @Test
+    public void readsOriginalFormat() throws Exception {
+        TransactionOutputChanges changes = createChanges();
+        ByteArrayOutputStream original = new ByteArrayOutputStream();
+        changes.serializeToStream(original);
+        TransactionOutputChanges read = new TransactionOutputChanges(new ByteArrayInputStream(original.toByteArray()));
+        assertOutputsEqual(changes.txOutsCreated, read.txOutsCreated);
+        assertOutputsEqual(changes.txOutsSpent, read.txOutsSpent);
+    }
+
+    @Test
+    public void empty() throws Exception {
+        TransactionOutputChanges changes = new TransactionOutputChanges(new ArrayList<UTXO>(), new ArrayList<UTXO>());
+        ByteArrayOutputStream compact = new ByteArrayOutputStream();
+        changes.serializeCompactToStream(compact);
+        TransactionOutputChanges read = new TransactionOutputChanges(new ByteArrayInputStream(compact.toByteArray()));
+        assertTrue(read.txOutsCreated.isEmpty());
+        assertTrue(read.txOutsSpent.isEmpty());
+    }
+}
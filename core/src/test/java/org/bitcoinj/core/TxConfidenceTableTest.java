@@ -22,6 +22,7 @@ import org.bitcoinj.utils.*;
 import org.junit.*;
 
 import java.net.*;
+import java.util.*;
 
 import static org.bitcoinj.core.Coin.*;
 import static org.junit.Assert.*;
@@ -99,4 +100,16 @@ public class TxConfidenceTableTest {
         assertEquals(3, tx2.getConfidence().numBroadcastPeers());
         assertEquals(3, table.numBroadcastPeers(tx1.getHash()));
     }
+
+    @Test
+    public void seenInBatch() throws Exception {
+        Sha256Hash other = Sha256Hash.of(new byte[] { 1 });
+        table.seen(tx1.getHash(), address1);
+        List<TransactionConfidence> confidences = table.seen(Arrays.asList(tx1.getHash(), other), address2);
+        assertEquals(2, confidences.size());
+        assertSame(tx1.getConfidence(), confidences.get(0));
+        assertEquals(2, confidences.get(0).numBroadcastPeers());
+        assertEquals(other, confidences.get(1).getTransactionHash());
+        assertEquals(1, table.numBroadcastPeers(other));
+    }
 }
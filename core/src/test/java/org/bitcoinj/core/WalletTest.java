@@ -37,6 +37,7 @@ import org.bitcoinj.wallet.WalletTransaction.Pool;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.protobuf.ByteString;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.junit.After;
@@ -629,6 +630,170 @@ public class WalletTest extends TestWithWallet {
         assertEquals(ZERO.subtract(valueOf(0, 10)), send2.getValue(wallet));
     }
 
+    @Test
+    public void cachedBalances() throws Exception {
+        assertEquals(ZERO, wallet.getBalance());
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(COIN, wallet.getBalance());
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), valueOf(0, 10));
+        wallet.commitTx(send);
+        Coin change = send.getValueSentToMe(wallet);
+        assertEquals(ZERO, wallet.getBalance());
+        assertEquals(change, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        // Confidence changes that no listener hears about still show up in the balance.
+        send.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{1,2,3,4})));
+        send.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{10,2,3,4})));
+        assertEquals(change, wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+
+        wallet.setCoinSelector(new CoinSelector() {
+            @Override
+            public CoinSelection select(Coin target, List<TransactionOutput> candidates) {
+                return new CoinSelection(ZERO, new ArrayList<TransactionOutput>());
+            }
+        });
+        assertEquals(ZERO, wallet.getBalance());
+        assertEquals(change, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.isConsistent());
+    }
+
+    @Test
+    public void confidenceIsOnlyTrackedWhilstInWallet() throws Exception {
+        Transaction tx = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), valueOf(0, 10));
+        wallet.commitTx(send);
+        sendMoneyToWallet(send, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(1, tx.getConfidence().numChangeCounters());
+        assertEquals(1, send.getConfidence().numChangeCounters());
+        wallet.reset();
+        assertEquals(0, tx.getConfidence().numChangeCounters());
+        assertEquals(0, send.getConfidence().numChangeCounters());
+    }
+
+    @Test
+    public void transactionQueriesDontWaitForLock() throws Exception {
+        Transaction tx = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(1, wallet.getTransactions(false).size());
+        // Hold the wallet lock in another thread, like the block chain would whilst processing a block.
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                wallet.lock.lock();
+                try {
+                    locked.countDown();
+                    Uninterruptibles.awaitUninterruptibly(release);
+                } finally {
+                    wallet.lock.unlock();
+                }
+            }
+        };
+        thread.start();
+        locked.await();
+        try {
+            assertEquals(tx, wallet.getTransaction(tx.getHash()));
+            assertEquals(1, wallet.getTransactions(true).size());
+            assertEquals(tx, wallet.getTransactionsByTime().get(0));
+            assertEquals(0, wallet.getPendingTransactions().size());
+        } finally {
+            release.countDown();
+            thread.join();
+        }
+
+        // Changes show up in the next query.
+        long copies = wallet.getLockHoldTimes().getStats().get("transactionSnapshot").getCount();
+        Transaction send = wallet.createSend(new ECKey().toAddress(params), CENT);
+        wallet.commitTx(send);
+        assertEquals(send, wallet.getTransaction(send.getHash()));
+        assertEquals(2, wallet.getTransactions(false).size());
+        assertEquals(ImmutableList.of(send), ImmutableList.copyOf(wallet.getPendingTransactions()));
+        assertEquals(1, wallet.getLockHoldTimes().getStats().get("maybeCommitTx").getCount());
+        // The first query after the commit copied the pools, the other one shared the copy.
+        assertEquals(copies + 1, wallet.getLockHoldTimes().getStats().get("transactionSnapshot").getCount());
+        wallet.reset();
+        assertNull(wallet.getTransaction(send.getHash()));
+        assertEquals(0, wallet.getTransactions(true).size());
+        assertTrue(wallet.getLockHoldTimes().getStats().containsKey("transactionSnapshot"));
+    }
+
+    @Test(timeout = 10000)
+    public void queriesDontWaitForUpdateInProgress() throws Exception {
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(1, wallet.getTransactions(false).size());
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        // Stop a pending transaction half way through being received, with the wallet lock held.
+        final CountDownLatch receiving = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+                receiving.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+        }, Threading.SAME_THREAD);
+        final Transaction tx = createFakeTx(params, CENT, myAddress);
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                wallet.receivePending(tx, null);
+            }
+        };
+        thread.start();
+        receiving.await();
+        try {
+            // The state from before the update is returned rather than waiting for the lock, which would time out.
+            assertEquals(1, wallet.getTransactions(false).size());
+            assertEquals(0, wallet.getPendingTransactions().size());
+            assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        } finally {
+            release.countDown();
+            thread.join();
+        }
+        assertEquals(2, wallet.getTransactions(false).size());
+        assertEquals(ImmutableList.of(tx), ImmutableList.copyOf(wallet.getPendingTransactions()));
+        assertEquals(COIN.add(CENT), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    @Test(timeout = 10000)
+    public void nestedBatchDoesntLeaveUpdateInProgress() throws Exception {
+        // Receiving a batch from within one fails, and mustn't leave queries thinking an update is still going on.
+        final AtomicReference<Exception> nested = new AtomicReference<Exception>();
+        WalletEventListener listener = new AbstractWalletEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+                try {
+                    wallet.receiveTransactions(ImmutableList.<Wallet.ReceivedTransaction>of());
+                } catch (IllegalStateException e) {
+                    nested.set(e);
+                }
+            }
+        };
+        wallet.addEventListener(listener, Threading.SAME_THREAD);
+        Transaction t1 = createFakeTx(params, COIN, myAddress);
+        StoredBlock b1 = createFakeBlock(blockStore, t1).storedBlock;
+        assertEquals(1, wallet.receiveTransactions(ImmutableList.of(new Wallet.ReceivedTransaction(t1, b1, 0))));
+        assertNotNull(nested.get());
+        assertFalse(wallet.lock.isHeldByCurrentThread());
+        assertEquals(COIN, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        wallet.removeEventListener(listener);
+
+        sendMoneyToWallet(CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        // Another thread sees the new balance rather than the cached one from before.
+        final AtomicReference<Coin> balance = new AtomicReference<Coin>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                balance.set(wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+            }
+        };
+        reader.start();
+        reader.join();
+        assertEquals(COIN.add(CENT), balance.get());
+    }
+
     @Test
     public void isConsistent_duplicates() throws Exception {
         // This test ensures that isConsistent catches duplicate transactions, eg, because we submitted the same block
@@ -1277,6 +1442,92 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.getBloomFilter(1e-12).contains(outPoint.bitcoinSerialize()));
     }
 
+    @Test
+    public void bloomFilterFollowsSpends() throws Exception {
+        Transaction t1 = createFakeTx(params, COIN, myKey);
+        TransactionOutPoint outPoint = new TransactionOutPoint(params, 0, t1);
+        sendMoneyToWallet(t1, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertTrue(wallet.getBloomFilter(100, 1e-12, 42).contains(outPoint.bitcoinSerialize()));
+        assertEquals(wallet.getBloomFilter(100, 1e-12, 42), wallet.getBloomFilter(100, 1e-12, 42));
+        // Once spent, the outpoint is left out again.
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), COIN);
+        wallet.commitTx(spend);
+        // Note that this has a 1e-12 chance of failing this unit test due to a false positive
+        assertFalse(wallet.getBloomFilter(100, 1e-12, 42).contains(outPoint.bitcoinSerialize()));
+    }
+
+    @Test
+    public void receiveTransactionsInBatch() throws Exception {
+        final AtomicInteger walletChanged = new AtomicInteger();
+        final AtomicInteger coinsReceived = new AtomicInteger();
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevBalance, Coin newBalance) {
+                coinsReceived.incrementAndGet();
+            }
+
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                walletChanged.incrementAndGet();
+            }
+        });
+        Address other = new ECKey().toAddress(params);
+        Transaction t1 = createFakeTx(params, COIN, myAddress);
+        Transaction t2 = new Transaction(params);
+        t2.addInput(t1.getOutput(0));
+        t2.addOutput(CENT, myAddress);
+        t2.addOutput(COIN.subtract(CENT), other);
+        Transaction t3 = new Transaction(params);
+        t3.addInput(t2.getOutput(0));
+        t3.addOutput(CENT, myAddress);
+        Transaction t4 = new Transaction(params);
+        t4.addInput(t3.getOutput(0));
+        t4.addOutput(CENT, other);
+        Transaction irrelevant = createFakeTx(params, COIN, other);
+        StoredBlock b1 = createFakeBlock(blockStore, t1, irrelevant).storedBlock;
+        StoredBlock b2 = createFakeBlock(blockStore, t2).storedBlock;
+
+        // Spends come before what they spend, the batch is put in order.
+        List<Wallet.ReceivedTransaction> batch = ImmutableList.of(
+                new Wallet.ReceivedTransaction(t4),
+                new Wallet.ReceivedTransaction(t3),
+                new Wallet.ReceivedTransaction(t2, b2, 0),
+                new Wallet.ReceivedTransaction(irrelevant, b1, 1),
+                new Wallet.ReceivedTransaction(t1, b1, 0));
+        assertEquals(4, wallet.receiveTransactions(batch));
+        Threading.waitForUserCode();
+        assertEquals(1, walletChanged.get());
+        // t1 from the chain, and t3 which pays back to us.
+        assertEquals(2, coinsReceived.get());
+        assertTrue(wallet.isConsistent());
+        assertEquals(4, wallet.getTransactions(true).size());
+        assertNull(wallet.getTransaction(irrelevant.getHash()));
+        assertEquals(ZERO, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(2, wallet.getPoolSize(WalletTransaction.Pool.PENDING));
+        assertEquals(b2.getHeight(), wallet.getLastBlockSeenHeight());
+        assertEquals(2, t1.getConfidence().getDepthInBlocks());
+        assertEquals(1, t2.getConfidence().getDepthInBlocks());
+        assertEquals(TransactionConfidence.ConfidenceType.PENDING, t4.getConfidence().getConfidenceType());
+
+        // Seeing the same transactions again changes nothing.
+        assertEquals(0, wallet.receiveTransactions(batch));
+        assertEquals(2, t1.getConfidence().getDepthInBlocks());
+    }
+
+    @Test
+    public void receiveDeadCoinbaseInBatch() throws Exception {
+        // A coinbase that went dead in a re-org comes back when its block is on the best chain again.
+        Block block = params.getGenesisBlock().createNextBlockWithCoinbase(myKey.getPubKey(), COIN);
+        Transaction coinbase = block.getTransactions().get(0);
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.DEAD, coinbase));
+        StoredBlock stored = createFakeBlock(blockStore).storedBlock;
+        assertEquals(1, wallet.receiveTransactions(ImmutableList.of(new Wallet.ReceivedTransaction(coinbase, stored, 0))));
+        assertEquals(0, wallet.getPoolSize(WalletTransaction.Pool.DEAD));
+        assertEquals(1, wallet.getPoolSize(WalletTransaction.Pool.UNSPENT));
+        assertEquals(TransactionConfidence.ConfidenceType.BUILDING, coinbase.getConfidence().getConfidenceType());
+        assertTrue(wallet.isConsistent());
+    }
+
     @Test
     public void getWatchedAddresses() throws Exception {
         Address watchedAddress = new ECKey().toAddress(params);
@@ -1862,6 +2113,32 @@ public class WalletTest extends TestWithWallet {
         assertEquals(notMyAddr, req.tx.getOutputs().get(0).getScriptPubKey().getToAddress(params));
     }
 
+    @Test
+    public void exactMatchNeedsNoChange() throws Exception {
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        sendMoneyToWallet(valueOf(0, 50), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        sendMoneyToWallet(valueOf(0, 30), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        // The two smaller coins pay for the send and the fee, leaving less than a change output is worth.
+        Coin excess = SATOSHI.multiply(1000);
+        Coin fee = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+        Coin value = valueOf(0, 80).subtract(fee).subtract(excess);
+        SendRequest req = SendRequest.to(new ECKey().toAddress(params), value);
+        req.feePerKb = fee;
+        req.coinSelector = new BranchAndBoundCoinSelector();
+        wallet.completeTx(req);
+        assertEquals(1, req.tx.getOutputs().size());
+        assertEquals(2, req.tx.getInputs().size());
+        assertEquals(fee.add(excess), req.tx.getFee());
+
+        // Without a match the fallback selector picks the coins and change is returned as usual.
+        req = SendRequest.to(new ECKey().toAddress(params), valueOf(0, 60));
+        req.feePerKb = fee;
+        req.coinSelector = new BranchAndBoundCoinSelector();
+        wallet.completeTx(req);
+        assertEquals(2, req.tx.getOutputs().size());
+        assertEquals(fee, req.tx.getFee());
+    }
+
     @Test
     public void feeSolverAndCoinSelectionTest() throws Exception {
         // Tests basic fee solving works
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+    @Test
+    public void reusesBuffers() {
+        BufferPool pool = new BufferPool(64 * 1024);
+        ByteBuffer buffer = pool.acquire(5000);
+        assertEquals(0, buffer.position());
+        assertEquals(5000, buffer.limit());
+        assertEquals(8192, buffer.capacity());
+        buffer.put(new byte[100]);
+        pool.release(buffer);
+        assertEquals(8192, pool.getIdleBytes());
+
+        // Any size that rounds up to the same capacity gets the buffer back, reset.
+        ByteBuffer again = pool.acquire(8000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(8000, again.limit());
+        assertEquals(0, pool.getIdleBytes());
+        // But not a smaller size class.
+        assertNotSame(buffer, pool.acquire(10));
+        assertEquals(4096, pool.acquire(10).capacity());
+    }
+
+    @Test
+    public void limitsIdleBytes() {
+        BufferPool pool = new BufferPool(20000);
+        ByteBuffer a = pool.acquire(16384);
+        ByteBuffer b = pool.acquire(16384);
+        pool.release(a);
+        pool.release(b);
+        assertEquals(16384, pool.getIdleBytes());
+        // Buffers that didn't come from the pool are ignored.
+        pool.release(ByteBuffer.allocate(1000));
+        pool.release(ByteBuffer.allocateDirect(4096));
+        assertEquals(16384, pool.getIdleBytes());
+    }
+}
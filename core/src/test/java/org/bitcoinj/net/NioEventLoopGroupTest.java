@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.net;
+
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.SettableFuture;
+import org.bitcoin.paymentchannel.Protos;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NioEventLoopGroupTest {
+    private static final int CONNECTIONS = 6;
+
+    private static NioEventLoopGroup group(int size, EventLoopAffinity affinity) {
+        List<NioEventLoop> loops = new ArrayList<NioEventLoop>();
+        for (int i = 0; i < size; i++) {
+            loops.add(new NioEventLoop() {
+                @Override
+                void handleKey(SelectionKey key) throws IOException {
+                }
+
+                @Override
+                void closeKey(SelectionKey key) throws IOException {
+                }
+            });
+        }
+        return new NioEventLoopGroup(loops, affinity);
+    }
+
+    @Test
+    public void affinity() throws Exception {
+        NioEventLoopGroup roundRobin = group(3, EventLoopAffinity.ROUND_ROBIN);
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 8333);
+        Set<NioEventLoop> chosen = Sets.newHashSet();
+        for (int i = 0; i < 3; i++)
+            chosen.add(roundRobin.choose(address));
+        assertEquals(3, chosen.size());
+
+        NioEventLoopGroup byAddress = group(3, EventLoopAffinity.REMOTE_ADDRESS);
+        NioEventLoop loop = byAddress.choose(address);
+        assertSame(loop, byAddress.choose(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 18333)));
+
+        NioEventLoopGroup leastConnections = group(2, EventLoopAffinity.LEAST_CONNECTIONS);
+        NioEventLoop first = leastConnections.choose(address);
+        first.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        assertNotSame(first, leastConnections.choose(address));
+    }
+
+    @Test
+    public void connectionsStayOnOneThread() throws Exception {
+        final CountDownLatch echoed = new CountDownLatch(CONNECTIONS);
+        final CountDownLatch closed = new CountDownLatch(CONNECTIONS);
+        final Set<Thread> serverThreads = new CopyOnWriteArraySet<Thread>();
+        final SettableFuture<Void> failure = SettableFuture.create();
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser<Protos.TwoWayChannelMessage> getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    private Thread thread;
+
+                    private void check() {
+                        if (thread == null)
+                            thread = Thread.currentThread();
+                        else if (thread != Thread.currentThread())
+                            failure.setException(new AssertionError("Connection moved between threads"));
+                        serverThreads.add(thread);
+                    }
+
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        check();
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                        check();
+                    }
+
+                    @Override
+                    public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                        check();
+                        closed.countDown();
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4245), 3, EventLoopAffinity.ROUND_ROBIN);
+        server.startAsync().awaitRunning();
+
+        NioClientManager clients = new NioClientManager(2, EventLoopAffinity.LEAST_CONNECTIONS);
+        clients.startAsync().awaitRunning();
+        final Protos.TwoWayChannelMessage msg = Protos.TwoWayChannelMessage.newBuilder()
+                .setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN).build();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            ProtobufParser<Protos.TwoWayChannelMessage> parser = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                    new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                        @Override
+                        public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage received) {
+                            if (received.equals(msg))
+                                echoed.countDown();
+                        }
+
+                        @Override
+                        public void connectionOpen(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                            handler.write(msg);
+                        }
+
+                        @Override
+                        public void connectionClosed(ProtobufParser<Protos.TwoWayChannelMessage> handler) {
+                        }
+                    }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            clients.openConnection(new InetSocketAddress("localhost", 4245), parser);
+        }
+        assertTrue(echoed.await(10, TimeUnit.SECONDS));
+        assertEquals(CONNECTIONS, clients.getConnectedClientCount());
+
+        // Stopping the client manager closes the connections on every one of its threads.
+        clients.stopAsync().awaitTerminated();
+        assertEquals(0, clients.getConnectedClientCount());
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        server.stopAsync().awaitTerminated();
+        assertFalse(failure.isDone());
+        assertEquals(3, serverThreads.size());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeBlock;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeTx;
+import static org.junit.Assert.*;
+
+public class FileTransactionArchiveTest extends TestWithWallet {
+    private File file;
+    private FileTransactionArchive archive;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj-unit-test", null);
+        archive = new FileTransactionArchive(params, file);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        archive.close();
+        file.delete();
+    }
+
+    private void newBlock() throws Exception {
+        wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+    }
+
+    @Test
+    public void archiveBuriedSpends() throws Exception {
+        Transaction received = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction unspent = sendMoneyToWallet(CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), COIN);
+        sendMoneyToWallet(spend, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.setTransactionArchive(archive, 3, 2);
+        // The coin is deep enough, but the spend isn't yet.
+        assertEquals(3, received.getConfidence().getDepthInBlocks());
+        assertEquals(0, wallet.archiveTransactions());
+        assertEquals(3, wallet.getTransactions(true).size());
+
+        // Archiving happens on the first block and then only every second one.
+        newBlock();
+        newBlock();
+        assertEquals(3, spend.getConfidence().getDepthInBlocks());
+        assertEquals(0, archive.size());
+        newBlock();
+        assertEquals(2, archive.size());
+        assertEquals(ImmutableList.of(unspent), ImmutableList.copyOf(wallet.getTransactions(true)));
+        assertEquals(CENT, wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+
+        // Still found, read back from the archive with an up to date depth.
+        Transaction archived = wallet.getTransaction(received.getHash());
+        assertArrayEquals(received.bitcoinSerialize(), archived.bitcoinSerialize());
+        assertEquals(6, archived.getConfidence().getDepthInBlocks());
+        assertNull(wallet.getArchivedTransaction(unspent.getHash()));
+        assertEquals(4, wallet.getArchivedTransaction(spend.getHash()).getConfidence().getDepthInBlocks());
+
+        // Seeing it again doesn't bring the coin back.
+        sendMoneyToWallet(new Transaction(params, received.bitcoinSerialize()),
+                AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(CENT, wallet.getBalance());
+        assertEquals(1, wallet.getTransactions(true).size());
+
+        // The index is rebuilt when the file is opened again.
+        archive.close();
+        archive = new FileTransactionArchive(params, file);
+        assertEquals(2, archive.size());
+        WalletTransaction wtx = archive.get(spend.getHash());
+        assertEquals(WalletTransaction.Pool.SPENT, wtx.getPool());
+        assertEquals(spend, wtx.getTransaction());
+        assertNull(archive.get(unspent.getHash()));
+    }
+
+    @Test
+    public void truncatedRecord() throws Exception {
+        Transaction tx1 = createFakeTx(params, COIN, myAddress);
+        Transaction tx2 = createFakeTx(params, CENT, myAddress);
+        archive.archive(ImmutableList.of(new WalletTransaction(WalletTransaction.Pool.SPENT, tx1)));
+        // Archiving again is ignored.
+        archive.archive(ImmutableList.of(new WalletTransaction(WalletTransaction.Pool.SPENT, tx1)));
+        long length = file.length();
+        archive.close();
+
+        // A crash whilst appending leaves half a record behind.
+        FileOutputStream stream = new FileOutputStream(file, true);
+        stream.write(Arrays.copyOf(tx2.getHash().getBytes(), 20));
+        stream.close();
+        archive = new FileTransactionArchive(params, file);
+        assertEquals(length, file.length());
+        assertEquals(1, archive.size());
+
+        archive.archive(ImmutableList.of(new WalletTransaction(WalletTransaction.Pool.SPENT, tx2)));
+        archive.close();
+        archive = new FileTransactionArchive(params, file);
+        assertEquals(2, archive.size());
+        assertEquals(tx1, archive.get(tx1.getHash()).getTransaction());
+        assertEquals(tx2, archive.get(tx2.getHash()).getTransaction());
+    }
+}
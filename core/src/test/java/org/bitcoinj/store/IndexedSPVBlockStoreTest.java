@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class IndexedSPVBlockStoreTest {
+    private NetworkParameters params;
+    private File f;
+    private Address to;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        f = File.createTempFile("indexedspvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        to = new ECKey().toAddress(params);
+    }
+
+    @Test
+    public void basics() throws Exception {
+        IndexedSPVBlockStore store = new IndexedSPVBlockStore(params, f);
+        // Check the first block in a new store is the genesis block.
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock(), genesis.getHeader());
+        assertEquals(0, genesis.getHeight());
+
+        // Build a new block.
+        StoredBlock b1 = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(b1);
+        store.setChainHead(b1);
+        store.close();
+
+        // Check we can get it back out again if we rebuild the store object.
+        store = new IndexedSPVBlockStore(params, f);
+        assertEquals(b1, store.get(b1.getHeader().getHash()));
+        assertEquals(b1, store.getChainHead());
+        store.close();
+
+        // And that the file is readable by the scanning store.
+        SPVBlockStore spvStore = new SPVBlockStore(params, f);
+        assertEquals(b1, spvStore.get(b1.getHeader().getHash()));
+        assertEquals(b1, spvStore.getChainHead());
+        spvStore.close();
+    }
+
+    @Test
+    public void wrapsAround() throws Exception {
+        IndexedSPVBlockStore store = new IndexedSPVBlockStore(params, f);
+        StoredBlock genesis = store.getChainHead();
+        StoredBlock first = genesis.build(genesis.getHeader().createNextBlock(to).cloneAsHeader());
+        store.put(first);
+        StoredBlock block = first;
+        // More than fits into the ring, so the genesis block and the first block get overwritten.
+        for (int i = 0; i < SPVBlockStore.DEFAULT_NUM_HEADERS; i++) {
+            // Space the blocks out in time from the genesis block, they'd be too far in the future otherwise.
+            long time = genesis.getHeader().getTimeSeconds() + i;
+            block = block.build(block.getHeader().createNextBlock(to, time).cloneAsHeader());
+            store.put(block);
+        }
+        store.setChainHead(block);
+        assertNull(store.get(genesis.getHeader().getHash()));
+        assertNull(store.get(first.getHeader().getHash()));
+        StoredBlock second = store.get(block.getHeader().getPrevBlockHash());
+        assertNotNull(second);
+        store.close();
+
+        // The index is rebuilt from the ring with the same contents.
+        store = new IndexedSPVBlockStore(params, f);
+        assertNull(store.get(genesis.getHeader().getHash()));
+        assertNull(store.get(first.getHeader().getHash()));
+        assertEquals(second, store.get(block.getHeader().getPrevBlockHash()));
+        assertEquals(block, store.getChainHead());
+        store.close();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.testing.TestWithWallet;
+import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.WalletFiles;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.bitcoinj.testing.FakeTxBuilder.createFakeBlock;
+import static org.junit.Assert.*;
+
+public class WalletJournalTest extends TestWithWallet {
+    private File file;
+    private File journalFile;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        file = File.createTempFile("bitcoinj-unit-test", null);
+        journalFile = WalletJournal.getJournalFile(file);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        file.delete();
+        journalFile.delete();
+    }
+
+    private void assertLoadsAsWallet() throws Exception {
+        Protos.Wallet expected = new WalletProtobufSerializer().walletToProto(wallet);
+        Protos.Wallet actual = WalletJournal.readWalletProto(file);
+        // Transactions may come back in a different order.
+        assertEquals(new HashSet<Protos.Transaction>(expected.getTransactionList()),
+                new HashSet<Protos.Transaction>(actual.getTransactionList()));
+        assertEquals(expected.toBuilder().clearTransaction().build(), actual.toBuilder().clearTransaction().build());
+        Wallet loaded = Wallet.loadFromFile(file);
+        assertEquals(wallet.getBalance(), loaded.getBalance());
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), loaded.getBalance(Wallet.BalanceType.ESTIMATED));
+    }
+
+    private File tempFile() throws Exception {
+        return File.createTempFile("wallet", null, file.getAbsoluteFile().getParentFile());
+    }
+
+    @Test
+    public void appendAndReplay() throws Exception {
+        WalletJournal journal = new WalletJournal(file);
+        // Nothing to append to before the first snapshot.
+        assertFalse(wallet.appendToJournal(journal));
+        wallet.saveToFile(tempFile(), journal);
+        byte[] snapshot = Files.toByteArray(file);
+        long journalLength = journalFile.length();
+        assertLoadsAsWallet();
+
+        // Receive some money, bury it a bit, issue a key and spend some.
+        Transaction received = sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertTrue(wallet.appendToJournal(journal));
+        for (int i = 0; i < 3; i++) {
+            wallet.notifyNewBestBlock(createFakeBlock(blockStore).storedBlock);
+            assertTrue(wallet.appendToJournal(journal));
+        }
+        assertEquals(4, received.getConfidence().getDepthInBlocks());
+        wallet.freshReceiveAddress();
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), CENT);
+        wallet.commitTx(spend);
+        assertTrue(wallet.appendToJournal(journal));
+        // Appending without changes doesn't write anything.
+        long length = journalFile.length();
+        assertTrue(wallet.appendToJournal(journal));
+        assertEquals(length, journalFile.length());
+
+        assertArrayEquals(snapshot, Files.toByteArray(file));
+        assertTrue(journalFile.length() > journalLength);
+        assertLoadsAsWallet();
+
+        // A truncated last record is ignored.
+        FileOutputStream stream = new FileOutputStream(journalFile, true);
+        stream.write(new byte[] { 100, 1, 2 });
+        stream.close();
+        assertLoadsAsWallet();
+
+        // Changes to the description need a snapshot.
+        wallet.setDescription("journaled");
+        assertFalse(wallet.appendToJournal(journal));
+        wallet.saveToFile(tempFile(), journal);
+        assertEquals(journalLength, journalFile.length());
+        assertLoadsAsWallet();
+    }
+
+    @Test
+    public void appendsOnlyChangedTransactions() throws Exception {
+        WalletJournal journal = new WalletJournal(file);
+        for (int i = 0; i < 3; i++)
+            sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.saveToFile(tempFile(), journal);
+        long journalLength = journalFile.length();
+        Transaction received = sendMoneyToWallet(CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertTrue(wallet.appendToJournal(journal));
+
+        DataInputStream stream = new DataInputStream(new FileInputStream(journalFile));
+        try {
+            stream.skipBytes((int) journalLength);
+            Protos.Wallet record = Protos.Wallet.parseDelimitedFrom(stream);
+            assertEquals(1, record.getTransactionCount());
+            assertEquals(received.getHash(), new Sha256Hash(record.getTransaction(0).getHash().toByteArray()));
+        } finally {
+            stream.close();
+        }
+        assertLoadsAsWallet();
+
+        // Spending one of the coins writes the spend and the transaction it spends from.
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), valueOf(2, 0));
+        wallet.commitTx(spend);
+        assertTrue(wallet.appendToJournal(journal));
+        assertLoadsAsWallet();
+    }
+
+    @Test
+    public void staleJournalIgnored() throws Exception {
+        WalletJournal journal = new WalletJournal(file);
+        wallet.saveToFile(tempFile(), journal);
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertTrue(wallet.appendToJournal(journal));
+        // Saving without the journal leaves behind a journal for the previous snapshot.
+        sendMoneyToWallet(CENT, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        wallet.saveToFile(file);
+        assertTrue(journalFile.exists());
+        assertLoadsAsWallet();
+    }
+
+    @Test
+    public void autosaveWithJournal() throws Exception {
+        WalletFiles files = wallet.autosaveToFile(file, 1, TimeUnit.HOURS, null);
+        files.setJournaling(true);
+        files.saveNow();
+        assertTrue(journalFile.exists());
+        sendMoneyToWallet(COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        // Appends, and for a wallet this small compacts the journal straight away.
+        files.saveNow();
+        assertEquals(COIN, Wallet.loadFromFile(file).getBalance());
+
+        // Turning the journal off folds it into the wallet file.
+        files.setJournaling(false);
+        wallet.shutdownAutosaveAndWait();
+        assertFalse(journalFile.exists());
+        assertEquals(COIN, Wallet.loadFromFile(file).getBalance());
+    }
+}
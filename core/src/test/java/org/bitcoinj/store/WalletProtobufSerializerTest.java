@@ -35,6 +35,7 @@ import com.google.protobuf.ByteString;
 
 import org.bitcoinj.wallet.MarriedKeyChain;
 import org.bitcoinj.wallet.Protos;
+import org.bitcoinj.wallet.WalletTransaction;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -46,6 +47,7 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 
 import static org.bitcoinj.core.Coin.*;
@@ -147,6 +149,35 @@ public class WalletProtobufSerializerTest {
         assertEquals(Purpose.RAISE_FEE, t1copy.getPurpose());
     }
 
+    @Test
+    public void manyTransactions() throws Exception {
+        // Enough transactions to be read in several batches, each spending the one before, so that spends have to be
+        // connected across batches.
+        Transaction prev = createFakeTx(params, COIN, myAddress);
+        List<Transaction> txns = new ArrayList<Transaction>();
+        for (int i = 0; i < 1200; i++) {
+            Transaction tx = new Transaction(params);
+            tx.addOutput(COIN, myAddress);
+            tx.addInput(prev.getOutput(0)).connect(prev.getOutput(0));
+            myWallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, prev));
+            txns.add(prev);
+            prev = tx;
+        }
+        myWallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, prev));
+        txns.add(prev);
+
+        Wallet wallet1 = roundTrip(myWallet);
+        assertEquals(txns.size(), wallet1.getTransactions(true).size());
+        assertEquals(myWallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet1.getBalance(Wallet.BalanceType.ESTIMATED));
+        for (int i = 0; i < txns.size() - 1; i++) {
+            Transaction tx = wallet1.getTransaction(txns.get(i).getHash());
+            TransactionInput spentBy = tx.getOutput(0).getSpentBy();
+            assertEquals(txns.get(i + 1).getHash(), spentBy.getParentTransaction().getHash());
+            assertSame(wallet1.getTransaction(txns.get(i + 1).getHash()), spentBy.getParentTransaction());
+        }
+        assertTrue(wallet1.isConsistent());
+    }
+
     @Test
     public void doubleSpend() throws Exception {
         // Check that we can serialize double spends correctly, as this is a slightly tricky case.
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.utils;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockImportPipelineTest {
+    private NetworkParameters params;
+    private List<File> files;
+
+    @Before
+    public void setUp() throws Exception {
+        params = MainNetParams.get();
+        Context.propagate(new Context(params));
+        files = Arrays.asList(new File(getClass().getResource("/org/bitcoinj/core/first-100k-blocks.dat").getFile()));
+    }
+
+    @Test
+    public void sameResultAsBlockFileLoader() throws Exception {
+        BlockChain serialChain = new BlockChain(params, new MemoryBlockStore(params));
+        int blocks = 0;
+        for (Block block : new BlockFileLoader(params, files)) {
+            serialChain.add(block);
+            blocks++;
+        }
+
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        // A small window so the reader has to wait for the chain.
+        BlockImportPipeline pipeline = new BlockImportPipeline(params, files, 3, 2);
+        pipeline.importInto(chain);
+        assertEquals(serialChain.getChainHead(), chain.getChainHead());
+        assertEquals(blocks, pipeline.getBlocksConnected());
+        assertEquals(0, pipeline.getBlocksSkipped());
+        assertEquals(files.get(0).length(), pipeline.getBytesConnected() + 8 * blocks);
+        assertTrue(pipeline.getBlocksPerSecond() > 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void onlyOnce() throws Exception {
+        BlockChain chain = new BlockChain(params, new MemoryBlockStore(params));
+        BlockImportPipeline pipeline = new BlockImportPipeline(params, files);
+        pipeline.importInto(chain);
+        pipeline.importInto(chain);
+    }
+}
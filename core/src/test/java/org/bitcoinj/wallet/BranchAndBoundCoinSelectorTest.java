@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 the bitcoinj authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.bitcoinj.core.Coin.*;
+import static org.junit.Assert.*;
+
+public class BranchAndBoundCoinSelectorTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private final Address address = new ECKey().toAddress(params);
+
+    @Before
+    public void setUp() throws Exception {
+        new Context(params);
+    }
+
+    private List<TransactionOutput> outputs(TransactionConfidence.ConfidenceType type, long... values) {
+        Transaction tx = new Transaction(params);
+        for (long value : values)
+            tx.addOutput(Coin.valueOf(value), address);
+        tx.getConfidence().setConfidenceType(type);
+        return new ArrayList<TransactionOutput>(tx.getOutputs());
+    }
+
+    private static long[] values(CoinSelection selection) {
+        long[] values = new long[selection.gathered.size()];
+        int i = 0;
+        for (TransactionOutput output : selection.gathered)
+            values[i++] = output.getValue().value;
+        Arrays.sort(values);
+        return values;
+    }
+
+    @Test
+    public void exactMatch() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(ZERO, 1000, new DefaultCoinSelector());
+        List<TransactionOutput> candidates = outputs(TransactionConfidence.ConfidenceType.BUILDING,
+                1000, 5000, 3000, 7000, 2000, 2000);
+        CoinSelection selection = selector.select(Coin.valueOf(6000), candidates);
+        assertEquals(Coin.valueOf(6000), selection.valueGathered);
+        assertEquals(6000, sum(values(selection)));
+        // The greedy selector would have taken the biggest output and made change.
+        assertNotEquals(Coin.valueOf(6000), new DefaultCoinSelector().select(Coin.valueOf(6000), candidates).valueGathered);
+    }
+
+    @Test
+    public void leastExcessWithinCostOfChange() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(Coin.valueOf(500), 1000,
+                new DefaultCoinSelector());
+        List<TransactionOutput> candidates = outputs(TransactionConfidence.ConfidenceType.BUILDING,
+                10000, 4300, 4100, 1950);
+        CoinSelection selection = selector.select(Coin.valueOf(6000), candidates);
+        assertArrayEquals(new long[] { 1950, 4100 }, values(selection));
+        assertNull(selector.selectExactly(Coin.valueOf(13000), candidates));
+    }
+
+    @Test
+    public void fallsBackWithoutMatch() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(Coin.valueOf(10), 1000,
+                new DefaultCoinSelector());
+        List<TransactionOutput> candidates = outputs(TransactionConfidence.ConfidenceType.BUILDING, 5000, 3000);
+        assertNull(selector.selectExactly(Coin.valueOf(4000), candidates));
+        CoinSelection selection = selector.select(Coin.valueOf(4000), candidates);
+        assertEquals(Coin.valueOf(5000), selection.valueGathered);
+        // Not enough money at all.
+        assertEquals(Coin.valueOf(8000), selector.select(COIN, candidates).valueGathered);
+    }
+
+    @Test
+    public void onlySelectableOutputs() throws Exception {
+        BranchAndBoundCoinSelector selector = new BranchAndBoundCoinSelector(ZERO, 1000, new DefaultCoinSelector());
+        List<TransactionOutput> candidates = outputs(TransactionConfidence.ConfidenceType.BUILDING, 5000, 3000);
+        // Pending and not ours, so not spendable.
+        candidates.addAll(outputs(TransactionConfidence.ConfidenceType.PENDING, 1000));
+        assertNull(selector.selectExactly(Coin.valueOf(6000), candidates));
+        assertEquals(Coin.valueOf(8000), selector.select(Coin.valueOf(6000), candidates).valueGathered);
+        // But it would be if we allowed unconfirmed coins.
+        selector = new BranchAndBoundCoinSelector(ZERO, 1000, new AllowUnconfirmedCoinSelector());
+        assertEquals(Coin.valueOf(6000), selector.select(Coin.valueOf(6000), candidates).valueGathered);
+        assertEquals(Coin.valueOf(9000), selector.select(NetworkParameters.MAX_MONEY, candidates).valueGathered);
+    }
+
+    @Test
+    public void manyOutputs() throws Exception {
+        Random random = new Random(1);
+        long[] values = new long[20000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = 100000 + random.nextInt(10000000);
+        List<TransactionOutput> candidates = outputs(TransactionConfidence.ConfidenceType.BUILDING, values);
+        Coin target = Coin.valueOf(values[17] + values[1234] + values[9999]);
+        CoinSelection selection = new BranchAndBoundCoinSelector().select(target, candidates);
+        assertTrue(selection.valueGathered.compareTo(target) >= 0);
+        assertTrue(selection.valueGathered.compareTo(target.add(BranchAndBoundCoinSelector.DEFAULT_COST_OF_CHANGE)) <= 0);
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values)
+            sum += value;
+        return sum;
+    }
+}
@@ -32,6 +32,7 @@ import org.spongycastle.crypto.params.KeyParameter;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.List;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -83,6 +84,42 @@ public class DeterministicKeyChainTest {
         assertEquals(2, chain.getKeys(false).size());
     }
 
+    @Test
+    public void bigLookahead() throws Exception {
+        chain.setLookaheadSize(200);
+        DeterministicKey key = (DeterministicKey) chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        chain.maybeLookAhead();
+        DeterministicKey parent = key.getParent();
+        List<DeterministicKey> leafKeys = new ArrayList<DeterministicKey>();
+        for (ECKey k : chain.getKeys(true)) {
+            if (parent.equals(((DeterministicKey) k).getParent()))
+                leafKeys.add((DeterministicKey) k);
+        }
+        assertTrue(leafKeys.size() >= 200);
+        assertEquals(key, leafKeys.get(0));
+        for (int i = 0; i < leafKeys.size(); i++) {
+            assertEquals(HDKeyDerivation.deriveChildKey(parent, i).dropPrivateBytes(), leafKeys.get(i));
+            assertSame(parent, leafKeys.get(i).getParent());
+        }
+        // The private key can still be found from the parent.
+        key.sign(Sha256Hash.ZERO_HASH);
+    }
+
+    @Test
+    public void parallelLookaheadDerivation() throws Exception {
+        DeterministicKey parent = ((DeterministicKey) chain.getKey(KeyChain.KeyPurpose.RECEIVE_FUNDS)).getParent();
+        // Derived in batches on other threads, the keys come back the same and in order.
+        List<DeterministicKey> keys = DeterministicKeyChain.deriveLookaheadKeys(parent, 5, 150, 4);
+        assertEquals(150, keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            DeterministicKey expected = HDKeyDerivation.deriveChildKey(parent, 5 + i).dropPrivateBytes();
+            assertEquals(expected, keys.get(i));
+            assertEquals(expected.getPath(), keys.get(i).getPath());
+            assertSame(parent, keys.get(i).getParent());
+        }
+        assertEquals(keys, DeterministicKeyChain.deriveLookaheadKeys(parent, 5, 150, 1));
+    }
+
     @Test
     public void deriveAccountOne() throws Exception {
         long secs = 1389353062L;
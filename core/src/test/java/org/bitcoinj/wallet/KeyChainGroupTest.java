@@ -19,6 +19,7 @@ package org.bitcoinj.wallet;
 import org.bitcoinj.core.*;
 import org.bitcoinj.crypto.*;
 import org.bitcoinj.params.MainNetParams;
+import org.bitcoinj.script.ScriptBuilder;
 import org.bitcoinj.utils.BriefLogFormatter;
 import org.bitcoinj.utils.Threading;
 import com.google.common.collect.ImmutableList;
@@ -164,6 +165,46 @@ public class KeyChainGroupTest {
         assertNull(group.findKeyFromPubHash(d.getPubKeyHash()));
     }
 
+    @Test
+    public void findKeyFollowsChanges() throws Exception {
+        ECKey a = group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        assertEquals(a, group.findKeyFromPubHash(a.getPubKeyHash()));
+        // Keys derived after the first lookup, in the lookahead zone and beyond it, are found too.
+        List<DeterministicKey> keys = group.freshKeys(KeyChain.KeyPurpose.RECEIVE_FUNDS, LOOKAHEAD_SIZE * 3);
+        for (DeterministicKey key : keys)
+            assertEquals(key, group.findKeyFromPubHash(key.getPubKeyHash()));
+        List<ECKey> all = group.getActiveKeyChain().getKeys(true);
+        ECKey lookahead = all.get(all.size() - 1);
+        assertEquals(lookahead, group.findKeyFromPubHash(lookahead.getPubKeyHash()));
+
+        ECKey imported = new ECKey();
+        group.importKeys(imported);
+        assertEquals(imported, group.findKeyFromPubHash(imported.getPubKeyHash()));
+        group.removeImportedKey(imported);
+        assertNull(group.findKeyFromPubHash(imported.getPubKeyHash()));
+
+        // After encryption the encrypted copies are returned, and new keys are still picked up.
+        KeyCrypterScrypt scrypt = new KeyCrypterScrypt(2);
+        group.encrypt(scrypt, scrypt.deriveKey("password"));
+        assertTrue(group.findKeyFromPubHash(a.getPubKeyHash()).isEncrypted());
+        ECKey b = group.freshKey(KeyChain.KeyPurpose.CHANGE);
+        group.freshKeys(KeyChain.KeyPurpose.CHANGE, LOOKAHEAD_SIZE * 2);
+        assertEquals(b, group.findKeyFromPubHash(b.getPubKeyHash()));
+        assertNull(group.findKeyFromPubHash(new ECKey().getPubKeyHash()));
+    }
+
+    @Test
+    public void findRedeemDataFollowsFreshAddresses() throws Exception {
+        group = createMarriedKeyChainGroup();
+        for (int i = 0; i < LOOKAHEAD_SIZE * 3; i++) {
+            Address address = group.freshAddress(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+            RedeemData redeemData = group.findRedeemDataFromScriptHash(address.getHash160());
+            assertNotNull(redeemData);
+            assertEquals(address, Address.fromP2SHScript(params,
+                    ScriptBuilder.createP2SHOutputScript(redeemData.redeemScript)));
+        }
+    }
+
     @Test
     public void currentP2SHAddress() throws Exception {
         group = createMarriedKeyChainGroup();
@@ -326,6 +367,24 @@ public class KeyChainGroupTest {
         assertTrue(filter.contains(key2.getPubKey()));
     }
 
+    @Test
+    public void bloomFilterFollowsNewKeys() throws Exception {
+        group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        BloomFilter filter = group.getBloomFilter(100, 0.001, 42);
+        // Changes made to the filter handed out don't find their way into the next one.
+        filter.insert(new ECKey());
+        assertEquals(group.getActiveKeyChain().getFilter(100, 0.001, 42), group.getBloomFilter(100, 0.001, 42));
+        // Run past the lookahead zone, so that more keys are derived.
+        for (int i = 0; i < LOOKAHEAD_SIZE + group.getLookaheadThreshold() + 1; i++)
+            group.freshKey(KeyChain.KeyPurpose.RECEIVE_FUNDS);
+        filter = group.getBloomFilter(100, 0.001, 42);
+        assertEquals(group.getActiveKeyChain().getFilter(100, 0.001, 42), filter);
+        ECKey key = new ECKey();
+        assertFalse(filter.contains(key.getPubKey()));
+        group.importKeys(key);
+        assertTrue(group.getBloomFilter(100, 0.001, 42).contains(key.getPubKey()));
+    }
+
     @Test
     public void findRedeemScriptFromPubHash() throws Exception {
         group = createMarriedKeyChainGroup();
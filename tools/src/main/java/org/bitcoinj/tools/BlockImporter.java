@@ -5,13 +5,16 @@ import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.TestNet3Params;
 import org.bitcoinj.store.*;
 import org.bitcoinj.utils.BlockFileLoader;
+import org.bitcoinj.utils.BlockImportPipeline;
 import com.google.common.base.Preconditions;
 
 import java.io.File;
+import java.io.IOException;
 
-/** Very thin wrapper around {@link org.bitcoinj.utils.BlockFileLoader} */
+/** Very thin wrapper around {@link org.bitcoinj.utils.BlockImportPipeline} */
 public class BlockImporter {
-    public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
+    public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException, IOException,
+            InterruptedException {
         System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
         System.out.println("       eg BlockImporter prod H2 /home/user/bitcoinj.h2store");
@@ -48,9 +51,10 @@ public class BlockImporter {
         else
             chain = new BlockChain(params, store);
         
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
-        
-        for (Block block : loader)
-            chain.add(block);
+        BlockImportPipeline pipeline = new BlockImportPipeline(params, BlockFileLoader.getReferenceClientBlockFileList());
+        pipeline.importInto(chain);
+        System.out.println(String.format("Imported %d blocks in %d seconds, %.1f blocks/s, %.2f MB/s",
+                pipeline.getBlocksConnected(), pipeline.getElapsedMillis() / 1000, pipeline.getBlocksPerSecond(),
+                pipeline.getMegabytesPerSecond()));
     }
 }